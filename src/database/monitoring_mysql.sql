@@ -1,5 +1,5 @@
 
-INSERT INTO ofVersion (name, version) VALUES ('monitoring', 10);
+INSERT INTO ofVersion (name, version) VALUES ('monitoring', 12);
 
 CREATE TABLE ofConversation (
   conversationID        BIGINT        NOT NULL,
@@ -43,11 +43,21 @@ CREATE TABLE ofMessageArchive (
    INDEX ofMessageArchive_fromjid_idx (fromJID),
    INDEX ofMessageArchive_tojid_idx (toJID),
    INDEX ofMessageArchive_sent_idx (sentDate),
+   INDEX ofMessageArchive_msgid_idx (messageID),
    INDEX ofMessageArchive_pm_idx (isPMforJID),
    INDEX ofMessageArchive_pm_dir (isPMforJID, fromJID, toJID),
    INDEX ofMessageArchive_from_to (fromJID, toJID)
 );
 
+CREATE TABLE ofMessageStanzaID (
+   messageID         BIGINT           NOT NULL,
+   conversationID    BIGINT           NOT NULL,
+   ownerJID          VARCHAR(255)     NOT NULL,
+   stanzaID          VARCHAR(255)     NOT NULL,
+   INDEX ofMessageStanzaID_owner_idx (ownerJID, stanzaID),
+   INDEX ofMessageStanzaID_con_idx (conversationID)
+);
+
 CREATE TABLE ofRRDs (
    id            VARCHAR(100)         NOT NULL,
    updatedDate   BIGINT               NOT NULL,
@@ -1,5 +1,5 @@
 
-INSERT INTO ofVersion (name, version) VALUES ('monitoring', 10);
+INSERT INTO ofVersion (name, version) VALUES ('monitoring', 12);
 
 CREATE TABLE ofConversation (
   conversationID        BIGINT         NOT NULL,
@@ -44,10 +44,20 @@ CREATE INDEX ofMessageArchive_con_idx ON ofMessageArchive (conversationID);
 CREATE INDEX ofMessageArchive_fromjid_idx ON ofMessageArchive (fromJID);
 CREATE INDEX ofMessageArchive_tojid_idx ON ofMessageArchive (toJID);
 CREATE INDEX ofMessageArchive_sent_idx ON ofMessageArchive (sentDate);
+CREATE INDEX ofMessageArchive_msgid_idx ON ofMessageArchive (messageID);
 CREATE INDEX ofMessageArchive_pm_idx ON ofMessageArchive (isPMforJID);
 CREATE INDEX ofMessageArchive_pm_dir ON ofMessageArchive (isPMforJID, fromJID, toJID);
 CREATE INDEX ofMessageArchive_from_to ON ofMessageArchive (fromJID, toJID);
 
+CREATE TABLE ofMessageStanzaID (
+   messageID         BIGINT          NOT NULL,
+   conversationID    BIGINT          NOT NULL,
+   ownerJID          NVARCHAR(255)   NOT NULL,
+   stanzaID          NVARCHAR(255)   NOT NULL
+);
+CREATE INDEX ofMessageStanzaID_owner_idx ON ofMessageStanzaID (ownerJID, stanzaID);
+CREATE INDEX ofMessageStanzaID_con_idx ON ofMessageStanzaID (conversationID);
+
 CREATE TABLE ofRRDs (
    id            NVARCHAR(100)        NOT NULL,
    updatedDate   BIGINT               NOT NULL,
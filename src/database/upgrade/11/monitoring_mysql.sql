@@ -0,0 +1,12 @@
+-- Add a table that maps XEP-0359 stanza IDs to the identifier of the archived message that they were found in.
+CREATE TABLE ofMessageStanzaID (
+   messageID         BIGINT           NOT NULL,
+   conversationID    BIGINT           NOT NULL,
+   ownerJID          VARCHAR(255)     NOT NULL,
+   stanzaID          VARCHAR(255)     NOT NULL,
+   INDEX ofMessageStanzaID_owner_idx (ownerJID, stanzaID),
+   INDEX ofMessageStanzaID_con_idx (conversationID)
+);
+
+-- Update database version
+UPDATE ofVersion SET version = 11 WHERE name = 'monitoring';
@@ -0,0 +1,12 @@
+-- Add a table that maps XEP-0359 stanza IDs to the identifier of the archived message that they were found in.
+CREATE TABLE ofMessageStanzaID (
+   messageID         BIGINT          NOT NULL,
+   conversationID    BIGINT          NOT NULL,
+   ownerJID          NVARCHAR(255)   NOT NULL,
+   stanzaID          NVARCHAR(255)   NOT NULL
+);
+CREATE INDEX ofMessageStanzaID_owner_idx ON ofMessageStanzaID (ownerJID, stanzaID);
+CREATE INDEX ofMessageStanzaID_con_idx ON ofMessageStanzaID (conversationID);
+
+-- Update database version
+UPDATE ofVersion SET version = 11 WHERE name = 'monitoring';
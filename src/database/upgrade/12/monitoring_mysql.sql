@@ -0,0 +1,5 @@
+-- Add an index on the message identifier, which is used to process the archive in ranges of messages.
+ALTER TABLE ofMessageArchive ADD INDEX ofMessageArchive_msgid_idx (messageID);
+
+-- Update database version
+UPDATE ofVersion SET version = 12 WHERE name = 'monitoring';
@@ -0,0 +1,5 @@
+-- Add an index on the message identifier, which is used to process the archive in ranges of messages.
+CREATE INDEX ofMessageArchive_msgid_idx ON ofMessageArchive (messageID);
+
+-- Update database version
+UPDATE ofVersion SET version = 12 WHERE name = 'monitoring';
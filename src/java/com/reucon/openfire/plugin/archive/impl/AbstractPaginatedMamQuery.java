@@ -15,12 +15,20 @@
 package com.reucon.openfire.plugin.archive.impl;
 
 import com.reucon.openfire.plugin.archive.model.ArchivedMessage;
+import org.jivesoftware.openfire.archive.MonitoringConstants;
+import org.jivesoftware.util.SystemProperty;
 import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Representation of a MAM query.
@@ -29,6 +37,63 @@ import java.util.List;
  */
 public abstract class AbstractPaginatedMamQuery
 {
+    /**
+     * Defines how the amount of messages in the entire result set (reported to clients in the RSM 'count' element) is
+     * determined.
+     */
+    public enum CountMode
+    {
+        /**
+         * The amount is counted for every page that is requested.
+         */
+        exact,
+
+        /**
+         * The amount is counted once, and reused for subsequent pages of the same query, for a limited period of time.
+         */
+        cached,
+
+        /**
+         * The amount is not reported, unless it can be derived from the page itself.
+         */
+        none
+    }
+
+    public static final SystemProperty<CountMode> COUNT_MODE = SystemProperty.Builder.ofType(CountMode.class)
+        .setKey("archive.mam.count-mode")
+        .setDefaultValue(CountMode.exact)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> COUNT_CACHE_LIFETIME = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("archive.mam.count-cache.lifetime")
+        .setDefaultValue(Duration.ofMinutes(1))
+        .setMinValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> COUNT_CACHE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.count-cache.size")
+        .setDefaultValue(1000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * Recently computed result counts, used when the count mode is {@link CountMode#cached}. Least recently used entries
+     * are evicted first.
+     */
+    private static final Map<String, CachedCount> COUNT_CACHE = Collections.synchronizedMap(new LinkedHashMap<String, CachedCount>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedCount> eldest) {
+            return size() > COUNT_CACHE_SIZE.getValue();
+        }
+    });
+
     /**
      * Start (inclusive) of period for which to return messages.
      */
@@ -115,6 +180,100 @@ public abstract class AbstractPaginatedMamQuery
      */
     abstract protected int getTotalCount();
 
+    /**
+     * Get a page of a potentially larger list of archived messages that are the result of this query, and determine if
+     * that page is the last page (or the first, when paging backwards) in the result set.
+     *
+     * This retrieves one more message than requested, in the same query that retrieves the page, rather than issuing
+     * a separate query for the next page. The additional message is not part of the returned page.
+     *
+     * @param after an optional message identifier that acts as a starting point (exclusive) of the messages to be returned.
+     * @param before an optional message identifier that acts as an end point (exclusive) of the messages to be returned.
+     * @param maxResults The maximum number of archived messages to return
+     * @param isPagingBackwards true if the order of the messages is from new to old, otherwise false.
+     * @return A page of archived messages (never null).
+     * @throws DataRetrievalException On any problem that occurs while retrieving the page of archived messages.
+     */
+    @Nonnull
+    public Page getPageWithLookahead(@Nullable final Long after, @Nullable final Long before, final int maxResults, final boolean isPagingBackwards) throws DataRetrievalException
+    {
+        if (maxResults <= 0) {
+            // Issue #112: When there are no results, then the request is definitely 'complete'.
+            return new Page(Collections.emptyList(), true);
+        }
+
+        final int lookahead = maxResults == Integer.MAX_VALUE ? maxResults : maxResults + 1;
+        final List<ArchivedMessage> messages = getPage(after, before, lookahead, isPagingBackwards);
+        if (messages.size() <= maxResults) {
+            return new Page(messages, true);
+        }
+
+        // Pages are ordered from old to new. The surplus message is the one furthest away in the direction of paging.
+        final List<ArchivedMessage> page = isPagingBackwards
+            ? messages.subList(messages.size() - maxResults, messages.size())
+            : messages.subList(0, maxResults);
+        return new Page(new ArrayList<>(page), false);
+    }
+
+    /**
+     * Returns the amount of messages that are in the entire, unlimited/unpaged, result set, as governed by
+     * {@link #COUNT_MODE}.
+     *
+     * When the provided page is not delimited by 'after' or 'before', and is complete, the page contains the entire
+     * result set. In that case, its size is returned without counting the result set.
+     *
+     * @param after the 'after' value that was used to retrieve the page.
+     * @param before the 'before' value that was used to retrieve the page.
+     * @param page a page of the result set of this query.
+     * @return A message count, or null if it is not to be reported.
+     */
+    @Nullable
+    public Integer getResultCount(@Nullable final Long after, @Nullable final Long before, @Nonnull final Page page)
+    {
+        if (after == null && before == null && page.isComplete()) {
+            return page.getMessages().size();
+        }
+
+        switch (COUNT_MODE.getValue()) {
+            case none:
+                return null;
+
+            case cached:
+                final long lifetime = COUNT_CACHE_LIFETIME.getValue().toMillis();
+                final String key = getCountCacheKey(lifetime);
+                final long now = System.currentTimeMillis();
+                final CachedCount cached = COUNT_CACHE.get(key);
+                if (cached != null && cached.expires > now) {
+                    return cached.count;
+                }
+                final int count = getTotalCount();
+                COUNT_CACHE.put(key, new CachedCount(count, now + lifetime));
+                return count;
+
+            case exact:
+            default:
+                return getTotalCount();
+        }
+    }
+
+    /**
+     * Returns a value that identifies the result set of this query, for the purpose of caching its count. Dates are
+     * truncated to the cache lifetime, so that queries that default to 'now' as their end date can reuse a count.
+     *
+     * @param lifetime the cache lifetime, in milliseconds.
+     * @return a cache key.
+     */
+    @Nonnull
+    private String getCountCacheKey(final long lifetime)
+    {
+        return getClass().getName()
+            + '|' + archiveOwner
+            + '|' + with
+            + '|' + query
+            + '|' + startDate.getTime() / lifetime
+            + '|' + endDate.getTime() / lifetime;
+    }
+
     @Nonnull
     public Date getStartDate()
     {
@@ -155,4 +314,54 @@ public abstract class AbstractPaginatedMamQuery
             ", query='" + query + '\'' +
             '}';
     }
+
+    /**
+     * A page of archived messages that is the result of a query.
+     */
+    public static class Page
+    {
+        @Nonnull
+        private final List<ArchivedMessage> messages;
+
+        private final boolean complete;
+
+        public Page(@Nonnull final List<ArchivedMessage> messages, final boolean complete)
+        {
+            this.messages = messages;
+            this.complete = complete;
+        }
+
+        /**
+         * The archived messages on this page, ordered from old to new.
+         *
+         * @return archived messages (never null).
+         */
+        @Nonnull
+        public List<ArchivedMessage> getMessages()
+        {
+            return messages;
+        }
+
+        /**
+         * Indicates if no further messages exist beyond this page, in the direction of paging.
+         *
+         * @return true if this is the last page (or the first page, when paging backwards).
+         */
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+
+    private static class CachedCount
+    {
+        private final int count;
+        private final long expires;
+
+        private CachedCount(final int count, final long expires)
+        {
+            this.count = count;
+            this.expires = expires;
+        }
+    }
 }
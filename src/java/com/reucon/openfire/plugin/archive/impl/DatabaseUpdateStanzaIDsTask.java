@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.impl;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.archive.MonitoringConstants;
+import org.jivesoftware.openfire.archive.StanzaIDStore;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Database update script 11 of the monitoring plugin introduces the ofMessageStanzaID table, that maps XEP-0359 stanza
+ * IDs to the messages that they were found in. Messages that are archived after that update have their stanza IDs
+ * recorded when they are written. This task records the stanza IDs of messages that were archived earlier.
+ *
+ * Messages are processed in chunks, ordered by their database identifier. The identifier of the last processed message
+ * is stored in a property after each chunk, which allows the task to resume where it left off when it is interrupted
+ * (for example, when the plugin is unloaded). After the task completes, a property is set that prevents subsequent
+ * executions, and that indicates that lookups no longer need to fall back to scanning the archive.
+ *
+ * Additionally, this method will skip execution when the code is running in a cluster and the local node is not the
+ * senior node. This intends to prevent multiple nodes from attempting to make the same database changes
+ * simultaneously.
+ */
+public class DatabaseUpdateStanzaIDsTask implements Runnable
+{
+    private static final Logger Log = LoggerFactory.getLogger(DatabaseUpdateStanzaIDsTask.class);
+
+    private static final SystemProperty<Long> POSITION = SystemProperty.Builder.ofType(Long.class)
+        .setKey("conversation.database.stanza-ids-backfill.position")
+        .setDefaultValue(Long.MIN_VALUE)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.database.stanza-ids-backfill.batch-size")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    private static final String SELECT_MAX_MESSAGE_ID = "SELECT MAX(messageID) FROM ofMessageArchive";
+    private static final String SELECT_MESSAGES = "SELECT messageID, conversationID, stanza FROM ofMessageArchive "
+        + "WHERE messageID > ? AND messageID <= ? AND stanza LIKE '%urn:xmpp:sid:%' ORDER BY messageID";
+
+    @Override
+    public void run()
+    {
+        if ( StanzaIDStore.isComplete() )
+        {
+            Log.debug( "No need to record stanza IDs of archived messages: configuration indicates that this already occurred." );
+            return;
+        }
+
+        if ( ClusterManager.isClusteringEnabled() && !ClusterManager.isSeniorClusterMember() )
+        {
+            Log.debug( "Skipping recording stanza IDs of archived messages, as we're not the senior cluster member." );
+            return;
+        }
+
+        try
+        {
+            // Messages that are archived after this point are expected to have been processed by the archiver.
+            final Long upperBound = getMaxMessageID();
+            if ( upperBound == null )
+            {
+                Log.debug( "No archived messages exist of which stanza IDs need to be recorded." );
+                StanzaIDStore.BACKFILL_COMPLETED.setValue(true);
+                return;
+            }
+
+            long position = POSITION.getValue();
+            Log.info( "Recording stanza IDs of archived messages, starting after message ID {} up to and including message ID {}.", position, upperBound );
+
+            long progress = 0;
+            Instant lastProgressReport = Instant.now();
+            while ( position < upperBound )
+            {
+                if ( Thread.currentThread().isInterrupted() )
+                {
+                    Log.info( "Interrupted while recording stanza IDs of archived messages. Progressed up to message ID {}. This task will resume when it is next started.", position );
+                    return;
+                }
+
+                position = processChunk( position, upperBound, BATCH_SIZE.getValue() );
+                progress += 1;
+                POSITION.setValue( position );
+
+                // When there are _many_ messages to be processed, log an occasional progress indicator, to let admins know that things are still churning.
+                if ( lastProgressReport.isBefore(Instant.now().minus(10, ChronoUnit.SECONDS)) )
+                {
+                    Log.debug( "... processed {} chunks of messages so far, up to message ID {} (of {}).", progress, position, upperBound );
+                    lastProgressReport = Instant.now();
+                }
+            }
+
+            Log.info( "Successfully finished recording stanza IDs of archived messages." );
+            StanzaIDStore.BACKFILL_COMPLETED.setValue(true);
+        }
+        catch ( Exception e )
+        {
+            Log.error( "An unexpected exception occurred while recording stanza IDs of archived messages. Lookups of stanza IDs will continue to scan the archive. This task will resume when it is next started.", e );
+        }
+    }
+
+    private Long getMaxMessageID() throws SQLException
+    {
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = DbConnectionManager.getConnection();
+            pstmt = connection.prepareStatement( SELECT_MAX_MESSAGE_ID );
+            rs = pstmt.executeQuery();
+            if ( rs.next() )
+            {
+                final long result = rs.getLong(1);
+                return rs.wasNull() ? null : result;
+            }
+            return null;
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection( rs, pstmt, connection );
+        }
+    }
+
+    /**
+     * Records the stanza IDs of the first chunk of messages that have an identifier larger than the provided position.
+     *
+     * @param position the identifier of the last message that has been processed.
+     * @param upperBound the identifier of the last message that is to be processed.
+     * @param batchSize the maximum amount of messages to process.
+     * @return the identifier of the last message that has been processed.
+     */
+    private long processChunk( final long position, final long upperBound, final int batchSize ) throws SQLException
+    {
+        Connection connection = null;
+        PreparedStatement pstmtFind = null;
+        PreparedStatement pstmtInsert = null;
+        ResultSet rs = null;
+        boolean abortTransaction = false;
+        try
+        {
+            // Preventing the driver to collect all results at once depends on auto-commit from being disabled, at
+            // least for postgres. Getting a 'transaction' connection will ensure this (if supported).
+            connection = DbConnectionManager.getTransactionConnection();
+            pstmtFind = connection.prepareStatement( SELECT_MESSAGES );
+            pstmtFind.setMaxRows( batchSize );
+            pstmtFind.setFetchSize( batchSize );
+            pstmtFind.setLong( 1, position );
+            pstmtFind.setLong( 2, upperBound );
+            pstmtInsert = connection.prepareStatement( StanzaIDStore.getInsertStatement() );
+
+            rs = pstmtFind.executeQuery();
+            long last = position;
+            int processed = 0;
+            int batched = 0;
+            while ( processed < batchSize && rs.next() )
+            {
+                final long messageID = rs.getLong(1);
+                final long conversationID = rs.getLong(2);
+                final String stanza = DbConnectionManager.getLargeTextField(rs, 3);
+                for ( final StanzaIDStore.StanzaID stanzaID : StanzaIDStore.extract(stanza) )
+                {
+                    if ( StanzaIDStore.add( pstmtInsert, messageID, conversationID, stanzaID ) )
+                    {
+                        batched++;
+                    }
+                }
+                last = messageID;
+                processed++;
+            }
+
+            if ( batched > 0 )
+            {
+                pstmtInsert.executeBatch();
+            }
+
+            // Without any remaining messages in range, the entire range has been processed.
+            return processed < batchSize ? upperBound : last;
+        }
+        catch ( SQLException e )
+        {
+            abortTransaction = true;
+            throw e;
+        }
+        finally
+        {
+            DbConnectionManager.closeResultSet( rs );
+            DbConnectionManager.closeStatement( pstmtFind );
+            DbConnectionManager.closeStatement( pstmtInsert );
+            DbConnectionManager.closeTransactionConnection( connection, abortTransaction );
+        }
+    }
+}
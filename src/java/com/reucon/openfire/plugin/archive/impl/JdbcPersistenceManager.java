@@ -29,6 +29,11 @@ public class JdbcPersistenceManager implements PersistenceManager {
     private static final Logger Log = LoggerFactory.getLogger( JdbcPersistenceManager.class );
     public static final int DEFAULT_MAX = 1000;
 
+    /**
+     * The maximum amount of message identifiers in the 'IN' clause of a single query.
+     */
+    static final int MAX_IDS_PER_QUERY = 100;
+
     public static final String SELECT_MESSAGES_BY_CONVERSATION = "SELECT DISTINCT ofConversation.conversationID, ofConversation.room, "
             + "ofConversation.isExternal, ofConversation.startDate, ofConversation.lastActivity, ofConversation.messageCount, "
             + "ofConParticipant.joinedDate, ofConParticipant.leftDate, ofConParticipant.bareJID, ofConParticipant.jidResource, "
@@ -327,34 +332,26 @@ public class JdbcPersistenceManager implements PersistenceManager {
         final int maxResults = xmppResultSet.getMax() != null ? xmppResultSet.getMax() : DEFAULT_MAX;
         final boolean isPagingBackwards = xmppResultSet.isPagingBackwards();
 
-        List<ArchivedMessage> msgs = Collections.emptyList();
-        int totalCount = 0;
+        final AbstractPaginatedMamQuery paginatedMamQuery;
         if ( query != null && !query.isEmpty() ) {
             if (!LuceneIndexer.ENABLED.getValue()) {
                 throw new DataRetrievalException("Unable to process a search request that contains a text-based query, as the full-text index functionality has been disabled by configuration.");
             }
-            final PaginatedMessageLuceneQuery paginatedMessageLuceneQuery = new PaginatedMessageLuceneQuery( startDate, endDate, owner, with, query );
-            Log.debug("Request for message archive of user '{}' resulted in the following query data: {}", owner, paginatedMessageLuceneQuery);
-            totalCount = paginatedMessageLuceneQuery.getTotalCount();
-            if ( totalCount == 0 ) {
-                msgs = Collections.emptyList();
-            } else {
-                msgs = paginatedMessageLuceneQuery.getPage(after, before, maxResults, isPagingBackwards);
-            }
+            paginatedMamQuery = new PaginatedMessageLuceneQuery( startDate, endDate, owner, with, query );
         } else {
-            final PaginatedMessageDatabaseQuery paginatedMessageDatabaseQuery = new PaginatedMessageDatabaseQuery(startDate, endDate, owner, with );
-            Log.debug("Request for message archive of user '{}' resulted in the following query data: {}", owner, paginatedMessageDatabaseQuery);
-            totalCount = paginatedMessageDatabaseQuery.getTotalCount();
-            if ( totalCount == 0 ) {
-                msgs = Collections.emptyList();
-            } else {
-                msgs = paginatedMessageDatabaseQuery.getPage(after, before, maxResults, isPagingBackwards);
-            }
+            paginatedMamQuery = new PaginatedMessageDatabaseQuery(startDate, endDate, owner, with );
         }
+        Log.debug("Request for message archive of user '{}' resulted in the following query data: {}", owner, paginatedMamQuery);
+
+        // Retrieving one message more than requested tells if there are more pages, without the need for another query.
+        final AbstractPaginatedMamQuery.Page page = paginatedMamQuery.getPageWithLookahead(after, before, maxResults, isPagingBackwards);
+        final List<ArchivedMessage> msgs = page.getMessages();
+        final Integer totalCount = paginatedMamQuery.getResultCount(after, before, page);
 
         Log.debug( "Request for message archive of owner '{}' found a total of {} applicable messages. Of these, {} were actually retrieved from the database.", owner, totalCount, msgs.size() );
 
         xmppResultSet.setCount(totalCount);
+        xmppResultSet.setComplete(page.isComplete());
 
         if ( !msgs.isEmpty() ) {
             final ArchivedMessage firstMessage = msgs.get(0);
@@ -381,31 +378,6 @@ public class JdbcPersistenceManager implements PersistenceManager {
             }
             xmppResultSet.setFirst(first);
             xmppResultSet.setLast(last);
-
-            // Check to see if there are more pages, by simulating a request for the next page.
-            // When paging backwards, we need to find out if there are results 'before' the first result.
-            // When paging forward, we need to find out if there are results 'after' the last result.
-            final Long afterForNextPage = isPagingBackwards ? null : lastMessage.getId();
-            final Long beforeForNextPage = isPagingBackwards ? firstMessage.getId() : null;
-            final List<ArchivedMessage> nextPage;
-            if ( query != null && !query.isEmpty() )
-            {
-                if (!LuceneIndexer.ENABLED.getValue()) {
-                    throw new DataRetrievalException("Unable to process a search request that contains a text-based query, as the full-text index functionality has been disabled by configuration.");
-                }
-                final PaginatedMessageLuceneQuery paginatedMessageLuceneQuery = new PaginatedMessageLuceneQuery(startDate, endDate, owner, with, query);
-                nextPage = paginatedMessageLuceneQuery.getPage(afterForNextPage, beforeForNextPage, 1, isPagingBackwards);
-            }
-            else
-            {
-                final PaginatedMessageDatabaseQuery paginatedMessageDatabaseQuery = new PaginatedMessageDatabaseQuery(startDate, endDate, owner, with );
-                nextPage = paginatedMessageDatabaseQuery.getPage(afterForNextPage, beforeForNextPage, 1, isPagingBackwards);
-            }
-            Log.debug("Found results for 'next page': {} (based on after: {} before: {} isPagingBackwards: {})", !nextPage.isEmpty(), afterForNextPage, beforeForNextPage, isPagingBackwards);
-            xmppResultSet.setComplete(nextPage.isEmpty());
-        } else {
-            // Issue #112: When there are no results, then the request is definitely 'complete'.
-            xmppResultSet.setComplete(true);
         }
         return msgs;
     }
@@ -619,6 +591,96 @@ public class JdbcPersistenceManager implements PersistenceManager {
         }
     }
 
+    /**
+     * Retrieve specific messages from the database, using as few queries as possible.
+     *
+     * @param messageIds The database IDs of the messages (cannot be null).
+     * @param owner The owner of the archive in which the messages were stored (cannot be null).
+     * @return The messages that were found, mapped by their ID (never null).
+     * @throws SQLException when the messages could not be retrieved from the database.
+     */
+    public static Map<Long, ArchivedMessage> getArchivedMessages( Collection<Long> messageIds, JID owner ) throws SQLException
+    {
+        final Map<Long, ArchivedMessage> result = new HashMap<>();
+        final List<Long> ids = new ArrayList<>(messageIds);
+        for (int offset = 0; offset < ids.size(); offset += MAX_IDS_PER_QUERY) {
+            final List<Long> chunk = ids.subList(offset, Math.min(ids.size(), offset + MAX_IDS_PER_QUERY));
+            Connection connection = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                connection = DbConnectionManager.getConnection();
+                final String query = "SELECT ofMessageArchive.fromJID, ofMessageArchive.fromJIDResource, ofMessageArchive.toJID, ofMessageArchive.toJIDResource, ofMessageArchive.sentDate, ofMessageArchive.body, ofMessageArchive.stanza, ofMessageArchive.messageID "
+                    + "FROM ofMessageArchive "
+                    + "INNER JOIN ofConParticipant ON ofMessageArchive.conversationID = ofConParticipant.conversationID "
+                    + "WHERE (ofMessageArchive.stanza IS NOT NULL OR ofMessageArchive.body IS NOT NULL) "
+                    + "AND ofMessageArchive.messageID IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ") AND ofConParticipant.bareJID = ?";
+
+                pstmt = connection.prepareStatement( query );
+                int index = 1;
+                for (final Long id : chunk) {
+                    pstmt.setLong( index++, id );
+                }
+                pstmt.setString( index, owner.toBareJID() );
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final long id = rs.getLong(8);
+                    if (result.containsKey(id)) {
+                        continue;
+                    }
+                    String stanza = rs.getString(7);
+                    if ( stanza != null && stanza.isEmpty()) {
+                        stanza = null;
+                    }
+                    try {
+                        result.put(id, asArchivedMessage(owner, rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), new Date(rs.getLong(5)), rs.getString(6), stanza, id));
+                    } catch (DocumentException ex) {
+                        Log.warn("Failure to parse 'stanza' value as XMPP for the message with ID {} from the archive of {}.", id, owner, ex);
+                    }
+                }
+            } finally {
+                DbConnectionManager.closeConnection(rs, pstmt, connection);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines which of the provided messages still exist in the database, using as few queries as possible. This is
+     * used to verify results that are recreated from values stored in the Lucene index, which can hold documents for
+     * messages that have been removed from the database.
+     *
+     * @param messageIds The database IDs of the messages (cannot be null).
+     * @return The IDs of the messages that exist (never null).
+     * @throws SQLException when the existence of the messages could not be verified.
+     */
+    static Set<Long> getExistingMessageIDs( Collection<Long> messageIds ) throws SQLException
+    {
+        final Set<Long> result = new HashSet<>();
+        final List<Long> ids = new ArrayList<>(messageIds);
+        for (int offset = 0; offset < ids.size(); offset += MAX_IDS_PER_QUERY) {
+            final List<Long> chunk = ids.subList(offset, Math.min(ids.size(), offset + MAX_IDS_PER_QUERY));
+            Connection connection = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                connection = DbConnectionManager.getConnection();
+                pstmt = connection.prepareStatement( "SELECT messageID FROM ofMessageArchive WHERE messageID IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")" );
+                int index = 1;
+                for (final Long id : chunk) {
+                    pstmt.setLong( index++, id );
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    result.add(rs.getLong(1));
+                }
+            } finally {
+                DbConnectionManager.closeConnection(rs, pstmt, connection);
+            }
+        }
+        return result;
+    }
+
     static protected ArchivedMessage asArchivedMessage(JID owner, String fromJID, String fromJIDResource, String toJID, String toJIDResource, Date sentDate, String body, String stanza, Long id) throws DocumentException {
         final JID from = new JID(fromJID + ( fromJIDResource == null || fromJIDResource.isEmpty() ? "" : "/" + fromJIDResource ));
         final JID to = new JID(toJID + ( toJIDResource == null || toJIDResource.isEmpty() ? "" : "/" + toJIDResource ));
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.impl;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexableField;
+import org.jivesoftware.openfire.XMPPServer;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the Lucene documents that {@link MessageIndexer} stores for archived messages.
+ *
+ * An instance is to be used by one thread only. It reuses its Field instances for every message, which means that the
+ * documents that it returns are valid only until the next message is processed. The JIDs that are parsed, and the
+ * classification of their domains, are memoized in a {@link Cache} that can be shared by all threads of an indexing run.
+ *
+ * When created to store fields, the documents also hold the values that are needed to recreate the archived message
+ * (see {@link #getStoredMessage(Document)}), which allows search results to be returned without querying the database.
+ */
+class MessageDocumentBuilder
+{
+    /**
+     * Name of an (unstored) field that holds the message ID, used to replace, rather than duplicate, the documents of
+     * a message that is indexed more than once (eg: when it is both pushed, and found by the periodic update).
+     */
+    static final String MESSAGE_KEY = "messageKey";
+
+    private final Cache cache;
+    private final StoredFields stored;
+    private final PersonalFields sender = new PersonalFields();
+    private final PersonalFields recipient = new PersonalFields();
+    private final RoomFields room = new RoomFields();
+    private final List<Document> documents = new ArrayList<>(2);
+
+    /**
+     * @param cache memoizes parsed JIDs and domain classifications (cannot be null).
+     * @param storeFields whether the documents are to hold the values needed to recreate the archived message.
+     */
+    MessageDocumentBuilder(@Nonnull final Cache cache, final boolean storeFields)
+    {
+        this.cache = cache;
+        this.stored = storeFields ? new StoredFields() : null;
+    }
+
+    /**
+     * Checks if the documents hold the values needed to recreate the archived message, including its stanza.
+     */
+    boolean isStoringFields()
+    {
+        return stored != null;
+    }
+
+    @Nonnull
+    Cache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Returns the documents for one message: one for the archive of the chat room that it was sent in (if any), and
+     * one for each personal archive of a local user that sent or received it.
+     *
+     * @param messageID ID of the message that was exchanged.
+     * @param fromJID Bare or full JID of the author of the message.
+     * @param toJID Bare or full JID of the addressee of the message.
+     * @param isPMforJID Bare JID of the addressee of a private message in a chat room, or null.
+     * @param sentDate Timestamp of the message (in milliseconds since the epoch).
+     * @param body Message text.
+     * @param stanza The archived stanza, or null. Ignored unless this instance stores fields.
+     * @return The documents, possibly empty (never null). These are valid until the next invocation of this method.
+     */
+    @Nonnull
+    List<Document> build( final long messageID,
+                          @Nonnull final JID fromJID,
+                          @Nonnull final JID toJID,
+                          @Nullable final JID isPMforJID,
+                          final long sentDate,
+                          @Nonnull final String body,
+                          @Nullable final String stanza )
+    {
+        documents.clear();
+        final String messageKey = Long.toString(messageID);
+        if ( cache.isChatService(toJID) ) {
+            // Store in the archive of the chat room.
+            final JID pmFromJID = isPMforJID != null ? fromJID : null; // only set if the message was a PM.
+            documents.add(room.set(toJID, messageID, messageKey, pmFromJID, isPMforJID, sentDate, body));
+
+            // Store in the personal archive of the sender.
+            if ( cache.isLocal(fromJID) ) {
+                documents.add(sender.set(fromJID, messageID, messageKey, toJID, sentDate, body));
+            }
+        } else {
+            // Not a chat room
+            if ( cache.isLocal(fromJID) ) {
+                // Store in the personal archive of the sender.
+                documents.add(sender.set(fromJID, messageID, messageKey, toJID, sentDate, body));
+            }
+
+            if ( cache.isLocal(toJID) ) {
+                // Store in the personal archive of the recipient.
+                final JID with = toJID.toBareJID().equals(fromJID.toBareJID()) ? toJID : fromJID;
+                documents.add(recipient.set(toJID, messageID, messageKey, with, sentDate, body));
+            }
+        }
+        if ( stored != null && !documents.isEmpty() ) {
+            // The stored values are the same for every document of the message.
+            stored.set(fromJID, toJID, sentDate, body, stanza);
+            for ( final Document document : documents ) {
+                stored.addTo(document);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Returns the values that were stored in a document that was created by an instance that stores fields.
+     *
+     * @param document A document from the index (cannot be null).
+     * @return The stored values, or null if the document was created without stored fields.
+     */
+    @Nullable
+    static StoredMessage getStoredMessage( @Nonnull final Document document )
+    {
+        final String fromJID = document.get(StoredFields.FROM_JID);
+        final String toJID = document.get(StoredFields.TO_JID);
+        final IndexableField sentDate = document.getField(StoredFields.SENT_DATE);
+        if ( fromJID == null || toJID == null || sentDate == null || sentDate.numericValue() == null ) {
+            return null;
+        }
+        final String stanza = document.get(StoredFields.STANZA);
+        return new StoredMessage(Long.parseLong(document.get("messageID")), fromJID, toJID, new Date(sentDate.numericValue().longValue()), document.get(StoredFields.BODY), stanza == null || stanza.isEmpty() ? null : stanza);
+    }
+
+    /**
+     * The values of an archived message, as stored in the index.
+     */
+    static final class StoredMessage
+    {
+        final long messageID;
+
+        /**
+         * Full JID of the author of the message, as archived.
+         */
+        final String fromJID;
+
+        /**
+         * Full JID of the addressee of the message, as archived.
+         */
+        final String toJID;
+        final Date sentDate;
+        final String body;
+        final String stanza;
+
+        private StoredMessage( final long messageID, final String fromJID, final String toJID, final Date sentDate, final String body, final String stanza )
+        {
+            this.messageID = messageID;
+            this.fromJID = fromJID;
+            this.toJID = toJID;
+            this.sentDate = sentDate;
+            this.body = body;
+            this.stanza = stanza;
+        }
+    }
+
+    /**
+     * The stored-only fields that hold the values needed to recreate an archived message. Lucene compresses stored
+     * fields, per block of documents.
+     */
+    private static final class StoredFields
+    {
+        private static final String FROM_JID = "fromJID";
+        private static final String TO_JID = "toJID";
+        private static final String SENT_DATE = "sentDateValue";
+        private static final String BODY = "bodyValue";
+        private static final String STANZA = "stanza";
+
+        private final StoredField fromJID = new StoredField(FROM_JID, "");
+        private final StoredField toJID = new StoredField(TO_JID, "");
+        private final StoredField sentDate = new StoredField(SENT_DATE, 0L);
+        private final StoredField body = new StoredField(BODY, "");
+        private final StoredField stanza = new StoredField(STANZA, "");
+        private boolean hasStanza;
+
+        private void set( final JID fromJID, final JID toJID, final long sentDate, final String body, final String stanza )
+        {
+            this.fromJID.setStringValue(fromJID.toString());
+            this.toJID.setStringValue(toJID.toString());
+            this.sentDate.setLongValue(sentDate);
+            this.body.setStringValue(body);
+            this.hasStanza = stanza != null && !stanza.isEmpty();
+            if ( hasStanza ) {
+                this.stanza.setStringValue(stanza);
+            }
+        }
+
+        private void addTo( final Document document )
+        {
+            document.add(fromJID);
+            document.add(toJID);
+            document.add(sentDate);
+            document.add(body);
+            if ( hasStanza ) {
+                document.add(stanza);
+            }
+        }
+    }
+
+    /**
+     * The fields of a document for one particular chat message in a particular user's personal archive.
+     */
+    private static final class PersonalFields
+    {
+        private final StoredField messageID = new StoredField("messageID", 0L);
+        private final StringField messageKey = new StringField(MESSAGE_KEY, "", Field.Store.NO);
+        private final LongPoint messageIDPoint = new LongPoint("messageIDRange", 0L);
+        private final NumericDocValuesField messageIDRange = new NumericDocValuesField("messageIDRange", 0L);
+        private final StringField owner = new StringField("owner", "", Field.Store.NO);
+        private final StringField withBare = new StringField("withBare", "", Field.Store.NO);
+        private final StringField withResource = new StringField("withResource", "", Field.Store.NO);
+        private final LongPoint sentDatePoint = new LongPoint("sentDate", 0L);
+        private final NumericDocValuesField sentDate = new NumericDocValuesField("sentDate", 0L);
+        private final TextField body = new TextField("body", "", Field.Store.NO);
+
+        /**
+         * @param owner the JID of the owner of the archive (only the bare JID is used).
+         * @param with the JID of the entity that the owner of the archive is exchanging messages with.
+         */
+        private Document set( final JID owner, final long messageID, final String messageKey, final JID with, final long sentDate, final String body )
+        {
+            this.messageID.setLongValue(messageID);
+            this.messageKey.setStringValue(messageKey);
+            this.messageIDPoint.setLongValue(messageID);
+            this.messageIDRange.setLongValue(messageID);
+            this.owner.setStringValue(owner.toBareJID());
+            this.withBare.setStringValue(with.toBareJID());
+            this.sentDatePoint.setLongValue(sentDate);
+            this.sentDate.setLongValue(sentDate);
+            this.body.setStringValue(body);
+
+            final Document document = new Document();
+            document.add(this.messageID);
+            document.add(this.messageKey);
+            document.add(this.messageIDPoint);
+            document.add(this.messageIDRange);
+            document.add(this.owner);
+            document.add(this.withBare);
+            if ( with.getResource() != null ) {
+                this.withResource.setStringValue(with.getResource());
+                document.add(this.withResource);
+            }
+            document.add(this.sentDatePoint);
+            document.add(this.sentDate);
+            document.add(this.body);
+            return document;
+        }
+    }
+
+    /**
+     * The fields of a document for one particular chat message exchanged in a MUC room.
+     */
+    private static final class RoomFields
+    {
+        private final StoredField messageID = new StoredField("messageID", 0L);
+        private final StringField messageKey = new StringField(MESSAGE_KEY, "", Field.Store.NO);
+        private final LongPoint messageIDPoint = new LongPoint("messageIDRange", 0L);
+        private final NumericDocValuesField messageIDRange = new NumericDocValuesField("messageIDRange", 0L);
+        private final StringField room = new StringField("room", "", Field.Store.NO);
+        private final StringField isPrivateMessage = new StringField("isPrivateMessage", "", Field.Store.NO);
+        private final StringField pmFromJID = new StringField("pmFromJID", "", Field.Store.NO);
+        private final StringField pmToJID = new StringField("pmToJID", "", Field.Store.NO);
+        private final LongPoint sentDatePoint = new LongPoint("sentDate", 0L);
+        private final NumericDocValuesField sentDate = new NumericDocValuesField("sentDate", 0L);
+        private final TextField body = new TextField("body", "", Field.Store.NO);
+
+        /**
+         * @param room the JID of the room (only the bare JID is used).
+         * @param pmFromJID JID of the author of the message, if it is a PM (only the bare JID is used).
+         * @param pmToJID JID of the addressee of the message, if it is a PM (only the bare JID is used).
+         */
+        private Document set( final JID room, final long messageID, final String messageKey, final JID pmFromJID, final JID pmToJID, final long sentDate, final String body )
+        {
+            this.messageID.setLongValue(messageID);
+            this.messageKey.setStringValue(messageKey);
+            this.messageIDPoint.setLongValue(messageID);
+            this.messageIDRange.setLongValue(messageID);
+            this.room.setStringValue(room.toBareJID());
+            this.isPrivateMessage.setStringValue(pmFromJID != null || pmToJID != null ? "true" : "false");
+            this.sentDatePoint.setLongValue(sentDate);
+            this.sentDate.setLongValue(sentDate);
+            this.body.setStringValue(body);
+
+            final Document document = new Document();
+            document.add(this.messageID);
+            document.add(this.messageKey);
+            document.add(this.messageIDPoint);
+            document.add(this.messageIDRange);
+            document.add(this.room);
+            document.add(this.isPrivateMessage);
+            if ( pmFromJID != null ) {
+                this.pmFromJID.setStringValue(pmFromJID.toBareJID());
+                document.add(this.pmFromJID);
+            }
+            if ( pmToJID != null ) {
+                this.pmToJID.setStringValue(pmToJID.toBareJID());
+                document.add(this.pmToJID);
+            }
+            document.add(this.sentDatePoint);
+            document.add(this.sentDate);
+            document.add(this.body);
+            return document;
+        }
+    }
+
+    /**
+     * Memoizes the parsing of JIDs, and the classification of domains, for the duration of an indexing run. This
+     * instance is thread-safe.
+     *
+     * Bare JIDs typically recur many times in an archive. Parsing them once avoids repeated stringprep operations.
+     * Resources are not memoized: the full JID is composed of the memoized bare JID and the resource, without applying
+     * stringprep again (values in the database originate from JIDs that were valid when they were archived).
+     */
+    static final class Cache
+    {
+        /**
+         * The maximum amount of bare JIDs to retain. When this is exceeded, all bare JIDs are evicted.
+         */
+        private static final int MAX_JIDS = 100_000;
+
+        private final Map<String, Optional<JID>> bareJIDs = new ConcurrentHashMap<>();
+        private final Map<String, Boolean> chatServiceDomains = new ConcurrentHashMap<>();
+        private final Map<String, Boolean> localDomains = new ConcurrentHashMap<>();
+
+        /**
+         * Returns a JID for a bare JID value and resource, as stored in the database.
+         *
+         * @param bareJID a bare JID (cannot be null).
+         * @param resource a resource (can be null or empty).
+         * @return a JID, or null when the bare JID is not a valid JID.
+         */
+        @Nullable
+        JID getJID( @Nonnull final String bareJID, @Nullable final String resource )
+        {
+            Optional<JID> bare = bareJIDs.get(bareJID);
+            if ( bare == null ) {
+                if ( bareJIDs.size() >= MAX_JIDS ) {
+                    bareJIDs.clear();
+                }
+                try {
+                    bare = Optional.of(new JID(bareJID));
+                } catch ( IllegalArgumentException e ) {
+                    bare = Optional.empty();
+                }
+                bareJIDs.put(bareJID, bare);
+            }
+
+            if ( !bare.isPresent() || resource == null || resource.isEmpty() ) {
+                return bare.orElse(null);
+            }
+            return new JID(bare.get().getNode(), bare.get().getDomain(), resource, true);
+        }
+
+        /**
+         * Checks if a JID is addressed at a multi-user chat service of this server.
+         */
+        boolean isChatService( @Nonnull final JID jid )
+        {
+            return chatServiceDomains.computeIfAbsent(jid.getDomain(), domain -> XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(jid) != null);
+        }
+
+        /**
+         * Checks if a JID is addressed at this server (as opposed to a remote server, or a component).
+         */
+        boolean isLocal( @Nonnull final JID jid )
+        {
+            return localDomains.computeIfAbsent(jid.getDomain(), domain -> XMPPServer.getInstance().isLocal(jid));
+        }
+    }
+}
@@ -17,29 +17,52 @@ package com.reucon.openfire.plugin.archive.impl;
 
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 import org.jivesoftware.database.DbConnectionManager;
-import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.archive.ArchivedMessage;
 import org.jivesoftware.openfire.archive.ConversationManager;
 import org.jivesoftware.openfire.archive.MonitoringConstants;
 import org.jivesoftware.openfire.index.LuceneIndexer;
-import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.reporting.util.TaskEngine;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.SystemProperty;
 import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.print.Doc;
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Creates and maintains a Lucene index for archived messages.
@@ -48,6 +71,16 @@ import java.util.Date;
  * {@link org.jivesoftware.openfire.archive.ArchiveIndexer} which archives entire conversations (as opposed to single
  * messages).
  *
+ * Messages that are archived by this server are pushed to this indexer directly after they have been written to the
+ * database (see {@link #queueForIndexing(Collection)}). These are indexed by a background task that keeps changes
+ * visible to searches in near-real-time, and that commits changes to disk periodically. The periodic update that reads
+ * new messages from the database remains in place, to index messages that were archived by other cluster nodes, and
+ * messages that could not be queued for indexing.
+ *
+ * Documents of personal archives can be stored in a number of separate indices (see {@link #PERSONAL_SHARDS}), which
+ * keeps the index that is searched for any one personal archive small. Documents of chat rooms are always stored in the
+ * main index.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
 public class MessageIndexer extends LuceneIndexer
@@ -56,7 +89,97 @@ public class MessageIndexer extends LuceneIndexer
      * The version of the structure that is stored in the Lucene index. When this value differs from the value that is
      * stored in a file with the index, then upon restart, an automatic re-indexation will occur.
      */
-    public static final int SCHEMA_VERSION = 1;
+    public static final int SCHEMA_VERSION = 3;
+
+    public static final SystemProperty<Boolean> PUSH_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("conversation.search.push.enabled")
+        .setDefaultValue(true)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> PUSH_QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.push.queue-size")
+        .setDefaultValue(10000)
+        .setMinValue(1)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> PUSH_COMMIT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.push.commit-size")
+        .setDefaultValue(1000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> PUSH_COMMIT_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.search.push.commit-interval")
+        .setDefaultValue(Duration.ofSeconds(30))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> REBUILD_THREADS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.rebuild.threads")
+        .setDefaultValue(4)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> REBUILD_PARTITIONS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.rebuild.partitions")
+        .setDefaultValue(16)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> REBUILD_CHUNK_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.rebuild.chunk-size")
+        .setDefaultValue(5000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> REBUILD_CHECKPOINT_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.search.rebuild.checkpoint-interval")
+        .setDefaultValue(Duration.ofMinutes(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * Whether documents hold the values needed to recreate archived messages (including their stanza), so that search
+     * results can be returned without querying the database. Applies to messages that are indexed after this is enabled
+     * (rebuild the index to apply it to all messages). Results for documents without these values are fetched from the
+     * database.
+     */
+    public static final SystemProperty<Boolean> STORED_FIELDS_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("conversation.search.stored-fields.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * The amount of indices over which documents of personal archives are distributed, by the bare JID of their owner.
+     * When zero, these documents are stored in the main index. A change of this value causes the index to be rebuilt
+     * upon restart. Until that rebuild completes, personal archives are searched in the main index.
+     */
+    public static final SystemProperty<Integer> PERSONAL_SHARDS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.personal-shards")
+        .setDefaultValue(0)
+        .setMinValue(0)
+        .setMaxValue(256)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
 
     public static final String ALL_MESSAGES = "SELECT fromJID, fromJIDResource, toJID, toJIDResource, sentDate, body, messageID, isPMforJID "
                                             + "FROM ofMessageArchive "
@@ -65,19 +188,349 @@ public class MessageIndexer extends LuceneIndexer
 
     public static final String NEW_MESSAGES = ALL_MESSAGES + " AND sentDate > ?";
 
+    public static final String MESSAGES_UNTIL = ALL_MESSAGES + " AND sentDate <= ?";
+
+    public static final String NEW_MESSAGES_UNTIL = NEW_MESSAGES + " AND sentDate <= ?";
+
+    public static final String MESSAGES_IN_RANGE = ALL_MESSAGES + " AND messageID > ? AND messageID <= ? ORDER BY messageID";
+
+    public static final String MESSAGE_ID_BOUNDS = "SELECT MIN(messageID), MAX(messageID) FROM ofMessageArchive WHERE messageID IS NOT NULL";
+
     private ConversationManager conversationManager;
 
+    private final Path personalShardsDir;
+
+    /**
+     * The indices that hold the documents of personal archives, or null if these are stored in the main index.
+     */
+    private volatile PersonalIndexShards personalShards;
+
+    /**
+     * Guards the shards while their data is replaced by that of a rebuild. Modifications of the shards, and refreshes
+     * of their searchers, hold the read lock. Replacing the data holds the write lock, so that modifications are not
+     * lost to, and searchers do not observe, a partially replaced shard.
+     */
+    private final ReadWriteLock personalShardsLock = new ReentrantReadWriteLock();
+
+    /**
+     * Identifiers of messages of which the documents are to be removed from the index during the next update operation.
+     */
+    private final Set<Long> messagesPendingDeletion = ConcurrentHashMap.newKeySet();
+
+    /**
+     * When non-null, the next update operation is to index messages sent after this instant, even if the index has
+     * been updated beyond that point. This is used to recover from messages that could not be queued for indexing.
+     */
+    private final AtomicReference<Instant> catchUpFrom = new AtomicReference<>();
+
+    /**
+     * The maximum duration that an update waits for messages that are being archived to have been stored.
+     */
+    private static final Duration ARCHIVE_WAIT = Duration.ofSeconds(10);
+
+    /**
+     * The date of the most recent message that was pushed to the index, as of the last commit of pushed messages. This
+     * is tracked separately from the modification date of the index, which the periodic update uses to read messages
+     * from the database: pushed messages do not prove that all messages up until their date have been stored (messages
+     * can be archived by other cluster nodes, or be stored out of order).
+     */
+    private final AtomicReference<Instant> pushedUntil = new AtomicReference<>(Instant.EPOCH);
+
+    /**
+     * Whether the layout of the shards changed when this instance was last started, which requires a rebuild.
+     */
+    private volatile boolean layoutChanged;
+
+    private final BlockingQueue<ArchivedMessage> pushQueue;
+    private volatile boolean consuming = false;
+    private Future<?> consumer;
+
     public MessageIndexer( final TaskEngine taskEngine, final ConversationManager conversationManager )
     {
         super(taskEngine, JiveGlobals.getHomePath().resolve(Path.of(MonitoringConstants.NAME, "msgsearch")), "MESSAGE", SCHEMA_VERSION);
         this.conversationManager = conversationManager;
+        this.personalShardsDir = JiveGlobals.getHomePath().resolve(Path.of(MonitoringConstants.NAME, "msgsearch-personal"));
+        this.pushQueue = new ArrayBlockingQueue<>(PUSH_QUEUE_SIZE.getValue());
+    }
+
+    @Override
+    public void start()
+    {
+        // The shards are opened first, as starting the main index can start a rebuild, which also rebuilds the shards.
+        layoutChanged = false;
+        if (LuceneIndexer.ENABLED.getValue()) {
+            try {
+                final int shardCount = PERSONAL_SHARDS.getValue();
+                if (shardCount > 0) {
+                    personalShards = PersonalIndexShards.open(personalShardsDir, shardCount);
+                    layoutChanged = !personalShards.isPopulated();
+                } else if (Files.exists(personalShardsDir)) {
+                    Log.info("Personal archives are no longer to be indexed in shards. Removing the shards.");
+                    PersonalIndexShards.remove(personalShardsDir);
+                    layoutChanged = true;
+                }
+            } catch (IOException e) {
+                Log.error("An exception occurred while opening the shards of the personal index in {}. Personal archives are indexed in the main index.", personalShardsDir, e);
+            }
+        }
+
+        super.start();
+        if (getWriter() != null) {
+            consuming = true;
+            consumer = taskEngine.submit(this::consume);
+        } else {
+            closePersonalShards();
+        }
+    }
+
+    /**
+     * Documents of personal archives need to be moved between the main index and the shards when the layout of the
+     * shards changed. A rebuild that was interrupted is resumed by the base class instead.
+     */
+    @Override
+    protected boolean isRebuildRequired()
+    {
+        return layoutChanged;
+    }
+
+    @Override
+    public void stop()
+    {
+        consuming = false;
+        if (consumer != null) {
+            try {
+                // The consumer is not interrupted, as that can cause the files that Lucene has open to be closed.
+                consumer.get(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                Log.warn("The task that indexes pushed messages did not finish in time.", e);
+            }
+            consumer = null;
+        }
+        pushQueue.clear();
+        super.stop();
+        closePersonalShards();
+    }
+
+    private void closePersonalShards()
+    {
+        final PersonalIndexShards shards = personalShards;
+        personalShards = null;
+        if (shards != null) {
+            shards.close();
+        }
+    }
+
+    @Override
+    protected void refreshSearcher() throws IOException
+    {
+        super.refreshSearcher();
+        final PersonalIndexShards shards = personalShards;
+        if (shards != null) {
+            personalShardsLock.readLock().lock();
+            try {
+                shards.refresh();
+            } finally {
+                personalShardsLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Acquires a searcher for the index that holds the documents of the personal archive of an owner. Every searcher
+     * that is acquired must be released through {@link #releaseSearcher}, after which it must no longer be used.
+     *
+     * @param owner The owner of the personal archive (cannot be null).
+     * @return A searcher, or null if the index is not available.
+     */
+    @Nullable
+    public IndexSearcher acquireSearcher(@Nonnull final JID owner) throws IOException
+    {
+        final PersonalIndexShards shards = personalShards;
+        if (shards == null || !shards.isPopulated() || !LuceneIndexer.ENABLED.getValue()) {
+            return acquireSearcher();
+        }
+        return shards.acquireSearcher(owner.toBareJID());
+    }
+
+    /**
+     * Returns the writers of the shards in which documents of personal archives are to be stored, or null if these are
+     * to be stored in the main index.
+     */
+    @Nullable
+    private IndexWriter[] getShardWriters()
+    {
+        final PersonalIndexShards shards = personalShards;
+        return shards != null && shards.isPopulated() ? shards.getWriters() : null;
+    }
+
+    /**
+     * Queues messages that have been written to the database for indexing.
+     *
+     * This method does not block. When the queue is full, the messages are not queued, but will be indexed by the next
+     * periodic update instead.
+     *
+     * @param messages The messages to index (cannot be null).
+     */
+    public void queueForIndexing(@Nonnull final Collection<ArchivedMessage> messages)
+    {
+        if (!consuming || !PUSH_ENABLED.getValue()) {
+            return;
+        }
+
+        for (final ArchivedMessage message : messages) {
+            if (message.getBody() == null || message.getSentDate() == null) {
+                continue;
+            }
+            if (!pushQueue.offer(message)) {
+                // Make sure that the next update picks up this message (the database query excludes the start date).
+                final Instant sentDate = message.getSentDate().toInstant().minusMillis(1);
+                catchUpFrom.accumulateAndGet(sentDate, (current, update) -> current == null || update.isBefore(current) ? update : current);
+                Log.debug("Unable to queue message {} for indexing, as the queue is full. It will be indexed by the next update.", message.getID());
+            }
+        }
+    }
+
+    /**
+     * Indexes messages that are queued by {@link #queueForIndexing(Collection)}, until this instance is stopped.
+     *
+     * Changes are made visible to searches by the periodic refresh of the searcher. Changes are committed when
+     * {@link #PUSH_COMMIT_SIZE} messages have been indexed, or after {@link #PUSH_COMMIT_INTERVAL}, whichever comes
+     * first. Commits do not update the modification date of the index (see {@link #pushedUntil}). The periodic update
+     * therefore also reads pushed messages from the database, replacing their documents.
+     */
+    private void consume()
+    {
+        final List<ArchivedMessage> batch = new ArrayList<>();
+        int uncommitted = 0;
+        Instant newestUncommitted = null;
+        Instant lastCommit = Instant.now();
+
+        while (consuming && !isStopped()) {
+            try {
+                // Rebuilding reads all messages from the database. Messages that stay in the queue in the meantime are
+                // indexed after the rebuild completes.
+                if (isRebuildInProgress()) {
+                    Thread.sleep(500);
+                    continue;
+                }
+
+                final ArchivedMessage first = pushQueue.poll(250, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pushQueue.drainTo(batch, PUSH_COMMIT_SIZE.getValue() - 1);
+                }
+
+                final IndexWriter writer = getWriter();
+                if (writer == null) {
+                    break;
+                }
+
+                personalShardsLock.readLock().lock();
+                try {
+                    final IndexWriter[] shardWriters = getShardWriters();
+                    final MessageDocumentBuilder builder = new MessageDocumentBuilder(new MessageDocumentBuilder.Cache(), STORED_FIELDS_ENABLED.getValue());
+                    for (final ArchivedMessage message : batch) {
+                        final JID isPMforJID = message.getIsPMforJID() == null ? null : message.getIsPMforJID().asBareJID();
+                        final Instant sentDate = message.getSentDate().toInstant();
+                        if (indexMessage(writer, shardWriters, builder, message.getID(), message.getFromJID(), message.getToJID(), isPMforJID, sentDate.toEpochMilli(), message.getBody(), message.getStanza())) {
+                            if (newestUncommitted == null || sentDate.isAfter(newestUncommitted)) {
+                                newestUncommitted = sentDate;
+                            }
+                        }
+                    }
+                    uncommitted += batch.size();
+                    batch.clear();
+
+                    final Instant now = Instant.now();
+                    if (uncommitted > 0 && (uncommitted >= PUSH_COMMIT_SIZE.getValue() || !lastCommit.plus(PUSH_COMMIT_INTERVAL.getValue()).isAfter(now))) {
+                        commitPersonalShards();
+                        writer.commit();
+                        if (newestUncommitted != null) {
+                            pushedUntil.accumulateAndGet(newestUncommitted, (current, update) -> update.isAfter(current) ? update : current);
+                        }
+                        Log.trace("Committed {} pushed messages to the Lucene index.", uncommitted);
+                        uncommitted = 0;
+                        newestUncommitted = null;
+                        lastCommit = now;
+                    }
+                } finally {
+                    personalShardsLock.readLock().unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                if (isStopped()) {
+                    break;
+                }
+                // Messages of a failed batch are recovered by the periodic update, which starts at the last committed date.
+                Log.warn("An exception occurred while indexing pushed messages. These will be indexed by the next update.", e);
+                for (final ArchivedMessage message : batch) {
+                    final Instant sentDate = message.getSentDate().toInstant().minusMillis(1);
+                    catchUpFrom.accumulateAndGet(sentDate, (current, update) -> current == null || update.isBefore(current) ? update : current);
+                }
+                batch.clear();
+            }
+        }
+        // Uncommitted changes are committed when the writer is closed.
+    }
+
+    /**
+     * Causes the next update to index messages that were sent after the provided instant, even if the index has been
+     * updated beyond that point.
+     *
+     * @param instant the (exclusive) date after which messages are to be indexed (cannot be null).
+     */
+    public void catchUp(@Nonnull final Instant instant)
+    {
+        catchUpFrom.accumulateAndGet(instant, (current, update) -> current == null || update.isBefore(current) ? update : current);
+    }
+
+    /**
+     * Schedules documents for messages for deletion during the next update cycle.
+     *
+     * @param messageIDs The identifiers of the messages of which documents are to be removed from the index.
+     */
+    public void scheduleForDeletion(@Nonnull final Collection<Long> messageIDs)
+    {
+        messagesPendingDeletion.addAll(messageIDs);
     }
 
     @Override
     protected Instant doUpdateIndex( final IndexWriter writer, final Instant lastModified ) throws IOException
     {
+        personalShardsLock.readLock().lock();
+        try {
+            return update(writer, lastModified);
+        } finally {
+            personalShardsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the documents of messages that are scheduled for deletion, and indexes the messages that were archived
+     * since the provided date. Must be invoked while holding the read lock of {@link #personalShardsLock}.
+     */
+    private Instant update( final IndexWriter writer, final Instant lastModified ) throws IOException
+    {
+        // Identifiers that are scheduled while this runs are processed by the next update.
+        final Set<Long> pendingDeletion = new HashSet<>(messagesPendingDeletion);
+        if ( !pendingDeletion.isEmpty() ) {
+            Log.debug("... removing documents for {} messages.", pendingDeletion.size());
+            final Query purged = LongPoint.newSetQuery("messageIDRange", pendingDeletion.stream().mapToLong(Long::longValue).toArray());
+            writer.deleteDocuments(purged);
+            final PersonalIndexShards shards = personalShards;
+            if ( shards != null ) {
+                shards.deleteDocuments(purged);
+            }
+            messagesPendingDeletion.removeAll(pendingDeletion);
+        }
+
         // Do nothing if message archiving is disabled.
         if ( !conversationManager.isMessageArchivingEnabled() ) {
+            commitPersonalShards();
             return lastModified;
         }
 
@@ -85,15 +538,84 @@ public class MessageIndexer extends LuceneIndexer
             Log.warn( "Updating (not creating) an index since 'EPOCH'. This is suspicious, as it suggests that an existing, but empty index is being operated on. If the index is non-empty, index duplication might occur." );
         }
 
-        // Index messages that arrived since the provided date.
-        Log.debug("... started to index messages since {} to update the Lucene index.", lastModified);
-        final Instant newestDate = indexMessages(writer, lastModified);
+        // The modification date can only be advanced to a date up until which all messages are known to be stored, as
+        // messages are not read again after that. Wait for messages that were sent up until now to have been stored.
+        final Instant until = Instant.now();
+        boolean stored = true;
+        final CompletableFuture<Void> archived = conversationManager.whenArchived(until);
+        try {
+            archived.get(ARCHIVE_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            Log.debug("... messages that are being archived were not stored within {}. The modification date of the index will not be updated.", ARCHIVE_WAIT);
+            archived.cancel(false);
+            stored = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            archived.cancel(false);
+            commitPersonalShards();
+            return lastModified;
+        }
+
+        // Index messages that arrived since the provided date, or since the date of a message that could not be pushed.
+        final Instant catchUp = catchUpFrom.getAndSet(null);
+        final Instant since = catchUp != null && catchUp.isBefore(lastModified) ? catchUp : lastModified;
+        Log.debug("... started to index messages since {} up until {} to update the Lucene index. Pushed messages have been committed up until {}.", since, until, pushedUntil.get());
+        final Instant newestDate = indexMessages(writer, getShardWriters(), since, until);
         Log.debug("... finished indexing messages to update the Lucene index. Last indexed message date: {}", newestDate);
-        return newestDate;
+
+        // The main index is committed by the caller, after which the modification date is updated.
+        commitPersonalShards();
+        return stored ? newestDate : lastModified;
+    }
+
+    /**
+     * Commits the changes to the shards that hold the documents of personal archives (if any). Shards without changes
+     * are not committed.
+     */
+    private void commitPersonalShards() throws IOException
+    {
+        final PersonalIndexShards shards = personalShards;
+        if ( shards != null ) {
+            shards.commit();
+        }
     }
 
     @Override
     public Instant doRebuildIndex( final IndexWriter writer ) throws IOException
+    {
+        // A rebuild only indexes messages that are still in the database. Messages that are scheduled for deletion are
+        // left in place: these might be removed from the database after the rebuild has read them.
+        catchUpFrom.set(null);
+
+        // A rebuild that was interrupted can only be resumed if its documents were distributed over the same shards.
+        final PersonalIndexShards shards = personalShards;
+        final String shardCount = String.valueOf(shards == null ? 0 : shards.getCount());
+        final String checkpointedShardCount = getRebuildCheckpoint("shards");
+        final boolean resume = getRebuildCheckpoint("partitions") != null && shardCount.equals(checkpointedShardCount == null ? "0" : checkpointedShardCount);
+        if ( !resume && getRebuildCheckpoint("partitions") != null ) {
+            Log.info("Unable to resume the rebuild of the Lucene index, as the amount of shards of personal archives changed. Starting anew.");
+            writer.deleteAll();
+        }
+
+        if ( shards == null ) {
+            return rebuild(writer, null, resume);
+        }
+        try ( final PersonalIndexShards.Rebuild rebuild = shards.openRebuild(resume) ) {
+            final Instant newestDate = rebuild(writer, rebuild, resume);
+            if ( !isStopped() ) {
+                // The main index is replaced by the caller, right after this.
+                personalShardsLock.writeLock().lock();
+                try {
+                    shards.replaceWith(rebuild);
+                } finally {
+                    personalShardsLock.writeLock().unlock();
+                }
+            }
+            return newestDate;
+        }
+    }
+
+    private Instant rebuild( final IndexWriter writer, @Nullable final PersonalIndexShards.Rebuild shardRebuild, final boolean resume ) throws IOException
     {
         // Do nothing if message archiving is disabled.
         if (!conversationManager.isMessageArchivingEnabled()) {
@@ -102,17 +624,242 @@ public class MessageIndexer extends LuceneIndexer
 
         // Index all messages.
         Log.debug("... started to index messages to rebuild the Lucene index.");
-        final Instant newestDate = indexMessages(writer, Instant.EPOCH);
+        final Instant newestDate = indexPartitions(writer, shardRebuild, resume);
         Log.debug("... finished indexing messages to update the Lucene index. Lasted indexed message date {}", newestDate);
         return newestDate;
     }
 
+    /**
+     * Indexes all messages, by dividing the range of message identifiers in partitions that are indexed concurrently.
+     *
+     * The progress of each partition is recorded periodically, which allows an interrupted rebuild to be resumed.
+     * Partitions are defined when a rebuild starts. Messages that are archived after that are not part of any
+     * partition: these are expected to be indexed by the periodic update that follows the rebuild.
+     *
+     * @param writer The instance used to modify the index data (cannot be null).
+     * @param shardRebuild The instances used to rebuild the shards that hold documents of personal archives, or null.
+     * @param resume true to continue from the last checkpoint, false to start anew.
+     * @return the date of the most recent message that was indexed (never null).
+     */
+    private Instant indexPartitions( final IndexWriter writer, @Nullable final PersonalIndexShards.Rebuild shardRebuild, final boolean resume ) throws IOException
+    {
+        final int partitionCount;
+        final long[] lowerBounds;
+        final long[] upperBounds;
+        final AtomicLong[] positions;
+        final AtomicReference<Instant> newest = new AtomicReference<>(Instant.EPOCH);
+
+        final String checkpointedCount = resume ? getRebuildCheckpoint("partitions") : null;
+        if ( checkpointedCount != null ) {
+            partitionCount = Integer.parseInt(checkpointedCount);
+            lowerBounds = new long[partitionCount];
+            upperBounds = new long[partitionCount];
+            positions = new AtomicLong[partitionCount];
+            for ( int i = 0; i < partitionCount; i++ ) {
+                lowerBounds[i] = Long.parseLong(getRebuildCheckpoint("p" + i + "-lower"));
+                upperBounds[i] = Long.parseLong(getRebuildCheckpoint("p" + i + "-upper"));
+                positions[i] = new AtomicLong(Long.parseLong(getRebuildCheckpoint("p" + i + "-position")));
+            }
+            newest.set(Instant.ofEpochMilli(Long.parseLong(getRebuildCheckpoint("newest"))));
+            Log.debug("... resuming to index {} partitions of messages.", partitionCount);
+        } else {
+            final long[] bounds = getMessageIDBounds();
+            if ( bounds == null ) {
+                return Instant.EPOCH;
+            }
+
+            // Partitions span (lowerBound, upperBound]. The first lower bound is just below the lowest identifier.
+            final long lowest = bounds[0] - 1;
+            final long span = bounds[1] - lowest;
+            partitionCount = (int) Math.max(1, Math.min(REBUILD_PARTITIONS.getValue(), span));
+            lowerBounds = new long[partitionCount];
+            upperBounds = new long[partitionCount];
+            positions = new AtomicLong[partitionCount];
+            for ( int i = 0; i < partitionCount; i++ ) {
+                lowerBounds[i] = lowest + span / partitionCount * i;
+                upperBounds[i] = i == partitionCount - 1 ? bounds[1] : lowest + span / partitionCount * (i + 1);
+                positions[i] = new AtomicLong(lowerBounds[i]);
+            }
+            Log.debug("... dividing messages with identifiers from {} up to and including {} into {} partitions.", bounds[0], bounds[1], partitionCount);
+        }
+
+        // Workers claim partitions one by one, until all have been processed.
+        final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        for ( int i = 0; i < partitionCount; i++ ) {
+            if ( positions[i].get() < upperBounds[i] ) {
+                pending.add(i);
+            }
+        }
+        final int threads = Math.min(REBUILD_THREADS.getValue(), Math.max(1, pending.size()));
+        final List<Future<?>> workers = new ArrayList<>(threads);
+        final MessageDocumentBuilder.Cache cache = new MessageDocumentBuilder.Cache();
+        final boolean storeFields = STORED_FIELDS_ENABLED.getValue();
+        final IndexWriter[] shardWriters = shardRebuild == null ? null : shardRebuild.getWriters();
+        for ( int t = 0; t < threads; t++ ) {
+            workers.add(taskEngine.submit(() -> {
+                final MessageDocumentBuilder builder = new MessageDocumentBuilder(cache, storeFields);
+                Integer partition;
+                while ( !isStopped() && (partition = pending.poll()) != null ) {
+                    try {
+                        indexPartition(writer, shardWriters, builder, partition, positions[partition], upperBounds[partition], newest);
+                    } catch ( Exception e ) {
+                        // Other partitions continue to be indexed. This partition will be resumed from its last checkpoint.
+                        Log.warn("An exception occurred while indexing partition {} of the messages.", partition, e);
+                    }
+                }
+            }));
+        }
+
+        // Periodically record progress, until all workers are done.
+        for ( final Future<?> worker : workers ) {
+            while ( true ) {
+                try {
+                    worker.get(REBUILD_CHECKPOINT_INTERVAL.getValue().toMillis(), TimeUnit.MILLISECONDS);
+                    break;
+                } catch ( TimeoutException e ) {
+                    checkpoint(writer, shardRebuild, lowerBounds, upperBounds, positions, newest.get());
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while rebuilding the index.", e);
+                } catch ( ExecutionException e ) {
+                    Log.warn("An unexpected exception occurred while indexing partitions of messages.", e.getCause());
+                    break;
+                }
+            }
+        }
+
+        checkpoint(writer, shardRebuild, lowerBounds, upperBounds, positions, newest.get());
+        for ( int i = 0; i < partitionCount; i++ ) {
+            if ( positions[i].get() < upperBounds[i] && !isStopped() ) {
+                throw new IOException("Partition " + i + " of the messages was not indexed completely.");
+            }
+        }
+        return newest.get();
+    }
+
+    /**
+     * Records the progress of all partitions, after committing the documents that have been added for them (to the
+     * shards that hold documents of personal archives first).
+     */
+    private void checkpoint( final IndexWriter writer, @Nullable final PersonalIndexShards.Rebuild shardRebuild, final long[] lowerBounds, final long[] upperBounds, final AtomicLong[] positions, final Instant newest ) throws IOException
+    {
+        // Determine values before committing, so that all data up to these values is part of the commit.
+        final Map<String, String> values = new HashMap<>();
+        long total = 0;
+        long done = 0;
+        values.put("partitions", Integer.toString(upperBounds.length));
+        values.put("shards", Integer.toString(shardRebuild == null ? 0 : shardRebuild.getWriters().length));
+        values.put("newest", Long.toString(newest.toEpochMilli()));
+        for ( int i = 0; i < upperBounds.length; i++ ) {
+            final long position = positions[i].get();
+            values.put("p" + i + "-lower", Long.toString(lowerBounds[i]));
+            values.put("p" + i + "-upper", Long.toString(upperBounds[i]));
+            values.put("p" + i + "-position", Long.toString(position));
+            total += upperBounds[i] - lowerBounds[i];
+            done += position - lowerBounds[i];
+        }
+        if ( shardRebuild != null ) {
+            shardRebuild.commit();
+        }
+        checkpointRebuild(writer, values);
+
+        final RebuildFuture future = rebuildFuture;
+        if ( future != null && total > 0 ) {
+            future.setPercentageDone((int) Math.min(99, done * 100 / total));
+        }
+        Log.debug("... recorded checkpoint of the rebuild of the Lucene index.");
+    }
+
+    /**
+     * Indexes the messages in one partition, in chunks. The position of the partition is updated after each chunk.
+     *
+     * @param writer The instance used to modify the index data (cannot be null).
+     * @param shardWriters The instances used to modify the shards that hold documents of personal archives, or null.
+     * @param builder The instance used to create documents, exclusive to the current thread (cannot be null).
+     * @param partition The index of the partition (used for logging).
+     * @param position The identifier of the last message that has been indexed in the partition (cannot be null).
+     * @param upperBound The identifier of the last message in the partition.
+     * @param newest The date of the most recent message that has been indexed by any partition (cannot be null).
+     */
+    private void indexPartition( final IndexWriter writer, @Nullable final IndexWriter[] shardWriters, final MessageDocumentBuilder builder, final int partition, final AtomicLong position, final long upperBound, final AtomicReference<Instant> newest ) throws SQLException, IOException
+    {
+        Log.debug("... started to index partition {}, after message ID {} up to and including message ID {}.", partition, position.get(), upperBound);
+        while ( !isStopped() && position.get() < upperBound )
+        {
+            final int chunkSize = REBUILD_CHUNK_SIZE.getValue();
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                // Preventing the driver to collect all results at once depends on auto-commit from being disabled, at
+                // least for postgres. Getting a 'transaction' connection will ensure this (if supported).
+                con = DbConnectionManager.getTransactionConnection();
+                pstmt = con.prepareStatement(selecting(MESSAGES_IN_RANGE, builder));
+                pstmt.setMaxRows(chunkSize);
+                pstmt.setFetchSize(Math.min(250, chunkSize));
+                pstmt.setLong(1, position.get());
+                pstmt.setLong(2, upperBound);
+                rs = pstmt.executeQuery();
+
+                long last = position.get();
+                int rows = 0;
+                while ( rows < chunkSize && rs.next() ) {
+                    final Instant sentDate = indexRow(writer, shardWriters, builder, rs);
+                    if ( sentDate != null ) {
+                        newest.accumulateAndGet(sentDate, (current, update) -> update.isAfter(current) ? update : current);
+                    }
+                    last = rs.getLong("messageID");
+                    rows++;
+                }
+
+                // Without any remaining messages in range, the entire partition has been processed.
+                position.set(rows < chunkSize ? upperBound : last);
+            }
+            finally {
+                DbConnectionManager.closeResultSet(rs);
+                DbConnectionManager.closeTransactionConnection(pstmt, con, false); // Only read queries are performed. No need to roll back, even on exceptions.
+            }
+        }
+        Log.debug("... finished indexing partition {}.", partition);
+    }
+
+    /**
+     * Returns the lowest and highest identifier of archived messages.
+     *
+     * @return An array with the lowest and highest identifier, or null if there are no archived messages.
+     */
+    @Nullable
+    private long[] getMessageIDBounds() throws IOException
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(MESSAGE_ID_BOUNDS);
+            rs = pstmt.executeQuery();
+            if ( rs.next() ) {
+                final long lowest = rs.getLong(1);
+                if ( !rs.wasNull() ) {
+                    return new long[] { lowest, rs.getLong(2) };
+                }
+            }
+            return null;
+        }
+        catch (SQLException sqle) {
+            throw new IOException("Unable to determine the range of message identifiers to index.", sqle);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
     /**
      * Returns all identifiers of messages in the system.
      *
      * @return A set of message identifiers. Possibly empty, never null.
      */
-    private Instant indexMessages( IndexWriter writer, Instant since )
+    private Instant indexMessages( IndexWriter writer, @Nullable IndexWriter[] shardWriters, Instant since, Instant until )
     {
         Instant latest = since;
 
@@ -135,11 +882,14 @@ public class MessageIndexer extends LuceneIndexer
                 con.setAutoCommit(false);
             }
 
+            final MessageDocumentBuilder builder = new MessageDocumentBuilder(new MessageDocumentBuilder.Cache(), STORED_FIELDS_ENABLED.getValue());
             if ( since.equals( Instant.EPOCH ) ) {
-                pstmt = con.prepareStatement(ALL_MESSAGES);
+                pstmt = con.prepareStatement(selecting(MESSAGES_UNTIL, builder));
+                pstmt.setLong(1, until.toEpochMilli());
             } else {
-                pstmt = con.prepareStatement(NEW_MESSAGES);
+                pstmt = con.prepareStatement(selecting(NEW_MESSAGES_UNTIL, builder));
                 pstmt.setLong(1, Date.from(since).getTime());
+                pstmt.setLong(2, until.toEpochMilli());
             }
 
             pstmt.setFetchSize(250);
@@ -148,91 +898,9 @@ public class MessageIndexer extends LuceneIndexer
             long progress = 0;
             Instant lastProgressReport = Instant.now();
             while (rs.next()) {
-                final long messageID = rs.getLong("messageID");
-
-                final String fromJIDBare = rs.getString("fromJID");
-                final String fromJIDResource = rs.getString("fromJIDResource");
-                final JID fromJID;
-                try {
-                    fromJID = new JID(fromJIDResource == null || fromJIDResource.isEmpty() ? fromJIDBare : fromJIDBare + "/" + fromJIDResource);
-                } catch (IllegalArgumentException ex) {
-                    Log.debug("Invalid fromJID value for messageID {}", messageID, ex);
-                    continue;
-                }
-
-                final String toJIDBare = rs.getString("toJID");
-                final String toJIDResource = rs.getString("toJIDResource");
-                final JID toJID;
-                try {
-                    toJID = new JID(toJIDResource == null || toJIDResource.isEmpty() ? toJIDBare : toJIDBare + "/" + toJIDResource);
-                } catch (IllegalArgumentException ex) {
-                    Log.debug("Invalid toJID value for messageID {}", messageID, ex);
-                    continue;
-                }
-
-                final String isPMforJIDValue = rs.getString("isPMforJID");
-                final JID isPMforJID;
-                if ( isPMforJIDValue == null ) {
-                    isPMforJID = null;
-                } else {
-                    try {
-                        isPMforJID = new JID(isPMforJIDValue);
-                    } catch (IllegalArgumentException ex) {
-                        Log.debug("Invalid isPMforJID value for messageID{}", messageID, ex);
-                        continue;
-                    }
-                }
-                final Instant sentDate = Instant.ofEpochMilli( Long.parseLong( rs.getString("sentDate") ));
-
-                final String body = DbConnectionManager.getLargeTextField(rs, 6);
-
-                // This shouldn't happen, but I've seen a very small percentage of rows have a null body.
-                if ( body == null ) {
-                    continue;
-                }
-
-                if ( XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(toJID) != null) {
-                    // Store in the archive of the chat room.
-                    final JID room = toJID.asBareJID();
-                    final JID pmFromJID = isPMforJID != null ? fromJID.asBareJID() : null; // only set if the message was a PM.
-                    final Document document = createMUCDocument(room, messageID, pmFromJID, isPMforJID, sentDate, body);
-                    writer.addDocument(document);
-
-                    if (sentDate.isAfter(latest)) {
-                        latest = sentDate;
-                    }
-
-                    // Store in the personal archive of the sender.
-                    if ( XMPPServer.getInstance().isLocal( fromJID ) ) {
-                        final Document personalDocument = createPersonalDocument(fromJID.asBareJID(), messageID, fromJID, toJID, sentDate, body);
-                        writer.addDocument(personalDocument);
-
-                        if (sentDate.isAfter(latest)) {
-                            latest = sentDate;
-                        }
-                    }
-
-                } else {
-                    // Not a chat room
-                    if ( XMPPServer.getInstance().isLocal( fromJID ) ) {
-                        // Store in the personal archive of the sender.
-                        final Document document = createPersonalDocument(fromJID.asBareJID(), messageID, fromJID, toJID, sentDate, body);
-                        writer.addDocument(document);
-
-                        if (sentDate.isAfter(latest)) {
-                            latest = sentDate;
-                        }
-                    }
-
-                    if ( XMPPServer.getInstance().isLocal( toJID ) ) {
-                        // Store in the personal archive of the recipient.
-                        final Document document = createPersonalDocument(toJID.asBareJID(), messageID, fromJID, toJID, sentDate, body);
-                        writer.addDocument(document);
-
-                        if (sentDate.isAfter(latest)) {
-                            latest = sentDate;
-                        }
-                    }
+                final Instant sentDate = indexRow(writer, shardWriters, builder, rs);
+                if ( sentDate != null && sentDate.isAfter(latest) ) {
+                    latest = sentDate;
                 }
 
                 // When there are _many_ messages to be processed, log an occasional progress indicator, to let admins know that things are still churning.
@@ -258,74 +926,100 @@ public class MessageIndexer extends LuceneIndexer
     }
 
     /**
-     * Creates a index document for one particular chat message for a particular users's personal archive.
+     * Returns one of the queries of this class, amended to also select the stanza of each message (as the last column)
+     * when the documents that are created by the builder hold that value.
+     */
+    @Nonnull
+    private static String selecting( @Nonnull final String query, @Nonnull final MessageDocumentBuilder builder )
+    {
+        return builder.isStoringFields() ? query.replace(" FROM ofMessageArchive ", ", stanza FROM ofMessageArchive ") : query;
+    }
+
+    /**
+     * Adds documents for the message on the current row of a result set of one of the queries in this class.
      *
-     * @param owner the (bare) JID of the owner of the archive.
-     * @param messageID ID of the message that was exchanged.
-     * @param fromJID Bare or full JID of the author of the message.
-     * @param toJID Bare or full JID of the addressee of the message.
-     * @param sentDate Timestamp of the message.
-     * @param body Message text.
+     * @param writer The instance used to modify the index data (cannot be null).
+     * @param shardWriters The instances used to modify the shards that hold documents of personal archives, or null.
+     * @param builder The instance used to create documents (cannot be null).
+     * @param rs The result set (cannot be null).
+     * @return the date of the message, or null if no documents were added for it.
      */
-    protected static Document createPersonalDocument( @Nonnull final JID owner,
-                                              final long messageID,
-                                              @Nonnull final JID fromJID,
-                                              @Nonnull final JID toJID,
-                                              @Nonnull final Instant sentDate,
-                                              @Nonnull final String body)
+    @Nullable
+    private Instant indexRow( @Nonnull final IndexWriter writer, @Nullable final IndexWriter[] shardWriters, @Nonnull final MessageDocumentBuilder builder, @Nonnull final ResultSet rs ) throws SQLException, IOException
     {
-        // 'with' should be the entity that the owner of the archive is exchanging messages with.
-        final JID with;
-        if ( owner.asBareJID().equals( fromJID.asBareJID() ) ) {
-            with = toJID;
+        final long messageID = rs.getLong("messageID");
+
+        final JID fromJID = builder.getCache().getJID(rs.getString("fromJID"), rs.getString("fromJIDResource"));
+        if ( fromJID == null ) {
+            Log.debug("Invalid fromJID value for messageID {}", messageID);
+            return null;
+        }
+
+        final JID toJID = builder.getCache().getJID(rs.getString("toJID"), rs.getString("toJIDResource"));
+        if ( toJID == null ) {
+            Log.debug("Invalid toJID value for messageID {}", messageID);
+            return null;
+        }
+
+        final String isPMforJIDValue = rs.getString("isPMforJID");
+        final JID isPMforJID;
+        if ( isPMforJIDValue == null ) {
+            isPMforJID = null;
         } else {
-            with = fromJID;
+            isPMforJID = builder.getCache().getJID(isPMforJIDValue, null);
+            if ( isPMforJID == null ) {
+                Log.debug("Invalid isPMforJID value for messageID {}", messageID);
+                return null;
+            }
         }
+        final long sentDate = rs.getLong("sentDate");
+
+        final String body = DbConnectionManager.getLargeTextField(rs, 6);
 
-        final Document document = new Document();
-        document.add(new StoredField("messageID", messageID ) );
-        document.add(new NumericDocValuesField("messageIDRange", messageID));
-        document.add(new StringField("owner", owner.toBareJID(), Field.Store.NO));
-        document.add(new StringField("withBare", with.toBareJID(), Field.Store.NO));
-        if ( with.getResource() != null ) {
-            document.add(new StringField("withResource", with.getResource(), Field.Store.NO));
+        // This shouldn't happen, but I've seen a very small percentage of rows have a null body.
+        if ( body == null ) {
+            return null;
         }
-        document.add(new NumericDocValuesField("sentDate", sentDate.toEpochMilli()));
-        document.add(new TextField("body", body, Field.Store.NO));
-        return document;
+
+        final String stanza = builder.isStoringFields() ? DbConnectionManager.getLargeTextField(rs, 9) : null;
+
+        return indexMessage(writer, shardWriters, builder, messageID, fromJID, toJID, isPMforJID, sentDate, body, stanza) ? Instant.ofEpochMilli(sentDate) : null;
     }
 
     /**
-     * Creates a index document for one particular chat message exchanged in a MUC room.
+     * Adds documents for one message to the index: one for the archive of the chat room that it was sent in (if any),
+     * and one for each personal archive of a local user that sent or received it. Documents that were previously added
+     * for the same message are replaced.
      *
-     * @param owner the (bare) JID of the owner of the archive.
+     * @param writer The instance used to modify the index data (cannot be null).
+     * @param shardWriters The instances used to modify the shards that hold documents of personal archives, or null to
+     *                     add these documents to the main index.
+     * @param builder The instance used to create documents (cannot be null).
      * @param messageID ID of the message that was exchanged.
-     * @param pmFromJID Bare or full JID of the author of the message, if it is a PM
-     * @param pmToJID Bare or full JID of the addressee of the message, if it is a PM
-     * @param sentDate Timestamp of the message.
+     * @param fromJID Bare or full JID of the author of the message.
+     * @param toJID Bare or full JID of the addressee of the message.
+     * @param isPMforJID Bare JID of the addressee of a private message in a chat room, or null.
+     * @param sentDate Timestamp of the message (in milliseconds since the epoch).
      * @param body Message text.
+     * @param stanza The archived stanza, or null. Ignored unless the builder stores fields.
+     * @return true if at least one document was added, otherwise false.
      */
-    protected static Document createMUCDocument( @Nonnull final JID owner,
-                                                  final long messageID,
-                                                  @Nullable final JID pmFromJID,
-                                                  @Nullable final JID pmToJID,
-                                                  @Nonnull final Instant sentDate,
-                                                  @Nonnull final String body)
+    private static boolean indexMessage( @Nonnull final IndexWriter writer,
+                                         @Nullable final IndexWriter[] shardWriters,
+                                         @Nonnull final MessageDocumentBuilder builder,
+                                         final long messageID,
+                                         @Nonnull final JID fromJID,
+                                         @Nonnull final JID toJID,
+                                         @Nullable final JID isPMforJID,
+                                         final long sentDate,
+                                         @Nonnull final String body,
+                                         @Nullable final String stanza ) throws IOException
     {
-        final Document document = new Document();
-        document.add(new StoredField("messageID", messageID ) );
-        document.add(new NumericDocValuesField("messageIDRange", messageID));
-        document.add(new StringField("room", owner.toBareJID(), Field.Store.NO));
-        document.add(new StringField("isPrivateMessage", pmFromJID != null || pmToJID != null ? "true" : "false", Field.Store.NO));
-        if ( pmFromJID != null ) {
-            document.add(new StringField("pmFromJID", pmFromJID.toBareJID(), Field.Store.NO));
-        }
-
-        if (pmToJID != null) {
-            document.add(new StringField("pmToJID", pmToJID.toBareJID(), Field.Store.NO));
+        final List<Document> documents = builder.build(messageID, fromJID, toJID, isPMforJID, sentDate, body, stanza);
+        if ( documents.isEmpty() ) {
+            return false;
         }
-        document.add(new NumericDocValuesField("sentDate", sentDate.toEpochMilli()));
-        document.add(new TextField("body", body, Field.Store.NO));
-        return document;
+        PersonalIndexShards.updateDocuments(writer, shardWriters, new Term(MessageDocumentBuilder.MESSAGE_KEY, Long.toString(messageID)), documents);
+        return true;
     }
 }
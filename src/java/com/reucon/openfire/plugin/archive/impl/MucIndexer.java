@@ -17,7 +17,6 @@ package com.reucon.openfire.plugin.archive.impl;
 
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.Term;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.archive.ConversationManager;
 import org.jivesoftware.openfire.archive.MonitoringConstants;
@@ -25,6 +24,7 @@ import org.jivesoftware.openfire.index.LuceneIndexer;
 import org.jivesoftware.openfire.reporting.util.TaskEngine;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.SystemProperty;
 import org.xmpp.packet.JID;
 
 import java.io.File;
@@ -39,6 +39,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Creates and maintains a Lucene index for messages exchanged in multi-user chat.
@@ -51,17 +52,31 @@ public class MucIndexer extends LuceneIndexer
      * The version of the structure that is stored in the Lucene index. When this value differs from the value that is
      * stored in a file with the index, then upon restart, an automatic re-indexation will occur.
      */
-    public static final int SCHEMA_VERSION = 1;
+    public static final int SCHEMA_VERSION = 2;
 
     public static final String ALL_MUC_MESSAGES = "SELECT roomID, sender, logTime, body, messageID FROM ofMucConversationLog WHERE messageID IS NOT NULL";
     public static final String NEW_MUC_MESSAGES = "SELECT roomID, sender, logTime, body, messageID FROM ofMucConversationLog WHERE messageID IS NOT NULL AND logTime > ?";
 
+    /**
+     * The percentage of documents in the index that are deleted, above which segments are merged to reclaim the space
+     * (and search cost) of those documents.
+     */
+    public static final SystemProperty<Integer> MERGE_DELETES_THRESHOLD = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.muc.merge-deletes-threshold")
+        .setDefaultValue(20)
+        .setMinValue(1)
+        .setMaxValue(100)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
     private ConversationManager conversationManager;
 
     /**
-     * A collection of rooms that are to be removed from the index during the next update or rebuild operation.
+     * A collection of rooms that are to be removed from the index during the next update or rebuild operation. Rooms are
+     * added by the thread that processes MUC events, and removed by the thread that updates the index.
      */
-    private final Set<Long> roomsPendingDeletion = new HashSet<>();
+    private final Set<Long> roomsPendingDeletion = ConcurrentHashMap.newKeySet();
 
     public MucIndexer( final TaskEngine taskEngine, final ConversationManager conversationManager )
     {
@@ -82,8 +97,20 @@ public class MucIndexer extends LuceneIndexer
     @Override
     protected Instant doUpdateIndex( final IndexWriter writer, final Instant lastModified ) throws IOException
     {
-        // Do nothing if room archiving is disabled.
+        // Deletions are counted only after they have been committed, which is why the deletions of previous updates are
+        // evaluated before changes are made by this update.
+        mergeDeletesIfNeeded(writer);
+
+        // Remove documents of rooms that have been deleted.
+        final Set<Long> pendingDeletion = new HashSet<>(roomsPendingDeletion);
+        if (!pendingDeletion.isEmpty()) {
+            Log.debug( "... removing documents for {} rooms that are pending deletion.", pendingDeletion.size());
+            writer.deleteDocuments(LongPoint.newSetQuery("roomID", pendingDeletion.stream().mapToLong(Long::longValue).toArray()));
+        }
+
+        // Do nothing else if room archiving is disabled.
         if ( !conversationManager.isRoomArchivingEnabled() ) {
+            roomsPendingDeletion.removeAll(pendingDeletion);
             return lastModified;
         }
 
@@ -94,6 +121,8 @@ public class MucIndexer extends LuceneIndexer
         // Index MUC messages that arrived since the provided date.
         Log.debug("... started to index MUC messages since {} to update the Lucene index.", lastModified);
         final Instant newestDate = indexMUCMessages(writer, lastModified);
+        // Rooms are forgotten only after their new messages (if any) have been skipped.
+        roomsPendingDeletion.removeAll(pendingDeletion);
         Log.debug("... finished indexing MUC messages to update the Lucene index. Last indexed message date: {}", newestDate);
         return newestDate;
     }
@@ -106,13 +135,34 @@ public class MucIndexer extends LuceneIndexer
             return Instant.EPOCH;
         }
 
-        // Index all MUC messages.
+        // Index all MUC messages. Messages of rooms that are pending deletion are skipped.
+        final Set<Long> pendingDeletion = new HashSet<>(roomsPendingDeletion);
         Log.debug("... started to index MUC messages to rebuild the Lucene index.");
         final Instant newestDate = indexMUCMessages(writer, Instant.EPOCH);
+        roomsPendingDeletion.removeAll(pendingDeletion);
         Log.debug("... finished indexing MUC messages to update the Lucene index. Lasted indexed message date {}", newestDate);
         return newestDate;
     }
 
+    /**
+     * Merges segments to expunge deleted documents, when the percentage of deleted documents in the index exceeds
+     * {@link #MERGE_DELETES_THRESHOLD}.
+     *
+     * @param writer The instance used to modify the index data (cannot be null).
+     */
+    private void mergeDeletesIfNeeded( final IndexWriter writer ) throws IOException
+    {
+        final IndexWriter.DocStats stats = writer.getDocStats();
+        if ( stats.maxDoc == 0 ) {
+            return;
+        }
+        final long deleted = stats.maxDoc - stats.numDocs;
+        if ( deleted * 100 > (long) stats.maxDoc * MERGE_DELETES_THRESHOLD.getValue() ) {
+            Log.debug("... {} of {} documents in the index are deleted. Merging segments to expunge them.", deleted, stats.maxDoc);
+            writer.forceMergeDeletes(true);
+        }
+    }
+
     /**
      * Returns all identifiers of MUC messages in the system.
      *
@@ -192,15 +242,6 @@ public class MucIndexer extends LuceneIndexer
                 }
             }
             Log.debug( "... finished the entire result set. Processed {} messages in total.", progress );
-
-            if (!since.equals( Instant.EPOCH ) && !roomsPendingDeletion.isEmpty()) {
-                // In case this is an update instead of a rebuild, older documents may still refer to rooms that are deleted. Remove those.
-                Log.debug( "... removing documents for {} rooms that are pending deletion.", roomsPendingDeletion.size());
-                for (long roomID : roomsPendingDeletion) {
-                    writer.deleteDocuments(new Term("roomID", Long.toString(roomID)));
-                }
-            }
-            roomsPendingDeletion.clear();
         }
         catch (SQLException sqle) {
             Log.error("An exception occurred while trying to fetch all MUC messages from the database to rebuild the Lucene index.", sqle);
@@ -229,11 +270,13 @@ public class MucIndexer extends LuceneIndexer
         final Document document = new Document();
         document.add(new LongPoint("roomID", roomID ) );
         document.add(new StoredField("messageID", messageID ) );
+        document.add(new LongPoint("messageIDRange", messageID));
         document.add(new NumericDocValuesField("messageIDRange", messageID));
         document.add(new StringField("senderBare", sender.toBareJID(), Field.Store.NO));
         if ( sender.getResource() != null ) {
             document.add(new StringField("senderResource", sender.getResource(), Field.Store.NO));
         }
+        document.add(new LongPoint("logTime", logTime.toEpochMilli()));
         document.add(new NumericDocValuesField("logTime", logTime.toEpochMilli()));
         document.add(new TextField("body", body, Field.Store.NO));
         return document;
@@ -10,6 +10,7 @@ import org.dom4j.DocumentHelper;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.archive.MonitoringConstants;
+import org.jivesoftware.openfire.archive.StanzaIDStore;
 import org.jivesoftware.openfire.index.LuceneIndexer;
 import org.jivesoftware.openfire.muc.MUCRoom;
 import org.jivesoftware.openfire.muc.MultiUserChatManager;
@@ -27,10 +28,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A persistence provider that facilitates the implementation of Message Archive Management (XEP-0313) for MUC rooms.
@@ -78,8 +82,7 @@ public class MucMamPersistenceManager implements PersistenceManager {
         final int maxResults = xmppResultSet.getMax() != null ? xmppResultSet.getMax() : DEFAULT_MAX;
         final boolean isPagingBackwards = xmppResultSet.isPagingBackwards();
 
-        final List<ArchivedMessage> msgs;
-        final int totalCount;
+        final AbstractPaginatedMamMucQuery paginatedMamQuery;
         if ( query != null && !query.isEmpty() ) {
             if (!LuceneIndexer.ENABLED.getValue()) {
                 throw new DataRetrievalException("Unable to process a search request that contains a text-based query, as the full-text index functionality has been disabled by configuration.");
@@ -87,53 +90,32 @@ public class MucMamPersistenceManager implements PersistenceManager {
             // When there's a 'query' element, the search needs to go through a Lucene index (which takes care of text-search).
             if (USE_OPENFIRE_TABLES.getValue()) {
                 Log.debug("Using Openfire tables");
-                final PaginatedMucMessageFromOpenfireLuceneQuery paginatedMucMessageLuceneQuery = new PaginatedMucMessageFromOpenfireLuceneQuery(startDate, endDate, room, with, query);
-                Log.debug("Request for message archive of room '{}' resulted in the following query data: {}", room.getJID(), paginatedMucMessageLuceneQuery);
-                totalCount = paginatedMucMessageLuceneQuery.getTotalCount();
-                if (totalCount == 0) {
-                    msgs = Collections.emptyList();
-                } else {
-                    msgs = paginatedMucMessageLuceneQuery.getPage(after, before, maxResults, isPagingBackwards);
-                }
+                paginatedMamQuery = new PaginatedMucMessageFromOpenfireLuceneQuery(startDate, endDate, room, with, query);
             } else {
                 Log.debug("Using Monitoring plugin tables");
-                final PaginatedMucMessageLuceneQuery paginatedMucMessageLuceneQuery = new PaginatedMucMessageLuceneQuery(startDate, endDate, room, with, query);
-                Log.debug("Request for message archive of room '{}' resulted in the following query data: {}", room.getJID(), paginatedMucMessageLuceneQuery);
-                totalCount = paginatedMucMessageLuceneQuery.getTotalCount();
-                if (totalCount == 0) {
-                    msgs = Collections.emptyList();
-                } else {
-                    msgs = paginatedMucMessageLuceneQuery.getPage(after, before, maxResults, isPagingBackwards);
-                }
+                paginatedMamQuery = new PaginatedMucMessageLuceneQuery(startDate, endDate, room, with, query);
             }
         } else {
             // If the search does not include a text query, the results can be looked up in the database directly.
             if (USE_OPENFIRE_TABLES.getValue()) {
                 Log.debug("Using Openfire tables");
-                final PaginatedMucMessageFromOpenfireDatabaseQuery paginatedMucMessageFromOpenfireDatabaseQuery = new PaginatedMucMessageFromOpenfireDatabaseQuery(startDate, endDate, room, with);
-                Log.debug("Request for message archive of room '{}' resulted in the following query data: {}", room.getJID(), paginatedMucMessageFromOpenfireDatabaseQuery);
-                totalCount = paginatedMucMessageFromOpenfireDatabaseQuery.getTotalCount();
-                if (totalCount == 0) {
-                    msgs = Collections.emptyList();
-                } else {
-                    msgs = paginatedMucMessageFromOpenfireDatabaseQuery.getPage(after, before, maxResults, isPagingBackwards);
-                }
+                paginatedMamQuery = new PaginatedMucMessageFromOpenfireDatabaseQuery(startDate, endDate, room, with);
             } else {
                 Log.debug("Using Monitoring plugin tables");
-                final PaginatedMucMessageDatabaseQuery paginatedMessageDatabaseQuery = new PaginatedMucMessageDatabaseQuery(startDate, endDate, room, with);
-                Log.debug("Request for message archive of room '{}' resulted in the following query data: {}", room.getJID(), paginatedMessageDatabaseQuery);
-                totalCount = paginatedMessageDatabaseQuery.getTotalCount();
-                if (totalCount == 0) {
-                    msgs = Collections.emptyList();
-                } else {
-                    msgs = paginatedMessageDatabaseQuery.getPage(after, before, maxResults, isPagingBackwards);
-                }
+                paginatedMamQuery = new PaginatedMucMessageDatabaseQuery(startDate, endDate, room, with);
             }
         }
+        Log.debug("Request for message archive of room '{}' resulted in the following query data: {}", room.getJID(), paginatedMamQuery);
+
+        // Retrieving one message more than requested tells if there are more pages, without the need for another query.
+        final AbstractPaginatedMamQuery.Page page = paginatedMamQuery.getPageWithLookahead(after, before, maxResults, isPagingBackwards);
+        final List<ArchivedMessage> msgs = page.getMessages();
+        final Integer totalCount = paginatedMamQuery.getResultCount(after, before, page);
 
         Log.debug( "Request for message archive of room '{}' found a total of {} applicable messages. Of these, {} were actually retrieved from the database.", room.getJID(), totalCount, msgs.size() );
 
         xmppResultSet.setCount(totalCount);
+        xmppResultSet.setComplete(page.isComplete());
 
         if ( !msgs.isEmpty() ) {
             final ArchivedMessage firstMessage = msgs.get(0);
@@ -160,36 +142,6 @@ public class MucMamPersistenceManager implements PersistenceManager {
             }
             xmppResultSet.setFirst(first);
             xmppResultSet.setLast(last);
-
-            // Check to see if there are more pages, by simulating a request for the next page.
-            // When paging backwards, we need to find out if there are results 'before' the first result.
-            // When paging forward, we need to find out if there are results 'after' the last result.
-            final Long afterForNextPage = isPagingBackwards ? null : lastMessage.getId();
-            final Long beforeForNextPage = isPagingBackwards ? firstMessage.getId() : null;
-            final List<ArchivedMessage> nextPage;
-            if ( query != null && !query.isEmpty() )
-            {
-                if (!LuceneIndexer.ENABLED.getValue()) {
-                    throw new DataRetrievalException("Unable to process a search request that contains a text-based query, as the full-text index functionality has been disabled by configuration.");
-                }
-                final PaginatedMucMessageFromOpenfireLuceneQuery paginatedMucMessageLuceneQuery = new PaginatedMucMessageFromOpenfireLuceneQuery(startDate, endDate, room, with, query);
-                nextPage = paginatedMucMessageLuceneQuery.getPage(afterForNextPage, beforeForNextPage, 1, isPagingBackwards);
-            }
-            else
-            {
-                if (USE_OPENFIRE_TABLES.getValue()) {
-                    final PaginatedMucMessageFromOpenfireDatabaseQuery paginatedMucMessageFromOpenfireDatabaseQuery = new PaginatedMucMessageFromOpenfireDatabaseQuery(startDate, endDate, room, with);
-                    nextPage = paginatedMucMessageFromOpenfireDatabaseQuery.getPage(afterForNextPage, beforeForNextPage, 1, isPagingBackwards);
-                } else {
-                    final PaginatedMucMessageDatabaseQuery paginatedMessageDatabaseQuery = new PaginatedMucMessageDatabaseQuery(startDate, endDate, room, with);
-                    nextPage = paginatedMessageDatabaseQuery.getPage(afterForNextPage, beforeForNextPage, 1, isPagingBackwards);
-                }
-            }
-            Log.debug("Found results for 'next page': {} (based on after: {} before: {} isPagingBackwards: {})", !nextPage.isEmpty(), afterForNextPage, beforeForNextPage, isPagingBackwards);
-            xmppResultSet.setComplete(nextPage.isEmpty());
-        } else {
-            // Issue #112: When there are no results, then the request is definitely 'complete'.
-            xmppResultSet.setComplete(true);
         }
         return msgs;
     }
@@ -281,6 +233,60 @@ public class MucMamPersistenceManager implements PersistenceManager {
         }
     }
 
+    /**
+     * Retrieve specific messages from the database, using as few queries as possible.
+     *
+     * @param messageIds The database IDs of the messages (cannot be null).
+     * @param room The room in which the messages were exchanged (cannot be null).
+     * @return The messages that were found, mapped by their ID (never null).
+     * @throws SQLException when the messages could not be retrieved from the database.
+     */
+    public static Map<Long, ArchivedMessage> getArchivedMessages( Collection<Long> messageIds, MUCRoom room ) throws SQLException
+    {
+        final Map<Long, ArchivedMessage> result = new HashMap<>();
+        final List<Long> ids = new ArrayList<>(messageIds);
+        for (int offset = 0; offset < ids.size(); offset += JdbcPersistenceManager.MAX_IDS_PER_QUERY) {
+            final List<Long> chunk = ids.subList(offset, Math.min(ids.size(), offset + JdbcPersistenceManager.MAX_IDS_PER_QUERY));
+            final String parameters = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            Connection connection = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                connection = DbConnectionManager.getConnection();
+                if (USE_OPENFIRE_TABLES.getValue()) {
+                    pstmt = connection.prepareStatement("SELECT sender, nickname, logTime, subject, body, stanza, messageId FROM ofMucConversationLog WHERE messageID IN (" + parameters + ") and roomID = ?");
+                } else {
+                    pstmt = connection.prepareStatement("SELECT fromJid, toJidResource, sentdate, fromJidResource, body, stanza, messageId FROM ofMessageArchive WHERE messageID IN (" + parameters + ") and toJid=?");
+                }
+                int index = 1;
+                for (final Long id : chunk) {
+                    pstmt.setLong( index++, id );
+                }
+                if (USE_OPENFIRE_TABLES.getValue()) {
+                    pstmt.setLong( index, room.getID());
+                } else {
+                    pstmt.setString( index, room.getJID().toBareJID());
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final long id = rs.getLong(7);
+                    if (result.containsKey(id)) {
+                        Log.warn("Database contains more than one message with ID {} from the archive of MUC room {}.", id, room.getJID());
+                        continue;
+                    }
+                    try {
+                        result.put(id, asArchivedMessage(room.getJID(), rs.getString(1), rs.getString(2), new Date(Long.parseLong(rs.getString(3).trim())), rs.getString(4), rs.getString(5), rs.getString(6), id));
+                    } catch (DocumentException ex) {
+                        Log.warn("Failure to parse 'stanza' value as XMPP for the message with ID {} from the archive of MUC room {}.", id, room.getJID(), ex);
+                    }
+                }
+            } finally {
+                DbConnectionManager.closeConnection(rs, pstmt, connection);
+            }
+        }
+        return result;
+    }
+
     static protected ArchivedMessage asArchivedMessage(JID roomJID, String senderJID, String nickname, Date sentDate, String subject, String body, String stanza, long id) throws DocumentException {
         final JID with;
         if (nickname != null && nickname.trim().length() > 0) {
@@ -333,6 +339,20 @@ public class MucMamPersistenceManager implements PersistenceManager {
     {
         Log.debug( "Looking for ID of the message with stable/unique stanza ID {}", value );
 
+        // Stanza IDs are recorded only for messages that are archived by this plugin (not for those in Openfire's tables).
+        if (!USE_OPENFIRE_TABLES.getValue()) {
+            final Long indexed = StanzaIDStore.getMessageID( room.getJID().toBareJID(), value );
+            if ( indexed != null ) {
+                Log.debug( "Found stable/unique stanza ID {} in message with ID {}.", value, indexed );
+                return indexed;
+            }
+
+            if ( StanzaIDStore.isComplete() ) {
+                Log.debug( "Unable to find ID of the message with stable/unique stanza ID {}", value );
+                return null;
+            }
+        }
+
         Connection connection = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
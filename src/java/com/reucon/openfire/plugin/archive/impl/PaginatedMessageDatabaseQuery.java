@@ -18,6 +18,7 @@ import com.reucon.openfire.plugin.archive.model.ArchivedMessage;
 import com.reucon.openfire.plugin.archive.xep0313.IQQueryHandler;
 import org.dom4j.DocumentException;
 import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.archive.RecentMessageCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -80,6 +81,25 @@ public class PaginatedMessageDatabaseQuery extends AbstractPaginatedMamQuery
             return archivedMessages;
         }
 
+        // The latest page of an archive can often be provided from memory.
+        if ( with == null && isPagingBackwards ) {
+            final List<org.jivesoftware.openfire.archive.ArchivedMessage> recent = RecentMessageCache.getLatest( archiveOwner, startDate, endDate, after, before, maxResults );
+            if ( recent != null ) {
+                try {
+                    for ( final org.jivesoftware.openfire.archive.ArchivedMessage message : recent ) {
+                        final JID from = message.getFromJID();
+                        final JID to = message.getToJID();
+                        archivedMessages.add( JdbcPersistenceManager.asArchivedMessage( archiveOwner, from.toBareJID(), from.getResource(), to.toBareJID(), to.getResource(), message.getSentDate(), message.getBody(), message.getStanza(), message.getID() ) );
+                    }
+                    Log.trace( "Retrieved {} archived messages from the cache of recent messages.", archivedMessages.size() );
+                    return archivedMessages;
+                } catch ( DocumentException e ) {
+                    Log.debug( "Unable to parse a cached 'stanza' value as valid XMPP for owner {}. Querying the database instead.", this.archiveOwner, e );
+                    archivedMessages.clear();
+                }
+            }
+        }
+
         Connection connection = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
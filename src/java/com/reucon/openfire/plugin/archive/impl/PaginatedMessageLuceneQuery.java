@@ -4,13 +4,13 @@ import com.reucon.openfire.plugin.archive.model.ArchivedMessage;
 import com.reucon.openfire.plugin.archive.xep0313.IQQueryHandler;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.archive.MonitoringConstants;
+import org.jivesoftware.openfire.index.LuceneIndexer;
 import org.jivesoftware.openfire.plugin.MonitoringPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,11 +18,12 @@ import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Encapsulates responsibility of creating a Lucene query that retrieves a specific subset (page) of archived messages
@@ -48,12 +49,11 @@ public class PaginatedMessageLuceneQuery extends AbstractPaginatedMamQuery
         super(startDate, endDate, archiveOwner, with, query);
     }
 
-    protected IndexSearcher getSearcher() throws IOException
+    protected MessageIndexer getIndexer()
     {
         final MonitoringPlugin plugin = (MonitoringPlugin) XMPPServer.getInstance().getPluginManager().getPluginByName(MonitoringConstants.PLUGIN_NAME).get();
         final MessageIndexer archiveIndexer = plugin.getMessageIndexer();
-        final IndexSearcher searcher = archiveIndexer.getSearcher();
-        return searcher;
+        return archiveIndexer;
     }
 
     @Override
@@ -62,18 +62,53 @@ public class PaginatedMessageLuceneQuery extends AbstractPaginatedMamQuery
         final List<ArchivedMessage> result = new ArrayList<>();
         try
         {
-            final IndexSearcher searcher = getSearcher();
-            final Query query = getLuceneQueryForPage(after, before);
-            final TopFieldDocs indexResult = searcher.search(query, maxResults, getSort(isPagingBackwards));
-
-            for ( final ScoreDoc scoreDoc : indexResult.scoreDocs )
+            final MessageIndexer indexer = getIndexer();
+            final IndexSearcher searcher = indexer.acquireSearcher(archiveOwner);
+            if ( searcher == null ) {
+                // The index has been closed (for example, because the plugin is being unloaded).
+                Log.debug( "The index is not available. Returning empty result." );
+                return result;
+            }
+            try
             {
-                final Document doc = searcher.doc(scoreDoc.doc);
-                final long messageID = Long.parseLong(doc.get("messageID"));
-                final ArchivedMessage archivedMessage = JdbcPersistenceManager.getArchivedMessage(messageID, archiveOwner);
-                if ( archivedMessage != null ) {
-                    result.add( archivedMessage );
+                final Query query = getLuceneQueryForPage(after, before);
+                final TopFieldDocs indexResult = searcher.search(query, maxResults, getSort(isPagingBackwards));
+
+                // Messages are recreated from the values stored in the index, when available. Others are fetched from
+                // the database in bulk, after which the order of the hits is restored.
+                final Map<Long, ArchivedMessage> messagesByID = new HashMap<>();
+                final List<Long> messageIDs = new ArrayList<>(indexResult.scoreDocs.length);
+                final List<Long> missing = new ArrayList<>();
+                for ( final ScoreDoc scoreDoc : indexResult.scoreDocs )
+                {
+                    final Document doc = searcher.doc(scoreDoc.doc);
+                    final MessageDocumentBuilder.StoredMessage stored = MessageDocumentBuilder.getStoredMessage(doc);
+                    if ( stored != null ) {
+                        messageIDs.add(stored.messageID);
+                        messagesByID.put(stored.messageID, JdbcPersistenceManager.asArchivedMessage(archiveOwner, stored.fromJID, null, stored.toJID, null, stored.sentDate, stored.body, stored.stanza, stored.messageID));
+                    } else {
+                        final long messageID = Long.parseLong(doc.get("messageID"));
+                        messageIDs.add(messageID);
+                        missing.add(messageID);
+                    }
+                }
+                if ( !messagesByID.isEmpty() ) {
+                    // The index can hold documents of messages that have since been removed from the database.
+                    messagesByID.keySet().retainAll(JdbcPersistenceManager.getExistingMessageIDs(messagesByID.keySet()));
                 }
+                if ( !missing.isEmpty() ) {
+                    messagesByID.putAll(JdbcPersistenceManager.getArchivedMessages(missing, archiveOwner));
+                }
+                for ( final Long messageID : messageIDs ) {
+                    final ArchivedMessage archivedMessage = messagesByID.get(messageID);
+                    if ( archivedMessage != null ) {
+                        result.add( archivedMessage );
+                    }
+                }
+            }
+            finally
+            {
+                indexer.releaseSearcher(searcher);
             }
 
             // The order of items in the page must always be chronologically, oldest to newest, even when paging backwards.
@@ -101,10 +136,24 @@ public class PaginatedMessageLuceneQuery extends AbstractPaginatedMamQuery
         try
         {
             final Query query = getLuceneQueryForAllResults();
-            final IndexSearcher searcher = getSearcher();
-            final TotalHitCountCollector collector = new TotalHitCountCollector();
-            searcher.search( query, collector );
-            final int result = collector.getTotalHits();
+            final MessageIndexer indexer = getIndexer();
+            final IndexSearcher searcher = indexer.acquireSearcher(archiveOwner);
+            if ( searcher == null ) {
+                // The index has been closed (for example, because the plugin is being unloaded).
+                Log.debug( "The index is not available. Returning a count of zero." );
+                return 0;
+            }
+            final int result;
+            try
+            {
+                final TotalHitCountCollector collector = new TotalHitCountCollector();
+                searcher.search( query, collector );
+                result = collector.getTotalHits();
+            }
+            finally
+            {
+                indexer.releaseSearcher(searcher);
+            }
             Log.debug( "Total number for unpaged query is: {}. Query: {}", result, query );
 
             return result;
@@ -130,7 +179,7 @@ public class PaginatedMessageLuceneQuery extends AbstractPaginatedMamQuery
         builder.add(new TermQuery(new Term("owner", archiveOwner.toBareJID() ) ), BooleanClause.Occur.MUST );
 
         // Limit potential results to the requested time range. Note that these values are always non-null in this method (might be 'EPOCH' though).
-        final Query dateRangeQuery = NumericDocValuesField.newSlowRangeQuery("sentDate", startDate.getTime(), endDate.getTime());
+        final Query dateRangeQuery = LuceneIndexer.newLongRangeQuery("sentDate", startDate.getTime(), endDate.getTime());
         builder.add(dateRangeQuery, BooleanClause.Occur.MUST);
 
         // If defined, limit to specific senders.
@@ -156,7 +205,7 @@ public class PaginatedMessageLuceneQuery extends AbstractPaginatedMamQuery
 
         // Limit by 'before' and 'after', if applicable.
         if ( after != null || before != null) {
-            builder.add(NumericDocValuesField.newSlowRangeQuery( "messageIDRange",
+            builder.add(LuceneIndexer.newLongRangeQuery( "messageIDRange",
                                                  after != null ? Math.addExact(after, 1) : Long.MIN_VALUE,
                                                  before != null ? Math.addExact(before, -1) : Long.MAX_VALUE
             ), BooleanClause.Occur.MUST );
@@ -5,7 +5,6 @@ import com.reucon.openfire.plugin.archive.xep0313.IQQueryHandler;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.LongPoint;
-import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
@@ -13,6 +12,7 @@ import org.apache.lucene.search.*;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.archive.MonitoringConstants;
 import org.jivesoftware.openfire.container.Plugin;
+import org.jivesoftware.openfire.index.LuceneIndexer;
 import org.jivesoftware.openfire.muc.MUCRoom;
 import org.jivesoftware.openfire.plugin.MonitoringPlugin;
 import org.slf4j.Logger;
@@ -21,7 +21,6 @@ import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.IOException;
 import java.util.*;
 
 public class PaginatedMucMessageFromOpenfireLuceneQuery extends AbstractPaginatedMamMucQuery
@@ -45,15 +44,14 @@ public class PaginatedMucMessageFromOpenfireLuceneQuery extends AbstractPaginate
         super(startDate, endDate, room, with, query);
     }
 
-    protected IndexSearcher getSearcher() throws IOException
+    protected MucIndexer getIndexer()
     {
         final Optional<Plugin> plugin = XMPPServer.getInstance().getPluginManager().getPluginByName(MonitoringConstants.PLUGIN_NAME);
         if (!plugin.isPresent()) {
             throw new IllegalStateException("Unable to obtain Lucene Index Searcher! The Monitoring plugin does not appear to be loaded on this machine.");
         }
         final MucIndexer mucIndexer = ((MonitoringPlugin)plugin.get()).getMucIndexer();
-        final IndexSearcher searcher = mucIndexer.getSearcher();
-        return searcher;
+        return mucIndexer;
     }
 
     @Override
@@ -62,19 +60,37 @@ public class PaginatedMucMessageFromOpenfireLuceneQuery extends AbstractPaginate
         final List<ArchivedMessage> result = new ArrayList<>();
         try
         {
-            final IndexSearcher searcher = getSearcher();
-            final Query query = getLuceneQueryForPage(after, before);
-            final TopFieldDocs indexResult = searcher.search(query, maxResults, getSort(isPagingBackwards));
-
-            for ( final ScoreDoc scoreDoc : indexResult.scoreDocs )
+            final LuceneIndexer indexer = getIndexer();
+            final IndexSearcher searcher = indexer.acquireSearcher();
+            if ( searcher == null ) {
+                // The index has been closed (for example, because the plugin is being unloaded).
+                Log.debug( "The index is not available. Returning empty result." );
+                return result;
+            }
+            try
             {
-                final Document doc = searcher.doc(scoreDoc.doc);
-                final long messageID = Long.parseLong(doc.get("messageID"));
-                final ArchivedMessage archivedMessage = MucMamPersistenceManager.getArchivedMessage(messageID, room);
-                if ( archivedMessage != null ) {
-                    result.add( archivedMessage );
+                final Query query = getLuceneQueryForPage(after, before);
+                final TopFieldDocs indexResult = searcher.search(query, maxResults, getSort(isPagingBackwards));
+
+                // Fetch the messages from the database in bulk, after which the order of the hits is restored.
+                final List<Long> messageIDs = new ArrayList<>(indexResult.scoreDocs.length);
+                for ( final ScoreDoc scoreDoc : indexResult.scoreDocs )
+                {
+                    final Document doc = searcher.doc(scoreDoc.doc);
+                    messageIDs.add(Long.parseLong(doc.get("messageID")));
+                }
+                final Map<Long, ArchivedMessage> messagesByID = MucMamPersistenceManager.getArchivedMessages(messageIDs, room);
+                for ( final Long messageID : messageIDs ) {
+                    final ArchivedMessage archivedMessage = messagesByID.get(messageID);
+                    if ( archivedMessage != null ) {
+                        result.add( archivedMessage );
+                    }
                 }
             }
+            finally
+            {
+                indexer.releaseSearcher(searcher);
+            }
 
             // The order of items in the page must always be chronologically, oldest to newest, even when paging backwards.
             if ( isPagingBackwards ) {
@@ -101,10 +117,24 @@ public class PaginatedMucMessageFromOpenfireLuceneQuery extends AbstractPaginate
         try
         {
             final Query query = getLuceneQueryForAllResults();
-            final IndexSearcher searcher = getSearcher();
-            final TotalHitCountCollector collector = new TotalHitCountCollector();
-            searcher.search( query, collector );
-            final int result = collector.getTotalHits();
+            final LuceneIndexer indexer = getIndexer();
+            final IndexSearcher searcher = indexer.acquireSearcher();
+            if ( searcher == null ) {
+                // The index has been closed (for example, because the plugin is being unloaded).
+                Log.debug( "The index is not available. Returning a count of zero." );
+                return 0;
+            }
+            final int result;
+            try
+            {
+                final TotalHitCountCollector collector = new TotalHitCountCollector();
+                searcher.search( query, collector );
+                result = collector.getTotalHits();
+            }
+            finally
+            {
+                indexer.releaseSearcher(searcher);
+            }
             Log.debug( "Total number for unpaged query is: {}. Query: {}", result, query );
 
             return result;
@@ -130,7 +160,7 @@ public class PaginatedMucMessageFromOpenfireLuceneQuery extends AbstractPaginate
         builder.add(LongPoint.newExactQuery("roomID", room.getID()), BooleanClause.Occur.MUST);
 
         // Limit potential results to the requested time range. Note that these values are always non-null in this method (might be 'EPOCH' though).
-        final Query dateRangeQuery = NumericDocValuesField.newSlowRangeQuery("logTime", startDate.getTime(), endDate.getTime());
+        final Query dateRangeQuery = LuceneIndexer.newLongRangeQuery("logTime", startDate.getTime(), endDate.getTime());
         builder.add(dateRangeQuery, BooleanClause.Occur.MUST);
 
         // If defined, limit to specific senders.
@@ -156,7 +186,7 @@ public class PaginatedMucMessageFromOpenfireLuceneQuery extends AbstractPaginate
 
         // Limit by 'before' and 'after', if applicable.
         if ( after != null || before != null) {
-            builder.add(NumericDocValuesField.newSlowRangeQuery( "messageIDRange",
+            builder.add(LuceneIndexer.newLongRangeQuery( "messageIDRange",
                                                  after != null ? Math.addExact(after, 1) : Long.MIN_VALUE,
                                                  before != null ? Math.addExact(before, -1) : Long.MAX_VALUE
             ), BooleanClause.Occur.MUST );
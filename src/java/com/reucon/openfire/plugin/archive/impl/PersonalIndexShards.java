@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of Lucene indices that together hold the documents of the personal archives that are indexed by
+ * {@link MessageIndexer}. The documents of an owner are stored in the shard that is selected by the hash of the bare
+ * JID of the owner. A search in a personal archive therefore uses only one shard, of which the postings are smaller
+ * than those of one index that holds the documents of all owners.
+ *
+ * Every shard has its own writer, which merges segments independently of the other shards, and is committed only when
+ * it has changes. The layout (the amount of shards) is recorded on disk. When it differs from the configured layout,
+ * the shards are removed, and the shards are considered to be unpopulated until they are replaced by the result of a
+ * rebuild.
+ */
+class PersonalIndexShards
+{
+    private static final Logger Log = LoggerFactory.getLogger(PersonalIndexShards.class);
+
+    private static final String LAYOUT_FILE = "openfire-shards.count";
+    private static final String POPULATED_FILE = "openfire-shards.populated";
+
+    private final Path dir;
+    private final int count;
+    private final Directory[] directories;
+    private final IndexWriter[] writers;
+    private final SearcherManager[] searcherManagers;
+    private volatile boolean populated;
+
+    /**
+     * Opens the shards, creating them when they do not exist, or when they were created for a different amount of shards.
+     *
+     * @param dir The directory in which the shards are stored (cannot be null).
+     * @param count The amount of shards.
+     * @return the opened shards (never null).
+     */
+    @Nonnull
+    static PersonalIndexShards open(@Nonnull final Path dir, final int count) throws IOException
+    {
+        final Path layoutFile = dir.resolve(LAYOUT_FILE);
+        if (!Files.exists(layoutFile) || !String.valueOf(count).equals(new String(Files.readAllBytes(layoutFile), StandardCharsets.UTF_8).trim())) {
+            Log.info("The layout of the sharded personal index in {} is not that of {} shards. Recreating the shards.", dir, count);
+            remove(dir);
+            Files.createDirectories(dir);
+            Files.write(layoutFile, String.valueOf(count).getBytes(StandardCharsets.UTF_8));
+        }
+        return new PersonalIndexShards(dir, count);
+    }
+
+    /**
+     * Removes the shards from disk, as well as the data of any rebuild of them.
+     *
+     * @param dir The directory in which the shards are stored (cannot be null).
+     */
+    static void remove(@Nonnull final Path dir) throws IOException
+    {
+        FileUtils.deleteDirectory(dir.toFile());
+        FileUtils.deleteDirectory(getRebuildDir(dir).toFile());
+    }
+
+    private PersonalIndexShards(@Nonnull final Path dir, final int count) throws IOException
+    {
+        this.dir = dir;
+        this.count = count;
+        this.directories = new Directory[count];
+        this.writers = new IndexWriter[count];
+        this.searcherManagers = new SearcherManager[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                directories[i] = FSDirectory.open(dir.resolve("shard-" + i));
+                writers[i] = new IndexWriter(directories[i], newConfig(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+                searcherManagers[i] = new SearcherManager(writers[i], null);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.populated = Files.exists(dir.resolve(POPULATED_FILE));
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Checks if the shards hold the documents of all personal archives. Until they do, documents of personal archives
+     * are to be stored in, and searched for in, the index that holds the documents of chat rooms.
+     */
+    boolean isPopulated()
+    {
+        return populated;
+    }
+
+    /**
+     * Returns the writers of all shards, in order.
+     */
+    @Nonnull
+    IndexWriter[] getWriters()
+    {
+        return writers;
+    }
+
+    /**
+     * Returns the index of the shard that holds the documents of an owner. The hash code of a string is defined by the
+     * Java language, which makes this stable across restarts.
+     *
+     * @param owner The bare JID of the owner of a personal archive (cannot be null).
+     * @param count The amount of shards.
+     * @return the index of the shard.
+     */
+    static int shardOf(@Nonnull final String owner, final int count)
+    {
+        return Math.floorMod(owner.hashCode(), count);
+    }
+
+    /**
+     * Acquires a searcher for the shard that holds the documents of an owner. The searcher must be released through
+     * {@link org.jivesoftware.openfire.index.LuceneIndexer#releaseSearcher(IndexSearcher)}.
+     *
+     * @param owner The bare JID of the owner of a personal archive (cannot be null).
+     * @return A searcher, or null if the shards have been closed.
+     */
+    @Nullable
+    IndexSearcher acquireSearcher(@Nonnull final String owner) throws IOException
+    {
+        try {
+            return searcherManagers[shardOf(owner, count)].acquire();
+        } catch (AlreadyClosedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Makes changes to the shards visible to searchers.
+     */
+    void refresh() throws IOException
+    {
+        for (final SearcherManager manager : searcherManagers) {
+            manager.maybeRefresh();
+        }
+    }
+
+    /**
+     * Commits the shards that have changes that are not yet committed.
+     */
+    void commit() throws IOException
+    {
+        for (final IndexWriter writer : writers) {
+            if (writer.hasUncommittedChanges()) {
+                writer.commit();
+            }
+        }
+    }
+
+    /**
+     * Deletes the documents that match a query, from every shard.
+     *
+     * @param query The query that matches the documents to delete (cannot be null).
+     */
+    void deleteDocuments(@Nonnull final Query query) throws IOException
+    {
+        for (final IndexWriter writer : writers) {
+            writer.deleteDocuments(query);
+        }
+    }
+
+    /**
+     * Opens writers for the rebuild of all shards, in a directory next to that of the shards.
+     *
+     * @param resume true to add to the data of an interrupted rebuild, false to discard any such data.
+     * @return the writers, in order (never null). These are to be closed by the caller.
+     */
+    @Nonnull
+    Rebuild openRebuild(final boolean resume) throws IOException
+    {
+        final Path rebuildDir = getRebuildDir(dir);
+        if (!resume) {
+            FileUtils.deleteDirectory(rebuildDir.toFile());
+        }
+        return new Rebuild(rebuildDir, count, resume);
+    }
+
+    /**
+     * Replaces all data in the shards with that of a rebuild, after which the shards are considered to be populated.
+     * The caller is to ensure that the shards are not modified, and that their searchers are not refreshed, while this
+     * runs: either would observe shards that have been emptied, but not yet refilled.
+     *
+     * @param rebuild The rebuild (cannot be null). Its writers are closed by this method.
+     */
+    void replaceWith(@Nonnull final Rebuild rebuild) throws IOException
+    {
+        rebuild.close();
+        for (int i = 0; i < count; i++) {
+            try (final Directory rebuilt = FSDirectory.open(rebuild.dir.resolve("shard-" + i))) {
+                writers[i].deleteAll();
+                if (DirectoryReader.indexExists(rebuilt)) {
+                    writers[i].addIndexes(rebuilt);
+                }
+                writers[i].commit();
+            }
+        }
+        Files.write(dir.resolve(POPULATED_FILE), new byte[0]);
+        populated = true;
+        refresh();
+        FileUtils.deleteDirectory(rebuild.dir.toFile());
+    }
+
+    /**
+     * Closes all shards. Pending changes are committed.
+     */
+    void close()
+    {
+        for (int i = 0; i < count; i++) {
+            try {
+                if (searcherManagers[i] != null) {
+                    searcherManagers[i].close();
+                }
+                if (writers[i] != null) {
+                    writers[i].close();
+                }
+                if (directories[i] != null) {
+                    directories[i].close();
+                }
+            } catch (Exception e) {
+                Log.warn("An exception occurred while closing shard {} of the personal index.", i, e);
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces the documents of a message. Documents of a personal archive are stored in the shard of their
+     * owner, other documents are stored in the main index.
+     *
+     * @param main The writer of the main index (cannot be null).
+     * @param shards The writers of the shards, or null to store all documents in the main index.
+     * @param term The term that identifies earlier copies of the documents (cannot be null).
+     * @param documents The documents of the message (cannot be null).
+     */
+    static void updateDocuments(@Nonnull final IndexWriter main, @Nullable final IndexWriter[] shards, @Nonnull final Term term, @Nonnull final List<Document> documents) throws IOException
+    {
+        if (shards == null) {
+            main.updateDocuments(term, documents);
+            return;
+        }
+
+        // A message has at most three documents. Documents for the same index are added together.
+        final List<Document> remaining = new ArrayList<>(documents);
+        while (!remaining.isEmpty()) {
+            final IndexWriter target = getWriter(main, shards, remaining.get(0));
+            final List<Document> batch = new ArrayList<>(remaining.size());
+            remaining.removeIf(document -> getWriter(main, shards, document) == target && batch.add(document));
+            target.updateDocuments(term, batch);
+        }
+    }
+
+    private static IndexWriter getWriter(@Nonnull final IndexWriter main, @Nonnull final IndexWriter[] shards, @Nonnull final Document document)
+    {
+        final String owner = document.get("owner");
+        return owner == null ? main : shards[shardOf(owner, shards.length)];
+    }
+
+    @Nonnull
+    private static Path getRebuildDir(@Nonnull final Path dir)
+    {
+        return dir.resolveSibling(dir.getFileName() + "-rebuild");
+    }
+
+    @Nonnull
+    private static IndexWriterConfig newConfig(@Nonnull final IndexWriterConfig.OpenMode openMode)
+    {
+        final IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setOpenMode(openMode);
+        return iwc;
+    }
+
+    /**
+     * The writers that are used to rebuild the shards.
+     */
+    static final class Rebuild implements AutoCloseable
+    {
+        private final Path dir;
+        private final Directory[] directories;
+        private final IndexWriter[] writers;
+        private boolean closed;
+
+        private Rebuild(@Nonnull final Path dir, final int count, final boolean resume) throws IOException
+        {
+            this.dir = dir;
+            this.directories = new Directory[count];
+            this.writers = new IndexWriter[count];
+            try {
+                for (int i = 0; i < count; i++) {
+                    directories[i] = FSDirectory.open(dir.resolve("shard-" + i));
+                    writers[i] = new IndexWriter(directories[i], newConfig(resume ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Nonnull
+        IndexWriter[] getWriters()
+        {
+            return writers;
+        }
+
+        /**
+         * Commits the data that has been added to the shards.
+         */
+        void commit() throws IOException
+        {
+            for (final IndexWriter writer : writers) {
+                writer.commit();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            IOException failure = null;
+            for (int i = 0; i < writers.length; i++) {
+                try {
+                    if (writers[i] != null) {
+                        writers[i].close();
+                    }
+                    if (directories[i] != null) {
+                        directories[i].close();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -183,6 +183,52 @@ public class ArchivedMessage {
         return this.stanza;
     }
 
+    /**
+     * Returns a new XML element that represents the XMPP stanza that was used to transmit the message. Unlike the
+     * element of the stanza returned by {@link #getStanza()}, the returned element is owned by the caller, which is
+     * free to modify it, or to add it to another element.
+     *
+     * When the stanza has not yet been parsed, the element is parsed from its stored representation, without keeping
+     * a (parsed) copy in this instance.
+     *
+     * @return An XML element, or null if the message does not include a stanza.
+     */
+    @Nullable
+    public Element createStanzaElement() {
+        final Element element;
+        synchronized (this) {
+            if (this.stanza != null) {
+                return this.stanza.getElement().createCopy();
+            }
+            if (rawStanza == null || rawStanza.isEmpty()) {
+                return null;
+            }
+            try {
+                element = DocumentHelper.parseText(rawStanza).getRootElement();
+            } catch (DocumentException de) {
+                Log.debug("Unable to parse (non-empty) stanza (id: {})", id, de);
+                return null;
+            }
+        }
+        element.detach();
+
+        if (!OF1804_DISABLE.getValue()) {
+            // See getStanza(): restore the original body text.
+            Element bodyElement = element.element("body");
+            if (body == null) {
+                if (bodyElement != null) {
+                    element.remove(bodyElement);
+                }
+            } else {
+                if (bodyElement == null) {
+                    bodyElement = element.addElement("body");
+                }
+                bodyElement.setText(body);
+            }
+        }
+        return element;
+    }
+
     /**
      * The message peer (the 'other side' of the conversation), in respect to the owner of the archive that this message
      * is part of.
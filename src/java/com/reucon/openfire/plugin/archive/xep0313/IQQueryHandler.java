@@ -18,7 +18,8 @@ import org.jivesoftware.openfire.forward.Forwarded;
 import org.jivesoftware.openfire.index.LuceneIndexer;
 import org.jivesoftware.openfire.muc.*;
 import org.jivesoftware.openfire.plugin.MonitoringPlugin;
-import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.openfire.reporting.util.TaskEngine;
+import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.util.NotFoundException;
 import org.jivesoftware.util.SystemProperty;
 import org.jivesoftware.util.XMPPDateTimeFormat;
@@ -36,9 +37,9 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -70,8 +71,24 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
         .setPlugin(MonitoringConstants.PLUGIN_NAME)
         .build();
 
+    public static final SystemProperty<Duration> ARCHIVE_WAIT_TIMEOUT = SystemProperty.Builder.ofType( Duration.class )
+        .setKey( "archive.mam.archive-wait-timeout" )
+        .setDynamic(true)
+        .setDefaultValue(Duration.ofSeconds(30))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> RESULT_BATCH_SIZE = SystemProperty.Builder.ofType( Integer.class )
+        .setKey( "archive.mam.result-batch-size" )
+        .setDynamic(true)
+        .setDefaultValue(50)
+        .setMinValue(1)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
     protected final String NAMESPACE;
-    protected ExecutorService executorService;
+    protected MamQueryScheduler queryScheduler;
     protected PacketRouter router;
 
     private final XMPPDateTimeFormat xmppDateTimeFormat = new XMPPDateTimeFormat();
@@ -85,37 +102,10 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
     public void initialize( XMPPServer server )
     {
         super.initialize( server );
-        executorService = Executors.newCachedThreadPool( new NamedThreadFactory( "message-archive-handler-", null, null, null ) );
+        queryScheduler = MonitoringPlugin.getInstance().getMamQueryScheduler();
         router = server.getPacketRouter();
     }
 
-    @Override
-    public void stop()
-    {
-        executorService.shutdown();
-        super.stop();
-    }
-
-    @Override
-    public void destroy()
-    {
-        // Give the executor some time to finish processing jobs.
-        final long end = System.currentTimeMillis() + 4000;
-        while ( !executorService.isTerminated() && System.currentTimeMillis() < end )
-        {
-            try
-            {
-                Thread.sleep( 100 );
-            }
-            catch ( InterruptedException e )
-            {
-                break;
-            }
-        }
-        executorService.shutdownNow();
-        super.destroy();
-    }
-
     public IQ handleIQ( final IQ packet ) throws UnauthorizedException {
 
         if(packet.getType().equals(IQ.Type.get)) {
@@ -242,8 +232,6 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
             return buildErrorResponse(packet, PacketError.Condition.feature_not_implemented, "Retrieving pages 'out of order' is not supported.");
         }
 
-        sendMidQuery(packet);
-
         // Modify original request to force result set management to be applied.
         if ( FORCE_RSM.getValue() ) {
             final QName seQName = QName.get("set", XmppResultSet.NAMESPACE);
@@ -262,26 +250,40 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
         final ConversationManager conversationManager = ((MonitoringPlugin)plugin.get()).getConversationManager();
         final Instant targetEndDate = Instant.now(); // TODO or, the timestamp of the element referenced by 'before' from RSM, if that's set.
 
+        // Messages in personal archives are archived by this plugin, of which the archivers signal when data is stored.
+        // Messages in room archives can also be archived by the multi-user chat service, which is polled instead.
+        final CompletableFuture<Void> archived = room == null ? conversationManager.whenArchived( targetEndDate ) : null;
+
         final QueryRequest finalQueryRequest = queryRequest;
-        executorService.submit(() -> {
+        final Instant received = Instant.now();
+        final Runnable query = () -> {
             try
             {
+                sendMidQuery(packet);
+
                 Log.debug("Retrieving messages from archive...");
                 Duration eta;
                 Duration totalPause = Duration.ZERO;
                 Instant start = Instant.now();
-                while ( !(eta = conversationManager.availabilityETA( targetEndDate )).isZero() )
+                if ( archived != null )
                 {
-                    try
-                    {
-                        Log.trace( "Not all data that is being requested has been written to the database yet. Delaying request processing for {}", eta );
-                        Thread.sleep( eta.toMillis() );
-                        totalPause = totalPause.plus( eta );
-                    }
-                    catch ( InterruptedException e )
+                    totalPause = Duration.between( received, start );
+                }
+                else
+                {
+                    while ( !(eta = conversationManager.availabilityETA( targetEndDate )).isZero() )
                     {
-                        Log.warn( "Interrupted wait for data availability. Data might be incomplete!", e );
-                        break;
+                        try
+                        {
+                            Log.trace( "Not all data that is being requested has been written to the database yet. Delaying request processing for {}", eta );
+                            Thread.sleep( eta.toMillis() );
+                            totalPause = totalPause.plus( eta );
+                        }
+                        catch ( InterruptedException e )
+                        {
+                            Log.warn( "Interrupted wait for data availability. Data might be incomplete!", e );
+                            break;
+                        }
                     }
                 }
                 Log.debug( "All data that has been requested has been written to the database. Proceed to process request." );
@@ -289,12 +291,13 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
                 Collection<ArchivedMessage> archivedMessages = retrieveMessages(finalQueryRequest);
                 Log.debug("Retrieved {} messages from archive.", archivedMessages.size());
 
-                for(ArchivedMessage archivedMessage : archivedMessages) {
-                    sendMessageResult(packet.getFrom(), finalQueryRequest, archivedMessage);
+                if (!sendMessageResults(packet.getFrom(), finalQueryRequest, archivedMessages)) {
+                    Log.debug("Stopped sending results, as '{}' is no longer connected.", packet.getFrom());
+                    return;
                 }
 
                 sendEndQuery(packet, packet.getFrom(), finalQueryRequest);
-                Log.debug("Done with request. The request took {} to complete, of which {} was spend waiting on data to be written to the database.", Duration.between( start, Instant.now()), totalPause );
+                Log.debug("Done with request. The request took {} to complete, of which {} was spend waiting on data to be written to the database.", Duration.between( received, Instant.now()), totalPause );
             }
             catch ( NotFoundException e ) {
                 Log.debug( "Request resulted in a item-not-found condition.", e );
@@ -314,8 +317,46 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
                     }
                 }
             }
-        } );
+        };
+        final Runnable rejected = () -> {
+            Log.debug("Unable to process query of requestor '{}' as it could not be started.", requestor);
+            try {
+                router.route( buildErrorResponse(packet, PacketError.Condition.resource_constraint, "Too many archive queries are being processed. Please retry later.") );
+            } catch ( Exception ex ) {
+                Log.error( "An unexpected exception occurred while returning an error stanza to the originator of: {}", packet, ex );
+            }
+        };
 
+        if ( archived == null || archived.isDone() ) {
+            if (!queryScheduler.submit(requestor, query, rejected)) {
+                Log.debug("Unable to process query of requestor '{}' as too many queries are waiting to be processed.", requestor);
+                return buildErrorResponse(packet, PacketError.Condition.resource_constraint, "Too many archive queries are being processed. Please retry later.");
+            }
+            return null;
+        }
+
+        // Wait for the data that is being requested to be written to the database before the query is scheduled, so
+        // that a query that waits does not occupy one of the limited amount of concurrently processed queries.
+        Log.trace( "Not all data that is being requested has been written to the database yet. Delaying request processing." );
+        final TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                if ( archived.cancel( false ) ) {
+                    Log.warn( "Data that is being requested was not written to the database within {}. Data might be incomplete!", ARCHIVE_WAIT_TIMEOUT.getValue() );
+                }
+            }
+        };
+        TaskEngine.getInstance().schedule( timeout, ARCHIVE_WAIT_TIMEOUT.getValue() );
+        archived.whenComplete( ( ignored, throwable ) -> {
+            TaskEngine.getInstance().cancelScheduledTask( timeout );
+            if ( throwable != null && !archived.isCancelled() ) {
+                Log.warn( "Unable to determine if data that is being requested was written to the database. Data might be incomplete!", throwable );
+            }
+            if (!queryScheduler.submit(requestor, query, rejected)) {
+                Log.debug("Unable to process query of requestor '{}' as too many queries are waiting to be processed.", requestor);
+                rejected.run();
+            }
+        } );
         return null;
     }
 
@@ -536,27 +577,67 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
     }
 
     /**
-     * Send archived message to requesting client
+     * Sends archived messages to the requesting client, in batches. Result stanzas are built for one batch at a time.
+     * Before a batch is built, it is verified that the requesting client (when it is a local user) is still connected.
+     *
+     * @param from to receive the messages
+     * @param queryRequest Query request made by client
+     * @param archivedMessages Messages to send to client
+     * @return false if sending was stopped as the client is no longer connected, otherwise true.
+     */
+    private boolean sendMessageResults(JID from, QueryRequest queryRequest, Collection<ArchivedMessage> archivedMessages) {
+        final boolean isMuc = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService( queryRequest.getArchive() ) != null;
+        final boolean isLocalUser = XMPPServer.getInstance().isLocal(from) && from.getNode() != null;
+        final int batchSize = RESULT_BATCH_SIZE.getValue();
+        final List<Message> batch = new ArrayList<>(Math.min(batchSize, archivedMessages.size()));
+
+        final Iterator<ArchivedMessage> iterator = archivedMessages.iterator();
+        while (iterator.hasNext()) {
+            if (isLocalUser) {
+                final ClientSession session = XMPPServer.getInstance().getSessionManager().getSession(from);
+                if (session == null || session.isClosed()) {
+                    return false;
+                }
+            }
+
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                final Message messagePacket = buildMessageResult(from, queryRequest, iterator.next(), isMuc);
+                if (messagePacket != null) {
+                    batch.add(messagePacket);
+                }
+            }
+            for (final Message messagePacket : batch) {
+                router.route(messagePacket);
+            }
+            batch.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Builds a result stanza for an archived message.
      * @param from to recieve message
      * @param queryRequest Query request made by client
      * @param archivedMessage Message to send to client
-     * @return
+     * @param isMuc true if the archive that is queried is that of a MUC room
+     * @return The result stanza, or null if no stanza could be formulated for the archived message.
      */
-    private void sendMessageResult(JID from, QueryRequest queryRequest, ArchivedMessage archivedMessage) {
-        final Message stanza;
-        if ( archivedMessage.getStanza() != null ) {
-            stanza = archivedMessage.getStanza();
-        } else {
+    private Message buildMessageResult(JID from, QueryRequest queryRequest, ArchivedMessage archivedMessage, boolean isMuc) {
+        Element rootElement = archivedMessage.createStanzaElement();
+        if ( rootElement == null ) {
             // Try create a fake on from the body.
-            stanza = ArchivedMessage.recreateStanza(archivedMessage, queryRequest.getArchive());
+            final Message stanza = ArchivedMessage.recreateStanza(archivedMessage, queryRequest.getArchive());
+            if (stanza != null) {
+                rootElement = stanza.getElement();
+                rootElement.detach();
+            }
         }
 
-        if (stanza == null) {
+        if (rootElement == null) {
             Log.debug("Unable to formulate a stanza from archived message with ID {}", archivedMessage.getId());
-            return;
+            return null;
         }
 
-        final boolean isMuc = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService( queryRequest.getArchive() ) != null;
         Message messagePacket = new Message();
         messagePacket.setTo(from);
         if (isMuc)
@@ -564,7 +645,6 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
             messagePacket.setFrom( queryRequest.getArchive().asBareJID() );
         }
 
-        final Element rootElement = stanza.getElement().createCopy();
         if ( isMuc ) {
             // XEP-0313 specifies in section 5.1.2 MUC Archives: When sending out the archives to a requesting client, the forwarded stanza MUST NOT have a 'to' attribute.
             final Attribute to = rootElement.attribute("to");
@@ -584,7 +664,7 @@ abstract public class IQQueryHandler extends AbstractIQHandler implements
 
         // TODO Can/should we use a SSID instead of the database ID for the result 'ID' attribute value?
         messagePacket.addExtension(new Result(fwd, NAMESPACE, queryRequest.getQueryid(), archivedMessage.getId().toString()));
-        router.route(messagePacket);
+        return messagePacket;
     }
 
     /**
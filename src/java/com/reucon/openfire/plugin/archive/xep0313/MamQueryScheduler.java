@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.xep0313;
+
+import org.jivesoftware.openfire.archive.MonitoringConstants;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executes XEP-0313 queries, limiting the amount of queries that are processed concurrently.
+ *
+ * Queries that cannot be processed immediately are queued. Queued queries are started in round-robin order of the
+ * entities that issued them, so that an entity that issues many queries cannot delay the queries of others. The amount
+ * of queries that are concurrently processed for one entity is limited too. When the queue (or the part of the queue
+ * that is used by one entity) is full, new queries are rejected, which allows the caller to tell the requesting
+ * entity to retry later. Queries that were accepted, but that cannot be started after all (because the executor
+ * refuses them, or because the scheduler is stopped), are reported to a callback that is provided with each query, so
+ * that the requesting entity is not left without a response.
+ *
+ * Queries are executed on virtual threads when that is configured and supported by the JVM, or on a thread pool
+ * otherwise.
+ */
+public class MamQueryScheduler
+{
+    private static final Logger Log = LoggerFactory.getLogger(MamQueryScheduler.class);
+
+    public static final SystemProperty<Integer> MAX_CONCURRENT = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.query.max-concurrent")
+        .setDefaultValue(10)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MAX_CONCURRENT_PER_USER = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.query.max-concurrent-per-user")
+        .setDefaultValue(2)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MAX_QUEUED = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.query.max-queued")
+        .setDefaultValue(500)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MAX_QUEUED_PER_USER = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.query.max-queued-per-user")
+        .setDefaultValue(10)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Boolean> VIRTUAL_THREADS = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("archive.mam.query.virtual-threads")
+        .setDefaultValue(false)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final String QUEUED_KEY = "mam_query_queued";
+    public static final String QUEUE_TIME_KEY = "mam_query_queue_time";
+    public static final String RUN_TIME_KEY = "mam_query_run_time";
+    public static final String REJECTED_KEY = "mam_query_rejected";
+
+    /**
+     * Queries that have not been started yet, per (bare) JID of the entity that issued them. The iteration order of
+     * this map defines which entity is served next. All scheduling state is guarded by this instance.
+     */
+    private final LinkedHashMap<String, Deque<Query>> queued = new LinkedHashMap<>();
+
+    /**
+     * The amount of queries that are being processed, per (bare) JID of the entity that issued them.
+     */
+    private final Map<String, Integer> running = new HashMap<>();
+
+    private final Supplier<Integer> maxConcurrent;
+    private final Supplier<Integer> maxConcurrentPerUser;
+    private final Supplier<Integer> maxQueued;
+    private final Supplier<Integer> maxQueuedPerUser;
+
+    private int totalQueued = 0;
+
+    private int totalRunning = 0;
+
+    private ExecutorService executorService;
+
+    // Measurements since the statistics were last sampled.
+    private final AtomicLong queueTimeTotal = new AtomicLong();
+    private final AtomicLong runTimeTotal = new AtomicLong();
+    private final AtomicLong queueTimeCount = new AtomicLong();
+    private final AtomicLong runTimeCount = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a scheduler that applies the limits that are configured by the properties of this class.
+     */
+    public MamQueryScheduler()
+    {
+        this(MAX_CONCURRENT::getValue, MAX_CONCURRENT_PER_USER::getValue, MAX_QUEUED::getValue, MAX_QUEUED_PER_USER::getValue);
+    }
+
+    /**
+     * Creates a scheduler that applies the provided limits. These are obtained every time that they are needed.
+     *
+     * @param maxConcurrent the maximum amount of queries that are processed concurrently (cannot be null).
+     * @param maxConcurrentPerUser the maximum amount of queries of one entity that are processed concurrently (cannot be null).
+     * @param maxQueued the maximum amount of queries that are queued (cannot be null).
+     * @param maxQueuedPerUser the maximum amount of queries of one entity that are queued (cannot be null).
+     */
+    MamQueryScheduler(@Nonnull final Supplier<Integer> maxConcurrent, @Nonnull final Supplier<Integer> maxConcurrentPerUser, @Nonnull final Supplier<Integer> maxQueued, @Nonnull final Supplier<Integer> maxQueuedPerUser)
+    {
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerUser = maxConcurrentPerUser;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+    }
+
+    /**
+     * Starts accepting queries.
+     */
+    public void start()
+    {
+        synchronized (this) {
+            if (executorService != null) {
+                return;
+            }
+            ExecutorService service = null;
+            if (VIRTUAL_THREADS.getValue()) {
+                service = createVirtualThreadExecutor();
+                if (service == null) {
+                    Log.warn("Virtual threads are configured to be used for processing archive queries (by '{}'), but are not supported by this JVM. Platform threads will be used instead.", VIRTUAL_THREADS.getKey());
+                }
+            }
+            if (service == null) {
+                // Concurrency is limited by this scheduler, so the pool does not grow beyond the configured maximum.
+                service = Executors.newCachedThreadPool(new NamedThreadFactory("message-archive-handler-", null, null, null));
+            }
+            start(service);
+        }
+
+        final StatisticsManager statisticsManager = StatisticsManager.getInstance();
+        statisticsManager.addStatistic(QUEUED_KEY, new QueryStatistic(QUEUED_KEY) {
+            public double sample() {
+                return getQueuedCount();
+            }
+        });
+        statisticsManager.addStatistic(QUEUE_TIME_KEY, new QueryStatistic(QUEUE_TIME_KEY) {
+            public double sample() {
+                return average(queueTimeTotal, queueTimeCount);
+            }
+        });
+        statisticsManager.addStatistic(RUN_TIME_KEY, new QueryStatistic(RUN_TIME_KEY) {
+            public double sample() {
+                return average(runTimeTotal, runTimeCount);
+            }
+        });
+        statisticsManager.addStatistic(REJECTED_KEY, new QueryStatistic(REJECTED_KEY) {
+            public double sample() {
+                return rejected.getAndSet(0);
+            }
+        });
+    }
+
+    /**
+     * Starts accepting queries, which are executed by the provided executor. No statistics are registered.
+     *
+     * @param service the executor that executes queries (cannot be null).
+     */
+    synchronized void start(@Nonnull final ExecutorService service)
+    {
+        if (executorService == null) {
+            executorService = service;
+        }
+    }
+
+    /**
+     * Stops accepting queries. Queries that have not been started are discarded, and reported as rejected. Queries
+     * that are being processed are given some time to finish, after which they are interrupted.
+     *
+     * @param timeout the maximum amount of time to wait for queries that are being processed (cannot be null).
+     */
+    public void stop(@Nonnull final Duration timeout)
+    {
+        final ExecutorService service;
+        final List<Query> discarded = new ArrayList<>();
+        synchronized (this) {
+            service = executorService;
+            executorService = null;
+            if (totalQueued > 0) {
+                Log.debug("Discarding {} archive queries that were not yet started.", totalQueued);
+            }
+            queued.values().forEach(discarded::addAll);
+            queued.clear();
+            totalQueued = 0;
+        }
+        rejected(discarded);
+        if (service == null) {
+            return;
+        }
+
+        final StatisticsManager statisticsManager = StatisticsManager.getInstance();
+        statisticsManager.removeStatistic(QUEUED_KEY);
+        statisticsManager.removeStatistic(QUEUE_TIME_KEY);
+        statisticsManager.removeStatistic(RUN_TIME_KEY);
+        statisticsManager.removeStatistic(REJECTED_KEY);
+
+        service.shutdown();
+        try {
+            if (!service.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                service.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            service.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedules a query for execution.
+     *
+     * When this method returns true, exactly one of the provided runnables is eventually invoked: the query, or (when
+     * the query cannot be started after all) the rejection callback. The callback is not invoked when this method
+     * returns false.
+     *
+     * @param requestor the entity that issued the query (cannot be null).
+     * @param query the processing of the query (cannot be null).
+     * @param onRejected invoked when the query was accepted, but cannot be started (cannot be null).
+     * @return false if the query was rejected, because too many queries are queued or because the scheduler is not
+     *         running.
+     */
+    public boolean submit(@Nonnull final JID requestor, @Nonnull final Runnable query, @Nonnull final Runnable onRejected)
+    {
+        final String key = requestor.toBareJID();
+        final List<Query> failed;
+        synchronized (this) {
+            if (executorService == null) {
+                return false;
+            }
+
+            final Deque<Query> queue = queued.get(key);
+            final int queuedForRequestor = queue == null ? 0 : queue.size();
+            final boolean canStart = queuedForRequestor == 0 && totalRunning < maxConcurrent.get() && running.getOrDefault(key, 0) < maxConcurrentPerUser.get();
+            if (!canStart && (totalQueued >= maxQueued.get() || queuedForRequestor >= maxQueuedPerUser.get())) {
+                rejected.incrementAndGet();
+                Log.debug("Rejecting archive query of '{}': {} queries are queued ({} for this entity).", key, totalQueued, queuedForRequestor);
+                return false;
+            }
+
+            queued.computeIfAbsent(key, k -> new ArrayDeque<>()).add(new Query(key, query, onRejected));
+            totalQueued++;
+            failed = dispatch();
+        }
+        rejected(failed);
+        return true;
+    }
+
+    /**
+     * Returns the amount of queries that have not been started yet.
+     *
+     * @return an amount of queries.
+     */
+    public synchronized int getQueuedCount()
+    {
+        return totalQueued;
+    }
+
+    /**
+     * Returns the amount of queries that are being processed.
+     *
+     * @return an amount of queries.
+     */
+    public synchronized int getRunningCount()
+    {
+        return totalRunning;
+    }
+
+    /**
+     * Starts queued queries, as long as the concurrency limits allow. Must be invoked while holding the lock on this
+     * instance.
+     *
+     * @return the queries that could not be started, which are to be passed to {@link #rejected(List)} after the lock
+     *         has been released (never null).
+     */
+    private List<Query> dispatch()
+    {
+        List<Query> failed = Collections.emptyList();
+        while (executorService != null && totalRunning < maxConcurrent.get() && totalQueued > 0) {
+            final Query next = pollNext();
+            if (next == null) {
+                // All entities that have queued queries have reached their limit of concurrent queries.
+                break;
+            }
+            totalRunning++;
+            running.merge(next.requestor, 1, Integer::sum);
+            try {
+                executorService.execute(() -> execute(next));
+            } catch (RejectedExecutionException e) {
+                Log.warn("Unable to start archive query of '{}'.", next.requestor, e);
+                finished(next.requestor);
+                if (failed.isEmpty()) {
+                    failed = new ArrayList<>();
+                }
+                failed.add(next);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Reports queries that were accepted, but that will not be started. Must be invoked without holding the lock on
+     * this instance, as the callbacks typically send a response to the requesting entity.
+     */
+    private void rejected(@Nonnull final List<Query> queries)
+    {
+        for (final Query query : queries) {
+            rejected.incrementAndGet();
+            try {
+                query.onRejected.run();
+            } catch (RuntimeException e) {
+                Log.error("An unexpected exception occurred while rejecting an archive query of '{}'.", query.requestor, e);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the first queued query of the first entity that has not reached its limit of concurrent
+     * queries. That entity is moved to the end of the line.
+     */
+    private Query pollNext()
+    {
+        final int maxPerUser = maxConcurrentPerUser.get();
+        final Iterator<Map.Entry<String, Deque<Query>>> iterator = queued.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Deque<Query>> entry = iterator.next();
+            if (running.getOrDefault(entry.getKey(), 0) >= maxPerUser) {
+                continue;
+            }
+            iterator.remove();
+            final Query query = entry.getValue().poll();
+            if (!entry.getValue().isEmpty()) {
+                queued.put(entry.getKey(), entry.getValue());
+            }
+            totalQueued--;
+            return query;
+        }
+        return null;
+    }
+
+    private void execute(@Nonnull final Query query)
+    {
+        final long start = System.nanoTime();
+        queueTimeTotal.addAndGet(TimeUnit.NANOSECONDS.toMillis(start - query.queuedAt));
+        queueTimeCount.incrementAndGet();
+        try {
+            query.task.run();
+        } catch (RuntimeException e) {
+            Log.error("An unexpected exception occurred while processing an archive query of '{}'.", query.requestor, e);
+        } finally {
+            runTimeTotal.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            runTimeCount.incrementAndGet();
+            final List<Query> failed;
+            synchronized (this) {
+                finished(query.requestor);
+                failed = dispatch();
+            }
+            rejected(failed);
+        }
+    }
+
+    /**
+     * Records that a query is no longer being processed. Must be invoked while holding the lock on this instance.
+     */
+    private void finished(@Nonnull final String requestor)
+    {
+        totalRunning--;
+        running.computeIfPresent(requestor, (k, v) -> v <= 1 ? null : v - 1);
+    }
+
+    /**
+     * Returns the average of the measurements that were recorded since the previous invocation.
+     */
+    private static double average(@Nonnull final AtomicLong total, @Nonnull final AtomicLong count)
+    {
+        final long amount = count.getAndSet(0);
+        final long sum = total.getAndSet(0);
+        return amount == 0 ? 0 : (double) sum / amount;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task, or returns null if the JVM does not support
+     * virtual threads. Reflection is used as the plugin can be compiled for, and run on, Java versions that predate
+     * virtual threads.
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.debug("Unable to create an executor that uses virtual threads.", e);
+            return null;
+        }
+    }
+
+    private static final class Query
+    {
+        private final String requestor;
+        private final Runnable task;
+        private final Runnable onRejected;
+        private final long queuedAt = System.nanoTime();
+
+        private Query(@Nonnull final String requestor, @Nonnull final Runnable task, @Nonnull final Runnable onRejected)
+        {
+            this.requestor = requestor;
+            this.task = task;
+            this.onRejected = onRejected;
+        }
+    }
+
+    private abstract static class QueryStatistic extends i18nStatistic
+    {
+        QueryStatistic(String resourceKey)
+        {
+            super(resourceKey, MonitoringConstants.NAME, Type.amount);
+        }
+
+        public boolean isPartialSample()
+        {
+            return false;
+        }
+
+        @Override
+        public RepresentationSemantics getRepresentationSemantics()
+        {
+            return RepresentationSemantics.SNAPSHOT;
+        }
+    }
+}
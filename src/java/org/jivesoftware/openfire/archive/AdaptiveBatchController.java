@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+
+/**
+ * Determines the batch size and flush timing of an archiver, based on the time that it takes to store a batch, and on
+ * whether data is waiting to be stored.
+ *
+ * <ul>
+ *     <li>The batch size grows while data is waiting and batches are stored within the target latency. It shrinks
+ *     when storing a batch takes longer than the target latency.</li>
+ *     <li>The grace period (the time that an archiver waits for more data before storing a batch) grows when batches
+ *     are small, to avoid storing many tiny batches. It shrinks while data is waiting, as there is nothing to wait
+ *     for.</li>
+ *     <li>The maximum purge interval (the maximum time between two batches) grows when storing batches takes longer
+ *     than the target latency, and shrinks back when the database has plenty of headroom.</li>
+ * </ul>
+ *
+ * All values are kept within their bounds. Instances of this class are thread-safe.
+ */
+final class AdaptiveBatchController
+{
+    /**
+     * The weight of a new observation in the moving average of the latency.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final Bounds bounds;
+    private int batchSize;
+    private Duration gracePeriod;
+    private Duration purgeInterval;
+    private double latencyMillis = -1;
+
+    AdaptiveBatchController( @Nonnull final Bounds bounds, final int batchSize, @Nonnull final Duration gracePeriod, @Nonnull final Duration purgeInterval )
+    {
+        this.bounds = bounds;
+        this.batchSize = clamp( batchSize, bounds.minBatchSize, bounds.maxBatchSize );
+        this.gracePeriod = clamp( gracePeriod, bounds.minGracePeriod, bounds.maxGracePeriod );
+        this.purgeInterval = clamp( purgeInterval, bounds.minPurgeInterval, bounds.maxPurgeInterval );
+    }
+
+    /**
+     * Processes the outcome of storing a batch, and adjusts the settings accordingly.
+     *
+     * @param rows the amount of elements in the batch that was stored.
+     * @param latency the time it took to store the batch (cannot be null).
+     * @param backlog the amount of elements that are known to be waiting to be handed to the archiver.
+     * @param targetLatency the time that storing one batch should take at most (cannot be null).
+     * @return true if any of the settings changed.
+     */
+    synchronized boolean observe( final int rows, @Nonnull final Duration latency, final long backlog, @Nonnull final Duration targetLatency )
+    {
+        final double observed = latency.toNanos() / 1_000_000.0;
+        latencyMillis = latencyMillis < 0 ? observed : SMOOTHING * observed + (1 - SMOOTHING) * latencyMillis;
+
+        final int oldBatchSize = batchSize;
+        final Duration oldGracePeriod = gracePeriod;
+        final Duration oldPurgeInterval = purgeInterval;
+
+        final double target = targetLatency.toMillis();
+        final boolean waiting = rows >= batchSize || backlog > 0;
+        if ( latencyMillis > target )
+        {
+            batchSize = clamp( batchSize * 3 / 4, bounds.minBatchSize, bounds.maxBatchSize );
+            purgeInterval = clamp( purgeInterval.multipliedBy( 3 ).dividedBy( 2 ), bounds.minPurgeInterval, bounds.maxPurgeInterval );
+        }
+        else
+        {
+            if ( waiting )
+            {
+                batchSize = clamp( Math.max( batchSize + 1, batchSize * 3 / 2 ), bounds.minBatchSize, bounds.maxBatchSize );
+            }
+            if ( latencyMillis < target / 2 )
+            {
+                purgeInterval = clamp( purgeInterval.multipliedBy( 9 ).dividedBy( 10 ), bounds.minPurgeInterval, bounds.maxPurgeInterval );
+            }
+        }
+
+        if ( waiting )
+        {
+            gracePeriod = clamp( gracePeriod.dividedBy( 2 ), bounds.minGracePeriod, bounds.maxGracePeriod );
+        }
+        else if ( rows < batchSize / 10 && latencyMillis <= target )
+        {
+            gracePeriod = clamp( gracePeriod.isZero() ? Duration.ofMillis( 1 ) : gracePeriod.multipliedBy( 2 ), bounds.minGracePeriod, bounds.maxGracePeriod );
+        }
+
+        return batchSize != oldBatchSize || !gracePeriod.equals( oldGracePeriod ) || !purgeInterval.equals( oldPurgeInterval );
+    }
+
+    synchronized int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    @Nonnull
+    synchronized Duration getGracePeriod()
+    {
+        return gracePeriod;
+    }
+
+    @Nonnull
+    synchronized Duration getPurgeInterval()
+    {
+        return purgeInterval;
+    }
+
+    /**
+     * Returns the moving average of the time it took to store a batch.
+     *
+     * @return a duration (never null).
+     */
+    @Nonnull
+    synchronized Duration getLatency()
+    {
+        return Duration.ofNanos( (long) (Math.max( 0, latencyMillis ) * 1_000_000) );
+    }
+
+    private static int clamp( final int value, final int min, final int max )
+    {
+        return Math.max( min, Math.min( max, value ) );
+    }
+
+    private static Duration clamp( final Duration value, final Duration min, final Duration max )
+    {
+        if ( value.compareTo( min ) < 0 )
+        {
+            return min;
+        }
+        return value.compareTo( max ) > 0 ? max : value;
+    }
+
+    /**
+     * The bounds within which an {@link AdaptiveBatchController} keeps its settings.
+     */
+    static final class Bounds
+    {
+        private final int minBatchSize;
+        private final int maxBatchSize;
+        private final Duration minGracePeriod;
+        private final Duration maxGracePeriod;
+        private final Duration minPurgeInterval;
+        private final Duration maxPurgeInterval;
+
+        Bounds( final int minBatchSize, final int maxBatchSize,
+                @Nonnull final Duration minGracePeriod, @Nonnull final Duration maxGracePeriod,
+                @Nonnull final Duration minPurgeInterval, @Nonnull final Duration maxPurgeInterval )
+        {
+            this.minBatchSize = Math.max( 1, Math.min( minBatchSize, maxBatchSize ) );
+            this.maxBatchSize = Math.max( this.minBatchSize, maxBatchSize );
+            this.minGracePeriod = minGracePeriod.compareTo( maxGracePeriod ) <= 0 ? minGracePeriod : maxGracePeriod;
+            this.maxGracePeriod = maxGracePeriod;
+            this.minPurgeInterval = minPurgeInterval.compareTo( maxPurgeInterval ) <= 0 ? minPurgeInterval : maxPurgeInterval;
+            this.maxPurgeInterval = maxPurgeInterval;
+        }
+    }
+}
@@ -18,22 +18,29 @@ package org.jivesoftware.openfire.archive;
 
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.util.BytesRef;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.reporting.util.TaskEngine;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.SystemProperty;
 import org.xmpp.packet.JID;
 
-import java.io.File;
+import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Indexes archived conversations. If conversation archiving is not enabled,
@@ -43,15 +50,39 @@ import java.util.*;
  * interval is controlled by the System Property "conversation.search.updateInterval" and
  * the default value is 15 minutes.
  *
+ * A conversation is indexed as one or more documents, that each hold the text of a consecutive part of its messages.
+ * Updates add documents for the messages that were archived since the previous update, without re-reading the
+ * messages that were indexed before. Searches collapse the documents of a conversation into one result.
+ *
  * @see ArchiveSearcher
  * @author Matt Tucker
  */
 public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexer
 {
-    private static final String ALL_CONVERSATIONS = "SELECT conversationID, isExternal FROM ofConversation";
-    private static final String NEW_CONVERSATIONS = "SELECT DISTINCT conversationID FROM ofMessageArchive WHERE sentDate > ?";
-    private static final String CONVERSATION_METADATA = "SELECT isExternal FROM ofConversation WHERE conversationID=?";
-    private static final String CONVERSATION_MESSAGES = "SELECT conversationID, sentDate, fromJID, toJID, body FROM ofMessageArchive WHERE conversationID IN ? ORDER BY conversationID";
+    private static final String ALL_CONVERSATIONS = "SELECT conversationID, isExternal, startDate FROM ofConversation";
+    private static final String NEW_CONVERSATIONS = "SELECT DISTINCT conversationID FROM ofMessageArchive WHERE sentDate > ? AND sentDate <= ?";
+    private static final String CONVERSATION_METADATA = "SELECT conversationID, isExternal, startDate FROM ofConversation WHERE conversationID IN ";
+    private static final String CONVERSATION_MESSAGES = "SELECT conversationID, sentDate, fromJID, toJID, body FROM ofMessageArchive WHERE conversationID IN ";
+    private static final String MESSAGES_ORDER = " ORDER BY conversationID, sentDate";
+    private static final String MESSAGES_IN_PERIOD = " AND sentDate > ? AND sentDate <= ?";
+
+    /**
+     * The amount of conversations that are processed by a single query.
+     */
+    private static final int OP_SIZE = 250;
+
+    /**
+     * The maximum duration that an update waits for messages that are being archived to be stored in the database.
+     */
+    private static final Duration ARCHIVE_WAIT = Duration.ofSeconds(10);
+
+    public static final SystemProperty<Integer> MESSAGES_PER_DOCUMENT = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.messages-per-document")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
 
     private ConversationManager conversationManager;
 
@@ -59,12 +90,18 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
      * The version of the structure that is stored in the Lucene index. When this value differs from the value that is
      * stored in a file with the index, then upon restart, an automatic re-indexation will occur.
      */
-    public static final int SCHEMA_VERSION = 1;
+    public static final int SCHEMA_VERSION = 4;
 
     /**
      * A collection of conversations that are to be removed from the index during the next update or rebuild operation.
      */
-    private final Set<Long> conversationsPendingDeletion = new HashSet<>();
+    private final Set<Long> conversationsPendingDeletion = ConcurrentHashMap.newKeySet();
+
+    /**
+     * When non-null, the next update operation is to index messages sent after this instant, even if the index has
+     * been updated beyond that point. This is used to index messages that were archived after newer messages.
+     */
+    private final AtomicReference<Instant> catchUpFrom = new AtomicReference<>();
 
     /**
      * Constructs a new archive indexer.
@@ -94,9 +131,23 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
         conversationsPendingDeletion.addAll(conversations);
     }
 
+    /**
+     * Causes the next update to index messages that were sent after the provided instant, even if the index has been
+     * updated beyond that point. Messages are searched for by conversation, which makes indexing messages again harmless.
+     *
+     * @param instant the (exclusive) date after which messages are to be indexed (cannot be null).
+     */
+    public void catchUp(@Nonnull final Instant instant)
+    {
+        catchUpFrom.accumulateAndGet(instant, (current, update) -> current == null || update.isBefore(current) ? update : current);
+    }
+
     /**
      * Updates the index with all new conversation data since the last index update.
      *
+     * Documents are added for the messages that were sent after the last index update. Messages that were indexed
+     * before are not processed again.
+     *
      * @param writer The instance used to modify the index data (cannot be null).
      * @param lastModified The date up until the index has been updated (cannot be null)
      * @return the date of the up until the index has been updated after processing (never null).
@@ -104,34 +155,64 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
     @Override
     protected Instant doUpdateIndex( final IndexWriter writer, Instant lastModified) throws IOException
     {
+        // Remove conversations that are scheduled to be deleted.
+        final Set<Long> pendingDeletion = new HashSet<>(conversationsPendingDeletion);
+        conversationsPendingDeletion.removeAll(pendingDeletion);
+        if (!pendingDeletion.isEmpty()) {
+            Log.debug("... deleting {} conversations from the index.", pendingDeletion.size());
+            final long[] toDelete = pendingDeletion.stream().mapToLong(Long::longValue).toArray();
+            writer.deleteDocuments(LongPoint.newSetQuery("conversationID", toDelete));
+        }
+
         // Do nothing if archiving is disabled.
         if (!conversationManager.isArchivingEnabled()) {
             return lastModified;
         }
 
-        // Find all conversations that have changed since the last index run.
-        final List<Long> conversationIDs = findModifiedConversations(lastModified);
-
-        if (conversationIDs.isEmpty()) {
+        // Messages are not re-read after they have been indexed. Wait for messages that were sent up until now to
+        // have been stored, to avoid indexing past messages that are still being archived. When they are not stored in
+        // time, this update is skipped: the next update indexes them.
+        final Instant until = Instant.now();
+        final CompletableFuture<Void> archived = conversationManager.whenArchived(until);
+        try {
+            archived.get(ARCHIVE_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | ExecutionException e) {
+            Log.debug("... messages that are being archived were not stored within {}. Postponing the update.", ARCHIVE_WAIT);
+            archived.cancel(false);
+            return lastModified;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            archived.cancel(false);
             return lastModified;
         }
 
-        // Load meta-data for each conversation that needs updating.
-        final SortedMap<Long, Boolean> externalMetaData = extractMetaData(conversationIDs);
+        // Find all conversations that have changed since the last index run, or since messages were archived late.
+        // When any part of this fails, the modification date is not advanced (the exception causes the caller not to
+        // do so), which causes the next update to index the same period again.
+        final Instant catchUp = catchUpFrom.getAndSet(null);
+        final Instant since = catchUp != null && catchUp.isBefore(lastModified) ? catchUp : lastModified;
+        final Instant newestDate;
+        try {
+            final List<Long> conversationIDs = findModifiedConversations(since, until);
+            if (conversationIDs.isEmpty()) {
+                return lastModified;
+            }
 
-        // Add those conversations that are scheduled to be deleted.
-        conversationIDs.addAll(conversationsPendingDeletion);
-        conversationsPendingDeletion.clear();
+            // Load meta-data for each conversation that needs updating.
+            final SortedMap<Long, Metadata> metadata = extractMetaData(conversationIDs);
 
-        // Delete any conversations found -- they may have already been indexed, but updated since then.
-        Log.debug("... deleting all to-be-updated conversations from the index.");
-        for (long conversationID : conversationIDs) {
-            writer.deleteDocuments(new Term("conversationID", Long.toString(conversationID)));
+            // Now index the new messages of the conversations.
+            Log.debug("... started to index new messages of conversations to update the Lucene index.");
+            newestDate = indexConversations(metadata, writer, false, since, until);
+        }
+        catch (IOException e) {
+            if (catchUp != null) {
+                catchUp(catchUp);
+            }
+            throw e;
         }
-
-        // Now index all the new conversations.
-        Log.debug("... started to index conversations to update the Lucene index.");
-        final Instant newestDate = indexConversations(externalMetaData, writer, false);
 
         // Done indexing so store a last modified date.
         if (newestDate.isAfter(lastModified)) {
@@ -155,7 +236,7 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
             return Instant.EPOCH;
         }
 
-        final SortedMap<Long, Boolean> conversationMetadata = findAllConversations();
+        final SortedMap<Long, Metadata> conversationMetadata = findAllConversations();
 
         // Correct for conversations that are scheduled to be removed.
         conversationsPendingDeletion.forEach(conversationMetadata::remove);
@@ -168,7 +249,7 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
 
         // Index the conversations.
         Log.debug("... started to index conversations to rebuild the Lucene index.");
-        final Instant newestDate = indexConversations(conversationMetadata, writer, true);
+        final Instant newestDate = indexConversations(conversationMetadata, writer, true, null, null);
         Log.debug("... finished indexing conversations to rebuild the Lucene index..");
         return newestDate;
     }
@@ -176,14 +257,14 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
     /**
      * Returns all identifiers of conversations in the system.
      *
-     * The returned collection maps the conversation identifier to a boolean, that indicates if the conversation is
-     * 'external'
+     * The returned collection maps the conversation identifier to its metadata.
      *
      * @return a map that contains conversation identifiers and metadata. Possibly empty, never null.
+     * @throws IOException when the conversations cannot be read from the database.
      */
-    private SortedMap<Long, Boolean> findAllConversations()
+    private SortedMap<Long, Metadata> findAllConversations() throws IOException
     {
-        SortedMap<Long, Boolean> externalMetaData = new TreeMap<>();
+        SortedMap<Long, Metadata> metadata = new TreeMap<>();
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -194,25 +275,27 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
 
             while (rs.next()) {
                 long conversationID = rs.getLong(1);
-                externalMetaData.put(conversationID, rs.getInt(2) == 1);
+                metadata.put(conversationID, new Metadata(rs.getInt(2) == 1, Instant.ofEpochMilli(rs.getLong(3))));
             }
         }
         catch (SQLException sqle) {
-            Log.error("An exception occurred while trying to fetch all conversations from the database to rebuild the Lucene index.", sqle);
+            throw new IOException("An exception occurred while trying to fetch all conversations from the database to rebuild the Lucene index.", sqle);
         }
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
-        return externalMetaData;
+        return metadata;
     }
 
     /**
-     * Finds conversations that are modified after the specified date.
+     * Finds conversations that have messages that were sent in the specified period.
      *
-     * @param lastModified The date that marks the beginning of the period for which to return conversations. Cannot be null.
+     * @param lastModified The (exclusive) beginning of the period for which to return conversations. Cannot be null.
+     * @param until The (inclusive) end of the period for which to return conversations. Cannot be null.
      * @return A list of conversation identifiers (never null, possibly empty).
+     * @throws IOException when the conversations cannot be read from the database.
      */
-    private List<Long> findModifiedConversations( final Instant lastModified )
+    private List<Long> findModifiedConversations( final Instant lastModified, final Instant until ) throws IOException
     {
         Log.debug("... finding all conversations modified since: {}", lastModified);
         final List<Long> results = new ArrayList<>();
@@ -223,13 +306,14 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(NEW_CONVERSATIONS);
             pstmt.setLong(1, lastModified.toEpochMilli());
+            pstmt.setLong(2, until.toEpochMilli());
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 results.add(rs.getLong(1));
             }
         }
         catch ( SQLException sqle) {
-            Log.error("An exception occurred while trying to fetch new/updated conversations from the database to update the Lucene index.", sqle);
+            throw new IOException("An exception occurred while trying to fetch new/updated conversations from the database to update the Lucene index.", sqle);
         }
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
@@ -239,34 +323,34 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
     }
 
     /**
-     * Returns metadata for a specific list of conversations.
+     * Returns metadata for a specific list of conversations, using one query per {@value #OP_SIZE} conversations.
      *
-     * The returned collection maps the conversation identifier to a boolean, that indicates if the conversation is
-     * 'external'
+     * The returned collection maps the conversation identifier to its metadata.
      *
      * @param conversationIDs A list of identifiers for conversations to be included in the result cannot be null.
      * @return a map that contains conversation identifiers and metadata. Possibly empty, never null.
+     * @throws IOException when the metadata of any of the conversations cannot be read from the database.
      */
-    private SortedMap<Long, Boolean> extractMetaData( final List<Long> conversationIDs )
+    private SortedMap<Long, Metadata> extractMetaData( final List<Long> conversationIDs ) throws IOException
     {
         Log.debug("... loading meta-data for all to-be-updated conversations.");
-        final SortedMap<Long, Boolean> results = new TreeMap<>();
+        final SortedMap<Long, Metadata> results = new TreeMap<>();
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        for (long conversationID : conversationIDs) {
+        for (int start = 0; start < conversationIDs.size(); start += OP_SIZE) {
+            final List<Long> chunk = conversationIDs.subList(start, Math.min(start + OP_SIZE, conversationIDs.size()));
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
             try {
                 con = DbConnectionManager.getConnection();
-                pstmt = con.prepareStatement(CONVERSATION_METADATA);
-                pstmt.setLong(1, conversationID);
+                pstmt = con.prepareStatement(CONVERSATION_METADATA + toInList(chunk));
                 rs = pstmt.executeQuery();
                 while (rs.next()) {
-                    results.put(conversationID, rs.getInt(1) == 1);
+                    results.put(rs.getLong(1), new Metadata(rs.getInt(2) == 1, Instant.ofEpochMilli(rs.getLong(3))));
                 }
             }
             catch ( SQLException sqle) {
-                Log.error("An exception occurred while trying to load metadata for conversations to be updated in the Lucene index.", sqle);
+                throw new IOException("An exception occurred while trying to load metadata for conversations to be updated in the Lucene index.", sqle);
             }
             finally {
                 DbConnectionManager.closeConnection(rs, pstmt, con);
@@ -276,104 +360,90 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
     }
 
     /**
-     * Indexes a set of conversations. Each conversation is stored as a single Lucene document
-     * by appending message bodies together. The date of the newest message indexed is
-     * returned, or -1 if no conversations are indexed.
+     * Indexes messages of a set of conversations. The messages of each conversation are stored in one or more Lucene
+     * documents, each holding the appended bodies of at most {@link #MESSAGES_PER_DOCUMENT} messages. The date of the
+     * newest message indexed is returned, or EPOCH if no messages are indexed.
      *
-     * @param conversations meta-data about whether each conversation involves a participant on
-     *      an external server.
+     * @param conversations meta-data of each conversation.
      * @param writer an IndexWriter to add the documents to.
      * @param indexRebuild true if this is an index rebuild operation.
-     * @return the date of the newest message archived, or null if no messages were archived.
+     * @param since the (exclusive) date after which messages are to be indexed, or null to index all messages.
+     * @param until the (inclusive) date up until which messages are to be indexed, or null to index all messages.
+     * @return the date of the newest message indexed, or EPOCH if no messages were indexed.
+     * @throws IOException when the messages of any of the conversations cannot be read, or cannot be indexed.
      */
-    private Instant indexConversations(SortedMap<Long, Boolean> conversations, IndexWriter writer, boolean indexRebuild) throws IOException
+    private Instant indexConversations(SortedMap<Long, Metadata> conversations, IndexWriter writer, boolean indexRebuild, Instant since, Instant until) throws IOException
     {
         if (conversations.isEmpty()) {
             return Instant.EPOCH;
         }
 
         final List<Long> conversationIDs = new ArrayList<>(conversations.keySet());
-
-        // Keep track of how many conversations we index for index rebuild stats.
-        int indexedConversations = 0;
+        final int messagesPerDocument = MESSAGES_PER_DOCUMENT.getValue();
 
         Instant newestDate = Instant.EPOCH;
-        // Index 250 items at a time.
-        final int OP_SIZE = 250;
-        int n = ((conversationIDs.size() - 1) / OP_SIZE);
-        if (n == 0) {
-            n = 1;
-        }
-        for (int i = 0; i < n; i++) {
-            StringBuilder inSQL = new StringBuilder();
-            inSQL.append(" (");
-            int start = i * OP_SIZE;
-            int end = Math.min(start + OP_SIZE, conversationIDs.size());
-            if (end > conversationIDs.size()) {
-                end = conversationIDs.size();
-            }
-            inSQL.append(conversationIDs.get(start));
-            for (int j = start + 1; j < end; j++) {
-                inSQL.append(", ").append(conversationIDs.get(j));
-            }
-            inSQL.append(")");
+        for (int start = 0; start < conversationIDs.size(); start += OP_SIZE) {
+            final List<Long> chunk = conversationIDs.subList(start, Math.min(start + OP_SIZE, conversationIDs.size()));
             // Get the messages.
             Connection con = null;
             PreparedStatement pstmt = null;
             ResultSet rs = null;
             try {
                 con = DbConnectionManager.getConnection();
-                pstmt = con.prepareStatement(CONVERSATION_MESSAGES.replaceAll("\\?", inSQL.toString()));
+                if (since == null) {
+                    pstmt = con.prepareStatement(CONVERSATION_MESSAGES + toInList(chunk) + MESSAGES_ORDER);
+                } else {
+                    pstmt = con.prepareStatement(CONVERSATION_MESSAGES + toInList(chunk) + MESSAGES_IN_PERIOD + MESSAGES_ORDER);
+                    pstmt.setLong(1, since.toEpochMilli());
+                    pstmt.setLong(2, until.toEpochMilli());
+                }
+                pstmt.setFetchSize(250);
                 rs = pstmt.executeQuery();
                 long conversationID = -1;
-                Instant date = Instant.EPOCH;
-                Set<JID> jids = null;
-                StringBuilder text = null;
-                // Loop through each message. Each conversation is a single document. So, as
-                // we find each conversation we save off the last chunk of content as a document.
+                final Set<JID> jids = new TreeSet<>();
+                final StringBuilder text = new StringBuilder();
+                int messages = 0;
+                // Loop through each message. As we find each conversation, or fill up a document, we save off the
+                // current chunk of content as a document.
                 while (rs.next()) {
                     long id = rs.getLong(1);
-                    if (id != conversationID) {
-                        if (conversationID != -1) {
+                    if (id != conversationID || messages == messagesPerDocument) {
+                        if (messages > 0) {
                             // Index the previously defined doc.
-                            boolean external = conversations.get(conversationID);
-                            indexDocument(writer, conversationID, external, date, jids, text.toString());
+                            indexDocument(writer, conversationID, conversations.get(conversationID), jids, text.toString());
                         }
-                        // Reset the variables to index the next conversation.
+                        // Reset the variables to index the next document.
                         conversationID = id;
-                        date = Instant.ofEpochMilli(rs.getLong(2));
-                        jids = new TreeSet<>();
-                        // Get the JID's. Each JID may be stored in full format. We convert to bare JID for indexing so that searching is possible.
-                        jids.add(new JID(rs.getString(3)).asBareJID());
-                        jids.add(new JID(rs.getString(4)).asBareJID());
-                        text = new StringBuilder();
-                    }
-                    // Make sure that we record the earliest date of the conversation start for consistency.
-                    final Instant msgDate = Instant.ofEpochMilli(rs.getLong(2));
-                    if (msgDate.isBefore(date)) {
-                        date = msgDate;
+                        jids.clear();
+                        text.setLength(0);
+                        messages = 0;
                     }
                     // See if this is the newest message found so far.
+                    final Instant msgDate = Instant.ofEpochMilli(rs.getLong(2));
                     if (msgDate.isAfter(newestDate)) {
                         newestDate = msgDate;
                     }
+                    // Get the JID's. Each JID may be stored in full format. We convert to bare JID for indexing so that searching is possible.
+                    addBareJID(jids, rs.getString(3));
+                    addBareJID(jids, rs.getString(4));
                     // Add the body of the current message to the buffer.
-                    text.append(DbConnectionManager.getLargeTextField(rs, 5)).append("\n");
+                    final String body = DbConnectionManager.getLargeTextField(rs, 5);
+                    if (body != null) {
+                        text.append(body).append("\n");
+                    }
+                    messages++;
                 }
                 // Finally, index the last document found.
-                if (conversationID != -1) {
-                    // Index the previously defined doc.
-                    boolean external = conversations.get(conversationID);
-                    indexDocument(writer, conversationID, external, date, jids, text.toString());
+                if (messages > 0) {
+                    indexDocument(writer, conversationID, conversations.get(conversationID), jids, text.toString());
                 }
                 // If this is an index rebuild, we need to track the percentage done.
                 if (indexRebuild) {
-                    indexedConversations++;
-                    rebuildFuture.setPercentageDone(indexedConversations/conversationIDs.size());
+                    rebuildFuture.setPercentageDone((int) ((start + chunk.size()) * 100L / conversationIDs.size()));
                 }
             }
             catch (SQLException sqle) {
-                Log.error("An exception occurred while indexing conversations.", sqle);
+                throw new IOException("An exception occurred while indexing conversations.", sqle);
             }
             finally {
                 DbConnectionManager.closeConnection(rs, pstmt, con);
@@ -382,27 +452,82 @@ public class ArchiveIndexer extends org.jivesoftware.openfire.index.LuceneIndexe
         return newestDate;
     }
 
+    private static String toInList(final List<Long> conversationIDs)
+    {
+        final StringBuilder inSQL = new StringBuilder(conversationIDs.size() * 8);
+        inSQL.append('(');
+        for (int i = 0; i < conversationIDs.size(); i++) {
+            if (i > 0) {
+                inSQL.append(", ");
+            }
+            inSQL.append(conversationIDs.get(i).longValue());
+        }
+        inSQL.append(')');
+        return inSQL.toString();
+    }
+
+    private void addBareJID(final Set<JID> jids, final String value)
+    {
+        if (value == null) {
+            return;
+        }
+        try {
+            jids.add(new JID(value).asBareJID());
+        }
+        catch (IllegalArgumentException e) {
+            Log.debug("Unable to parse '{}' as a JID. It is not indexed.", value, e);
+        }
+    }
+
     /**
-     * Indexes a single conversation.
+     * Indexes (part of) a single conversation.
      *
      * @param writer the index modifier.
      * @param conversationID the ID of the conversation to index.
-     * @param external true if the conversation has a participant from an external server.
-     * @param date the date the conversation was started.
-     * @param jids the JIDs of the users in the conversation.
-     * @param text the full text of the conversation.
+     * @param metadata the metadata of the conversation.
+     * @param jids the JIDs of the users that exchanged the messages.
+     * @param text the text of the messages.
      * @throws IOException if an IOException occurs.
      */
-    private void indexDocument(IndexWriter writer, long conversationID, boolean external, Instant date, Set<JID> jids, String text) throws IOException
+    private void indexDocument(IndexWriter writer, long conversationID, Metadata metadata, Set<JID> jids, String text) throws IOException
     {
+        if (metadata == null) {
+            // The conversation was removed after its messages were found.
+            return;
+        }
         final Document document = new Document();
         document.add(new StoredField("conversationID", conversationID ) );
-        document.add(new StringField("external", String.valueOf(external), Field.Store.NO));
-        document.add(new NumericDocValuesField("date", date.toEpochMilli()));
+        document.add(new LongPoint("conversationID", conversationID ) );
+        document.add(new NumericDocValuesField("conversationID", conversationID ) );
+        document.add(new StringField("external", String.valueOf(metadata.external), Field.Store.NO));
+        document.add(new LongPoint("date", metadata.startDate.toEpochMilli()));
+        document.add(new NumericDocValuesField("date", metadata.startDate.toEpochMilli()));
         for (JID jid : jids) {
             document.add(new StringField("jid", jid.toBareJID(), Field.Store.NO));
         }
         document.add(new TextField("text", text, Field.Store.NO));
         writer.addDocument(document);
     }
+
+    /**
+     * The metadata of a conversation that is stored with each of its documents.
+     */
+    private static final class Metadata
+    {
+        /**
+         * true if the conversation has a participant from an external server.
+         */
+        private final boolean external;
+
+        /**
+         * the date the conversation was started.
+         */
+        private final Instant startDate;
+
+        private Metadata(final boolean external, final Instant startDate)
+        {
+            this.external = external;
+            this.startDate = startDate;
+        }
+    }
 }
@@ -23,12 +23,15 @@ import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.SystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.Date;
 
 /**
@@ -45,7 +48,30 @@ import java.util.Date;
  */
 public class ArchiveInterceptor implements PacketInterceptor {
 
+    /**
+     * The duration for which the outcome of evaluating the default privacy list of a recipient against a sender is
+     * reused.
+     */
+    public static final SystemProperty<Duration> PRIVACY_DECISION_TTL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.privacy-decision-cache.ttl")
+        .setDefaultValue(Duration.ofMinutes(5))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * The maximum amount of recipients for which privacy list decisions are cached.
+     */
+    private static final int PRIVACY_DECISION_MAX_OWNERS = 10000;
+
+    /**
+     * The maximum amount of senders for which privacy list decisions are cached, per recipient.
+     */
+    private static final int PRIVACY_DECISION_MAX_PEERS = 1000;
+
     private ConversationManager conversationManager;
+    private final PrivacyDecisionCache privacyDecisions = new PrivacyDecisionCache(PRIVACY_DECISION_TTL.getValue(), PRIVACY_DECISION_MAX_OWNERS, PRIVACY_DECISION_MAX_PEERS);
     private static final Logger Log = LoggerFactory.getLogger(ArchiveInterceptor.class);
 
     public ArchiveInterceptor(ConversationManager conversationManager) {
@@ -55,57 +81,72 @@ public class ArchiveInterceptor implements PacketInterceptor {
     public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed)
             throws PacketRejectedException
     {
-        // Ignore any packets that haven't already been processed by interceptors.
-        if (!processed) {
+        // Ignore any packets that haven't already been processed by interceptors, and any outgoing messages (we'll
+        // catch them when they're incoming).
+        if (!processed || !incoming || !(packet instanceof Message)) {
+            return;
+        }
+        final Message message = (Message) packet;
+        // Ignore any messages that don't have a body so that we skip events.
+        // Note: XHTML messages should always include a body so we should be ok. It's
+        // possible that we may need special XHTML filtering in the future, however.
+        if (message.getBody() == null) {
+            return;
+        }
+        // Only process messages that are between two users, group chat rooms, or gateways.
+        if (!conversationManager.isConversation(message)) {
+            return;
+        }
+        final JID sender = message.getFrom();
+        final JID receiver = message.getTo();
+        //take care on blocklist
+        if (receiver != null && receiver.getNode() != null && sender != null && isBlocked(receiver.getNode(), sender, message)) {
+            Log.debug( "Not storing message, as it is rejected by the default privacy list of the recipient ({}).", receiver.getNode() );
             return;
         }
-        if (packet instanceof Message) {
-            // Ignore any outgoing messages (we'll catch them when they're incoming).
-            if (!incoming) {
-                return;
-            }
-            Message message = (Message) packet;
-            // Ignore any messages that don't have a body so that we skip events.
-            // Note: XHTML messages should always include a body so we should be ok. It's
-            // possible that we may need special XHTML filtering in the future, however.
-            if (message.getBody() != null) {
-                // Only process messages that are between two users, group chat rooms, or gateways.
-                if (conversationManager.isConversation(message)) {
-                    //take care on blocklist
-                    JID to = message.getTo();
-                    if (to!=null)
-                    {
-                        final PrivacyList defaultPrivacyList = PrivacyListManager.getInstance().getDefaultPrivacyList(to.getNode());
-                        if (defaultPrivacyList!=null&&defaultPrivacyList.shouldBlockPacket(message)) {
-                            Log.debug( "Not storing message, as it is rejected by the default privacy list of the recipient ({}).", to.getNode() );
-                            return;
-                        }
-                    }
-                    // Process this event in the senior cluster member or local JVM when not in a cluster
-                    if (ClusterManager.isSeniorClusterMember()) {
-                        conversationManager.processMessage(message.getFrom(), message.getTo(), message.getBody(), message.toXML(), new Date());
-                    }
-                    else {
-                        JID sender = message.getFrom();
-                        JID receiver = message.getTo();
-                        ConversationEventsQueue eventsQueue = conversationManager.getConversationEventsQueue();
-                        eventsQueue.addChatEvent(conversationManager.getConversationKey(sender, receiver),
-                                ConversationEvent.chatMessageReceived(sender, receiver,
-                                        conversationManager.isMessageArchivingEnabled() ? message.getBody() : null,
-                                        conversationManager.isMessageArchivingEnabled() ? message.toXML() : null,
-                                        new Date()));
-                    }
-                }
-            }
+        // Process this event in the senior cluster member or local JVM when not in a cluster
+        if (ClusterManager.isSeniorClusterMember()) {
+            // The stanza is serialized on this thread: the message is routed (and possibly modified) after this
+            // interceptor returns, which makes it unsafe to serialize later, on the thread that stores it.
+            conversationManager.processMessage(sender, receiver, message.getBody(),
+                    conversationManager.isMessageArchivingEnabled() ? message.toXML() : null,
+                    new Date());
         }
+        else {
+            ConversationEventsQueue eventsQueue = conversationManager.getConversationEventsQueue();
+            eventsQueue.addChatEvent(conversationManager.getConversationKey(sender, receiver),
+                    ConversationEvent.chatMessageReceived(sender, receiver,
+                            conversationManager.isMessageArchivingEnabled() ? message.getBody() : null,
+                            conversationManager.isMessageArchivingEnabled() ? message.toXML() : null,
+                            new Date()));
+        }
+    }
+
+    /**
+     * Checks if the default privacy list of a local user blocks a message. Decisions are cached per recipient and
+     * sender.
+     *
+     * @param owner the username of the recipient of the message.
+     * @param sender the address of the sender of the message.
+     * @param message the message.
+     * @return true if the message is blocked.
+     */
+    private boolean isBlocked(String owner, JID sender, Message message) {
+        return privacyDecisions.isBlocked(owner, sender, () -> {
+            final PrivacyList defaultPrivacyList = PrivacyListManager.getInstance().getDefaultPrivacyList(owner);
+            return defaultPrivacyList != null && defaultPrivacyList.shouldBlockPacket(message);
+        });
     }
 
     public void start() {
+        PrivacyListManager.getInstance().addListener(privacyDecisions);
         InterceptorManager.getInstance().addInterceptor(this);
     }
 
     public void stop() {
         InterceptorManager.getInstance().removeInterceptor(this);
+        PrivacyListManager.getInstance().removeListener(privacyDecisions);
+        privacyDecisions.clear();
         conversationManager = null;
     }
 }
@@ -24,13 +24,16 @@ import java.sql.SQLException;
 import java.util.*;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.jivesoftware.database.CachedPreparedStatement;
 import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.index.LuceneIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -49,6 +52,8 @@ public class ArchiveSearcher {
 
     private static final Logger Log = LoggerFactory.getLogger(ArchiveSearch.class);
 
+    private static final Set<String> CONVERSATION_ID_FIELD = Collections.singleton("conversationID");
+
     private ConversationManager conversationManager;
     private ArchiveIndexer archiveIndexer;
 
@@ -97,8 +102,13 @@ public class ArchiveSearcher {
      */
     private Collection<Conversation> luceneSearch(ArchiveSearch search) {
         Log.debug( "Executing new Lucene search for query string {}", search.getQueryString() );
+        IndexSearcher searcher = null;
         try {
-            IndexSearcher searcher = archiveIndexer.getSearcher();
+            searcher = archiveIndexer.acquireSearcher();
+            if (searcher == null) {
+                Log.debug( "... the index is not available. Returning empty result." );
+                return Collections.emptyList();
+            }
 
             final StandardAnalyzer analyzer = new StandardAnalyzer();
 
@@ -129,7 +139,7 @@ public class ArchiveSearcher {
                 }
 
                 if (max != null || min != null) {
-                    final Query dateRangeQuery = NumericDocValuesField.newSlowRangeQuery("date", min != null ? min : Long.MIN_VALUE, max != null ? max : Long.MAX_VALUE);
+                    final Query dateRangeQuery = LuceneIndexer.newLongRangeQuery("date", min != null ? min : Long.MIN_VALUE, max != null ? max : Long.MAX_VALUE);
                     Log.debug( "... limiting to range: {}", dateRangeQuery );
                     query = new BooleanQuery.Builder()
                         .add(query, BooleanClause.Occur.MUST)
@@ -197,14 +207,39 @@ public class ArchiveSearcher {
                 return Collections.emptyList();
             }
 
-            TopDocs hits;
-            if ( sort != null ) {
-                hits = searcher.search(query, endIndex + 1, sort);
-            } else {
-                hits = searcher.search(query, endIndex + 1 );
+            // A conversation is indexed as one or more documents. Collect hits until the requested range of distinct
+            // conversations is found, or all hits have been processed.
+            final Set<Long> found = new LinkedHashSet<>();
+            int numHits = endIndex + 1;
+            while (true) {
+                final TopDocs hits;
+                if ( sort != null ) {
+                    hits = searcher.search(query, numHits, sort);
+                } else {
+                    hits = searcher.search(query, numHits );
+                }
+                found.clear();
+                for (final ScoreDoc scoreDoc : hits.scoreDocs) {
+                    try {
+                        found.add(Long.parseLong(searcher.doc(scoreDoc.doc, CONVERSATION_ID_FIELD).get("conversationID")));
+                    }
+                    catch (NumberFormatException e) {
+                        Log.error(e.getMessage(), e);
+                    }
+                    if (found.size() > endIndex) {
+                        break;
+                    }
+                }
+                if (found.size() > endIndex || hits.scoreDocs.length < numHits || numHits >= Integer.MAX_VALUE / 2) {
+                    break;
+                }
+                numHits *= 2;
             }
 
-            return new LuceneQueryResults(searcher, hits, startIndex, endIndex);
+            // Read the conversation IDs of the requested range now, as the searcher cannot be used after it has been released.
+            final List<Long> conversationIDs = new ArrayList<>(found).subList(Math.min(startIndex, found.size()), found.size());
+
+            return new LuceneQueryResults(conversationIDs, countConversations(searcher, query));
         }
         catch (ParseException pe) {
             Log.error(pe.getMessage(), pe);
@@ -214,6 +249,46 @@ public class ArchiveSearcher {
             Log.error(ioe.getMessage(), ioe);
             return Collections.emptySet();
         }
+        finally {
+            try {
+                archiveIndexer.releaseSearcher(searcher);
+            }
+            catch (IOException ioe) {
+                Log.warn("An exception occurred while releasing the Lucene index searcher.", ioe);
+            }
+        }
+    }
+
+    /**
+     * Counts the distinct conversations of all documents that match a query.
+     *
+     * @param searcher the searcher to use.
+     * @param query the query.
+     * @return the amount of conversations.
+     */
+    private static long countConversations(IndexSearcher searcher, Query query) throws IOException {
+        final Set<Long> conversationIDs = new HashSet<>();
+        searcher.search(query, new SimpleCollector() {
+            private NumericDocValues values;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                values = DocValues.getNumeric(context.reader(), "conversationID");
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                if (values.advanceExact(doc)) {
+                    conversationIDs.add(values.longValue());
+                }
+            }
+
+            @Override
+            public ScoreMode scoreMode() {
+                return ScoreMode.COMPLETE_NO_SCORES;
+            }
+        });
+        return conversationIDs.size();
     }
 
     /**
@@ -427,54 +502,7 @@ public class ArchiveSearcher {
 
         @Override
         public Iterator<Conversation> iterator() {
-            final Iterator<Long> convIterator = conversationIDs.iterator();
-            return new Iterator<Conversation>() {
-
-                private Conversation nextElement = null;
-
-                public boolean hasNext() {
-                    if (nextElement == null) {
-                        nextElement = getNextElement();
-                        return nextElement != null;
-                    }
-                    return true;
-                }
-
-                public Conversation next() {
-                    Conversation element;
-                    if (nextElement != null) {
-                        element = nextElement;
-                        nextElement = null;
-                    }
-                    else {
-                        element = getNextElement();
-                        if (element == null) {
-                            throw new NoSuchElementException();
-                        }
-                    }
-                    return element;
-                }
-
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-
-                private Conversation getNextElement() {
-                    if (!convIterator.hasNext()) {
-                        return null;
-                    }
-                    while (convIterator.hasNext()) {
-                        try {
-                            long conversationID = convIterator.next();
-                            return ConversationDAO.loadConversation(conversationID);
-                        }
-                        catch (Exception e) {
-                            Log.error(e.getMessage(), e);
-                        }
-                    }
-                    return null;
-                }
-            };
+            return new ConversationIterator(conversationIDs);
         }
 
         @Override
@@ -489,85 +517,80 @@ public class ArchiveSearcher {
      */
     private class LuceneQueryResults extends AbstractCollection<Conversation> {
 
-        private IndexSearcher searcher;
-        private TopDocs hits;
-        private int index;
-        private int endIndex;
+        private List<Long> conversationIDs;
+        private long totalHits;
 
         /**
          * Constructs a new query results object.
          *
-         * @param hits the search hits.
-         * @param startIndex the starting index that results should be returned from.
-         * @param endIndex the ending index that results should be returned to.
+         * @param conversationIDs the conversation IDs of the search hits in the requested range.
+         * @param totalHits the total amount of search hits.
          */
-        public LuceneQueryResults(IndexSearcher searcher, TopDocs hits, int startIndex, int endIndex) {
-            this.searcher = searcher;
-            this.hits = hits;
-            this.index = startIndex;
-            this.endIndex = endIndex;
+        public LuceneQueryResults(List<Long> conversationIDs, long totalHits) {
+            this.conversationIDs = conversationIDs;
+            this.totalHits = totalHits;
         }
 
         @Override
         public Iterator<Conversation> iterator() {
-            // Only use the range as specified.
-            final ScoreDoc[] scoreDocs = Arrays.copyOfRange( hits.scoreDocs, index, Math.min( endIndex + 1, hits.scoreDocs.length) );
-            final Iterator<ScoreDoc> hitsIterator = Arrays.asList(scoreDocs).iterator();
+            return new ConversationIterator(conversationIDs);
+        }
 
-            return new Iterator<Conversation>() {
+        @Override
+        public int size() {
+            // TODO the original implementation returned the size of all hits, not the size as delimitered by index and endIndex. Shouldn't that be returned instead?
+            return (int) totalHits;
+        }
+    }
 
-                private Conversation nextElement = null;
+    /**
+     * Iterates over conversations in the order of the provided IDs. Conversations are loaded in bulk, one block of IDs
+     * at a time, as the iteration advances. Conversations that cannot be loaded are skipped.
+     */
+    private static class ConversationIterator implements Iterator<Conversation> {
 
-                public boolean hasNext() {
-                    if (nextElement == null) {
-                        nextElement = getNextElement();
-                        return nextElement != null;
-                    }
-                    return true;
-                }
+        /**
+         * The amount of conversations that are loaded at once.
+         */
+        private static final int BLOCK_SIZE = 100;
 
-                public Conversation next() {
-                    Conversation element;
-                    if (nextElement != null) {
-                        element = nextElement;
-                        nextElement = null;
-                    }
-                    else {
-                        element = getNextElement();
-                        if (element == null) {
-                            throw new NoSuchElementException();
-                        }
-                    }
-                    return element;
-                }
+        private final List<Long> conversationIDs;
+        private final Deque<Conversation> loaded = new ArrayDeque<>();
+        private int position = 0;
 
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
+        private ConversationIterator(List<Long> conversationIDs) {
+            this.conversationIDs = conversationIDs;
+        }
 
-                private Conversation getNextElement() {
-                    if (!hitsIterator.hasNext()) {
-                        return null;
-                    }
-                    while (hitsIterator.hasNext()) {
-                        try {
-                            ScoreDoc hit = hitsIterator.next();
-                            long conversationID = Long.parseLong(searcher.doc(hit.doc).get("conversationID"));
-                            return ConversationDAO.loadConversation(conversationID);
-                        }
-                        catch (Exception e) {
-                            Log.error(e.getMessage(), e);
+        public boolean hasNext() {
+            while (loaded.isEmpty() && position < conversationIDs.size()) {
+                final List<Long> block = conversationIDs.subList(position, Math.min(conversationIDs.size(), position + BLOCK_SIZE));
+                position += block.size();
+                try {
+                    final Map<Long, Conversation> conversations = ConversationDAO.loadConversations(block);
+                    for (final Long conversationID : block) {
+                        final Conversation conversation = conversations.get(conversationID);
+                        if (conversation != null) {
+                            loaded.add(conversation);
                         }
                     }
-                    return null;
                 }
-            };
+                catch (Exception e) {
+                    Log.error(e.getMessage(), e);
+                }
+            }
+            return !loaded.isEmpty();
         }
 
-        @Override
-        public int size() {
-            // TODO the original implementation returned the size of all hits, not the size as delimitered by index and endIndex. Shouldn't that be returned instead?
-            return (int) hits.totalHits.value;
+        public Conversation next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return loaded.poll();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
     }
 }
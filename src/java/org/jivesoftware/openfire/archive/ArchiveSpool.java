@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, file-backed queue of data that is waiting to be archived.
+ *
+ * Data is stored in segment files of a fixed size, that are memory-mapped. Every element is written as one record:
+ * a length, a CRC-32 checksum, the time of appending and the encoded element. The length is written last, which marks
+ * the record as complete. The position up to which records have been stored in the database is recorded in the
+ * header of each segment. Segments of which all records have been stored are deleted.
+ *
+ * When a spool is opened, records that have not been stored are made available again, which allows data that was
+ * pending when the JVM stopped to be replayed. Incomplete records, or records that fail their checksum, mark the end
+ * of the data in a segment.
+ *
+ * Elements that cannot be stored, and records that cannot be decoded, can be moved to a quarantine file in the
+ * directory of the spool, which prevents them from blocking the elements that follow them. Every entry in that file
+ * consists of the time of quarantining, a length and the encoded element. Entries are not replayed.
+ *
+ * Data written to the spool survives the JVM process. It is not forced to the storage device for every element, which
+ * means that it does not necessarily survive a crash of the operating system.
+ *
+ * Instances of this class are thread-safe.
+ *
+ * @param <E> the type of the elements in the spool.
+ */
+class ArchiveSpool<E> implements Closeable
+{
+    private static final Logger Log = LoggerFactory.getLogger(ArchiveSpool.class);
+
+    private static final int MAGIC = 0x53504f4c;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final String SUFFIX = ".spool";
+    private static final String QUARANTINE = "quarantine.dat";
+
+    /**
+     * Converts elements to and from their binary representation in a spool.
+     */
+    interface Codec<E>
+    {
+        void encode(@Nonnull E element, @Nonnull DataOutput out) throws IOException;
+
+        @Nonnull
+        E decode(@Nonnull DataInput in) throws IOException;
+    }
+
+    private final Path directory;
+    private final Codec<E> codec;
+    private final int segmentSize;
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private final ArrayDeque<Position> polled = new ArrayDeque<>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final CRC32 crc = new CRC32();
+
+    private Segment readSegment;
+    private int readPosition;
+    private long pending;
+    private long discarded;
+    private boolean closed;
+
+    /**
+     * Opens a spool, creating it if it does not exist.
+     *
+     * @param directory the directory that holds the segment files of this spool (cannot be null).
+     * @param codec converts elements to and from bytes (cannot be null).
+     * @param segmentSize the size (in bytes) of newly created segment files.
+     * @throws IOException when the spool cannot be opened.
+     */
+    ArchiveSpool(@Nonnull final Path directory, @Nonnull final Codec<E> codec, final int segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                final long index;
+                try {
+                    index = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring unexpected file in archive spool: {}", file);
+                    continue;
+                }
+                final Segment segment = Segment.map(index, file, 0);
+                if (segment.buffer.capacity() < SEGMENT_HEADER_SIZE || segment.buffer.getInt(0) != MAGIC) {
+                    Log.warn("Deleting archive spool segment that is not recognized: {}", file);
+                    segment.delete();
+                    continue;
+                }
+                segments.put(index, segment);
+            }
+        }
+
+        for (final Segment segment : segments.values()) {
+            pending += scan(segment);
+        }
+
+        // Remove segments of which all records have been stored, except for the last one, which is appended to.
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            if (segment.acknowledged >= segment.writePosition && segment != segments.lastEntry().getValue()) {
+                iterator.remove();
+                segment.delete();
+            }
+        }
+
+        if (segments.isEmpty()) {
+            final Segment segment = create(0);
+            segments.put(segment.index, segment);
+        }
+
+        readSegment = segments.firstEntry().getValue();
+        readPosition = readSegment.acknowledged;
+        if (pending > 0) {
+            Log.info("Archive spool in {} holds {} elements that have not been archived. These will now be archived.", directory, pending);
+        }
+    }
+
+    /**
+     * Determines the end of the data in a segment, and counts the records that have not been acknowledged.
+     */
+    private int scan(@Nonnull final Segment segment)
+    {
+        final ByteBuffer buffer = segment.buffer;
+        final int capacity = buffer.capacity();
+        segment.acknowledged = Math.max(SEGMENT_HEADER_SIZE, Math.min(capacity, buffer.getInt(4)));
+
+        int count = 0;
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            final int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > capacity - position - RECORD_HEADER_SIZE || buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+                Log.warn("Discarding incomplete or corrupt data in archive spool segment {}, starting at position {}.", segment.path, position);
+                for (int i = position; i < capacity; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            if (position >= segment.acknowledged) {
+                count++;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+        segment.acknowledged = Math.min(segment.acknowledged, position);
+        return count;
+    }
+
+    private int checksum(@Nonnull final ByteBuffer buffer, final int position, final int length)
+    {
+        final ByteBuffer region = buffer.duplicate();
+        region.limit(position + RECORD_HEADER_SIZE + length);
+        region.position(position + 8);
+        crc.reset();
+        crc.update(region);
+        return (int) crc.getValue();
+    }
+
+    private Segment create(final long index) throws IOException
+    {
+        final Segment segment = Segment.map(index, directory.resolve(index + SUFFIX), segmentSize);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, SEGMENT_HEADER_SIZE);
+        segment.acknowledged = SEGMENT_HEADER_SIZE;
+        segment.writePosition = SEGMENT_HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Appends an element to the spool.
+     *
+     * @param element the element to append (cannot be null).
+     * @throws IOException when the element cannot be written.
+     */
+    synchronized void append(@Nonnull final E element) throws IOException
+    {
+        if (closed) {
+            throw new IOException("The archive spool in " + directory + " is closed.");
+        }
+
+        bytes.reset();
+        codec.encode(element, out);
+        out.flush();
+        final byte[] data = bytes.toByteArray();
+        final int required = RECORD_HEADER_SIZE + data.length;
+
+        Segment segment = segments.lastEntry().getValue();
+        if (segment.writePosition + required > segment.buffer.capacity()) {
+            if (SEGMENT_HEADER_SIZE + required > segmentSize) {
+                throw new IOException("An element of " + data.length + " bytes does not fit in an archive spool segment of " + segmentSize + " bytes.");
+            }
+            segment = create(segment.index + 1);
+            segments.put(segment.index, segment);
+        }
+
+        final int position = segment.writePosition;
+        final ByteBuffer buffer = segment.buffer;
+        buffer.putLong(position + 8, System.currentTimeMillis());
+        final ByteBuffer region = buffer.duplicate();
+        region.position(position + RECORD_HEADER_SIZE);
+        region.put(data);
+        buffer.putInt(position + 4, checksum(buffer, position, data.length));
+        buffer.putInt(position, data.length);
+        segment.writePosition = position + required;
+
+        pending++;
+        notifyAll();
+    }
+
+    /**
+     * Returns elements that have been appended, in the order in which they were appended. Every element is returned
+     * once. Elements that are returned are to be acknowledged, when they have been stored.
+     *
+     * Records that cannot be decoded are moved to the quarantine, and are counted by {@link #takeDiscarded()}. These
+     * are acknowledged together with the elements that were returned before them.
+     *
+     * @param maxElements the maximum amount of elements to return.
+     * @param timeoutMillis the time to wait for an element to be appended, when none are available.
+     * @return elements (possibly empty, never null).
+     * @throws InterruptedException when the thread was interrupted while waiting.
+     */
+    @Nonnull
+    synchronized List<E> poll(final int maxElements, final long timeoutMillis) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending == 0 && !closed) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return Collections.emptyList();
+            }
+            wait(remaining);
+        }
+
+        final List<E> result = new ArrayList<>((int) Math.min(maxElements, pending));
+        while (!closed && pending > 0 && result.size() < maxElements) {
+            advanceReadSegment();
+            final int length = readSegment.buffer.getInt(readPosition);
+            final byte[] data = new byte[length];
+            final ByteBuffer region = readSegment.buffer.duplicate();
+            region.position(readPosition + RECORD_HEADER_SIZE);
+            region.get(data);
+            readPosition += RECORD_HEADER_SIZE + length;
+            pending--;
+
+            try {
+                result.add(codec.decode(new DataInputStream(new ByteArrayInputStream(data))));
+                polled.add(new Position(readSegment, readPosition, false));
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Moving element in archive spool segment {} that cannot be decoded to {}.", readSegment.path, getQuarantineFile(), e);
+                discard(data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves a record that cannot be decoded to the quarantine. It is acknowledged right away when all records before
+     * it have been acknowledged, and otherwise together with those.
+     */
+    private void discard(@Nonnull final byte[] data)
+    {
+        try {
+            writeQuarantine(data);
+        } catch (IOException e) {
+            Log.error("Unable to write an element that cannot be decoded to {}. This element is lost.", getQuarantineFile(), e);
+        }
+        discarded++;
+
+        final Position position = new Position(readSegment, readPosition, true);
+        if (polled.isEmpty()) {
+            acknowledgeUpTo(position);
+        } else {
+            polled.add(position);
+        }
+    }
+
+    /**
+     * Returns the amount of records that could not be decoded by {@link #poll(int, long)} since this method was last
+     * invoked. These are not returned as elements, but are no longer pending either.
+     *
+     * @return an amount of records.
+     */
+    synchronized long takeDiscarded()
+    {
+        final long result = discarded;
+        discarded = 0;
+        return result;
+    }
+
+    /**
+     * Moves an element that cannot be stored to the quarantine. The element is to be acknowledged as usual.
+     *
+     * @param element the element (cannot be null).
+     * @throws IOException when the element cannot be written.
+     */
+    synchronized void quarantine(@Nonnull final E element) throws IOException
+    {
+        bytes.reset();
+        codec.encode(element, out);
+        out.flush();
+        writeQuarantine(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the file to which elements are written that were moved to the quarantine.
+     *
+     * @return a path (never null).
+     */
+    @Nonnull
+    Path getQuarantineFile()
+    {
+        return directory.resolve(QUARANTINE);
+    }
+
+    private void writeQuarantine(@Nonnull final byte[] data) throws IOException
+    {
+        try (final DataOutputStream file = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(getQuarantineFile(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            file.writeLong(System.currentTimeMillis());
+            file.writeInt(data.length);
+            file.write(data);
+        }
+    }
+
+    /**
+     * Moves the read position to the next segment, when all records of the current segment have been read.
+     */
+    private void advanceReadSegment()
+    {
+        while (readPosition >= readSegment.writePosition && readSegment != segments.lastEntry().getValue()) {
+            readSegment = segments.higherEntry(readSegment.index).getValue();
+            readPosition = readSegment.acknowledged;
+        }
+    }
+
+    /**
+     * Records that the oldest elements that have been returned by {@link #poll(int, long)} have been stored, which
+     * prevents them from being replayed.
+     *
+     * @param count the amount of elements that have been stored.
+     */
+    synchronized void acknowledge(final int count)
+    {
+        // Records that could not be decoded, and that follow the acknowledged elements, are acknowledged with them.
+        Position last = null;
+        int remaining = count;
+        while (!polled.isEmpty() && (remaining > 0 || polled.peek().discarded)) {
+            last = polled.poll();
+            if (!last.discarded) {
+                remaining--;
+            }
+        }
+        if (last != null) {
+            acknowledgeUpTo(last);
+        }
+    }
+
+    /**
+     * Records that all records up to a position have been processed, deleting segments that are no longer needed.
+     */
+    private void acknowledgeUpTo(@Nonnull final Position last)
+    {
+        if (closed) {
+            return;
+        }
+
+        last.segment.acknowledged = last.end;
+        last.segment.buffer.putInt(4, last.end);
+
+        // Delete segments of which all records have been stored.
+        final Segment writeSegment = segments.lastEntry().getValue();
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            if (segment.index > last.segment.index || segment == writeSegment) {
+                break;
+            }
+            if (segment.index == last.segment.index && segment.acknowledged < segment.writePosition) {
+                break;
+            }
+            iterator.remove();
+            if (segment == readSegment) {
+                readSegment = segments.higherEntry(segment.index).getValue();
+                readPosition = readSegment.acknowledged;
+            }
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                Log.warn("Unable to delete archive spool segment {}.", segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the time at which the oldest element that has not yet been returned by {@link #poll(int, long)} was
+     * appended.
+     *
+     * @return an instant, or null when all elements have been returned.
+     */
+    @Nullable
+    synchronized Instant getOldestPending()
+    {
+        if (pending == 0 || closed) {
+            return null;
+        }
+        advanceReadSegment();
+        return Instant.ofEpochMilli(readSegment.buffer.getLong(readPosition + 8));
+    }
+
+    /**
+     * Returns the amount of elements that have not yet been returned by {@link #poll(int, long)}.
+     *
+     * @return an amount of elements.
+     */
+    synchronized long getPendingCount()
+    {
+        return pending;
+    }
+
+    /**
+     * Closes the spool. Elements that have not been acknowledged are replayed when the spool is next opened.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Segment segment : segments.values()) {
+            try {
+                segment.buffer.force();
+                segment.channel.close();
+            } catch (IOException e) {
+                Log.warn("Unable to close archive spool segment {}.", segment.path, e);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Writes a string, which can be null, to a spool record.
+     */
+    static void writeString(@Nonnull final DataOutput out, @Nullable final String value) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    /**
+     * Reads a string that was written by {@link #writeString(DataOutput, String)}.
+     */
+    @Nullable
+    static String readString(@Nonnull final DataInput in) throws IOException
+    {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a JID, which can be null, to a spool record.
+     */
+    static void writeJID(@Nonnull final DataOutput out, @Nullable final JID value) throws IOException
+    {
+        writeString(out, value == null ? null : value.getDomain());
+        if (value != null) {
+            writeString(out, value.getNode());
+            writeString(out, value.getResource());
+        }
+    }
+
+    /**
+     * Reads a JID that was written by {@link #writeJID(DataOutput, JID)}. The parts of the JID are not validated
+     * again, as these were taken from a valid JID.
+     */
+    @Nullable
+    static JID readJID(@Nonnull final DataInput in) throws IOException
+    {
+        final String domain = readString(in);
+        if (domain == null) {
+            return null;
+        }
+        final String node = readString(in);
+        final String resource = readString(in);
+        return new JID(node, domain, resource, true);
+    }
+
+    private static final class Position
+    {
+        private final Segment segment;
+        private final int end;
+        private final boolean discarded;
+
+        private Position(@Nonnull final Segment segment, final int end, final boolean discarded)
+        {
+            this.segment = segment;
+            this.end = end;
+            this.discarded = discarded;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final long index;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int acknowledged;
+
+        private Segment(final long index, @Nonnull final Path path, @Nonnull final FileChannel channel, @Nonnull final MappedByteBuffer buffer)
+        {
+            this.index = index;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps a segment file into memory.
+         *
+         * @param size the size of the file, or 0 to map an existing file in its entirety.
+         */
+        private static Segment map(final long index, @Nonnull final Path path, final int size) throws IOException
+        {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final long length = size > 0 ? size : Math.min(channel.size(), Integer.MAX_VALUE);
+                return new Segment(index, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void delete() throws IOException
+        {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
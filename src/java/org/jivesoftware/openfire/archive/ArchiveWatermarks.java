@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.archive.cluster.UpdateArchiveWatermarkTask;
+import org.jivesoftware.openfire.cluster.ClusterEventListener;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.util.cache.CacheFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Tracks, for every cluster node, since when data has been waiting in the archivers of that node to be stored.
+ *
+ * Every node publishes the state of its own archivers to the other nodes when it changes: when data becomes pending
+ * after all data had been stored, and after data has been stored. This allows a node to wait for data that was
+ * pending on other nodes to have been stored, without polling those nodes.
+ *
+ * A node that has not published any state is assumed to have no pending data. The state of a node is forgotten when
+ * it leaves the cluster.
+ */
+class ArchiveWatermarks implements ClusterEventListener
+{
+    /**
+     * The moment since which data has been pending, for each other cluster node that has pending data.
+     */
+    private final Map<NodeID, Instant> pendingSinceByNode = new HashMap<>();
+
+    /**
+     * The version of the last state that was received from each other cluster node.
+     */
+    private final Map<NodeID, Long> versionByNode = new HashMap<>();
+
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    private final Supplier<Instant> localPendingSince;
+
+    private Instant published;
+
+    /**
+     * The version of the last state that was published by this node. Starts at a value that is higher than that of any
+     * earlier instance on this node, so that other nodes do not disregard the states that are published after the
+     * plugin is reloaded.
+     */
+    private long version = System.currentTimeMillis() * 1000;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param localPendingSince provides the moment since which data has been pending in the archivers of this node, or
+     *                          null when no data is pending (cannot be null).
+     */
+    ArchiveWatermarks( @Nonnull final Supplier<Instant> localPendingSince )
+    {
+        this.localPendingSince = localPendingSince;
+    }
+
+    void start()
+    {
+        ClusterManager.addListener( this );
+    }
+
+    void stop()
+    {
+        ClusterManager.removeListener( this );
+        final List<Waiter> released;
+        synchronized ( this )
+        {
+            released = new ArrayList<>( waiters );
+            waiters.clear();
+            pendingSinceByNode.clear();
+            versionByNode.clear();
+        }
+        released.forEach( waiter -> waiter.future.complete( null ) );
+    }
+
+    /**
+     * Returns a future that is completed when all data that was pending on other cluster nodes before the provided
+     * instant has been stored.
+     *
+     * @param instant the instant (cannot be null).
+     * @return a future (never null). Cancelling it stops the wait of the caller.
+     */
+    @Nonnull
+    CompletableFuture<Void> whenStoredOnOtherNodes( @Nonnull final Instant instant )
+    {
+        final Waiter waiter = new Waiter( instant );
+        synchronized ( this )
+        {
+            if ( isStored( instant ) )
+            {
+                return CompletableFuture.completedFuture( null );
+            }
+            waiters.add( waiter );
+        }
+        waiter.future.whenComplete( ( result, throwable ) -> {
+            if ( waiter.future.isCancelled() )
+            {
+                synchronized ( this )
+                {
+                    waiters.remove( waiter );
+                }
+            }
+        } );
+        return waiter.future;
+    }
+
+    /**
+     * Returns the amount of futures that are waiting for data on other cluster nodes to be stored.
+     *
+     * @return an amount of futures.
+     */
+    synchronized int getWaiterCount()
+    {
+        return waiters.size();
+    }
+
+    /**
+     * Publishes the state of the archivers of this node to the other cluster nodes, if it changed since it was last
+     * published.
+     */
+    void publish()
+    {
+        if ( !ClusterManager.isClusteringStarted() )
+        {
+            return;
+        }
+        synchronized ( this )
+        {
+            final Instant pendingSince = localPendingSince.get();
+            if ( Objects.equals( pendingSince, published ) )
+            {
+                return;
+            }
+            published = pendingSince;
+            version++;
+            CacheFactory.doClusterTask( new UpdateArchiveWatermarkTask( XMPPServer.getInstance().getNodeID(), version, pendingSince ) );
+        }
+    }
+
+    /**
+     * Processes the state of the archivers of another cluster node.
+     *
+     * @param nodeID the node (cannot be null).
+     * @param version the version of the state, which increases every time that the node publishes its state.
+     * @param pendingSince the moment since which data has been pending on that node, or null when no data is pending.
+     */
+    void update( @Nonnull final NodeID nodeID, final long version, @Nullable final Instant pendingSince )
+    {
+        final List<Waiter> released;
+        synchronized ( this )
+        {
+            final Long previous = versionByNode.get( nodeID );
+            if ( previous != null && previous >= version )
+            {
+                // States can be delivered out of order.
+                return;
+            }
+            versionByNode.put( nodeID, version );
+            if ( pendingSince == null )
+            {
+                pendingSinceByNode.remove( nodeID );
+            }
+            else
+            {
+                pendingSinceByNode.put( nodeID, pendingSince );
+            }
+            released = releaseWaiters();
+        }
+        released.forEach( waiter -> waiter.future.complete( null ) );
+    }
+
+    /**
+     * Checks if no other cluster node has data pending since before the provided instant. Must be invoked while
+     * holding the lock on this instance.
+     */
+    private boolean isStored( @Nonnull final Instant instant )
+    {
+        for ( final Instant pendingSince : pendingSinceByNode.values() )
+        {
+            if ( !pendingSince.isAfter( instant ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the waiters of which the data has been stored. Must be invoked while holding the lock on this
+     * instance.
+     */
+    @Nonnull
+    private List<Waiter> releaseWaiters()
+    {
+        final List<Waiter> released = new ArrayList<>();
+        final Iterator<Waiter> iterator = waiters.iterator();
+        while ( iterator.hasNext() )
+        {
+            final Waiter waiter = iterator.next();
+            if ( waiter.future.isDone() || isStored( waiter.instant ) )
+            {
+                iterator.remove();
+                released.add( waiter );
+            }
+        }
+        return released;
+    }
+
+    private void forget( @Nullable final NodeID nodeID )
+    {
+        final List<Waiter> released;
+        synchronized ( this )
+        {
+            if ( nodeID == null )
+            {
+                pendingSinceByNode.clear();
+                versionByNode.clear();
+            }
+            else
+            {
+                pendingSinceByNode.remove( nodeID );
+                versionByNode.remove( nodeID );
+            }
+            released = releaseWaiters();
+        }
+        released.forEach( waiter -> waiter.future.complete( null ) );
+    }
+
+    @Override
+    public void joinedCluster()
+    {
+        synchronized ( this )
+        {
+            published = null;
+        }
+        publish();
+    }
+
+    @Override
+    public void joinedCluster( final byte[] nodeID )
+    {
+        // Tell the new node about data that is pending on this node.
+        synchronized ( this )
+        {
+            published = null;
+        }
+        publish();
+    }
+
+    @Override
+    public void leftCluster()
+    {
+        forget( null );
+    }
+
+    @Override
+    public void leftCluster( final byte[] nodeID )
+    {
+        forget( NodeID.getInstance( nodeID ) );
+    }
+
+    @Override
+    public void markedAsSeniorClusterMember()
+    {
+        // Not of interest.
+    }
+
+    private static final class Waiter
+    {
+        private final Instant instant;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Waiter( @Nonnull final Instant instant )
+        {
+            this.instant = instant;
+        }
+    }
+}
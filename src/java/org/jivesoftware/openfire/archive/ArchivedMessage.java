@@ -50,6 +50,7 @@ public class ArchivedMessage {
     private final boolean roomEvent;
     private final long id;
     private final JID isPMforJID;
+    private final boolean roomMessage;
 
     /**
      * Creates a new archived message.
@@ -73,7 +74,42 @@ public class ArchivedMessage {
         // database writes are batched up together for performance reasons. Using these batches won't affect the
         // database-insertion order (as compared to the order of messages in the conversation) on a single Openfire
         // server, but when running in a cluster, these batches do have a good chance to mess up the order of things.
-        this.id = SequenceManager.nextID(this);
+        this(SequenceManager.nextID(604), conversationID, fromJID, toJID, sentDate, body, stanza, roomEvent, isPMforJID);
+    }
+
+    /**
+     * Creates an archived message that has already been assigned an ID.
+     *
+     * @param id the ID of the message.
+     * @param conversationID the ID of the conversation that the message is associated with.
+     * @param fromJID the JID of the user that sent the message.
+     * @param toJID the JID of the user that the message was sent to.
+     * @param sentDate the date the message was sent.
+     * @param body the body of the message
+     * @param stanza the XML representation of the message stanza.
+     * @param roomEvent true if the message belongs to a room event. Eg. User joined room.
+     * @param isPMforJID the JID of the user that is the recipient of the message, if the message was a PM sent in a MUC.
+     */
+    ArchivedMessage(long id, long conversationID, JID fromJID, JID toJID, Date sentDate, String body, String stanza, boolean roomEvent, JID isPMforJID) {
+        this(id, conversationID, fromJID, toJID, sentDate, body, stanza, roomEvent, isPMforJID, false);
+    }
+
+    /**
+     * Creates an archived message that has already been assigned an ID.
+     *
+     * @param id the ID of the message.
+     * @param conversationID the ID of the conversation that the message is associated with.
+     * @param fromJID the JID of the user that sent the message.
+     * @param toJID the JID of the user that the message was sent to.
+     * @param sentDate the date the message was sent.
+     * @param body the body of the message
+     * @param stanza the XML representation of the message stanza.
+     * @param roomEvent true if the message belongs to a room event. Eg. User joined room.
+     * @param isPMforJID the JID of the user that is the recipient of the message, if the message was a PM sent in a MUC.
+     * @param roomMessage true if the message was sent in a chat room (including private messages).
+     */
+    ArchivedMessage(long id, long conversationID, JID fromJID, JID toJID, Date sentDate, String body, String stanza, boolean roomEvent, JID isPMforJID, boolean roomMessage) {
+        this.id = id;
         this.conversationID = conversationID;
         // Convert both JID's to bare JID's so that we don't store resource information.
         this.fromJID = fromJID;
@@ -83,6 +119,23 @@ public class ArchivedMessage {
         this.roomEvent = roomEvent;
         this.stanza = stanza;
         this.isPMforJID = isPMforJID;
+        this.roomMessage = roomMessage;
+    }
+
+    /**
+     * Creates a new archived message for a message that was sent in a chat room.
+     *
+     * @param conversationID the ID of the conversation that the message is associated with.
+     * @param fromJID the JID of the user that sent the message.
+     * @param toJID the occupant JID of the user that sent the message.
+     * @param sentDate the date the message was sent.
+     * @param body the body of the message
+     * @param stanza the XML representation of the message stanza.
+     * @param isPMforJID the JID of the user that is the recipient of the message, if the message was a PM sent in a MUC.
+     * @return an archived message.
+     */
+    static ArchivedMessage forRoom(long conversationID, JID fromJID, JID toJID, Date sentDate, String body, String stanza, JID isPMforJID) {
+        return new ArchivedMessage(SequenceManager.nextID(604), conversationID, fromJID, toJID, sentDate, body, stanza, false, isPMforJID, true);
     }
 
     /**
@@ -150,6 +203,16 @@ public class ArchivedMessage {
         return stanza;
     }
 
+    /**
+     * Returns true if the message was sent in a chat room (this includes private messages exchanged in a room). This
+     * is only known for messages that have not yet been stored in the database.
+     *
+     * @return true if the message was sent in a chat room.
+     */
+    boolean isRoomMessage() {
+        return roomMessage;
+    }
+
     /**
      * Returns true if the message belongs to a room event. Examples of room events are:
      * user joined the room or user left the room.
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.database.DbConnectionManager;
+
+import javax.annotation.Nonnull;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes archived messages to the ofMessageArchive table.
+ *
+ * On databases that support it, messages are written using INSERT statements that each contain the values of many
+ * rows. This saves a database round-trip per row, even when the JDBC driver does not combine batched statements by
+ * itself. The amount of rows in one statement is limited by the (estimated) size of the values, to stay well within
+ * the maximum packet or statement size of the database. On other databases, every row is written using its own
+ * (batched, where supported) INSERT statement.
+ */
+final class ArchivedMessageWriter
+{
+    private static final String INSERT_MESSAGE = "INSERT INTO ofMessageArchive(messageID, conversationID, fromJID, fromJIDResource, toJID, toJIDResource, sentDate, body, stanza, isPMforJID) ";
+    private static final String VALUES = "(?,?,?,?,?,?,?,?,?,?)";
+    private static final int COLUMNS = 10;
+
+    /**
+     * The maximum amount of rows in one statement. This keeps the amount of parameters below the limit of all
+     * supported databases (SQL Server allows for 2100 parameters, and 1000 rows in a VALUES clause).
+     */
+    static final int MAX_ROWS_PER_STATEMENT = 200;
+
+    /**
+     * The estimated amount of bytes per row that is used in addition to the length of the text values.
+     */
+    private static final int ROW_OVERHEAD = 64;
+
+    private ArchivedMessageWriter()
+    {
+    }
+
+    /**
+     * Writes messages, using multi-row INSERT statements when the database supports these.
+     *
+     * @param con the connection to use (cannot be null).
+     * @param messages the messages to write (cannot be null).
+     * @param maxStatementSize the maximum estimated size (in bytes) of the values in one statement, or 0 to write every row using its own statement.
+     * @throws SQLException on any problem interacting with the database.
+     */
+    static void write( @Nonnull final Connection con, @Nonnull final List<ArchivedMessage> messages, final int maxStatementSize ) throws SQLException
+    {
+        if ( maxStatementSize > 0 && messages.size() > 1 && supportsMultiRowInsert( DbConnectionManager.getDatabaseType() ) )
+        {
+            writeMultiRow( con, messages, maxStatementSize );
+        }
+        else
+        {
+            writePerRow( con, messages );
+        }
+    }
+
+    /**
+     * Returns the messages of which the ID is not yet used by a row in the ofMessageArchive table. This allows for
+     * messages that might have been written before to be written again, without duplicating them.
+     *
+     * @param con the connection to use (cannot be null).
+     * @param messages the messages to check (cannot be null).
+     * @return the messages that have not been written (never null).
+     * @throws SQLException on any problem interacting with the database.
+     */
+    @Nonnull
+    static List<ArchivedMessage> withoutExisting( @Nonnull final Connection con, @Nonnull final List<ArchivedMessage> messages ) throws SQLException
+    {
+        final Set<Long> existing = new HashSet<>();
+        for ( int start = 0; start < messages.size(); start += MAX_ROWS_PER_STATEMENT )
+        {
+            final List<ArchivedMessage> chunk = messages.subList( start, Math.min( messages.size(), start + MAX_ROWS_PER_STATEMENT ) );
+            final StringBuilder sql = new StringBuilder( "SELECT messageID FROM ofMessageArchive WHERE messageID IN (" );
+            for ( int i = 0; i < chunk.size(); i++ )
+            {
+                sql.append( i == 0 ? "?" : ",?" );
+            }
+            sql.append( ')' );
+
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try
+            {
+                pstmt = con.prepareStatement( sql.toString() );
+                for ( int i = 0; i < chunk.size(); i++ )
+                {
+                    pstmt.setLong( i + 1, chunk.get( i ).getID() );
+                }
+                rs = pstmt.executeQuery();
+                while ( rs.next() )
+                {
+                    existing.add( rs.getLong( 1 ) );
+                }
+            }
+            finally
+            {
+                DbConnectionManager.closeStatement( rs, pstmt );
+            }
+        }
+
+        if ( existing.isEmpty() )
+        {
+            return messages;
+        }
+        final List<ArchivedMessage> result = new ArrayList<>( messages.size() - existing.size() );
+        for ( final ArchivedMessage message : messages )
+        {
+            if ( !existing.contains( message.getID() ) )
+            {
+                result.add( message );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a type of database supports INSERT statements with more than one row in their VALUES clause. Oracle
+     * (prior to version 23) does not.
+     */
+    static boolean supportsMultiRowInsert( final DbConnectionManager.DatabaseType databaseType )
+    {
+        switch ( databaseType )
+        {
+            case mysql:
+            case postgresql:
+            case sqlserver:
+            case hsqldb:
+            case db2:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes every message using its own INSERT statement. These are batched, if the database supports that.
+     *
+     * @param con the connection to use (cannot be null).
+     * @param messages the messages to write (cannot be null).
+     * @throws SQLException on any problem interacting with the database.
+     */
+    static void writePerRow( @Nonnull final Connection con, @Nonnull final List<ArchivedMessage> messages ) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            pstmt = con.prepareStatement( INSERT_MESSAGE + "VALUES " + VALUES );
+
+            for ( final ArchivedMessage work : messages )
+            {
+                bind( pstmt, 0, work );
+
+                if ( DbConnectionManager.isBatchUpdatesSupported() )
+                {
+                    pstmt.addBatch();
+                }
+                else
+                {
+                    pstmt.execute();
+                }
+            }
+
+            if ( DbConnectionManager.isBatchUpdatesSupported() )
+            {
+                pstmt.executeBatch();
+            }
+        }
+        finally
+        {
+            DbConnectionManager.closeStatement( pstmt );
+        }
+    }
+
+    /**
+     * Writes messages using INSERT statements that each hold the values of as many rows as fit in the provided size
+     * (and the maximum amount of rows per statement). A row that is larger than the provided size is written in a
+     * statement of its own.
+     *
+     * @param con the connection to use (cannot be null).
+     * @param messages the messages to write (cannot be null).
+     * @param maxStatementSize the maximum estimated size (in bytes) of the values in one statement.
+     * @throws SQLException on any problem interacting with the database.
+     */
+    static void writeMultiRow( @Nonnull final Connection con, @Nonnull final List<ArchivedMessage> messages, final int maxStatementSize ) throws SQLException
+    {
+        int start = 0;
+        while ( start < messages.size() )
+        {
+            int end = start;
+            long size = 0;
+            while ( end < messages.size() && end - start < MAX_ROWS_PER_STATEMENT )
+            {
+                final long rowSize = estimateSize( messages.get( end ) );
+                if ( end > start && size + rowSize > maxStatementSize )
+                {
+                    break;
+                }
+                size += rowSize;
+                end++;
+            }
+
+            insert( con, messages.subList( start, end ) );
+            start = end;
+        }
+    }
+
+    /**
+     * Writes messages using one INSERT statement.
+     */
+    private static void insert( @Nonnull final Connection con, @Nonnull final List<ArchivedMessage> rows ) throws SQLException
+    {
+        final StringBuilder sql = new StringBuilder( INSERT_MESSAGE.length() + 7 + rows.size() * (VALUES.length() + 1) );
+        sql.append( INSERT_MESSAGE ).append( "VALUES " );
+        for ( int i = 0; i < rows.size(); i++ )
+        {
+            if ( i > 0 )
+            {
+                sql.append( ',' );
+            }
+            sql.append( VALUES );
+        }
+
+        PreparedStatement pstmt = null;
+        try
+        {
+            pstmt = con.prepareStatement( sql.toString() );
+            for ( int i = 0; i < rows.size(); i++ )
+            {
+                bind( pstmt, i * COLUMNS, rows.get( i ) );
+            }
+            pstmt.executeUpdate();
+        }
+        finally
+        {
+            DbConnectionManager.closeStatement( pstmt );
+        }
+    }
+
+    /**
+     * Sets the values of one row, starting after the provided parameter offset.
+     */
+    private static void bind( @Nonnull final PreparedStatement pstmt, final int offset, @Nonnull final ArchivedMessage work ) throws SQLException
+    {
+        pstmt.setLong( offset + 1, work.getID() );
+        pstmt.setLong( offset + 2, work.getConversationID() );
+        pstmt.setString( offset + 3, work.getFromJID().toBareJID() );
+        pstmt.setString( offset + 4, work.getFromJID().getResource() );
+        pstmt.setString( offset + 5, work.getToJID().toBareJID() );
+        pstmt.setString( offset + 6, work.getToJID().getResource() );
+        pstmt.setLong( offset + 7, work.getSentDate().getTime() );
+        DbConnectionManager.setLargeTextField( pstmt, offset + 8, work.getBody() );
+        DbConnectionManager.setLargeTextField( pstmt, offset + 9, work.getStanza() );
+        pstmt.setString( offset + 10, work.getIsPMforJID() == null ? null : work.getIsPMforJID().toBareJID() );
+    }
+
+    /**
+     * Estimates the amount of bytes that the values of a row take up in a statement. Text is counted as one byte per
+     * character, which is accurate for the bulk of the values (JIDs and XML markup).
+     */
+    static long estimateSize( @Nonnull final ArchivedMessage work )
+    {
+        long size = ROW_OVERHEAD;
+        size += work.getFromJID().toString().length();
+        size += work.getToJID().toString().length();
+        size += work.getBody() == null ? 0 : work.getBody().length();
+        size += work.getStanza() == null ? 0 : work.getStanza().length();
+        size += work.getIsPMforJID() == null ? 0 : work.getIsPMforJID().toString().length();
+        return size;
+    }
+}
@@ -17,6 +17,7 @@
 package org.jivesoftware.openfire.archive;
 
 import org.jivesoftware.database.JiveID;
+import org.jivesoftware.database.SequenceManager;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Represents an IM conversation between people. A conversation encompasses a series of messages sent back and forth. It may cover a single topic
@@ -55,8 +57,13 @@ public class Conversation {
 
     private static final Logger Log = LoggerFactory.getLogger(Conversation.class);
 
+    static {
+        // Instantiate a sequence manager to ensure that a block size larger than the default value of '1' is used.
+        new SequenceManager(50, 50);
+    }
+
     @XmlElement
-    private long conversationID = -1;
+    private volatile long conversationID = -1;
     @XmlElementWrapper
     private Map<String, UserParticipations> participants;
     @XmlElement
@@ -88,6 +95,12 @@ public class Conversation {
     @XmlJavaTypeAdapter(XmlSerializer.JidAdapter.class)
     private JID room;
 
+    /**
+     * Indicates that an ID has been allocated for this conversation, but that the conversation has not yet been handed
+     * to the database by the conversation archiver.
+     */
+    private final transient AtomicBoolean pendingInsert = new AtomicBoolean(false);
+
     /**
      * Do not use this constructor. It only exists for serialization purposes.
      */
@@ -167,6 +180,26 @@ public class Conversation {
         return conversationID;
     }
 
+    /**
+     * Marks this conversation as one that has been assigned an ID, but that is yet to be stored in the database.
+     *
+     * Should only be set by ConversationDAO.
+     *
+     * @param pendingInsert true if the conversation is yet to be stored.
+     */
+    void setPendingInsert(boolean pendingInsert) {
+        this.pendingInsert.set(pendingInsert);
+    }
+
+    /**
+     * Returns true if this conversation has been assigned an ID, but is yet to be stored in the database.
+     *
+     * @return true if the conversation is yet to be stored.
+     */
+    boolean isPendingInsert() {
+        return pendingInsert.get();
+    }
+
     /**
      * Returns the JID of the room where the group conversation took place. If the conversation was a one-to-one chat then a <tt>null</tt> value is
      * returned.
@@ -287,44 +320,39 @@ public class Conversation {
         messageCount++; // TODO shouldn't this be persisted in the database?
     }
 
-    synchronized void participantJoined(ConversationManager conversationManager, JID user, String nickname, long timestamp) {
+    void participantJoined(ConversationManager conversationManager, JID user, String nickname, long timestamp) {
         // Add the sender of the message as a participant of this conversation. If the sender
         // was already a participant then he/she will appear just once. Rooms are never considered
         // as participants
-        UserParticipations userParticipations = participants.get(user.toString());
-        if (userParticipations == null) {
-            userParticipations = new UserParticipations(true);
-            participants.put(user.toString(), userParticipations);
-        } else {
-            // Get last known participation and check that the user has finished it
-            ConversationParticipation lastParticipation = userParticipations.getRecentParticipation();
-            if (lastParticipation != null && lastParticipation.getLeft() == null) {
-                Log.warn("Found user that never left a previous conversation: " + user);
-                lastParticipation.participationEnded(new Date(timestamp));
-                // Queue storeage of updated participation information
-                conversationManager.queueParticipantLeft(this, user, lastParticipation);
-            }
+        final UserParticipations userParticipations = participants.computeIfAbsent(user.toString(), key -> new UserParticipations(true));
+        // Get last known participation and check that the user has finished it
+        final ConversationParticipation lastParticipation = userParticipations.getRecentParticipation();
+        if (lastParticipation != null && lastParticipation.participationEndedIfActive(new Date(timestamp))) {
+            Log.warn("Found user that never left a previous conversation: " + user);
+            // Queue storeage of updated participation information
+            conversationManager.queueParticipantLeft(this, user, lastParticipation);
         }
         ConversationParticipation newParticipation = new ConversationParticipation(new Date(timestamp), nickname);
         // Add element to the beginning of the list
         userParticipations.addParticipation(newParticipation);
         // If archiving is enabled, insert the conversation into the database (if not persistent yet).
         if (conversationManager.isMetadataArchivingEnabled()) {
-            try {
-                if (conversationID == -1) {
-                    // Save new conversation to the database
-                    ConversationDAO.insertIntoDb(this);
-                } else {
-                    // Store new participation information
-                    ConversationDAO.insertIntoDb(conversationID, user, nickname, timestamp);
+            if (conversationID == -1) {
+                synchronized (this) {
+                    if (conversationID == -1) {
+                        // Queue the new conversation, including all of its participations, for storage in the database.
+                        ConversationDAO.prepareForInsert(conversationManager, this);
+                        conversationManager.queueConversationCreated(this);
+                        return;
+                    }
                 }
-            } catch (Exception e) {
-                Log.error(e.getMessage(), e);
             }
+            // Queue storage of new participation information
+            conversationManager.queueParticipantJoined(this, user, newParticipation);
         }
     }
 
-    synchronized void participantLeft(ConversationManager conversationManager, JID user, long timestamp) {
+    void participantLeft(ConversationManager conversationManager, JID user, long timestamp) {
         // Get the list of participations of the specified user
         UserParticipations userParticipations = participants.get(user.toString());
         if (userParticipations == null) {
@@ -332,10 +360,9 @@ public class Conversation {
         } else {
             // Get last known participation and check that the user has not finished it
             ConversationParticipation currentParticipation = userParticipations.getRecentParticipation();
-            if (currentParticipation == null || currentParticipation.getLeft() != null) {
+            if (currentParticipation == null || !currentParticipation.participationEndedIfActive(new Date(timestamp))) {
                 Log.warn("Found user that left a conversation but never started it: " + user);
             } else {
-                currentParticipation.participationEnded(new Date(timestamp));
                 // Queue storeage of updated participation information
                 conversationManager.queueParticipantLeft(this, user, currentParticipation);
             }
@@ -351,8 +378,7 @@ public class Conversation {
     void conversationEnded(ConversationManager conversationManager, Date nowDate) {
         for (Map.Entry<String, UserParticipations> entry : participants.entrySet()) {
             ConversationParticipation currentParticipation = entry.getValue().getRecentParticipation();
-            if (currentParticipation.getLeft() == null) {
-                currentParticipation.participationEnded(nowDate);
+            if (currentParticipation != null && currentParticipation.participationEndedIfActive(nowDate)) {
                 // Queue storage of updated participation information
                 conversationManager.queueParticipantLeft(this, new JID(entry.getKey()), currentParticipation);
             }
@@ -24,6 +24,7 @@ import org.jivesoftware.openfire.user.UserNameManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.NotFoundException;
+import org.jivesoftware.util.SystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -34,6 +35,8 @@ import java.sql.JDBCType;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
@@ -47,15 +50,19 @@ public class ConversationDAO {
 
     private static final String INSERT_CONVERSATION = "INSERT INTO ofConversation(conversationID, roomID, room, isExternal, startDate, "
         + "lastActivity, messageCount) VALUES (?,?,?,?,?,?,0)";
-    private static final String INSERT_PARTICIPANT = "INSERT INTO ofConParticipant(conversationID, joinedDate, bareJID, jidResource, nickname) "
-        + "VALUES (?,?,?,?,?)";
+    private static final String EXISTING_CONVERSATIONS = "SELECT conversationID FROM ofConversation WHERE conversationID IN ";
     private static final String LOAD_CONVERSATION = "SELECT roomID, room, isExternal, startDate, lastActivity, messageCount "
         + "FROM ofConversation WHERE conversationID=?";
     private static final String LOAD_PARTICIPANTS = "SELECT bareJID, jidResource, nickname, joinedDate, leftDate FROM ofConParticipant "
         + "WHERE conversationID=? ORDER BY joinedDate";
+    private static final String LOAD_CONVERSATIONS = "SELECT conversationID, roomID, room, isExternal, startDate, lastActivity, messageCount "
+        + "FROM ofConversation WHERE conversationID IN ";
+    private static final String LOAD_PARTICIPANTS_OF_CONVERSATIONS = "SELECT conversationID, bareJID, jidResource, nickname, joinedDate, leftDate FROM ofConParticipant "
+        + "WHERE conversationID IN ";
     private static final String LOAD_MESSAGES = "SELECT fromJID, fromJIDResource, toJID, toJIDResource, sentDate, body, stanza, isPMforJID FROM ofMessageArchive WHERE conversationID=? "
         + "ORDER BY sentDate";
 
+    private static final String DELETE_ROOM_STANZA_IDS = "DELETE FROM ofMessageStanzaID WHERE conversationID IN (SELECT conversationID FROM ofConversation WHERE roomID=?)";
     private static final String DELETE_ROOM_MESSAGES = "DELETE FROM ofMessageArchive WHERE conversationID IN (SELECT conversationID FROM ofConversation WHERE roomID=?)";
     private static final String DELETE_ROOM_PARTICIPANTS = "DELETE FROM ofConParticipant WHERE conversationID IN (SELECT conversationID FROM ofConversation WHERE roomID=?)";
     private static final String DELETE_ROOM_CONVERSATIONS = "DELETE FROM ofConversation WHERE roomID=?";
@@ -64,6 +71,49 @@ public class ConversationDAO {
 
     private static final Logger Log = LoggerFactory.getLogger(ConversationDAO.class);
 
+    /**
+     * The maximum amount of conversation identifiers in the 'IN' clause of a single query.
+     */
+    private static final int MAX_IDS_PER_QUERY = 100;
+
+    public static final SystemProperty<Boolean> CACHE_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("conversation.search.conversation-cache.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> CACHE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.search.conversation-cache.size")
+        .setDefaultValue(1000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * The duration for which a conversation that was loaded in bulk is reused. This bounds how long changes to
+     * conversations that are still active (such as their message count) remain unnoticed.
+     */
+    public static final SystemProperty<Duration> CACHE_TTL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.search.conversation-cache.ttl")
+        .setDefaultValue(Duration.ofMinutes(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * Conversations that were recently loaded by {@link #loadConversations(Collection)}, by ID, with the time at which
+     * they were loaded. Least recently used entries are evicted first. Guarded by {@code CACHE}.
+     */
+    private static final Map<Long, CachedConversation> CACHE = new LinkedHashMap<Long, CachedConversation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, CachedConversation> eldest) {
+            return size() > CACHE_SIZE.getValue();
+        }
+    };
+
     /**
      * Constructs a new one-to-one conversation.
      *
@@ -90,13 +140,9 @@ public class ConversationDAO {
 
         final Conversation conversation = new Conversation(participants, external, startDate);
 
-        // If archiving is enabled, insert the conversation into the database.
+        // If archiving is enabled, allocate an ID. The conversation is stored when it is handed to the conversation archiver.
         if (conversationManager.isMetadataArchivingEnabled()) {
-            try {
-                insertIntoDb(conversation);
-            } catch (Exception e) {
-                Log.error("Unable to persist a conversation that was just created: {}", conversation, e);
-            }
+            prepareForInsert(conversationManager, conversation);
         }
         return conversation;
     }
@@ -129,13 +175,9 @@ public class ConversationDAO {
 
         final Conversation conversation = new Conversation(mucRoom.getID(), room, participants, external, startDate);
 
-        // If archiving is enabled, insert the conversation into the database.
+        // If archiving is enabled, allocate an ID. The conversation is stored when it is handed to the conversation archiver.
         if (conversationManager.isMetadataArchivingEnabled()) {
-            try {
-                insertIntoDb(conversation);
-            } catch (Exception e) {
-                Log.error("Unable to persist a conversation that was just created: {}", conversation, e);
-            }
+            prepareForInsert(conversationManager, conversation);
         }
 
         return conversation;
@@ -154,6 +196,59 @@ public class ConversationDAO {
         return loadFromDb(conversationID);
     }
 
+    /**
+     * Loads conversations from the database in bulk: one query for the conversations and one for their participants,
+     * for every {@value #MAX_IDS_PER_QUERY} conversations. When {@link #CACHE_ENABLED} is set, conversations that were
+     * recently loaded are reused.
+     *
+     * @param conversationIDs
+     *            the IDs of the conversations.
+     * @return the conversations that were found, by ID (never null).
+     */
+    @Nonnull
+    public static Map<Long, Conversation> loadConversations(@Nonnull final Collection<Long> conversationIDs) {
+        final Map<Long, Conversation> result = new HashMap<>();
+        final boolean useCache = CACHE_ENABLED.getValue();
+        final List<Long> missing = new ArrayList<>(conversationIDs.size());
+        if (useCache) {
+            final long expired = System.currentTimeMillis() - CACHE_TTL.getValue().toMillis();
+            synchronized (CACHE) {
+                for (final Long conversationID : conversationIDs) {
+                    final CachedConversation cached = CACHE.get(conversationID);
+                    if (cached != null && cached.loaded > expired) {
+                        result.put(conversationID, cached.conversation);
+                    } else {
+                        missing.add(conversationID);
+                    }
+                }
+            }
+        } else {
+            missing.addAll(conversationIDs);
+        }
+
+        for (int offset = 0; offset < missing.size(); offset += MAX_IDS_PER_QUERY) {
+            final Map<Long, Conversation> loaded = loadFromDb(missing.subList(offset, Math.min(missing.size(), offset + MAX_IDS_PER_QUERY)));
+            result.putAll(loaded);
+            if (useCache) {
+                final long now = System.currentTimeMillis();
+                synchronized (CACHE) {
+                    loaded.forEach((conversationID, conversation) -> CACHE.put(conversationID, new CachedConversation(conversation, now)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all conversations that were recently loaded from the cache. This is to be invoked after conversations
+     * have been removed from the database.
+     */
+    static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
     /**
      * Returns the archived messages in the conversation. If message archiving is not enabled, this method will always return an empty collection.
      * This method will only return messages that have already been batch-archived to the database; in other words, it does not provide a real-time
@@ -257,9 +352,17 @@ public class ConversationDAO {
         PreparedStatement pstmt = null;
         try {
             con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(DELETE_ROOM_STANZA_IDS);
+            pstmt.setLong(1, roomID);
+            pstmt.executeUpdate();
+            pstmt.close();
+
             pstmt = con.prepareStatement(DELETE_ROOM_MESSAGES);
             pstmt.setLong(1, roomID);
             pstmt.executeUpdate();
+
+            // Private messages exchanged in the room are part of personal archives.
+            RecentMessageCache.invalidate();
         } catch (SQLException e) {
             Log.error("A database error occurred while removing messages for room {}", roomID, e);
         } finally {
@@ -309,6 +412,7 @@ public class ConversationDAO {
             pstmt = con.prepareStatement(DELETE_ROOM_CONVERSATIONS);
             pstmt.setLong(1, roomID);
             pstmt.executeUpdate();
+            clearCache();
         } catch (SQLException e) {
             Log.error("A database error occurred while removing conversations for room {}", roomID, e);
         } finally {
@@ -400,79 +504,188 @@ public class ConversationDAO {
         }
     }
 
-    /**
-     * Inserts a new conversation into the database.
-     *
-     * @throws SQLException
-     *             if an error occurs inserting the conversation.
-     */
-    static void insertIntoDb(@Nonnull final Conversation conversation) throws SQLException {
-        conversation.setConversationID(SequenceManager.nextID(conversation));
+    private static Map<Long, Conversation> loadFromDb(final List<Long> conversationIDs) {
+        final Map<Long, Conversation> result = new HashMap<>();
+        final Map<Long, Map<String, UserParticipations>> participantsByConversation = new HashMap<>();
+        final String inList = "(" + String.join(",", Collections.nCopies(conversationIDs.size(), "?")) + ")";
         Connection con = null;
-        boolean abortTransaction = false;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
         try {
-            con = DbConnectionManager.getTransactionConnection();
-            PreparedStatement pstmt = con.prepareStatement(INSERT_CONVERSATION);
-            pstmt.setLong(1, conversation.getConversationID());
-            if (conversation.getRoomID() == null) {
-                pstmt.setNull(2, JDBCType.BIGINT.getVendorTypeNumber());
-            } else {
-                pstmt.setLong(2, conversation.getRoomID());
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_CONVERSATIONS + inList);
+            for (int i = 0; i < conversationIDs.size(); i++) {
+                pstmt.setLong(i + 1, conversationIDs.get(i));
             }
-            pstmt.setString(3, conversation.getRoom() == null ? null : conversation.getRoom().toString());
-            pstmt.setInt(4, (conversation.isExternal() ? 1 : 0));
-            pstmt.setLong(5, conversation.getStartDate().getTime());
-            pstmt.setLong(6, conversation.getLastActivity().getTime());
-            pstmt.executeUpdate();
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final long conversationID = rs.getLong(1);
+                Long roomID = rs.getLong(2);
+                if (rs.wasNull()) {
+                    roomID = null;
+                }
+                final JID room = rs.getString(3) == null ? null : new JID(rs.getString(3));
+                final boolean external = rs.getInt(4) == 1;
+                final Date startDate = new Date(rs.getLong(5));
+                final Date lastActivity = new Date(rs.getLong(6));
+                final int messageCount = rs.getInt(7);
+
+                final Map<String, UserParticipations> participants = new ConcurrentHashMap<>();
+                final Conversation conversation = new Conversation(roomID, room, external, startDate, lastActivity, messageCount, participants);
+                conversation.setConversationID(conversationID);
+                result.put(conversationID, conversation);
+                participantsByConversation.put(conversationID, participants);
+            }
+            rs.close();
             pstmt.close();
 
-            pstmt = con.prepareStatement(INSERT_PARTICIPANT);
-            for (JID user : conversation.getParticipants()) {
-                for (ConversationParticipation participation : conversation.getParticipations(user)) {
-                    pstmt.setLong(1, conversation.getConversationID());
-                    pstmt.setLong(2, participation.getJoined().getTime());
-                    pstmt.setString(3, user.toBareJID());
-                    pstmt.setString(4, toStoredResource(user));
-                    pstmt.setString(5, participation.getNickname());
-                    pstmt.executeUpdate();
+            if (!result.isEmpty()) {
+                pstmt = con.prepareStatement(LOAD_PARTICIPANTS_OF_CONVERSATIONS + inList + " ORDER BY joinedDate");
+                for (int i = 0; i < conversationIDs.size(); i++) {
+                    pstmt.setLong(i + 1, conversationIDs.get(i));
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final long conversationID = rs.getLong(1);
+                    final Map<String, UserParticipations> participants = participantsByConversation.get(conversationID);
+                    if (participants == null) {
+                        continue;
+                    }
+                    // Rebuild full JID of participant
+                    String baredJID = rs.getString(2);
+                    String resource = rs.getString(3);
+                    JID fullJID = new JID(hasStoredResource(resource) ? baredJID + "/" + resource : baredJID);
+                    // Rebuild joined and left time
+                    ConversationParticipation participation = new ConversationParticipation(new Date(rs.getLong(5)), rs.getString(4));
+                    if (rs.getLong(6) > 0) {
+                        participation.participationEnded(new Date(rs.getLong(6)));
+                    }
+                    // Store participation data
+                    final boolean isRoom = result.get(conversationID).getRoomID() != null;
+                    participants.computeIfAbsent(fullJID.toString(), key -> new UserParticipations(isRoom)).addParticipation(participation);
                 }
             }
-            pstmt.close();
         } catch (SQLException sqle) {
-            abortTransaction = true;
-            throw sqle;
+            Log.error("An exception occurred while trying to load {} conversations from database.", conversationIDs.size(), sqle);
+            return Collections.emptyMap();
         } finally {
-            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+            DbConnectionManager.closeConnection(rs, pstmt, con);
         }
+        return result;
     }
 
     /**
-     * Adds a new conversation participant into the database.
+     * Allocates an ID for a new conversation, marks it as pending to be stored, and queues its participations for
+     * storage. The ID is allocated in memory from a block of sequence values, which avoids a database round-trip for
+     * most conversations. The conversation itself is stored by {@link #insertIntoDb(Connection, Collection)}, after the caller
+     * hands it to the conversation archiver.
      *
-     * @param participant
-     *            the full JID of the participant.
-     * @param nickname
-     *            nickname of the user in the room.
-     * @param joined
-     *            timestamp when user joined the conversation.
+     * @param conversationManager
+     *            the ConversationManager.
+     * @param conversation
+     *            the conversation that is to be stored.
+     */
+    static void prepareForInsert(@Nonnull final ConversationManager conversationManager, @Nonnull final Conversation conversation) {
+        conversation.setConversationID(SequenceManager.nextID(conversation));
+        conversation.setPendingInsert(true);
+        for (final JID user : conversation.getParticipants()) {
+            for (final ConversationParticipation participation : conversation.getParticipations(user)) {
+                conversationManager.queueParticipantJoined(conversation, user, participation);
+            }
+        }
+    }
+
+    /**
+     * Inserts the conversations that are pending to be stored into the database, using the provided connection.
+     * Conversations that are already in the database (for example, because these were replayed from the spool of the
+     * archiver after having been stored) are not inserted again, and neither are conversations that occur more than
+     * once in the collection.
+     *
+     * The pending state of the conversations is not changed: the caller is to clear it after the changes have been
+     * committed, so that conversations are inserted again when the transaction fails.
+     *
+     * @param con
+     *            the connection to use.
+     * @param conversations
+     *            the conversations to insert.
+     * @return the number of conversations that were inserted.
      * @throws SQLException
-     *             if an error occurs inserting the conversation.
+     *             if an error occurs inserting the conversations.
      */
-    static void insertIntoDb(long conversationID, JID participant, String nickname, long joined) throws SQLException {
-        Connection con = null;
+    static int insertIntoDb(@Nonnull final Connection con, @Nonnull final Collection<Conversation> conversations) throws SQLException {
+        final Map<Long, Conversation> pending = new LinkedHashMap<>();
+        for (final Conversation conversation : conversations) {
+            if (conversation.isPendingInsert()) {
+                pending.putIfAbsent(conversation.getConversationID(), conversation);
+            }
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        pending.keySet().removeAll(findExisting(con, new ArrayList<>(pending.keySet())));
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        PreparedStatement pstmt = null;
         try {
-            con = DbConnectionManager.getConnection();
-            PreparedStatement pstmt = con.prepareStatement(INSERT_PARTICIPANT);
-            pstmt.setLong(1, conversationID);
-            pstmt.setLong(2, joined);
-            pstmt.setString(3, participant.toBareJID());
-            pstmt.setString(4, toStoredResource(participant));
-            pstmt.setString(5, nickname);
-            pstmt.executeUpdate();
-            pstmt.close();
+            pstmt = con.prepareStatement(INSERT_CONVERSATION);
+            final boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+            for (final Conversation conversation : pending.values()) {
+                pstmt.setLong(1, conversation.getConversationID());
+                if (conversation.getRoomID() == null) {
+                    pstmt.setNull(2, JDBCType.BIGINT.getVendorTypeNumber());
+                } else {
+                    pstmt.setLong(2, conversation.getRoomID());
+                }
+                pstmt.setString(3, conversation.getRoom() == null ? null : conversation.getRoom().toString());
+                pstmt.setInt(4, (conversation.isExternal() ? 1 : 0));
+                pstmt.setLong(5, conversation.getStartDate().getTime());
+                pstmt.setLong(6, conversation.getLastActivity().getTime());
+                if (batch) {
+                    pstmt.addBatch();
+                } else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
         } finally {
-            DbConnectionManager.closeConnection(con);
+            DbConnectionManager.closeStatement(pstmt);
         }
+        return pending.size();
+    }
+
+    /**
+     * Returns the IDs of conversations that are in the database, out of the provided IDs.
+     */
+    private static Set<Long> findExisting(@Nonnull final Connection con, @Nonnull final List<Long> conversationIDs) throws SQLException {
+        final Set<Long> result = new HashSet<>();
+        for (int start = 0; start < conversationIDs.size(); start += MAX_IDS_PER_QUERY) {
+            final List<Long> chunk = conversationIDs.subList(start, Math.min(start + MAX_IDS_PER_QUERY, conversationIDs.size()));
+            final StringBuilder sql = new StringBuilder(EXISTING_CONVERSATIONS).append('(');
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(')');
+
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                pstmt = con.prepareStatement(sql.toString());
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setLong(i + 1, chunk.get(i));
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    result.add(rs.getLong(1));
+                }
+            } finally {
+                DbConnectionManager.closeStatement(rs, pstmt);
+            }
+        }
+        return result;
     }
 
     /**
@@ -510,4 +723,16 @@ public class ConversationDAO {
     {
         return storedResource != null && !storedResource.trim().isEmpty();
     }
+
+    private static final class CachedConversation
+    {
+        private final Conversation conversation;
+        private final long loaded;
+
+        private CachedConversation(final Conversation conversation, final long loaded)
+        {
+            this.conversation = conversation;
+            this.loaded = loaded;
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index of active conversations, ordered by the moment at which they are due to be checked for expiry.
+ *
+ * At most one deadline is registered per conversation key. Deadlines are not moved forward when a conversation
+ * receives new messages. Instead, a deadline that comes due is expected to be re-evaluated by the caller, which
+ * registers a new deadline when the conversation turned out to still be active. This keeps the cost of processing
+ * a message independent of this index, while the cost of checking for expired conversations is proportional to the
+ * number of deadlines that have passed, rather than to the number of active conversations.
+ */
+class ConversationExpiryQueue
+{
+    private final ConcurrentSkipListSet<Entry> deadlines = new ConcurrentSkipListSet<>();
+    private final Map<String, Entry> entriesByKey = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Registers a deadline for a conversation. When a deadline for the same conversation is already registered,
+     * the earliest of the two deadlines is retained.
+     *
+     * @param conversationKey the key of the conversation (cannot be null).
+     * @param deadline the moment (in milliseconds since the epoch) at which the conversation should be checked.
+     */
+    void schedule(@Nonnull final String conversationKey, final long deadline)
+    {
+        entriesByKey.compute(conversationKey, (key, existing) -> {
+            if (existing != null && existing.deadline <= deadline) {
+                return existing;
+            }
+            if (existing != null) {
+                deadlines.remove(existing);
+            }
+            final Entry entry = new Entry(key, deadline, sequence.incrementAndGet());
+            deadlines.add(entry);
+            return entry;
+        });
+    }
+
+    /**
+     * Removes any deadline that is registered for a conversation.
+     *
+     * @param conversationKey the key of the conversation (cannot be null).
+     */
+    void cancel(@Nonnull final String conversationKey)
+    {
+        final Entry entry = entriesByKey.remove(conversationKey);
+        if (entry != null) {
+            deadlines.remove(entry);
+        }
+    }
+
+    /**
+     * Removes and returns the keys of all conversations for which the registered deadline has passed.
+     *
+     * @param now the current time (in milliseconds since the epoch).
+     * @return the keys of the conversations that are due to be checked, in deadline order (never null).
+     */
+    @Nonnull
+    List<String> pollDue(final long now)
+    {
+        final List<String> result = new ArrayList<>();
+        Entry first;
+        while ((first = firstOrNull()) != null && first.deadline <= now) {
+            if (deadlines.remove(first)) {
+                entriesByKey.remove(first.key, first);
+                result.add(first.key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the amount of registered deadlines.
+     *
+     * @return the amount of registered deadlines.
+     */
+    int size()
+    {
+        return entriesByKey.size();
+    }
+
+    private Entry firstOrNull()
+    {
+        try {
+            return deadlines.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry>
+    {
+        private final String key;
+        private final long deadline;
+        private final long sequence;
+
+        private Entry(final String key, final long deadline, final long sequence)
+        {
+            this.key = key;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@Nonnull final Entry o)
+        {
+            final int result = Long.compare(deadline, o.deadline);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+}
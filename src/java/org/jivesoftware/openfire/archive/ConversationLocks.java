@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.util.SystemProperty;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that guards the state of active conversations, indexed by conversation key.
+ *
+ * Messages that belong to the same conversation always map to the same lock, which keeps the message accounting,
+ * archiving and listener notification of a conversation ordered. Messages of unrelated conversations will typically
+ * map to different locks, allowing them to be processed in parallel. Unlike synchronizing on interned strings, this
+ * does not require a lookup in the JVM string table for every message.
+ */
+class ConversationLocks
+{
+    public static final SystemProperty<Integer> LOCK_STRIPES = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.lock-stripes")
+        .setDefaultValue(256)
+        .setMinValue(1)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    private final Lock[] locks;
+    private final int mask;
+
+    /**
+     * Creates a new set of locks. The amount of locks is rounded up to the nearest power of two.
+     *
+     * @param stripes the minimum amount of locks (must be positive).
+     */
+    ConversationLocks(final int stripes)
+    {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Argument 'stripes' must be a positive number, but was: " + stripes);
+        }
+        final int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the lock that guards the conversation identified by the provided key. Repeated invocations using equal
+     * keys will return the same lock instance.
+     *
+     * @param conversationKey the key of a conversation (cannot be null).
+     * @return the lock that guards the conversation.
+     */
+    @Nonnull
+    Lock get(@Nonnull final String conversationKey)
+    {
+        int hash = conversationKey.hashCode();
+        hash ^= (hash >>> 16); // spread high bits, as the mask only uses the lower ones.
+        return locks[hash & mask];
+    }
+
+    /**
+     * Returns the amount of locks in this set.
+     *
+     * @return the amount of locks.
+     */
+    int size()
+    {
+        return locks.length;
+    }
+}
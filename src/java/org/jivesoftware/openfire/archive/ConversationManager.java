@@ -28,6 +28,7 @@ import org.jivesoftware.openfire.archive.cluster.GetConversationTask;
 import org.jivesoftware.openfire.archive.cluster.GetConversationsTask;
 import org.jivesoftware.openfire.archive.cluster.GetConversationsWriteETATask;
 import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.component.ComponentEventListener;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.muc.MultiUserChatService;
@@ -36,6 +37,7 @@ import org.jivesoftware.openfire.reporting.util.TaskEngine;
 import org.jivesoftware.openfire.stanzaid.StanzaIDUtil;
 import org.jivesoftware.openfire.stats.Statistic;
 import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.*;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -44,7 +46,12 @@ import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -54,6 +61,7 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Stream;
 
 /**
@@ -73,14 +81,11 @@ public class ConversationManager implements ComponentEventListener{
     private static final Logger Log = LoggerFactory.getLogger(ConversationManager.class);
 
     private static final String UPDATE_CONVERSATION = "UPDATE ofConversation SET lastActivity=?, messageCount=? WHERE conversationID=?";
+    private static final String INSERT_PARTICIPANT = "INSERT INTO ofConParticipant(conversationID, joinedDate, bareJID, jidResource, nickname) VALUES (?,?,?,?,?)";
     private static final String UPDATE_PARTICIPANT = "UPDATE ofConParticipant SET leftDate=? WHERE conversationID=? AND bareJID=? AND jidResource=? AND joinedDate=?";
-    private static final String INSERT_MESSAGE = "INSERT INTO ofMessageArchive(messageID, conversationID, fromJID, fromJIDResource, toJID, toJIDResource, sentDate, body, stanza, isPMforJID) "
-            + "VALUES (?,?,?,?,?,?,?,?,?,?)";
+    private static final String PARTICIPANT_EXISTS = "SELECT 1 FROM ofConParticipant WHERE conversationID=? AND bareJID=? AND jidResource=? AND joinedDate=?";
     private static final String CONVERSATION_COUNT = "SELECT COUNT(*) FROM ofConversation";
     private static final String MESSAGE_COUNT = "SELECT COUNT(*) FROM ofMessageArchive";
-    private static final String DELETE_CONVERSATION_1 = "DELETE FROM ofMessageArchive WHERE conversationID=?";
-    private static final String DELETE_CONVERSATION_2 = "DELETE FROM ofConParticipant WHERE conversationID=?";
-    private static final String DELETE_CONVERSATION_3 = "DELETE FROM ofConversation WHERE conversationID=?";
 
     private static final Duration DEFAULT_IDLE_TIME = Duration.ofMinutes(10);
     private static final Duration DEFAULT_MAX_TIME = Duration.ofMinutes(60);
@@ -90,11 +95,24 @@ public class ConversationManager implements ComponentEventListener{
     private static final Duration DEFAULT_MAX_AGE = Duration.ofDays(0);
 
     public static final String CONVERSATIONS_KEY = "conversations";
+    public static final String ARCHIVER_BATCH_SIZE_KEY = "archiver_batch_size";
+    public static final String ARCHIVER_GRACE_PERIOD_KEY = "archiver_grace_period";
+    public static final String ARCHIVER_PURGE_INTERVAL_KEY = "archiver_purge_interval";
 
     private ConversationEventsQueue conversationEventsQueue;
     private TaskEngine taskEngine;
 
     private Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the state of the conversations in {@link #conversations}, indexed by conversation key.
+     */
+    private final ConversationLocks conversationLocks = new ConversationLocks(ConversationLocks.LOCK_STRIPES.getValue());
+
+    /**
+     * Orders the conversations in {@link #conversations} by the moment at which they are due to be checked for expiry.
+     */
+    private final ConversationExpiryQueue expiryQueue = new ConversationExpiryQueue();
     private boolean metadataArchivingEnabled;
     /**
      * Flag that indicates if messages of one-to-one chats should be archived.
@@ -117,6 +135,7 @@ public class ConversationManager implements ComponentEventListener{
 
     private TimerTask cleanupTask;
     private TimerTask maxAgeTask;
+    private final ConversationPurger conversationPurger = new ConversationPurger();
 
     private Collection<ConversationListener> conversationListeners;
 
@@ -126,9 +145,14 @@ public class ConversationManager implements ComponentEventListener{
     private List<String> gateways;
     private XMPPServerInfo serverInfo;
 
-    private Archiver<Conversation> conversationArchiver;
-    private Archiver<ArchivedMessage> messageArchiver;
-    private Archiver<RoomParticipant> participantArchiver;
+    private SpoolingArchiver<Conversation> conversationArchiver;
+    private SpoolingArchiver<ArchivedMessage> messageArchiver;
+    private SpoolingArchiver<RoomParticipant> participantArchiver;
+
+    /**
+     * Tracks since when data has been waiting to be stored by the archivers of each cluster node.
+     */
+    private ArchiveWatermarks archiveWatermarks;
 
     public static SystemProperty<Boolean> METADATA_ARCHIVING_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
         .setKey("conversation.metadataArchiving")
@@ -181,6 +205,15 @@ public class ConversationManager implements ComponentEventListener{
         .setPlugin(MonitoringConstants.PLUGIN_NAME)
         .build();
     
+    public static SystemProperty<Duration> EXPIRY_CHECK_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.expiry-check-interval")
+        .setDefaultValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setMinValue(Duration.ofMillis(100))
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
     public static SystemProperty<Duration> MAX_AGE = SystemProperty.Builder.ofType(Duration.class)
         .setKey("conversation.maxAge")
         .setDefaultValue(DEFAULT_MAX_AGE)
@@ -233,6 +266,26 @@ public class ConversationManager implements ComponentEventListener{
         conversationArchiver = new ConversationArchivingRunnable( "MonitoringPlugin Conversations" );
         messageArchiver = new MessageArchivingRunnable( "MonitoringPlugin Messages" );
         participantArchiver = new ParticipantArchivingRunnable( "MonitoringPlugin Participants" );
+        archiveWatermarks = new ArchiveWatermarks( this::getPendingSince );
+        conversationArchiver.setWatermarkListener( archiveWatermarks::publish );
+        messageArchiver.setWatermarkListener( archiveWatermarks::publish );
+        participantArchiver.setWatermarkListener( archiveWatermarks::publish );
+        archiveWatermarks.start();
+        if ( SpoolingArchiver.SPOOL_ENABLED.getValue() )
+        {
+            final Path spoolDir = JiveGlobals.getHomePath().resolve( Path.of( MonitoringConstants.NAME, "spool" ) );
+            try
+            {
+                conversationArchiver.startSpool( spoolDir.resolve( "conversations" ), taskEngine );
+                messageArchiver.startSpool( spoolDir.resolve( "messages" ), taskEngine );
+                participantArchiver.startSpool( spoolDir.resolve( "participants" ), taskEngine );
+            }
+            catch ( IOException e )
+            {
+                Log.error( "Unable to open the archive spool in {}. Data that is waiting to be archived is held in memory only.", spoolDir, e );
+                stopSpools();
+            }
+        }
         XMPPServer.getInstance().getArchiveManager().add( conversationArchiver );
         XMPPServer.getInstance().getArchiveManager().add( messageArchiver );
         XMPPServer.getInstance().getArchiveManager().add( participantArchiver );
@@ -242,20 +295,34 @@ public class ConversationManager implements ComponentEventListener{
             JiveGlobals.deleteProperty("conversation.maxTimeDebug");
         }
         
-        // Schedule a task to do conversation cleanup.
+        // Schedule a task to do conversation cleanup. Only conversations of which the expiry deadline has passed are
+        // inspected. Those that turn out to have been active in the meantime are rescheduled.
         cleanupTask = new TimerTask() {
             @Override
             public void run() {
-                for (String key : conversations.keySet()) {
-                    Conversation conversation = conversations.get(key);
-                    long now = System.currentTimeMillis();
-                    if ((now - conversation.getLastActivity().getTime() > idleTime.toMillis()) || (now - conversation.getStartDate().getTime() > maxTime.toMillis())) {
-                        removeConversation(key, conversation, new Date(now));
+                final long now = System.currentTimeMillis();
+                for (String key : expiryQueue.pollDue(now)) {
+                    final Lock lock = conversationLocks.get(key);
+                    lock.lock();
+                    try {
+                        Conversation conversation = conversations.get(key);
+                        if (conversation == null) {
+                            continue;
+                        }
+                        final long deadline = getExpiryDeadline(conversation);
+                        if (deadline < now) {
+                            removeConversation(key, conversation, new Date(now));
+                        } else {
+                            expiryQueue.schedule(key, deadline);
+                        }
+                    } finally {
+                        lock.unlock();
                     }
                 }
             }
         };
-        taskEngine.scheduleAtFixedRate(cleanupTask, Duration.ofMinutes(5), Duration.ofMinutes(5));
+        final Duration expiryCheckInterval = EXPIRY_CHECK_INTERVAL.getValue();
+        taskEngine.scheduleAtFixedRate(cleanupTask, expiryCheckInterval, expiryCheckInterval);
 
         // Schedule a task to do conversation purging.
         maxAgeTask = new TimerTask() {
@@ -263,43 +330,10 @@ public class ConversationManager implements ComponentEventListener{
             public void run() {
                 if (maxAge.toDays() > 0) {
                     // Delete conversations older than maxAge days
-                    Connection con = null;
-                    PreparedStatement pstmt1 = null;
-                    PreparedStatement pstmt2 = null;
-                    PreparedStatement pstmt3 = null;
                     try {
-                        con = DbConnectionManager.getConnection();
-                        pstmt1 = con.prepareStatement(DELETE_CONVERSATION_1);
-                        pstmt2 = con.prepareStatement(DELETE_CONVERSATION_2);
-                        pstmt3 = con.prepareStatement(DELETE_CONVERSATION_3);
-                        Date now = new Date();
-                        Date maxAgeDate = new Date(now.getTime() - maxAge.toMillis());
-                        ArchiveSearch search = new ArchiveSearch();
-                        search.setDateRangeMax(maxAgeDate);
-                        MonitoringPlugin plugin = (MonitoringPlugin) XMPPServer.getInstance().getPluginManager().getPluginByName(MonitoringConstants.PLUGIN_NAME).get();
-                        ArchiveSearcher archiveSearcher = plugin.getArchiveSearcher();
-                        Collection<Conversation> conversations = archiveSearcher.search(search);
-                        int conversationDeleted = 0;
-                        for (Conversation conversation : conversations) {
-                            Log.debug("Deleting: " + conversation.getConversationID() + " with date: " + conversation.getStartDate()
-                                    + " older than: " + maxAgeDate);
-                            pstmt1.setLong(1, conversation.getConversationID());
-                            pstmt1.execute();
-                            pstmt2.setLong(1, conversation.getConversationID());
-                            pstmt2.execute();
-                            pstmt3.setLong(1, conversation.getConversationID());
-                            pstmt3.execute();
-                            conversationDeleted++;
-                        }
-                        if (conversationDeleted > 0) {
-                            Log.info("Deleted " + conversationDeleted + " conversations with date older than: " + maxAgeDate);
-                        }
+                        conversationPurger.purge(Instant.now().minus(maxAge));
                     } catch (Exception e) {
                         Log.error(e.getMessage(), e);
-                    } finally {
-                        DbConnectionManager.closeConnection(pstmt1, con);
-                        DbConnectionManager.closeConnection(pstmt2, con);
-                        DbConnectionManager.closeConnection(pstmt3, con);
                     }
                 }
             }
@@ -338,6 +372,23 @@ public class ConversationManager implements ComponentEventListener{
             }
         };
         StatisticsManager.getInstance().addStatistic(CONVERSATIONS_KEY, conversationStat);
+
+        // Register statistics that show the settings of the message archiver, which can be adjusted at runtime.
+        StatisticsManager.getInstance().addStatistic(ARCHIVER_BATCH_SIZE_KEY, new ArchiverStatistic(ARCHIVER_BATCH_SIZE_KEY) {
+            public double sample() {
+                return messageArchiver.getBatchSize();
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(ARCHIVER_GRACE_PERIOD_KEY, new ArchiverStatistic(ARCHIVER_GRACE_PERIOD_KEY) {
+            public double sample() {
+                return messageArchiver.getFlushGracePeriod().toMillis();
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(ARCHIVER_PURGE_INTERVAL_KEY, new ArchiverStatistic(ARCHIVER_PURGE_INTERVAL_KEY) {
+            public double sample() {
+                return messageArchiver.getFlushInterval().toMillis();
+            }
+        });
         InternalComponentManager.getInstance().addListener(this);
     }
 
@@ -349,6 +400,9 @@ public class ConversationManager implements ComponentEventListener{
         maxAgeTask = null;
         // Remove the statistics.
         StatisticsManager.getInstance().removeStatistic(CONVERSATIONS_KEY);
+        StatisticsManager.getInstance().removeStatistic(ARCHIVER_BATCH_SIZE_KEY);
+        StatisticsManager.getInstance().removeStatistic(ARCHIVER_GRACE_PERIOD_KEY);
+        StatisticsManager.getInstance().removeStatistic(ARCHIVER_PURGE_INTERVAL_KEY);
 
         PropertyEventDispatcher.removeListener(propertyListener);
         propertyListener = null;
@@ -359,11 +413,24 @@ public class ConversationManager implements ComponentEventListener{
         serverInfo = null;
         InternalComponentManager.getInstance().removeListener(this);
 
+        stopSpools();
+        archiveWatermarks.stop();
         XMPPServer.getInstance().getArchiveManager().remove( conversationArchiver );
         XMPPServer.getInstance().getArchiveManager().remove( messageArchiver );
         XMPPServer.getInstance().getArchiveManager().remove( participantArchiver );
     }
 
+    /**
+     * Stops writing data that is to be archived to the spools of the archivers. Data that remains in a spool is
+     * archived when the spool is next started.
+     */
+    private void stopSpools() {
+        final Duration timeout = Duration.ofSeconds(5);
+        messageArchiver.stopSpool(timeout);
+        participantArchiver.stopSpool(timeout);
+        conversationArchiver.stopSpool(timeout);
+    }
+
     /**
      * Returns true if metadata archiving is enabled. Conversation meta-data includes the participants, start date, last activity, and the count of
      * messages sent. When archiving is enabled, all meta-data is written to the database.
@@ -505,6 +572,7 @@ public class ConversationManager implements ComponentEventListener{
         }
         IDLE_TIME.setValue(idleTime);
         this.idleTime = idleTime;
+        rescheduleExpiry();
     }
 
     /**
@@ -532,6 +600,7 @@ public class ConversationManager implements ComponentEventListener{
         }
         MAX_TIME.setValue(maxTime);
         this.maxTime = maxTime;
+        rescheduleExpiry();
     }
 
     public Duration getMaxAge() {
@@ -546,6 +615,15 @@ public class ConversationManager implements ComponentEventListener{
         this.maxAge = maxAge;
     }
 
+    /**
+     * Returns the instance that removes conversations that are older than {@link #getMaxAge()}.
+     *
+     * @return the conversation purger.
+     */
+    public ConversationPurger getConversationPurger() {
+        return conversationPurger;
+    }
+
     public Duration getMaxRetrievable() {
         return maxRetrievable;
     }
@@ -738,7 +816,9 @@ public class ConversationManager implements ComponentEventListener{
     void processMessage(JID sender, JID receiver, String body, String stanza, Date date) {
         Log.trace("Processing message from date {}...", date );
         String conversationKey = getConversationKey(sender, receiver);
-        synchronized (conversationKey.intern()) {
+        final Lock lock = conversationLocks.get(conversationKey);
+        lock.lock();
+        try {
             Conversation conversation = conversations.get(conversationKey);
             // Create a new conversation if necessary.
             if (conversation == null) {
@@ -754,6 +834,7 @@ public class ConversationManager implements ComponentEventListener{
                 Date start = new Date(date.getTime() - 1);
                 conversation = ConversationDAO.createConversation(this, participants, external, start);
                 conversations.put(conversationKey, conversation);
+                expiryQueue.schedule(conversationKey, getExpiryDeadline(conversation));
                 // Notify listeners of the newly created conversation.
                 for (ConversationListener listener : conversationListeners) {
                     listener.conversationCreated(conversation);
@@ -777,6 +858,7 @@ public class ConversationManager implements ComponentEventListener{
                 Date start = new Date(date.getTime() - 1);
                 conversation = ConversationDAO.createConversation(this, participants, external, start);
                 conversations.put(conversationKey, conversation);
+                expiryQueue.schedule(conversationKey, getExpiryDeadline(conversation));
                 // Notify listeners of the newly created conversation.
                 for (ConversationListener listener : conversationListeners) {
                     listener.conversationCreated(conversation);
@@ -797,6 +879,8 @@ public class ConversationManager implements ComponentEventListener{
             for (ConversationListener listener : conversationListeners) {
                 listener.conversationUpdated(conversation, date);
             }
+        } finally {
+            lock.unlock();
         }
         Log.trace("Done processing message from date {}.", date );
     }
@@ -820,7 +904,9 @@ public class ConversationManager implements ComponentEventListener{
     void processRoomMessage(JID roomJID, JID sender, JID receiverIfPM, String nickname, String body, String stanza, Date date) {
         Log.trace("Processing room {} message from date {}.", roomJID, date );
         String conversationKey = getRoomConversationKey(roomJID);
-        synchronized (conversationKey.intern()) {
+        final Lock lock = conversationLocks.get(conversationKey);
+        lock.lock();
+        try {
             Conversation conversation = conversations.get(conversationKey);
             // Create a new conversation if necessary.
             if (conversation == null) {
@@ -828,6 +914,7 @@ public class ConversationManager implements ComponentEventListener{
                 Date start = new Date(date.getTime() - 1);
                 conversation = ConversationDAO.createConversation(this, roomJID, false, start);
                 conversations.put(conversationKey, conversation);
+                expiryQueue.schedule(conversationKey, getExpiryDeadline(conversation));
                 // Notify listeners of the newly created conversation.
                 for (ConversationListener listener : conversationListeners) {
                     listener.conversationCreated(conversation);
@@ -842,6 +929,7 @@ public class ConversationManager implements ComponentEventListener{
                 Date start = new Date(date.getTime() - 1);
                 conversation = ConversationDAO.createConversation(this, roomJID, false, start);
                 conversations.put(conversationKey, conversation);
+                expiryQueue.schedule(conversationKey, getExpiryDeadline(conversation));
                 // Notify listeners of the newly created conversation.
                 for (ConversationListener listener : conversationListeners) {
                     listener.conversationCreated(conversation);
@@ -856,7 +944,7 @@ public class ConversationManager implements ComponentEventListener{
                 JID jid = new JID(roomJID + "/" + nickname);
                 if (body != null) {
                     /* OF-677 - Workaround to prevent null messages being archived */
-                    messageArchiver.archive( new ArchivedMessage(conversation.getConversationID(), sender, jid, date, body, roomArchivingStanzasEnabled ? stanza : "", false, receiverIfPM));
+                    messageArchiver.archive( ArchivedMessage.forRoom(conversation.getConversationID(), sender, jid, date, body, roomArchivingStanzasEnabled ? stanza : "", receiverIfPM));
                 }
             }
             // Notify listeners of the conversation update.
@@ -865,6 +953,8 @@ public class ConversationManager implements ComponentEventListener{
             }
 
             Log.trace("Done processing room {} message from date {}.", roomJID, date );
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -911,14 +1001,29 @@ public class ConversationManager implements ComponentEventListener{
     }
 
     void roomConversationEnded(JID room, Date date) {
-        Conversation conversation = getRoomConversation(room);
-        if (conversation != null) {
-            removeConversation(room.toString(), conversation, date);
+        final String conversationKey = getRoomConversationKey(room);
+        final Lock lock = conversationLocks.get(conversationKey);
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(conversationKey);
+            if (conversation != null) {
+                removeConversation(conversationKey, conversation, date);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Ends a conversation and removes it from the collection of active conversations.
+     *
+     * Callers must hold the lock that {@link #conversationLocks} provides for the key of the conversation.
+     */
     private void removeConversation(String key, Conversation conversation, Date date) {
-        conversations.remove(key);
+        if (conversations.remove(key, conversation)) {
+            // Its deadline is no longer of interest.
+            expiryQueue.cancel(key);
+        }
         // Notify conversation that it has ended
         conversation.conversationEnded(this, date);
         // Notify listeners of the conversation ending.
@@ -927,6 +1032,28 @@ public class ConversationManager implements ComponentEventListener{
         }
     }
 
+    /**
+     * Returns the moment at which a conversation exceeds either the max idle time or the max conversation time,
+     * whichever comes first.
+     *
+     * @param conversation the conversation.
+     * @return the expiry deadline, in milliseconds since the epoch.
+     */
+    private long getExpiryDeadline(Conversation conversation) {
+        return Math.min(conversation.getLastActivity().getTime() + idleTime.toMillis(),
+                        conversation.getStartDate().getTime() + maxTime.toMillis());
+    }
+
+    /**
+     * Re-registers the expiry deadline of all active conversations. This is to be invoked after the max idle time or
+     * max conversation time has changed, as registered deadlines might otherwise be later than intended.
+     */
+    private void rescheduleExpiry() {
+        for (Map.Entry<String, Conversation> entry : conversations.entrySet()) {
+            expiryQueue.schedule(entry.getKey(), getExpiryDeadline(entry.getValue()));
+        }
+    }
+
     /**
      * Removes all recorded data for a particular chat room, including messages, participants and conversations from the
      * database, and associated data from the Lucene indices.
@@ -1026,11 +1153,13 @@ public class ConversationManager implements ComponentEventListener{
      * @return a unique key.
      */
     String getConversationKey(JID jid1, JID jid2) {
-        StringBuilder builder = new StringBuilder();
+        final String bare1 = jid1.toBareJID();
+        final String bare2 = jid2.toBareJID();
+        final StringBuilder builder = new StringBuilder(bare1.length() + bare2.length() + 1);
         if (jid1.compareTo(jid2) < 0) {
-            builder.append(jid1.toBareJID()).append("_").append(jid2.toBareJID());
+            builder.append(bare1).append('_').append(bare2);
         } else {
-            builder.append(jid2.toBareJID()).append("_").append(jid1.toBareJID());
+            builder.append(bare2).append('_').append(bare1);
         }
         return builder.toString();
     }
@@ -1064,6 +1193,23 @@ public class ConversationManager implements ComponentEventListener{
         gateways.remove(componentJID.getDomain());
     }
 
+    void queueConversationCreated(Conversation conversation) {
+        conversationArchiver.archive( conversation );
+    }
+
+    void queueParticipantJoined(Conversation conversation, JID user, ConversationParticipation participation) {
+        // A participation that is added while its conversation is being prepared for storage is offered twice.
+        if (!participation.markQueued()) {
+            return;
+        }
+        RoomParticipant newParticipant = new RoomParticipant();
+        newParticipant.conversationID = conversation.getConversationID();
+        newParticipant.user = user;
+        newParticipant.nickname = participation.getNickname();
+        newParticipant.joined = participation.getJoined();
+        participantArchiver.archive( newParticipant );
+    }
+
     void queueParticipantLeft(Conversation conversation, JID user, ConversationParticipation participation) {
         RoomParticipant updatedParticipant = new RoomParticipant();
         updatedParticipant.conversationID = conversation.getConversationID();
@@ -1085,6 +1231,42 @@ public class ConversationManager implements ComponentEventListener{
     {
         Log.debug( "Looking for ID of the message with stable/unique stanza ID {}", value );
 
+        final Long indexed = StanzaIDStore.getMessageID( owner.toBareJID(), value );
+        if ( indexed != null ) {
+            Log.debug( "Found stable/unique stanza ID {} in message with ID {}.", value, indexed );
+            return indexed;
+        }
+
+        // Until all existing messages have had their stanza IDs recorded, the archive itself needs to be searched.
+        if ( !StanzaIDStore.isComplete() )
+        {
+            final Long scanned = findMessageIdForStableId( owner, value );
+            if ( scanned != null ) {
+                return scanned;
+            }
+        }
+
+        Log.debug( "Unable to find ID of the message with stable/unique stanza ID {}", value );
+
+        try {
+            Log.debug( "Fallback mechanism: parse value as old database identifier: '{}'", value );
+            return Long.parseLong( value );
+        } catch ( NumberFormatException e1 ) {
+            Log.debug( "Fallback failed: value cannot be parsed as the old database identifier." );
+            throw new IllegalArgumentException( "Unable to parse value '" + value + "' as a database identifier." );
+        }
+    }
+
+    /**
+     * Searches the archive for a message that contains a particular XEP-0359-defined Unique and Stable Stanza ID, by
+     * scanning and parsing archived stanzas.
+     *
+     * @param owner The owner of the message to lookup (cannot be null).
+     * @param value The XEP-0359 identifier (cannot be null or empty)
+     * @return A message ID, or null of no match was found.
+     */
+    private static Long findMessageIdForStableId( final JID owner, final String value )
+    {
         Connection connection = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -1127,15 +1309,7 @@ public class ConversationManager implements ComponentEventListener{
             DbConnectionManager.closeConnection( rs, pstmt, connection );
         }
 
-        Log.debug( "Unable to find ID of the message with stable/unique stanza ID {}", value );
-
-        try {
-            Log.debug( "Fallback mechanism: parse value as old database identifier: '{}'", value );
-            return Long.parseLong( value );
-        } catch ( NumberFormatException e1 ) {
-            Log.debug( "Fallback failed: value cannot be parsed as the old database identifier." );
-            throw new IllegalArgumentException( "Unable to parse value '" + value + "' as a database identifier." );
-        }
+        return null;
     }
 
     /**
@@ -1200,10 +1374,96 @@ public class ConversationManager implements ComponentEventListener{
             .orElse( Duration.ZERO );
     }
 
+    /**
+     * Returns a future that is completed when all conversations, messages and participants that were provided to the
+     * archivers of this plugin before the provided instant have been stored in the database, on all cluster nodes.
+     *
+     * Unlike {@link #availabilityETA(Instant)}, this does not query other cluster nodes. Instead, cluster nodes inform
+     * each other when the state of their archivers changes. Data that is archived by the archivers of multi-user chat
+     * services is not taken into account.
+     *
+     * For data on the local node, the data that has been provided at the time of invocation is considered (which
+     * is expected to be close to the provided instant).
+     *
+     * @param instant A date (cannot be null).
+     * @return A future that is completed when the data is available. Cancelling it stops the wait of the caller.
+     */
+    @Nonnull
+    public CompletableFuture<Void> whenArchived( @Nonnull final Instant instant )
+    {
+        final CompletableFuture<?>[] parts = {
+            conversationArchiver.whenStored( conversationArchiver.getSubmitted() ),
+            messageArchiver.whenStored( messageArchiver.getSubmitted() ),
+            participantArchiver.whenStored( participantArchiver.getSubmitted() ),
+            archiveWatermarks.whenStoredOnOtherNodes( instant )
+        };
+        final CompletableFuture<Void> result = CompletableFuture.allOf( parts );
+
+        // Cancelling the combined future does not cancel its parts. Do so explicitly, so that the archivers forget them.
+        result.whenComplete( ( ignored, throwable ) -> {
+            if ( result.isCancelled() )
+            {
+                for ( final CompletableFuture<?> part : parts )
+                {
+                    part.cancel( false );
+                }
+            }
+        } );
+        return result;
+    }
+
+    /**
+     * Processes the state of the archivers of another cluster node, as published by that node.
+     *
+     * @param nodeID the node that published its state (cannot be null).
+     * @param version the version of the state, which increases every time that the node publishes its state.
+     * @param pendingSince the moment since which data has been waiting to be stored on that node, or null when no data
+     *                     is waiting.
+     */
+    public void archiveWatermarkUpdated( @Nonnull final NodeID nodeID, final long version, @Nullable final Instant pendingSince )
+    {
+        final ArchiveWatermarks archiveWatermarks = this.archiveWatermarks;
+        if ( archiveWatermarks != null )
+        {
+            archiveWatermarks.update( nodeID, version, pendingSince );
+        }
+    }
+
+    /**
+     * Returns a moment that is not after the dates of the data that was replayed from the spools of the archivers
+     * when these were started. That data can be older than data that was stored (and indexed) before.
+     *
+     * @return an instant, or null when no data was replayed.
+     */
+    @Nullable
+    public Instant getReplayedSince()
+    {
+        return Stream.of( conversationArchiver, messageArchiver, participantArchiver )
+            .map( SpoolingArchiver::getReplayedSince )
+            .filter( Objects::nonNull )
+            .min( Comparator.naturalOrder() )
+            .orElse( null );
+    }
+
+    /**
+     * Returns the moment since which data has been waiting to be stored by the archivers of this node.
+     *
+     * @return an instant, or null when no data is waiting.
+     */
+    @Nullable
+    private Instant getPendingSince()
+    {
+        return Stream.of( conversationArchiver, messageArchiver, participantArchiver )
+            .map( SpoolingArchiver::getPendingSince )
+            .filter( Objects::nonNull )
+            .min( Comparator.naturalOrder() )
+            .orElse( null );
+    }
+
     /**
      * Stores Conversations in the database.
      */
-    private static class ConversationArchivingRunnable extends Archiver<Conversation>
+    private static class ConversationArchivingRunnable extends SpoolingArchiver<Conversation>
     {
         public static SystemProperty<Integer> CONVERSATION_MAX_WORK_QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
             .setKey("conversation.archiver.conversation.max-work-queue-size")
@@ -1237,21 +1497,90 @@ public class ConversationManager implements ComponentEventListener{
             );
         }
 
-        protected void store( List<Conversation> workQueue )
+        @Nonnull
+        @Override
+        protected ArchiveSpool.Codec<Conversation> getCodec()
+        {
+            return new ArchiveSpool.Codec<Conversation>()
+            {
+                @Override
+                public void encode( @Nonnull final Conversation element, @Nonnull final DataOutput out ) throws IOException
+                {
+                    out.writeLong( element.getConversationID() );
+                    out.writeLong( element.getLastActivity().getTime() );
+                    out.writeInt( element.getMessageCount() );
+
+                    // A conversation that is yet to be inserted needs the values of its row to be restored.
+                    final boolean pendingInsert = element.isPendingInsert();
+                    out.writeBoolean( pendingInsert );
+                    if ( pendingInsert )
+                    {
+                        out.writeBoolean( element.getRoomID() != null );
+                        if ( element.getRoomID() != null )
+                        {
+                            out.writeLong( element.getRoomID() );
+                        }
+                        ArchiveSpool.writeJID( out, element.getRoom() );
+                        out.writeBoolean( element.isExternal() );
+                        out.writeLong( element.getStartDate().getTime() );
+                    }
+                }
+
+                @Nonnull
+                @Override
+                public Conversation decode( @Nonnull final DataInput in ) throws IOException
+                {
+                    final long conversationID = in.readLong();
+                    final Date lastActivity = new Date( in.readLong() );
+                    final int messageCount = in.readInt();
+                    if ( !in.readBoolean() )
+                    {
+                        // Only the values that are updated by this archiver are restored.
+                        final Conversation conversation = new Conversation( null, null, false, lastActivity, lastActivity, messageCount, Collections.emptyMap() );
+                        conversation.setConversationID( conversationID );
+                        return conversation;
+                    }
+
+                    final Long roomID = in.readBoolean() ? in.readLong() : null;
+                    final JID room = ArchiveSpool.readJID( in );
+                    final boolean external = in.readBoolean();
+                    final Date startDate = new Date( in.readLong() );
+                    final Conversation conversation = new Conversation( roomID, room, external, startDate, lastActivity, messageCount, Collections.emptyMap() );
+                    conversation.setConversationID( conversationID );
+                    conversation.setPendingInsert( true );
+                    return conversation;
+                }
+            };
+        }
+
+        @Override
+        protected void spooled( @Nonnull final Conversation data )
+        {
+            // The spooled record holds all values needed to insert the conversation, and the copy that is read back
+            // from the spool is what gets stored.
+            data.setPendingInsert( false );
+        }
+
+        @Override
+        protected boolean doStore( List<Conversation> workQueue, boolean mayExist )
         {
             if ( workQueue.isEmpty() )
             {
-                return;
+                return true;
             }
 
+            // Conversations that were created are queued before any of their updates, so insert those first, in the
+            // same transaction. Conversations that are already in the database are never inserted again.
             Connection con = null;
             PreparedStatement pstmt = null;
+            boolean abortTransaction = true;
 
             try
             {
-                con = DbConnectionManager.getConnection();
-                pstmt = con.prepareStatement(UPDATE_CONVERSATION);
+                con = DbConnectionManager.getTransactionConnection();
+                ConversationDAO.insertIntoDb( con, workQueue );
 
+                pstmt = con.prepareStatement(UPDATE_CONVERSATION);
                 for ( final Conversation work : workQueue )
                 {
                     pstmt.setLong( 1, work.getLastActivity().getTime() );
@@ -1271,22 +1600,35 @@ public class ConversationManager implements ComponentEventListener{
                 {
                     pstmt.executeBatch();
                 }
+                if ( !con.getAutoCommit() )
+                {
+                    con.commit();
+                }
+                abortTransaction = false;
             }
             catch ( Exception e )
             {
+                // The conversations remain pending to be inserted, which causes these to be inserted by the next attempt.
                 Log.error( "Unable to archive conversation data!", e );
+                return false;
             }
             finally
             {
-                DbConnectionManager.closeConnection( pstmt, con );
+                DbConnectionManager.closeTransactionConnection( pstmt, con, abortTransaction );
+            }
+
+            for ( final Conversation work : workQueue )
+            {
+                work.setPendingInsert( false );
             }
+            return true;
         }
     }
 
     /**
      * Stores Messages in the database.
      */
-    private static class MessageArchivingRunnable extends Archiver<ArchivedMessage>
+    private static class MessageArchivingRunnable extends SpoolingArchiver<ArchivedMessage>
     {
         public static SystemProperty<Integer> MESSAGE_MAX_WORK_QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
             .setKey("conversation.archiver.message.max-work-queue-size")
@@ -1310,7 +1652,15 @@ public class ConversationManager implements ComponentEventListener{
             .setDynamic(true)
             .setPlugin(MonitoringConstants.PLUGIN_NAME)
             .build();
-            
+
+        public static SystemProperty<Integer> MESSAGE_MAX_STATEMENT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+            .setKey("conversation.archiver.message.max-statement-size")
+            .setDefaultValue(1024 * 1024)
+            .setMinValue(0)
+            .setDynamic(true)
+            .setPlugin(MonitoringConstants.PLUGIN_NAME)
+            .build();
+
         MessageArchivingRunnable( String id )
         {
             super( id,
@@ -1320,65 +1670,122 @@ public class ConversationManager implements ComponentEventListener{
             );
         }
 
+        @Nonnull
         @Override
-        protected void store( List<ArchivedMessage> workQueue )
+        protected ArchiveSpool.Codec<ArchivedMessage> getCodec()
+        {
+            return new ArchiveSpool.Codec<ArchivedMessage>()
+            {
+                @Override
+                public void encode( @Nonnull final ArchivedMessage element, @Nonnull final DataOutput out ) throws IOException
+                {
+                    out.writeLong( element.getID() );
+                    out.writeLong( element.getConversationID() );
+                    ArchiveSpool.writeJID( out, element.getFromJID() );
+                    ArchiveSpool.writeJID( out, element.getToJID() );
+                    out.writeLong( element.getSentDate().getTime() );
+                    ArchiveSpool.writeString( out, element.getBody() );
+                    ArchiveSpool.writeString( out, element.getStanza() );
+                    out.writeBoolean( element.isRoomEvent() );
+                    ArchiveSpool.writeJID( out, element.getIsPMforJID() );
+                    out.writeBoolean( element.isRoomMessage() );
+                }
+
+                @Nonnull
+                @Override
+                public ArchivedMessage decode( @Nonnull final DataInput in ) throws IOException
+                {
+                    final long id = in.readLong();
+                    final long conversationID = in.readLong();
+                    final JID fromJID = ArchiveSpool.readJID( in );
+                    final JID toJID = ArchiveSpool.readJID( in );
+                    final Date sentDate = new Date( in.readLong() );
+                    final String body = ArchiveSpool.readString( in );
+                    final String stanza = ArchiveSpool.readString( in );
+                    final boolean roomEvent = in.readBoolean();
+                    final JID isPMforJID = ArchiveSpool.readJID( in );
+                    final boolean roomMessage = in.readBoolean();
+                    return new ArchivedMessage( id, conversationID, fromJID, toJID, sentDate, body, stanza, roomEvent, isPMforJID, roomMessage );
+                }
+            };
+        }
+
+        @Override
+        protected boolean doStore( List<ArchivedMessage> workQueue, boolean mayExist )
         {
             if ( workQueue.isEmpty() )
             {
-                return;
+                return true;
             }
 
+            // Write all messages in one transaction, so that a batch that fails can be retried as a whole.
+            List<ArchivedMessage> written = workQueue;
             Connection con = null;
-            PreparedStatement pstmt = null;
-
+            boolean abortTransaction = true;
             try
             {
-                con = DbConnectionManager.getConnection();
-                pstmt = con.prepareStatement(INSERT_MESSAGE);
-
-                for ( final ArchivedMessage work : workQueue )
+                con = DbConnectionManager.getTransactionConnection();
+                if ( mayExist )
                 {
-                    pstmt.setLong(1, work.getID());
-                    pstmt.setLong(2, work.getConversationID());
-                    pstmt.setString(3, work.getFromJID().toBareJID());
-                    pstmt.setString(4, work.getFromJID().getResource());
-                    pstmt.setString(5, work.getToJID().toBareJID());
-                    pstmt.setString(6, work.getToJID().getResource());
-                    pstmt.setLong(7, work.getSentDate().getTime());
-                    DbConnectionManager.setLargeTextField(pstmt, 8, work.getBody());
-                    DbConnectionManager.setLargeTextField(pstmt, 9, work.getStanza());
-                    pstmt.setString(10, work.getIsPMforJID() == null ? null : work.getIsPMforJID().toBareJID());
-
-                    if ( DbConnectionManager.isBatchUpdatesSupported() )
-                    {
-                        pstmt.addBatch();
-                    }
-                    else
-                    {
-                        pstmt.execute();
-                    }
+                    written = ArchivedMessageWriter.withoutExisting( con, workQueue );
                 }
-
-                if ( DbConnectionManager.isBatchUpdatesSupported() )
+                if ( !written.isEmpty() )
                 {
-                    pstmt.executeBatch();
+                    ArchivedMessageWriter.write( con, written, MESSAGE_MAX_STATEMENT_SIZE.getValue() );
+                }
+                if ( !con.getAutoCommit() )
+                {
+                    con.commit();
                 }
+                abortTransaction = false;
             }
             catch ( Exception e )
             {
                 Log.error( "Unable to archive message data!", e );
+                return false;
+            }
+            finally
+            {
+                DbConnectionManager.closeTransactionConnection( con, abortTransaction );
+            }
+
+            if ( written.isEmpty() )
+            {
+                return true;
+            }
+
+            // Record stanza IDs, to allow for RSM references to be resolved without scanning the archive.
+            try
+            {
+                con = DbConnectionManager.getConnection();
+                StanzaIDStore.store( con, written );
+            }
+            catch ( SQLException e )
+            {
+                Log.error( "Unable to record the stanza IDs of {} archived messages.", written.size(), e );
             }
             finally
             {
-                DbConnectionManager.closeConnection( pstmt, con );
+                DbConnectionManager.closeConnection( con );
             }
+
+            // Allow queries for the latest messages of an archive to be answered from memory.
+            RecentMessageCache.add( written );
+
+            // Now that the messages are in the database, make them searchable without waiting for the next index update.
+            final MonitoringPlugin plugin = MonitoringPlugin.getInstance();
+            if ( plugin != null && plugin.getMessageIndexer() != null )
+            {
+                plugin.getMessageIndexer().queueForIndexing( written );
+            }
+            return true;
         }
     }
 
     /**
      * Stores Participants in the database.
      */
-    private static class ParticipantArchivingRunnable extends Archiver<RoomParticipant>
+    private static class ParticipantArchivingRunnable extends SpoolingArchiver<RoomParticipant>
     {
         public static SystemProperty<Integer> PARTICIPANT_MAX_WORK_QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
             .setKey("conversation.archiver.participant.max-work-queue-size")
@@ -1412,54 +1819,178 @@ public class ConversationManager implements ComponentEventListener{
             );
         }
 
-        protected void store( List<RoomParticipant> workQueue )
+        @Nonnull
+        @Override
+        protected ArchiveSpool.Codec<RoomParticipant> getCodec()
+        {
+            return new ArchiveSpool.Codec<RoomParticipant>()
+            {
+                @Override
+                public void encode( @Nonnull final RoomParticipant element, @Nonnull final DataOutput out ) throws IOException
+                {
+                    out.writeLong( element.conversationID );
+                    ArchiveSpool.writeJID( out, element.user );
+                    ArchiveSpool.writeString( out, element.nickname );
+                    out.writeLong( element.joined.getTime() );
+                    out.writeLong( element.left == null ? -1 : element.left.getTime() );
+                }
+
+                @Nonnull
+                @Override
+                public RoomParticipant decode( @Nonnull final DataInput in ) throws IOException
+                {
+                    final RoomParticipant participant = new RoomParticipant();
+                    participant.conversationID = in.readLong();
+                    participant.user = ArchiveSpool.readJID( in );
+                    participant.nickname = ArchiveSpool.readString( in );
+                    participant.joined = new Date( in.readLong() );
+                    final long left = in.readLong();
+                    participant.left = left == -1 ? null : new Date( left );
+                    return participant;
+                }
+            };
+        }
+
+        @Override
+        protected boolean doStore( List<RoomParticipant> workQueue, boolean mayExist )
         {
             if ( workQueue.isEmpty() )
             {
-                return;
+                return true;
             }
 
+            // A participation is always queued as having joined before it is queued as having left. Store all
+            // joins of the batch before its leaves, so that the leaves find the rows that they update.
+            final List<RoomParticipant> joins = new ArrayList<>();
+            final List<RoomParticipant> leaves = new ArrayList<>();
+            for ( final RoomParticipant work : workQueue )
+            {
+                ( work.left == null ? joins : leaves ).add( work );
+            }
+
+            // Write all participations in one transaction, so that a batch that fails can be retried as a whole.
             Connection con = null;
             PreparedStatement pstmt = null;
+            boolean abortTransaction = true;
 
             try
             {
-                con = DbConnectionManager.getConnection();
-                pstmt = con.prepareStatement( UPDATE_PARTICIPANT );
+                con = DbConnectionManager.getTransactionConnection();
+                if ( mayExist )
+                {
+                    // Leaves update rows, which can safely be repeated. Joins that were stored before are not inserted again.
+                    pstmt = con.prepareStatement( PARTICIPANT_EXISTS );
+                    final Iterator<RoomParticipant> iterator = joins.iterator();
+                    while ( iterator.hasNext() )
+                    {
+                        final RoomParticipant work = iterator.next();
+                        pstmt.setLong(1, work.conversationID);
+                        pstmt.setString(2, work.user.toBareJID());
+                        pstmt.setString(3, ConversationDAO.toStoredResource(work.user));
+                        pstmt.setLong(4, work.joined.getTime());
+                        try ( final ResultSet rs = pstmt.executeQuery() )
+                        {
+                            if ( rs.next() )
+                            {
+                                iterator.remove();
+                            }
+                        }
+                    }
+                    DbConnectionManager.closeStatement( pstmt );
+                    pstmt = null;
+                }
 
-                for ( final RoomParticipant work : workQueue )
+                if ( !joins.isEmpty() )
                 {
-                    pstmt.setLong(1, work.left.getTime());
-                    pstmt.setLong(2, work.conversationID);
-                    pstmt.setString(3, work.user.toBareJID());
-                    pstmt.setString(4, ConversationDAO.toStoredResource(work.user));
-                    pstmt.setLong(5, work.joined.getTime());
-                    if ( DbConnectionManager.isBatchUpdatesSupported() )
+                    pstmt = con.prepareStatement( INSERT_PARTICIPANT );
+                    for ( final RoomParticipant work : joins )
                     {
-                        pstmt.addBatch();
+                        pstmt.setLong(1, work.conversationID);
+                        pstmt.setLong(2, work.joined.getTime());
+                        pstmt.setString(3, work.user.toBareJID());
+                        pstmt.setString(4, ConversationDAO.toStoredResource(work.user));
+                        pstmt.setString(5, work.nickname);
+                        if ( DbConnectionManager.isBatchUpdatesSupported() )
+                        {
+                            pstmt.addBatch();
+                        }
+                        else
+                        {
+                            pstmt.execute();
+                        }
                     }
-                    else
+
+                    if ( DbConnectionManager.isBatchUpdatesSupported() )
                     {
-                        pstmt.execute();
+                        pstmt.executeBatch();
                     }
+                    DbConnectionManager.closeStatement( pstmt );
+                    pstmt = null;
                 }
 
-                if ( DbConnectionManager.isBatchUpdatesSupported() )
+                if ( !leaves.isEmpty() )
                 {
-                    pstmt.executeBatch();
+                    pstmt = con.prepareStatement( UPDATE_PARTICIPANT );
+                    for ( final RoomParticipant work : leaves )
+                    {
+                        pstmt.setLong(1, work.left.getTime());
+                        pstmt.setLong(2, work.conversationID);
+                        pstmt.setString(3, work.user.toBareJID());
+                        pstmt.setString(4, ConversationDAO.toStoredResource(work.user));
+                        pstmt.setLong(5, work.joined.getTime());
+                        if ( DbConnectionManager.isBatchUpdatesSupported() )
+                        {
+                            pstmt.addBatch();
+                        }
+                        else
+                        {
+                            pstmt.execute();
+                        }
+                    }
+
+                    if ( DbConnectionManager.isBatchUpdatesSupported() )
+                    {
+                        pstmt.executeBatch();
+                    }
                 }
+                if ( !con.getAutoCommit() )
+                {
+                    con.commit();
+                }
+                abortTransaction = false;
+                return true;
             }
             catch ( Exception e )
             {
                 Log.error( "Unable to archive participant data!", e );
+                return false;
             }
             finally
             {
-                DbConnectionManager.closeConnection( pstmt, con );
+                DbConnectionManager.closeTransactionConnection( pstmt, con, abortTransaction );
             }
         }
     }
 
+    /**
+     * A statistic that samples a setting of an archiver.
+     */
+    private abstract static class ArchiverStatistic extends i18nStatistic {
+
+        ArchiverStatistic(String resourceKey) {
+            super(resourceKey, MonitoringConstants.NAME, Type.amount);
+        }
+
+        public boolean isPartialSample() {
+            return false;
+        }
+
+        @Override
+        public RepresentationSemantics getRepresentationSemantics() {
+            return RepresentationSemantics.SNAPSHOT;
+        }
+    }
+
     /**
      * A PropertyEventListener that tracks updates to Jive properties that are related to conversation tracking and archiving.
      */
@@ -1497,6 +2028,7 @@ public class ConversationManager implements ComponentEventListener{
                     Log.error(e.getMessage(), e);
                     idleTime = DEFAULT_IDLE_TIME;
                 }
+                rescheduleExpiry();
             } else if (property.equals("conversation.maxTime")) {
                 Duration value = Duration.ofMinutes(Long.parseLong((String) params.get("value")));
                 try {
@@ -1505,6 +2037,7 @@ public class ConversationManager implements ComponentEventListener{
                     Log.error(e.getMessage(), e);
                     maxTime = DEFAULT_MAX_TIME;
                 }
+                rescheduleExpiry();
             } else if (property.equals("conversation.maxRetrievable")) {
                 Duration value = Duration.ofDays(Long.parseLong((String) params.get("value")));
                 try {
@@ -1531,6 +2064,7 @@ public class ConversationManager implements ComponentEventListener{
                     Log.info("Monitoring plugin max time reset back to " + DEFAULT_MAX_TIME + " minutes");
                     maxTime = DEFAULT_MAX_TIME;
                 }
+                rescheduleExpiry();
             }
         }
 
@@ -1571,7 +2105,11 @@ public class ConversationManager implements ComponentEventListener{
     private static class RoomParticipant {
         private long conversationID = -1;
         private JID user;
+        private String nickname;
         private Date joined;
+        /**
+         * The date the participant left, or null when this describes a participant that joined.
+         */
         private Date left;
     }
 }
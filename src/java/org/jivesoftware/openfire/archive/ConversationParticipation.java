@@ -20,6 +20,8 @@ import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.Date;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Participation of a user, connected from a specific resource, in a conversation. If
@@ -31,15 +33,26 @@ import java.util.Objects;
 @XmlRootElement
 public class ConversationParticipation {
 
+    private static final AtomicReferenceFieldUpdater<ConversationParticipation, Date> LEFT_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(ConversationParticipation.class, Date.class, "left");
+
+    private static final AtomicIntegerFieldUpdater<ConversationParticipation> QUEUED_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(ConversationParticipation.class, "queued");
+
     @XmlElement
     private Date joined = new Date();
 
     @XmlElement
-    private Date left;
+    private volatile Date left;
 
     @XmlElement
     private String nickname;
 
+    /**
+     * 1 when this participation has been queued for storage in the database, 0 otherwise.
+     */
+    private volatile int queued;
+
     public ConversationParticipation() {
     }
 
@@ -55,6 +68,25 @@ public class ConversationParticipation {
     public void participationEnded(Date left) {
         this.left = left;
     }
+
+    /**
+     * Records the date when the user left the conversation, unless a date was already recorded.
+     *
+     * @param left the date when the user left the conversation.
+     * @return true if the date was recorded, false if the participation had already ended.
+     */
+    boolean participationEndedIfActive(Date left) {
+        return LEFT_UPDATER.compareAndSet(this, null, left);
+    }
+
+    /**
+     * Marks this participation as queued for storage in the database, unless it already was.
+     *
+     * @return true if the participation was marked, false if it had already been queued.
+     */
+    boolean markQueued() {
+        return QUEUED_UPDATER.compareAndSet(this, 0, 1);
+    }
     
     /**
      * Returns the date when the user joined the conversation.
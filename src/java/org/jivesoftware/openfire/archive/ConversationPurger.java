@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.plugin.MonitoringPlugin;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Removes archived conversations (including their messages and participants) that are older than a particular date.
+ *
+ * Conversations are removed oldest-first, in chunks of a configurable size. The messages of a chunk are removed first,
+ * in ranges of their identifiers that each hold a configurable amount of messages. After that, the conversations of the
+ * chunk are removed, with their participants. Every range, and every chunk, is removed in its own transaction, using
+ * set-based statements, so that no single operation holds locks on large parts of the archive, regardless of the size
+ * of the conversations. The rate at which database rows are removed can be limited, to reduce the impact of purging a
+ * large archive on a running system. Documents in the Lucene indices that relate to removed data are scheduled for
+ * deletion as part of the same run.
+ */
+public class ConversationPurger
+{
+    private static final Logger Log = LoggerFactory.getLogger(ConversationPurger.class);
+
+    private static final String SELECT_EXPIRED = "SELECT conversationID, startDate FROM ofConversation WHERE startDate <= ? ORDER BY startDate, conversationID";
+    private static final String SELECT_MESSAGE_IDS = "SELECT messageID FROM ofMessageArchive WHERE messageID IS NOT NULL AND conversationID IN ";
+    private static final String MESSAGES_AFTER = " AND messageID > ? ORDER BY messageID";
+    private static final String MESSAGES_IN_RANGE = " AND messageID > ? AND messageID <= ?";
+    private static final String DELETE_STANZA_IDS = "DELETE FROM ofMessageStanzaID WHERE conversationID IN ";
+    private static final String DELETE_MESSAGES = "DELETE FROM ofMessageArchive WHERE conversationID IN ";
+    private static final String DELETE_PARTICIPANTS = "DELETE FROM ofConParticipant WHERE conversationID IN ";
+    private static final String DELETE_CONVERSATIONS = "DELETE FROM ofConversation WHERE conversationID IN ";
+
+    public static final SystemProperty<Integer> BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.maxAge.purge.batch-size")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MESSAGE_BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.maxAge.purge.message-batch-size")
+        .setDefaultValue(5000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MAX_ROWS_PER_SECOND = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.maxAge.purge.max-rows-per-second")
+        .setDefaultValue(10000)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> PROGRESS_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.maxAge.purge.progress-interval")
+        .setDefaultValue(Duration.ofSeconds(30))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * The maximum amount of messages of which the documents are scheduled for removal from the index, before the
+     * index is updated. This limits the amount of identifiers that are held in memory during a large purge.
+     */
+    private static final int MAX_PENDING_INDEX_DELETIONS = 100_000;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private long pendingIndexDeletions;
+
+    private volatile long purgedConversations;
+    private volatile long purgedRows;
+    private volatile Instant position;
+
+    /**
+     * Removes all conversations that started at or before the provided instant, unless another purge is already in
+     * progress, in which case this method returns immediately.
+     *
+     * @param cutoff the (inclusive) start date of the most recent conversation to remove.
+     * @return the amount of conversations that were removed.
+     */
+    public long purge(@Nonnull final Instant cutoff)
+    {
+        if (!running.compareAndSet(false, true)) {
+            Log.debug("Not purging conversations older than {}, as a purge is already in progress.", cutoff);
+            return 0;
+        }
+
+        purgedConversations = 0;
+        purgedRows = 0;
+        position = null;
+        pendingIndexDeletions = 0;
+        try {
+            final Instant start = Instant.now();
+            Instant lastProgressReport = start;
+            List<Long> chunk;
+            do {
+                final int batchSize = BATCH_SIZE.getValue();
+                chunk = findExpired(cutoff, batchSize);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+
+                if (!delete(chunk)) {
+                    // Do not retry the same chunk indefinitely. The next scheduled run will try again.
+                    break;
+                }
+                purgedConversations += chunk.size();
+
+                if (lastProgressReport.plus(PROGRESS_INTERVAL.getValue()).isBefore(Instant.now())) {
+                    Log.info("Purging conversations older than {}: removed {} conversations ({} database rows) so far. Progressed up to conversations that started at {}.", cutoff, purgedConversations, purgedRows, position);
+                    lastProgressReport = Instant.now();
+                }
+
+                if (chunk.size() < batchSize) {
+                    break;
+                }
+            } while (true);
+
+            if (purgedRows > 0) {
+                updateIndices();
+                Log.info("Deleted {} conversations ({} database rows) with date older than: {}. Duration: {}", purgedConversations, purgedRows, cutoff, Duration.between(start, Instant.now()));
+            }
+            return purgedConversations;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Returns true if a purge is currently in progress.
+     *
+     * @return true if a purge is in progress.
+     */
+    public boolean isRunning()
+    {
+        return running.get();
+    }
+
+    /**
+     * Returns the amount of conversations removed by the current (or last) purge.
+     *
+     * @return an amount of conversations.
+     */
+    public long getPurgedConversations()
+    {
+        return purgedConversations;
+    }
+
+    /**
+     * Returns the amount of database rows (conversations, participants, messages and their stanza IDs) removed by the current (or last) purge.
+     *
+     * @return an amount of database rows.
+     */
+    public long getPurgedRows()
+    {
+        return purgedRows;
+    }
+
+    /**
+     * Returns the start date of the most recent conversation that has been removed by the current (or last) purge.
+     *
+     * @return a start date, or null when no conversation has been removed.
+     */
+    public Instant getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Finds the oldest conversations that started at or before the provided instant.
+     *
+     * @param cutoff the (inclusive) start date of the most recent conversation to find.
+     * @param maxResults the maximum amount of conversations to return.
+     * @return conversation identifiers, ordered by the start date of the conversation (never null).
+     */
+    private List<Long> findExpired(final Instant cutoff, final int maxResults)
+    {
+        final List<Long> result = new ArrayList<>(maxResults);
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SELECT_EXPIRED);
+            pstmt.setMaxRows(maxResults);
+            pstmt.setFetchSize(maxResults);
+            pstmt.setLong(1, cutoff.toEpochMilli());
+            rs = pstmt.executeQuery();
+            long lastStartDate = -1;
+            while (rs.next() && result.size() < maxResults) {
+                result.add(rs.getLong(1));
+                lastStartDate = rs.getLong(2);
+            }
+            if (lastStartDate != -1) {
+                position = Instant.ofEpochMilli(lastStartDate);
+            }
+        } catch (SQLException e) {
+            Log.error("An exception occurred while trying to find conversations older than {}.", cutoff, e);
+        } finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return result;
+    }
+
+    /**
+     * Removes a chunk of conversations: first their messages, in ranges of their identifiers, and then the remaining
+     * rows of the conversations. Documents in the Lucene indices are scheduled for removal after every transaction,
+     * so that an interrupted purge does not leave documents of removed data behind.
+     *
+     * @param conversationIDs identifiers of the conversations to remove (cannot be null or empty).
+     * @return true if the chunk was removed, false if (part of) it could not be removed.
+     */
+    private boolean delete(final List<Long> conversationIDs)
+    {
+        final StringBuilder inList = new StringBuilder(conversationIDs.size() * 8);
+        inList.append('(');
+        for (int i = 0; i < conversationIDs.size(); i++) {
+            if (i > 0) {
+                inList.append(',');
+            }
+            inList.append(conversationIDs.get(i).longValue());
+        }
+        inList.append(')');
+
+        // Messages can be sent after the cutoff, in a conversation that started before it. These are removed with
+        // their conversation, so their documents are removed from the index by identifier rather than by date.
+        long after = Long.MIN_VALUE;
+        while (true) {
+            final int batchSize = MESSAGE_BATCH_SIZE.getValue();
+            final long startOfRange = System.nanoTime();
+            final List<Long> messageIDs = new ArrayList<>();
+            final int rows = deleteMessages(inList.toString(), after, batchSize, messageIDs);
+            if (rows < 0) {
+                return false;
+            }
+            if (messageIDs.isEmpty()) {
+                break;
+            }
+            purgedRows += rows;
+            scheduleIndexDeletion(Collections.emptyList(), messageIDs);
+            throttle(rows, System.nanoTime() - startOfRange);
+
+            if (messageIDs.size() < batchSize) {
+                break;
+            }
+            after = messageIDs.get(messageIDs.size() - 1);
+        }
+
+        final long startOfChunk = System.nanoTime();
+        final List<Long> messageIDs = new ArrayList<>();
+        final int rows = deleteConversations(inList.toString(), messageIDs);
+        if (rows < 0) {
+            return false;
+        }
+        purgedRows += rows;
+        scheduleIndexDeletion(conversationIDs, messageIDs);
+        throttle(rows, System.nanoTime() - startOfChunk);
+        return true;
+    }
+
+    /**
+     * Removes a range of messages of a chunk of conversations, including their stanza IDs, in one transaction.
+     *
+     * @param inList the identifiers of the conversations, as an SQL 'IN' list (cannot be null).
+     * @param after the (exclusive) identifier after which messages are to be removed.
+     * @param maxMessages the maximum amount of messages to remove.
+     * @param messageIDs a collection to which the identifiers of the removed messages are added, in ascending order (cannot be null).
+     * @return the amount of removed rows, or -1 if the messages could not be removed.
+     */
+    private int deleteMessages(final String inList, final long after, final int maxMessages, final List<Long> messageIDs)
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        boolean abortTransaction = true;
+        int rows = 0;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(SELECT_MESSAGE_IDS + inList + MESSAGES_AFTER);
+            pstmt.setMaxRows(maxMessages);
+            pstmt.setFetchSize(Math.min(maxMessages, 1000));
+            pstmt.setLong(1, after);
+            rs = pstmt.executeQuery();
+            while (rs.next() && messageIDs.size() < maxMessages) {
+                messageIDs.add(rs.getLong(1));
+            }
+            DbConnectionManager.closeStatement(rs, pstmt);
+            rs = null;
+            pstmt = null;
+            if (messageIDs.isEmpty()) {
+                abortTransaction = false;
+                return 0;
+            }
+
+            final long until = messageIDs.get(messageIDs.size() - 1);
+            for (final String delete : new String[] { DELETE_STANZA_IDS, DELETE_MESSAGES }) {
+                pstmt = con.prepareStatement(delete + inList + MESSAGES_IN_RANGE);
+                pstmt.setLong(1, after);
+                pstmt.setLong(2, until);
+                rows += pstmt.executeUpdate();
+                DbConnectionManager.closeStatement(pstmt);
+                pstmt = null;
+            }
+            if (!con.getAutoCommit()) {
+                con.commit();
+            }
+            abortTransaction = false;
+        } catch (SQLException e) {
+            messageIDs.clear();
+            Log.error("An exception occurred while trying to remove messages of conversations {}.", inList, e);
+            return -1;
+        } finally {
+            DbConnectionManager.closeStatement(rs, pstmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+
+        // Invalidated only after the removal has been committed, so that the caches cannot be repopulated with the removed data.
+        RecentMessageCache.invalidate();
+        return rows;
+    }
+
+    /**
+     * Removes the stanza IDs, messages, participants and conversation rows of a chunk of conversations, in one
+     * transaction. Most messages have been removed before, by {@link #deleteMessages(String, long, int, List)}. Those
+     * that remain were archived during the purge, or were archived by versions of the plugin that did not record an
+     * identifier for a message.
+     *
+     * @param inList the identifiers of the conversations, as an SQL 'IN' list (cannot be null).
+     * @param messageIDs a collection to which the identifiers of the removed messages are added (cannot be null).
+     * @return the amount of removed rows, or -1 if the chunk could not be removed.
+     */
+    private int deleteConversations(final String inList, final List<Long> messageIDs)
+    {
+        Connection con = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        boolean abortTransaction = true;
+        int rows = 0;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            stmt = con.createStatement();
+
+            rs = stmt.executeQuery(SELECT_MESSAGE_IDS + inList);
+            while (rs.next()) {
+                messageIDs.add(rs.getLong(1));
+            }
+            rs.close();
+
+            if (DbConnectionManager.isBatchUpdatesSupported()) {
+                stmt.addBatch(DELETE_STANZA_IDS + inList);
+                stmt.addBatch(DELETE_MESSAGES + inList);
+                stmt.addBatch(DELETE_PARTICIPANTS + inList);
+                stmt.addBatch(DELETE_CONVERSATIONS + inList);
+                for (final int count : stmt.executeBatch()) {
+                    rows += Math.max(count, 0);
+                }
+            } else {
+                rows += stmt.executeUpdate(DELETE_STANZA_IDS + inList);
+                rows += stmt.executeUpdate(DELETE_MESSAGES + inList);
+                rows += stmt.executeUpdate(DELETE_PARTICIPANTS + inList);
+                rows += stmt.executeUpdate(DELETE_CONVERSATIONS + inList);
+            }
+            if (!con.getAutoCommit()) {
+                con.commit();
+            }
+            abortTransaction = false;
+        } catch (SQLException e) {
+            messageIDs.clear();
+            Log.error("An exception occurred while trying to remove conversations {}.", inList, e);
+            return -1;
+        } finally {
+            DbConnectionManager.closeResultSet(rs);
+            DbConnectionManager.closeStatement(stmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+
+        // Invalidated only after the removal has been committed, so that the caches cannot be repopulated with the removed data.
+        RecentMessageCache.invalidate();
+        ConversationDAO.clearCache();
+        return rows;
+    }
+
+    /**
+     * Pauses the current thread as long as is needed to not exceed the configured maximum amount of rows per second.
+     *
+     * @param rows the amount of rows that were removed.
+     * @param elapsedNanos the time it took to remove the rows.
+     */
+    private void throttle(final int rows, final long elapsedNanos)
+    {
+        final int maxRowsPerSecond = MAX_ROWS_PER_SECOND.getValue();
+        if (maxRowsPerSecond <= 0 || rows <= 0) {
+            return;
+        }
+        final long targetNanos = rows * 1_000_000_000L / maxRowsPerSecond;
+        final long sleepMillis = (targetNanos - elapsedNanos) / 1_000_000L;
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Schedules the removal of documents that relate to purged data from the Lucene indices. The documents are removed
+     * by the next update of those indices.
+     *
+     * @param conversationIDs identifiers of the removed conversations.
+     * @param messageIDs identifiers of the removed messages.
+     */
+    private void scheduleIndexDeletion(final List<Long> conversationIDs, final List<Long> messageIDs)
+    {
+        final MonitoringPlugin plugin = MonitoringPlugin.getInstance();
+        if (plugin == null) {
+            return;
+        }
+        if (plugin.getArchiveIndexer() != null && !conversationIDs.isEmpty()) {
+            plugin.getArchiveIndexer().scheduleForDeletion(new HashSet<>(conversationIDs));
+        }
+        if (plugin.getMessageIndexer() != null && !messageIDs.isEmpty()) {
+            plugin.getMessageIndexer().scheduleForDeletion(messageIDs);
+            pendingIndexDeletions += messageIDs.size();
+            if (pendingIndexDeletions >= MAX_PENDING_INDEX_DELETIONS) {
+                updateIndices();
+            }
+        }
+    }
+
+    /**
+     * Triggers an update of the Lucene indices, which removes the documents that are scheduled for removal.
+     */
+    private void updateIndices()
+    {
+        pendingIndexDeletions = 0;
+        final MonitoringPlugin plugin = MonitoringPlugin.getInstance();
+        if (plugin == null) {
+            return;
+        }
+        if (plugin.getArchiveIndexer() != null) {
+            plugin.getArchiveIndexer().updateIndex();
+        }
+        if (plugin.getMessageIndexer() != null) {
+            plugin.getMessageIndexer().updateIndex();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.openfire.privacy.PrivacyList;
+import org.jivesoftware.openfire.privacy.PrivacyListEventListener;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Caches whether the default privacy list of a local user blocks messages from a particular peer.
+ *
+ * Decisions are discarded when a privacy list of the user is created or modified, and all decisions are discarded when
+ * any privacy list is deleted (as that event does not identify the owner). As privacy list rules can depend on roster
+ * state (subscription and groups), which does not cause privacy list events, each decision also expires after a
+ * configurable amount of time.
+ *
+ * The amount of users, and the amount of peers per user, for which decisions are retained is bounded. Least recently
+ * used entries are evicted first. A decision is not retained when the decisions of its user were discarded while it
+ * was being evaluated, as it may have been based on the privacy list that was replaced.
+ */
+class PrivacyDecisionCache implements PrivacyListEventListener
+{
+    /**
+     * The decisions of each user, by username. Least recently used entries are evicted first. Guarded by itself.
+     */
+    private final Map<String, Owner> decisionsByOwner;
+
+    /**
+     * Incremented whenever all decisions are discarded. Guarded by {@code decisionsByOwner}.
+     */
+    private long epoch;
+
+    private final Duration timeToLive;
+
+    private final int maxPeers;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param timeToLive the duration after which a decision is re-evaluated (cannot be null).
+     * @param maxOwners the maximum amount of users for which decisions are cached.
+     * @param maxPeers the maximum amount of peers for which decisions are cached, per user.
+     */
+    PrivacyDecisionCache( @Nonnull final Duration timeToLive, final int maxOwners, final int maxPeers )
+    {
+        this.timeToLive = timeToLive;
+        this.maxPeers = maxPeers;
+        this.decisionsByOwner = new LinkedHashMap<String, Owner>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry<String, Owner> eldest )
+            {
+                return size() > maxOwners;
+            }
+        };
+    }
+
+    /**
+     * Returns whether a message from the peer is blocked by the default privacy list of the owner, evaluating (and
+     * caching) the decision when no valid cached decision exists.
+     *
+     * @param owner the username of the local user that owns the privacy list (cannot be null).
+     * @param peer the address of the entity that sent the message (cannot be null).
+     * @param evaluation evaluates whether the message is blocked (cannot be null).
+     * @return true if the message is blocked.
+     */
+    boolean isBlocked( @Nonnull final String owner, @Nonnull final JID peer, @Nonnull final BooleanSupplier evaluation )
+    {
+        final long now = System.currentTimeMillis();
+        final Owner decisions;
+        final long epoch;
+        synchronized ( decisionsByOwner )
+        {
+            decisions = decisionsByOwner.computeIfAbsent( owner, key -> new Owner( maxPeers ) );
+            epoch = this.epoch;
+        }
+
+        final long generation;
+        synchronized ( decisions )
+        {
+            final Decision decision = decisions.byPeer.get( peer.toString() );
+            if ( decision != null && decision.expires > now )
+            {
+                return decision.blocked;
+            }
+            generation = decisions.generation;
+        }
+
+        final boolean blocked = evaluation.getAsBoolean();
+
+        // An owner that is evicted or cleared while the decision is evaluated is no longer reachable, which makes
+        // storing the decision in it harmless. An owner that is invalidated remains reachable, but changes generation.
+        synchronized ( decisions )
+        {
+            if ( decisions.generation == generation && isCurrent( epoch ) )
+            {
+                decisions.byPeer.put( peer.toString(), new Decision( blocked, now + timeToLive.toMillis() ) );
+            }
+        }
+        return blocked;
+    }
+
+    private boolean isCurrent( final long epoch )
+    {
+        synchronized ( decisionsByOwner )
+        {
+            return this.epoch == epoch;
+        }
+    }
+
+    /**
+     * Discards all cached decisions of a user.
+     *
+     * @param owner the username of the user (cannot be null).
+     */
+    void invalidate( @Nonnull final String owner )
+    {
+        final Owner decisions;
+        synchronized ( decisionsByOwner )
+        {
+            decisions = decisionsByOwner.get( owner );
+        }
+        if ( decisions != null )
+        {
+            synchronized ( decisions )
+            {
+                decisions.generation++;
+                decisions.byPeer.clear();
+            }
+        }
+    }
+
+    /**
+     * Discards all cached decisions.
+     */
+    void clear()
+    {
+        synchronized ( decisionsByOwner )
+        {
+            epoch++;
+            decisionsByOwner.clear();
+        }
+    }
+
+    @Override
+    public void privacyListCreated( final PrivacyList list )
+    {
+        invalidate( list );
+    }
+
+    @Override
+    public void privacyListDeleting( final String listName )
+    {
+        clear();
+    }
+
+    @Override
+    public void privacyListModified( final PrivacyList list )
+    {
+        invalidate( list );
+    }
+
+    private void invalidate( final PrivacyList list )
+    {
+        if ( list == null || list.getUserJID() == null || list.getUserJID().getNode() == null )
+        {
+            clear();
+        }
+        else
+        {
+            invalidate( list.getUserJID().getNode() );
+        }
+    }
+
+    private static final class Owner
+    {
+        /**
+         * The decisions of this user, by peer address. Least recently used entries are evicted first.
+         */
+        private final Map<String, Decision> byPeer;
+
+        /**
+         * Incremented whenever the decisions of this user are discarded.
+         */
+        private long generation;
+
+        private Owner( final int maxPeers )
+        {
+            this.byPeer = new LinkedHashMap<String, Decision>( 16, 0.75f, true ) {
+                @Override
+                protected boolean removeEldestEntry( final Map.Entry<String, Decision> eldest )
+                {
+                    return size() > maxPeers;
+                }
+            };
+        }
+    }
+
+    private static final class Decision
+    {
+        private final boolean blocked;
+        private final long expires;
+
+        private Decision( final boolean blocked, final long expires )
+        {
+            this.blocked = blocked;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.archive.cluster.ClearRecentMessageCacheTask;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the most recently archived messages of the personal archive of local users in memory, to answer queries for
+ * the latest page of an archive (typically issued by clients that catch up after reconnecting) without querying the
+ * database.
+ *
+ * Messages are added after they have been written to the database. For every owner, the cache tracks a 'floor': a
+ * sent date that is not before that of any message in the personal archive of that owner that is not in the cache.
+ * Messages sent after the floor are therefore known to be complete, which allows the cache to return the exact result
+ * that the database would return, or no result at all (in which case the database is to be queried).
+ *
+ * In a cluster, all messages are archived by the senior member. Other cluster nodes do not use the cache. A node that
+ * becomes the senior member starts with an empty cache. The cache is cleared on all cluster nodes when messages are
+ * removed from the database.
+ */
+public class RecentMessageCache
+{
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("archive.mam.recent-cache.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MESSAGES_PER_OWNER = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.recent-cache.messages-per-owner")
+        .setDefaultValue(50)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> MAX_OWNERS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("archive.mam.recent-cache.max-owners")
+        .setDefaultValue(2000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * The recent messages of all owners. All state of this class is guarded by this instance.
+     */
+    private static final Buffers BUFFERS = new Buffers(MAX_OWNERS::getValue);
+
+    /**
+     * Whether this node was archiving messages when the cache was last used.
+     */
+    private static boolean writer = false;
+
+    /**
+     * Adds messages that have just been written to the database.
+     *
+     * @param messages the messages that were written (cannot be null).
+     */
+    static void add(@Nonnull final Collection<ArchivedMessage> messages)
+    {
+        synchronized (BUFFERS) {
+            if (!isUsable()) {
+                return;
+            }
+            BUFFERS.add(messages, MESSAGES_PER_OWNER.getValue(), RecentMessageCache::getOwners);
+        }
+    }
+
+    /**
+     * Returns the most recent messages from the personal archive of an owner, as they would be returned by a database
+     * query that orders by sent date.
+     *
+     * @param owner the owner of the archive (cannot be null).
+     * @param startDate the start (inclusive) of the period for which to return messages (cannot be null).
+     * @param endDate the end (inclusive) of the period for which to return messages (cannot be null).
+     * @param after an optional message identifier. When provided, only messages with a higher identifier are returned.
+     * @param before an optional message identifier. When provided, only messages with a lower identifier are returned.
+     * @param maxResults the maximum amount of messages to return.
+     * @return messages ordered from old to new, or null if the cache cannot provide the exact result.
+     */
+    @Nullable
+    public static List<ArchivedMessage> getLatest(@Nonnull final JID owner, @Nonnull final Date startDate, @Nonnull final Date endDate, @Nullable final Long after, @Nullable final Long before, final int maxResults)
+    {
+        synchronized (BUFFERS) {
+            if (!isUsable()) {
+                return null;
+            }
+            return BUFFERS.getLatest(owner.toBareJID(), startDate, endDate, after, before, maxResults);
+        }
+    }
+
+    /**
+     * Removes all messages from the cache of this node, and of all other nodes in the cluster. This is to be invoked
+     * after messages have been removed from the database.
+     */
+    public static void invalidate()
+    {
+        clear();
+        if (ClusterManager.isClusteringStarted()) {
+            CacheFactory.doClusterTask(new ClearRecentMessageCacheTask());
+        }
+    }
+
+    /**
+     * Removes all messages from the cache of this node.
+     */
+    public static void clear()
+    {
+        synchronized (BUFFERS) {
+            BUFFERS.clear();
+        }
+    }
+
+    /**
+     * Checks if the cache can be used. When it cannot, or when it could not be used the last time that this was
+     * checked, the cache is cleared. Must be invoked while holding the lock on {@link #BUFFERS}.
+     */
+    private static boolean isUsable()
+    {
+        final boolean usable = ENABLED.getValue() && ClusterManager.isSeniorClusterMember();
+        if (!usable || !writer) {
+            // Messages might have been archived without this cache knowing about it.
+            clear();
+        }
+        writer = usable;
+        return usable;
+    }
+
+    /**
+     * Returns the owners of the personal archives that a message is part of.
+     */
+    @Nonnull
+    private static Set<String> getOwners(@Nonnull final ArchivedMessage message)
+    {
+        final Set<String> owners = new LinkedHashSet<>(2);
+        if (message.getIsPMforJID() != null) {
+            // A private message in a room is part of the archive of its sender and its recipient.
+            addIfLocal(owners, message.getIsPMforJID());
+            addIfLocal(owners, message.getFromJID());
+        } else if (!message.isRoomMessage()) {
+            // A one-on-one message is part of the archive of both participants.
+            addIfLocal(owners, message.getFromJID());
+            addIfLocal(owners, message.getToJID());
+        }
+        return owners;
+    }
+
+    private static void addIfLocal(@Nonnull final Set<String> owners, @Nonnull final JID jid)
+    {
+        if (jid.getNode() != null && XMPPServer.getInstance().isLocal(jid)) {
+            owners.add(jid.toBareJID());
+        }
+    }
+
+    /**
+     * The recent messages per owner (bare JID), and the floor of each owner. Least recently used owners are evicted
+     * first. Instances are not thread-safe.
+     */
+    static final class Buffers
+    {
+        private static final Comparator<ArchivedMessage> ORDER = Comparator.comparing(ArchivedMessage::getSentDate).thenComparingLong(ArchivedMessage::getID);
+
+        private final Map<String, Buffer> buffers;
+
+        /**
+         * The highest sent date of all messages that have been written to the database (or, when the buffers were
+         * cleared after that, the time at which they were cleared). Used as the floor of owners that are added.
+         */
+        private long writtenUntil = System.currentTimeMillis();
+
+        /**
+         * Creates an instance.
+         *
+         * @param maxOwners provides the maximum amount of owners for which messages are retained (cannot be null).
+         */
+        Buffers(@Nonnull final Supplier<Integer> maxOwners)
+        {
+            this.buffers = new LinkedHashMap<String, Buffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Buffer> eldest) {
+                    return size() > maxOwners.get();
+                }
+            };
+        }
+
+        /**
+         * Adds messages that have just been written to the database.
+         *
+         * @param messages the messages that were written (cannot be null).
+         * @param capacity the maximum amount of messages to retain per owner.
+         * @param owners provides the owners (bare JIDs) of the personal archives that a message is part of (cannot be null).
+         */
+        void add(@Nonnull final Collection<ArchivedMessage> messages, final int capacity, @Nonnull final Function<ArchivedMessage, Set<String>> owners)
+        {
+            final long floor = writtenUntil;
+            for (final ArchivedMessage message : messages) {
+                if (message.getBody() == null && message.getStanza() == null) {
+                    continue;
+                }
+                for (final String owner : owners.apply(message)) {
+                    buffers.computeIfAbsent(owner, key -> new Buffer(floor)).add(message, capacity);
+                }
+                writtenUntil = Math.max(writtenUntil, message.getSentDate().getTime());
+            }
+        }
+
+        /**
+         * Returns the most recent messages from the personal archive of an owner.
+         *
+         * @see RecentMessageCache#getLatest(JID, Date, Date, Long, Long, int)
+         */
+        @Nullable
+        List<ArchivedMessage> getLatest(@Nonnull final String owner, @Nonnull final Date startDate, @Nonnull final Date endDate, @Nullable final Long after, @Nullable final Long before, final int maxResults)
+        {
+            if (maxResults <= 0 || maxResults == Integer.MAX_VALUE) {
+                return null;
+            }
+            final Buffer buffer = buffers.get(owner);
+            if (buffer == null) {
+                return null;
+            }
+
+            final List<ArchivedMessage> result = new ArrayList<>(maxResults);
+            for (int i = buffer.messages.size() - 1; i >= 0 && result.size() < maxResults; i--) {
+                final ArchivedMessage message = buffer.messages.get(i);
+                final long sentDate = message.getSentDate().getTime();
+                if (sentDate <= buffer.floor || sentDate < startDate.getTime()) {
+                    break;
+                }
+                if (sentDate > endDate.getTime() || (after != null && message.getID() <= after) || (before != null && message.getID() >= before)) {
+                    continue;
+                }
+                result.add(message);
+            }
+
+            // Messages that are not in the buffer are not sent after its floor. When the requested amount of messages
+            // was found, these therefore cannot be part of the result. Otherwise, the result is only known to be
+            // complete when the requested period starts after the floor.
+            if (result.size() < maxResults && startDate.getTime() <= buffer.floor) {
+                return null;
+            }
+            Collections.reverse(result);
+            return result;
+        }
+
+        /**
+         * Removes all messages.
+         */
+        void clear()
+        {
+            buffers.clear();
+            writtenUntil = Math.max(writtenUntil, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The recent messages of one owner, ordered by sent date.
+     */
+    private static final class Buffer
+    {
+        private final List<ArchivedMessage> messages = new ArrayList<>();
+
+        /**
+         * No message that is not in this buffer has a sent date after this value.
+         */
+        private long floor;
+
+        private Buffer(final long floor)
+        {
+            this.floor = floor;
+        }
+
+        private void add(@Nonnull final ArchivedMessage message, final int capacity)
+        {
+            int index = messages.size();
+            while (index > 0 && Buffers.ORDER.compare(messages.get(index - 1), message) > 0) {
+                index--;
+            }
+            messages.add(index, message);
+            while (messages.size() > capacity) {
+                floor = Math.max(floor, messages.remove(0).getSentDate().getTime());
+            }
+        }
+    }
+}
@@ -0,0 +1,869 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.openfire.reporting.util.TaskEngine;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link Archiver} that can optionally write the data that it is given to an {@link ArchiveSpool}, before that data
+ * is stored in the database.
+ *
+ * When the spool is enabled, threads that provide data only append it to the spool. A separate thread hands the data
+ * over to the archiver, keeping no more than a limited amount of elements in memory. Elements are acknowledged in the
+ * spool after they have been stored, and are replayed when the spool is next opened otherwise (eg: after a crash).
+ * Elements that are replayed might already have been stored before, which implementations are to take into account.
+ *
+ * Elements of the spool that cannot be stored are retried, for up to {@link #SPOOL_RETRY_TIMEOUT}. Elements that can
+ * still not be stored after that, or that cannot be stored while other elements can, are moved to the quarantine of
+ * the spool. This keeps a single element from blocking all that follow it.
+ *
+ * Optionally, the batch size and flush timing of the archiver are adjusted to the time it takes to store batches, by
+ * an {@link AdaptiveBatchController}.
+ *
+ * Every element that is provided to the archiver gets a sequence number. The archiver tracks the sequence number up to
+ * which all elements have been stored (its watermark), which allows callers to wait for data to have been stored
+ * without polling, using {@link #whenStored(long)}.
+ *
+ * @param <E> the type of the data that is archived.
+ */
+abstract class SpoolingArchiver<E> extends Archiver<E>
+{
+    private static final Logger Log = LoggerFactory.getLogger(SpoolingArchiver.class);
+
+    public static final SystemProperty<Boolean> SPOOL_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("conversation.archiver.spool.enabled")
+        .setDefaultValue(false)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> SPOOL_SEGMENT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.archiver.spool.segment-size")
+        .setDefaultValue(16 * 1024 * 1024)
+        .setMinValue(64 * 1024)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> SPOOL_RETRY_TIMEOUT = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.archiver.spool.retry-timeout")
+        .setDefaultValue(Duration.ofMinutes(5))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * The time to wait before retrying to store elements that could not be stored. This doubles after every attempt.
+     */
+    private static final long RETRY_INITIAL_DELAY_MILLIS = 500;
+
+    /**
+     * The maximum time to wait before retrying to store elements that could not be stored.
+     */
+    private static final long RETRY_MAX_DELAY_MILLIS = 30_000;
+
+    /**
+     * Data that is replayed from a spool is provided to the archiver shortly after the dates that it holds were
+     * determined. The dates of that data are assumed to be no more than this before the time at which it was spooled.
+     */
+    private static final Duration REPLAY_MARGIN = Duration.ofMinutes(1);
+
+    public static final SystemProperty<Boolean> ADAPTIVE_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("conversation.archiver.adaptive.enabled")
+        .setDefaultValue(false)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> ADAPTIVE_TARGET_LATENCY = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.archiver.adaptive.target-latency")
+        .setDefaultValue(Duration.ofMillis(250))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> ADAPTIVE_MIN_WORK_QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.archiver.adaptive.min-work-queue-size")
+        .setDefaultValue(50)
+        .setMinValue(1)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Integer> ADAPTIVE_MAX_WORK_QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("conversation.archiver.adaptive.max-work-queue-size")
+        .setDefaultValue(5000)
+        .setMinValue(1)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> ADAPTIVE_MIN_GRACE_PERIOD = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.archiver.adaptive.min-grace-period")
+        .setDefaultValue(Duration.ofMillis(10))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> ADAPTIVE_MAX_GRACE_PERIOD = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.archiver.adaptive.max-grace-period")
+        .setDefaultValue(Duration.ofMillis(250))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> ADAPTIVE_MIN_PURGE_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.archiver.adaptive.min-purge-interval")
+        .setDefaultValue(Duration.ofMillis(250))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    public static final SystemProperty<Duration> ADAPTIVE_MAX_PURGE_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("conversation.archiver.adaptive.max-purge-interval")
+        .setDefaultValue(Duration.ofSeconds(5))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    private final String id;
+    private final AdaptiveBatchController controller;
+    private volatile int maxWorkQueueSize;
+    private volatile Duration maxPurgeInterval;
+    private volatile Duration gracePeriod;
+
+    /**
+     * Elements that have been taken from the spool, and handed over to the archiver, but that have not yet been stored.
+     */
+    private final Set<E> inFlight = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    /**
+     * Elements that were in flight when the spool was stopped. These have already been accounted for as if they were
+     * stored, but might still be stored by the archiver.
+     */
+    private final Set<E> abandoned = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    /**
+     * Elements that were replayed from the spool when it was started, and that have not yet been stored. These might
+     * have been stored before (eg: when the JVM stopped before they were acknowledged).
+     */
+    private final Set<E> replayed = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    /**
+     * Amounts of spool records that could not be decoded, by an element that was handed over to the archiver when these
+     * were read. These records are accounted for as stored when that element is stored, which is not before all
+     * elements that were read before them have been stored. Guarded by {@link #inFlight}.
+     */
+    private final Map<E, Long> discardedWith = new IdentityHashMap<>();
+
+    private volatile ArchiveSpool<E> spool;
+    private volatile boolean draining;
+    private Future<?> drainer;
+
+    /**
+     * The amount of elements that are still to be replayed from the spool. Used by the thread that drains the spool.
+     */
+    private long replaying;
+
+    /**
+     * The last element that was handed over from the spool to the archiver. Used by the thread that drains the spool.
+     */
+    private E lastHandedOver;
+
+    /**
+     * A moment that is not after the dates of the data that was replayed from the spool when it was last started.
+     */
+    private volatile Instant replayedSince;
+
+    /**
+     * The amount of elements that have been provided to this archiver, which is the sequence number of the last one.
+     */
+    private final AtomicLong submitted = new AtomicLong();
+
+    /**
+     * The amount of elements that have been stored. Elements are stored in the order in which they were provided,
+     * which makes this the sequence number up to which all elements have been stored. Modified while holding the lock
+     * on {@link #waiters}.
+     */
+    private volatile long stored;
+
+    /**
+     * Futures that are completed when all elements up to (and including) the sequence number that is their key have
+     * been stored. Futures that are cancelled by their caller are removed.
+     */
+    private final NavigableMap<Long, List<CompletableFuture<Void>>> waiters = new TreeMap<>();
+
+    /**
+     * Sequence numbers and the time at which the element with that number was provided, recorded at most once per
+     * millisecond. Used to determine since when elements have been pending.
+     */
+    private final ConcurrentLinkedDeque<long[]> checkpoints = new ConcurrentLinkedDeque<>();
+    private volatile long lastCheckpoint;
+
+    /**
+     * A moment that is not after the time at which the oldest element that has not been stored was provided. Guarded
+     * by {@link #waiters}.
+     */
+    private long pendingSince;
+
+    private volatile Runnable watermarkListener;
+
+    SpoolingArchiver( String id, int maxWorkQueueSize, Duration maxPurgeInterval, Duration gracePeriod )
+    {
+        super( id, maxWorkQueueSize, maxPurgeInterval, gracePeriod );
+        this.id = id;
+        this.maxWorkQueueSize = maxWorkQueueSize;
+        this.maxPurgeInterval = maxPurgeInterval;
+        this.gracePeriod = gracePeriod;
+
+        if ( ADAPTIVE_ENABLED.getValue() )
+        {
+            final AdaptiveBatchController.Bounds bounds = new AdaptiveBatchController.Bounds(
+                ADAPTIVE_MIN_WORK_QUEUE_SIZE.getValue(), ADAPTIVE_MAX_WORK_QUEUE_SIZE.getValue(),
+                ADAPTIVE_MIN_GRACE_PERIOD.getValue(), ADAPTIVE_MAX_GRACE_PERIOD.getValue(),
+                ADAPTIVE_MIN_PURGE_INTERVAL.getValue(), ADAPTIVE_MAX_PURGE_INTERVAL.getValue() );
+            controller = new AdaptiveBatchController( bounds, maxWorkQueueSize, gracePeriod, maxPurgeInterval );
+            apply();
+        }
+        else
+        {
+            controller = null;
+        }
+    }
+
+    /**
+     * Returns the maximum amount of elements that are stored in one batch.
+     *
+     * @return an amount of elements.
+     */
+    int getBatchSize()
+    {
+        return maxWorkQueueSize;
+    }
+
+    /**
+     * Returns the time that the archiver waits for more data, before storing a batch.
+     *
+     * @return a duration (never null).
+     */
+    @Nonnull
+    Duration getFlushGracePeriod()
+    {
+        return gracePeriod;
+    }
+
+    /**
+     * Returns the maximum time between storing two batches.
+     *
+     * @return a duration (never null).
+     */
+    @Nonnull
+    Duration getFlushInterval()
+    {
+        return maxPurgeInterval;
+    }
+
+    /**
+     * Returns the sequence number of the last element that was provided to this archiver.
+     *
+     * @return a sequence number.
+     */
+    long getSubmitted()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * Returns a future that is completed when all elements up to (and including) the provided sequence number have
+     * been stored.
+     *
+     * @param sequence the sequence number of an element, as obtained from {@link #getSubmitted()}.
+     * @return a future (never null). Cancelling it stops the wait of the caller only.
+     */
+    @Nonnull
+    CompletableFuture<Void> whenStored( final long sequence )
+    {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized ( waiters )
+        {
+            if ( stored >= sequence )
+            {
+                return CompletableFuture.completedFuture( null );
+            }
+            waiters.computeIfAbsent( sequence, k -> new ArrayList<>() ).add( future );
+        }
+        future.whenComplete( ( result, throwable ) -> {
+            if ( future.isCancelled() )
+            {
+                synchronized ( waiters )
+                {
+                    final List<CompletableFuture<Void>> futures = waiters.get( sequence );
+                    if ( futures != null && futures.remove( future ) && futures.isEmpty() )
+                    {
+                        waiters.remove( sequence );
+                    }
+                }
+            }
+        } );
+        return future;
+    }
+
+    /**
+     * Returns the amount of futures that are waiting for elements to be stored.
+     *
+     * @return an amount of futures.
+     */
+    int getWaiterCount()
+    {
+        synchronized ( waiters )
+        {
+            int count = 0;
+            for ( final List<CompletableFuture<Void>> futures : waiters.values() )
+            {
+                count += futures.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns a moment that is not after the time at which the oldest element that has not yet been stored was
+     * provided to this archiver.
+     *
+     * @return an instant, or null when all elements have been stored.
+     */
+    @Nullable
+    Instant getPendingSince()
+    {
+        synchronized ( waiters )
+        {
+            if ( stored >= submitted.get() )
+            {
+                return null;
+            }
+            long[] checkpoint;
+            while ( ( checkpoint = checkpoints.peekFirst() ) != null && checkpoint[0] <= stored + 1 )
+            {
+                pendingSince = checkpoint[1];
+                checkpoints.pollFirst();
+            }
+            return Instant.ofEpochMilli( pendingSince );
+        }
+    }
+
+    /**
+     * Registers a listener that is invoked when this archiver changes from having stored all elements to having
+     * pending elements, and after elements have been stored.
+     *
+     * @param listener the listener (can be null to remove the listener).
+     */
+    void setWatermarkListener( @Nullable final Runnable listener )
+    {
+        this.watermarkListener = listener;
+    }
+
+    /**
+     * Returns the codec that is used to write elements to the spool, and read them back.
+     *
+     * @return a codec (never null).
+     */
+    @Nonnull
+    protected abstract ArchiveSpool.Codec<E> getCodec();
+
+    /**
+     * Invoked after an element has been written to the spool. From this point on, the element that is stored is the
+     * one that is read back from the spool, rather than the instance that was provided to {@link #archive(Object)}.
+     *
+     * The default implementation does nothing.
+     *
+     * @param data the element that was written to the spool (cannot be null).
+     */
+    protected void spooled( @Nonnull final E data )
+    {
+    }
+
+    /**
+     * Stores a batch of elements in the database. Elements are to be stored either all, or none at all.
+     *
+     * @param workQueue the elements to store (cannot be null).
+     * @param mayExist true if some of the elements might already have been stored, in which case these are not to be stored again.
+     * @return true if the elements were stored, false if they could not be stored.
+     */
+    protected abstract boolean doStore( List<E> workQueue, boolean mayExist );
+
+    /**
+     * Returns a moment that is not after the dates of the data that was replayed from the spool when it was last
+     * started. Such data might be older than data that has already been stored.
+     *
+     * @return an instant, or null when no data was replayed.
+     */
+    @Nullable
+    Instant getReplayedSince()
+    {
+        return replayedSince;
+    }
+
+    /**
+     * Starts writing elements to a spool, replaying any elements that it holds from a previous run.
+     *
+     * @param directory the directory of the spool (cannot be null).
+     * @param taskEngine used to hand elements from the spool over to the archiver (cannot be null).
+     * @throws IOException when the spool cannot be opened.
+     */
+    synchronized void startSpool( @Nonnull final Path directory, @Nonnull final TaskEngine taskEngine ) throws IOException
+    {
+        if ( spool != null )
+        {
+            return;
+        }
+        spool = new ArchiveSpool<>( directory, getCodec(), SPOOL_SEGMENT_SIZE.getValue() );
+
+        // Elements that are replayed from the spool are provided to the archiver without passing archive().
+        final long replayed = spool.getPendingCount();
+        replaying = replayed;
+        lastHandedOver = null;
+        if ( replayed > 0 )
+        {
+            final Instant oldest = spool.getOldestPending();
+            submitted( replayed, oldest == null ? System.currentTimeMillis() : oldest.toEpochMilli() );
+            replayedSince = ( oldest == null ? Instant.now() : oldest ).minus( REPLAY_MARGIN );
+        }
+        draining = true;
+        drainer = taskEngine.submit( this::drain );
+    }
+
+    /**
+     * Stops writing elements to the spool. Elements that have already been handed over to the archiver are given
+     * the opportunity to be stored. Elements that are not stored before the timeout lapses, or that have not been
+     * handed over, are replayed when the spool is next started.
+     *
+     * @param timeout the maximum amount of time to wait (cannot be null).
+     */
+    synchronized void stopSpool( @Nonnull final Duration timeout )
+    {
+        final ArchiveSpool<E> spool = this.spool;
+        if ( spool == null )
+        {
+            return;
+        }
+
+        final long deadline = System.currentTimeMillis() + timeout.toMillis();
+        draining = false;
+        try
+        {
+            drainer.get( timeout.toMillis(), TimeUnit.MILLISECONDS );
+            while ( !inFlight.isEmpty() && System.currentTimeMillis() < deadline )
+            {
+                Thread.sleep( 10 );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( ExecutionException | TimeoutException e )
+        {
+            Log.warn( "The spool of archiver '{}' did not stop cleanly.", id, e );
+        }
+
+        this.spool = null;
+        final long remaining = spool.getPendingCount();
+        spool.close();
+        if ( !inFlight.isEmpty() )
+        {
+            Log.info( "{} elements of archiver '{}' were not stored before the spool was closed. These will be archived again when the spool is next started.", inFlight.size(), id );
+        }
+
+        // Elements that remain in the spool are not stored until it is next started. Do not keep anyone waiting for them.
+        long unfinished;
+        synchronized ( inFlight )
+        {
+            unfinished = inFlight.size();
+            abandoned.addAll( inFlight );
+            inFlight.clear();
+            for ( final long discarded : discardedWith.values() )
+            {
+                unfinished += discarded;
+            }
+            discardedWith.clear();
+        }
+        stored( remaining + unfinished );
+    }
+
+    @Override
+    public void archive( final E data )
+    {
+        submitted( 1, System.currentTimeMillis() );
+
+        final ArchiveSpool<E> spool = this.spool;
+        if ( spool != null )
+        {
+            try
+            {
+                spool.append( data );
+                spooled( data );
+                return;
+            }
+            catch ( IOException e )
+            {
+                Log.warn( "Unable to write data to the spool of archiver '{}'. This data is held in memory only.", id, e );
+            }
+        }
+        super.archive( data );
+    }
+
+    @Override
+    protected final void store( final List<E> workQueue )
+    {
+        boolean mayExist = false;
+        if ( !replayed.isEmpty() )
+        {
+            for ( final E element : workQueue )
+            {
+                mayExist |= replayed.remove( element );
+            }
+        }
+
+        final long start = System.nanoTime();
+        final boolean success = doStore( workQueue, mayExist );
+        final Duration latency = Duration.ofNanos( System.nanoTime() - start );
+        if ( !success )
+        {
+            retry( workQueue );
+        }
+
+        // All elements that were read from the spool have now been stored, or moved to its quarantine.
+        int spooled = 0;
+        long count = 0;
+        synchronized ( inFlight )
+        {
+            for ( final E element : workQueue )
+            {
+                if ( inFlight.remove( element ) )
+                {
+                    spooled++;
+                    count++;
+                    final Long discarded = discardedWith.remove( element );
+                    if ( discarded != null )
+                    {
+                        count += discarded;
+                    }
+                }
+                else if ( abandoned.isEmpty() || !abandoned.remove( element ) )
+                {
+                    count++;
+                }
+            }
+        }
+
+        final ArchiveSpool<E> spool = this.spool;
+        if ( spool != null && spooled > 0 )
+        {
+            spool.acknowledge( spooled );
+        }
+        stored( count );
+
+        if ( controller != null && !workQueue.isEmpty() )
+        {
+            final long backlog = spool == null ? 0 : spool.getPendingCount();
+            if ( controller.observe( workQueue.size(), latency, backlog, ADAPTIVE_TARGET_LATENCY.getValue() ) )
+            {
+                apply();
+                Log.debug( "Archiver '{}' now stores batches of up to {} elements, with a grace period of {} and a maximum purge interval of {} (average time to store a batch: {}).",
+                    id, maxWorkQueueSize, gracePeriod, maxPurgeInterval, controller.getLatency() );
+            }
+        }
+    }
+
+    /**
+     * Retries to store the elements of a batch that could not be stored, that were read from the spool. The spool
+     * acknowledges elements in the order in which they were read, so these are retried until they are stored, or moved
+     * to the quarantine. Elements that were not read from the spool are not retried, as these cannot be kept when the
+     * database is unavailable for a longer period of time.
+     *
+     * @param workQueue the batch that could not be stored (cannot be null).
+     */
+    private void retry( @Nonnull final List<E> workQueue )
+    {
+        final List<E> remaining = new ArrayList<>();
+        for ( final E element : workQueue )
+        {
+            if ( inFlight.contains( element ) )
+            {
+                remaining.add( element );
+            }
+        }
+        if ( remaining.size() < workQueue.size() )
+        {
+            Log.warn( "Archiver '{}' was unable to store {} elements that were not written to its spool. These are lost.", id, workQueue.size() - remaining.size() );
+        }
+
+        final long deadline = System.currentTimeMillis() + SPOOL_RETRY_TIMEOUT.getValue().toMillis();
+        long delay = RETRY_INITIAL_DELAY_MILLIS;
+        while ( true )
+        {
+            // Elements that were abandoned when the spool was stopped are replayed when it is next started.
+            remaining.removeIf( element -> !inFlight.contains( element ) );
+            if ( remaining.isEmpty() )
+            {
+                return;
+            }
+            if ( System.currentTimeMillis() + delay > deadline )
+            {
+                break;
+            }
+            try
+            {
+                Thread.sleep( delay );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            delay = Math.min( delay * 2, RETRY_MAX_DELAY_MILLIS );
+
+            if ( doStore( remaining, true ) )
+            {
+                return;
+            }
+
+            if ( remaining.size() > 1 )
+            {
+                // Find out which elements cannot be stored.
+                final List<E> failed = new ArrayList<>();
+                for ( final E element : remaining )
+                {
+                    if ( !doStore( Collections.singletonList( element ), true ) )
+                    {
+                        failed.add( element );
+                    }
+                }
+                if ( failed.size() < remaining.size() )
+                {
+                    // Other elements could be stored, so the problem lies with these elements, rather than with the database.
+                    quarantine( failed );
+                    return;
+                }
+            }
+        }
+        quarantine( remaining );
+    }
+
+    /**
+     * Moves elements that were read from the spool, but that cannot be stored, to the quarantine of the spool.
+     *
+     * @param elements the elements (cannot be null).
+     */
+    private void quarantine( @Nonnull final List<E> elements )
+    {
+        final ArchiveSpool<E> spool = this.spool;
+        if ( spool == null )
+        {
+            return;
+        }
+        for ( final E element : elements )
+        {
+            try
+            {
+                spool.quarantine( element );
+            }
+            catch ( IOException e )
+            {
+                Log.error( "Unable to move an element of archiver '{}' to the quarantine of its spool. This element is lost.", id, e );
+            }
+        }
+        Log.error( "Archiver '{}' was unable to store {} elements that were read from its spool. These have been moved to {}.", id, elements.size(), spool.getQuarantineFile() );
+    }
+
+    /**
+     * Records that elements were provided to this archiver.
+     *
+     * @param count the amount of elements.
+     * @param timestamp the time at which the first of these elements was provided, in milliseconds since the epoch.
+     */
+    private void submitted( final long count, final long timestamp )
+    {
+        final long sequence = submitted.addAndGet( count ) - count + 1;
+        if ( timestamp != lastCheckpoint )
+        {
+            lastCheckpoint = timestamp;
+            checkpoints.add( new long[] { sequence, timestamp } );
+        }
+
+        final Runnable listener = watermarkListener;
+        if ( listener != null && sequence == stored + 1 )
+        {
+            // All earlier elements had been stored: this archiver now has pending elements.
+            listener.run();
+        }
+    }
+
+    /**
+     * Records that elements were stored, completing the futures of those that are waiting for these.
+     *
+     * @param count the amount of elements.
+     */
+    private void stored( final long count )
+    {
+        if ( count == 0 )
+        {
+            return;
+        }
+        final List<CompletableFuture<Void>> completed;
+        synchronized ( waiters )
+        {
+            stored += count;
+            final Map<Long, List<CompletableFuture<Void>>> due = waiters.headMap( stored, true );
+            completed = new ArrayList<>();
+            due.values().forEach( completed::addAll );
+            due.clear();
+        }
+        completed.forEach( future -> future.complete( null ) );
+
+        final Runnable listener = watermarkListener;
+        if ( listener != null )
+        {
+            listener.run();
+        }
+    }
+
+    /**
+     * Applies the settings that are determined by the controller to the archiver.
+     */
+    private void apply()
+    {
+        maxWorkQueueSize = controller.getBatchSize();
+        gracePeriod = controller.getGracePeriod();
+        maxPurgeInterval = controller.getPurgeInterval();
+        setMaxWorkQueueSize( maxWorkQueueSize );
+        setGracePeriod( gracePeriod );
+        setMaxPurgeInterval( maxPurgeInterval );
+    }
+
+    @Override
+    public Duration availabilityETAOnLocalNode( final Instant instant )
+    {
+        final Duration eta = super.availabilityETAOnLocalNode( instant );
+        final ArchiveSpool<E> spool = this.spool;
+        if ( eta.isZero() && spool != null )
+        {
+            // Data that is still in the spool has not been handed over to the archiver yet.
+            final Instant oldest = spool.getOldestPending();
+            if ( oldest != null && !oldest.isAfter( instant ) )
+            {
+                return gracePeriod.isZero() ? Duration.ofMillis( 1 ) : gracePeriod;
+            }
+        }
+        return eta;
+    }
+
+    /**
+     * Hands elements over from the spool to the archiver, for as long as the spool is enabled.
+     */
+    private void drain()
+    {
+        final ArchiveSpool<E> spool = this.spool;
+        while ( draining )
+        {
+            try
+            {
+                final int capacity = Math.max( 1, maxWorkQueueSize ) * 2 - inFlight.size();
+                if ( capacity <= 0 )
+                {
+                    // The archiver is behind. Leave the remaining elements in the spool, rather than in memory.
+                    Thread.sleep( 10 );
+                    continue;
+                }
+
+                final List<E> elements = spool.poll( capacity, 100 );
+                final long discarded = spool.takeDiscarded();
+                boolean accounted = discarded == 0;
+                synchronized ( inFlight )
+                {
+                    inFlight.addAll( elements );
+                    if ( !accounted )
+                    {
+                        // Records that could not be decoded are accounted for when the elements before them have been stored.
+                        final E next = elements.isEmpty() ? lastHandedOver : elements.get( elements.size() - 1 );
+                        if ( next != null && inFlight.contains( next ) )
+                        {
+                            discardedWith.merge( next, discarded, Long::sum );
+                            accounted = true;
+                        }
+                    }
+                }
+                if ( !accounted )
+                {
+                    stored( discarded );
+                }
+
+                for ( final E element : elements )
+                {
+                    if ( replaying > 0 )
+                    {
+                        replayed.add( element );
+                        replaying--;
+                    }
+                    lastHandedOver = element;
+                    super.archive( element );
+                }
+                replaying = Math.max( 0, replaying - discarded );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch ( RuntimeException e )
+            {
+                Log.warn( "An unexpected exception occurred while handing over spooled data to archiver '{}'.", id, e );
+            }
+        }
+    }
+}
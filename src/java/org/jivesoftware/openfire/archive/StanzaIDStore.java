@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maintains the ofMessageStanzaID table, which maps XEP-0359 'Unique and Stable Stanza IDs' to the database identifier
+ * of the archived message that they were found in.
+ *
+ * Stanza IDs are extracted when a message is written to the archive. This allows references that are used in RSM
+ * 'after' and 'before' elements to be resolved using an index lookup, rather than by scanning and parsing archived
+ * stanzas. Messages that were archived before this table existed are added by
+ * {@link com.reucon.openfire.plugin.archive.impl.DatabaseUpdateStanzaIDsTask}. Until that has finished, callers
+ * should fall back to scanning the archive when a lookup does not yield a result.
+ */
+public class StanzaIDStore
+{
+    private static final Logger Log = LoggerFactory.getLogger(StanzaIDStore.class);
+
+    public static final String NAMESPACE = "urn:xmpp:sid:0";
+
+    /**
+     * The maximum length of the values that can be stored (as defined by the database schema).
+     */
+    private static final int MAX_LENGTH = 255;
+
+    private static final String INSERT_STANZA_ID = "INSERT INTO ofMessageStanzaID (messageID, conversationID, ownerJID, stanzaID) VALUES (?,?,?,?)";
+    private static final String SELECT_MESSAGE_ID = "SELECT messageID FROM ofMessageStanzaID WHERE ownerJID = ? AND stanzaID = ?";
+
+    public static final SystemProperty<Boolean> BACKFILL_COMPLETED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("conversation.database.stanza-ids-have-been-indexed")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin(MonitoringConstants.PLUGIN_NAME)
+        .build();
+
+    /**
+     * Returns true when all messages in the archive are known to have their stanza IDs recorded in the database table.
+     *
+     * @return true if the table is complete.
+     */
+    public static boolean isComplete()
+    {
+        return BACKFILL_COMPLETED.getValue();
+    }
+
+    /**
+     * Returns the database identifier of the message in which a stanza ID, assigned by a particular entity, was found.
+     *
+     * @param owner The (bare) JID of the entity that assigned the stanza ID (cannot be null).
+     * @param stanzaID The stanza ID (cannot be null).
+     * @return A message identifier, or null if the stanza ID is not known.
+     */
+    @Nullable
+    public static Long getMessageID(@Nonnull final String owner, @Nonnull final String stanzaID)
+    {
+        if (owner.length() > MAX_LENGTH || stanzaID.length() > MAX_LENGTH) {
+            return null;
+        }
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SELECT_MESSAGE_ID);
+            pstmt.setString(1, owner);
+            pstmt.setString(2, stanzaID);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            Log.warn("An exception occurred while trying to find the message ID for stanza ID '{}' of '{}'.", stanzaID, owner, e);
+        } finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return null;
+    }
+
+    /**
+     * Records the stanza IDs that are found in a collection of archived messages, using the provided connection.
+     *
+     * Failures are logged, but not propagated: the messages themselves have already been archived at this point, and
+     * are not to be affected by a failure to record their stanza IDs.
+     *
+     * @param con The database connection to use (cannot be null).
+     * @param messages The messages for which to record stanza IDs (cannot be null).
+     */
+    static void store(@Nonnull final Connection con, @Nonnull final Collection<ArchivedMessage> messages)
+    {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = con.prepareStatement(INSERT_STANZA_ID);
+            int batched = 0;
+            for (final ArchivedMessage message : messages) {
+                for (final StanzaID stanzaID : extract(message.getStanza())) {
+                    if (add(pstmt, message.getID(), message.getConversationID(), stanzaID)) {
+                        batched++;
+                    }
+                }
+            }
+            if (batched > 0 && DbConnectionManager.isBatchUpdatesSupported()) {
+                pstmt.executeBatch();
+            }
+        } catch (SQLException e) {
+            Log.error("Unable to record the stanza IDs of {} archived messages.", messages.size(), e);
+        } finally {
+            DbConnectionManager.closeStatement(pstmt);
+        }
+    }
+
+    /**
+     * Adds a stanza ID to a statement that was prepared using the INSERT statement of this class. The statement is
+     * executed directly when the database does not support batch updates.
+     *
+     * @param pstmt The statement (cannot be null).
+     * @param messageID The database identifier of the message.
+     * @param conversationID The database identifier of the conversation that the message is part of.
+     * @param stanzaID The stanza ID (cannot be null).
+     * @return true if the stanza ID was added to the batch, false if the statement was executed directly.
+     * @throws SQLException On any problem interacting with the database.
+     */
+    public static boolean add(@Nonnull final PreparedStatement pstmt, final long messageID, final long conversationID, @Nonnull final StanzaID stanzaID) throws SQLException
+    {
+        pstmt.setLong(1, messageID);
+        pstmt.setLong(2, conversationID);
+        pstmt.setString(3, stanzaID.getBy());
+        pstmt.setString(4, stanzaID.getId());
+        if (DbConnectionManager.isBatchUpdatesSupported()) {
+            pstmt.addBatch();
+            return true;
+        } else {
+            pstmt.execute();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the INSERT statement that is used to record stanza IDs, which is to be used with {@link #add}.
+     *
+     * @return An SQL statement.
+     */
+    @Nonnull
+    public static String getInsertStatement()
+    {
+        return INSERT_STANZA_ID;
+    }
+
+    /**
+     * Extracts all XEP-0359 stanza IDs from a serialized message stanza.
+     *
+     * Stanza IDs with values that are too long to be stored are skipped.
+     *
+     * @param stanza The XML representation of a message stanza (can be null).
+     * @return The stanza IDs that were found (never null).
+     */
+    @Nonnull
+    public static List<StanzaID> extract(@Nullable final String stanza)
+    {
+        // Avoid the cost of parsing for the majority of stanzas, that do not contain any stanza ID.
+        if (stanza == null || !stanza.contains(NAMESPACE)) {
+            return Collections.emptyList();
+        }
+
+        final Document document;
+        try {
+            document = DocumentHelper.parseText(stanza);
+        } catch (DocumentException e) {
+            Log.debug("Unable to parse archived stanza to extract stanza IDs.", e);
+            return Collections.emptyList();
+        }
+
+        final List<StanzaID> result = new ArrayList<>(2);
+        for (final Element element : document.getRootElement().elements("stanza-id")) {
+            if (!NAMESPACE.equals(element.getNamespaceURI())) {
+                continue;
+            }
+            final String by = element.attributeValue("by");
+            final String id = element.attributeValue("id");
+            if (by == null || by.isEmpty() || id == null || id.isEmpty()) {
+                continue;
+            }
+            if (by.length() > MAX_LENGTH || id.length() > MAX_LENGTH) {
+                Log.debug("Not recording stanza ID '{}' of '{}', as it exceeds the maximum length of {} characters.", id, by, MAX_LENGTH);
+                continue;
+            }
+            result.add(new StanzaID(by, id));
+        }
+        return result;
+    }
+
+    /**
+     * A stanza ID, and the entity that assigned it.
+     */
+    public static class StanzaID
+    {
+        @Nonnull
+        private final String by;
+
+        @Nonnull
+        private final String id;
+
+        public StanzaID(@Nonnull final String by, @Nonnull final String id)
+        {
+            this.by = by;
+            this.id = id;
+        }
+
+        @Nonnull
+        public String getBy()
+        {
+            return by;
+        }
+
+        @Nonnull
+        public String getId()
+        {
+            return id;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "StanzaID{by='" + by + "', id='" + id + "'}";
+        }
+    }
+}
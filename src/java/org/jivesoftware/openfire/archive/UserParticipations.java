@@ -24,7 +24,7 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -55,12 +55,8 @@ public class UserParticipations {
 
     public UserParticipations(boolean roomParticipation) {
         this.roomParticipation = roomParticipation;
-        if (roomParticipation) {
-            participations = new ArrayList<>();
-        }
-        else {
-            participations = new CopyOnWriteArrayList<>();
-        }
+        // Participations are added and read without holding a lock on the conversation.
+        participations = new CopyOnWriteArrayList<>();
     }
 
     public List<ConversationParticipation> getParticipations() {
@@ -68,7 +64,8 @@ public class UserParticipations {
     }
 
     public ConversationParticipation getRecentParticipation() {
-        return participations.get(0);
+        final Iterator<ConversationParticipation> iterator = participations.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
     }
 
     public void addParticipation(ConversationParticipation participation) {
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive.cluster;
+
+import org.jivesoftware.openfire.archive.RecentMessageCache;
+import org.jivesoftware.util.cache.ClusterTask;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Task that removes all messages from the {@link RecentMessageCache} of a cluster node, after messages have been
+ * removed from the database.
+ */
+public class ClearRecentMessageCacheTask implements ClusterTask<Void>
+{
+    public Void getResult() {
+        return null;
+    }
+
+    public void run() {
+        RecentMessageCache.clear();
+    }
+
+    public void writeExternal(ObjectOutput out) {
+        // Do nothing
+    }
+
+    public void readExternal(ObjectInput in) {
+        // Do nothing
+    }
+}
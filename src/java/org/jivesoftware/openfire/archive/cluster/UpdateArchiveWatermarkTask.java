@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive.cluster;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.archive.ConversationManager;
+import org.jivesoftware.openfire.archive.MonitoringConstants;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.openfire.container.Plugin;
+import org.jivesoftware.openfire.plugin.MonitoringPlugin;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Task that informs a cluster node of the moment since which data has been waiting in the archivers of the node that
+ * sends the task to be stored.
+ */
+public class UpdateArchiveWatermarkTask implements ClusterTask<Void>
+{
+    private static final Logger Log = LoggerFactory.getLogger(UpdateArchiveWatermarkTask.class);
+
+    private NodeID nodeID;
+    private long version;
+    private Instant pendingSince;
+
+    public UpdateArchiveWatermarkTask() {}
+
+    public UpdateArchiveWatermarkTask( @Nonnull final NodeID nodeID, final long version, @Nullable final Instant pendingSince )
+    {
+        this.nodeID = nodeID;
+        this.version = version;
+        this.pendingSince = pendingSince;
+    }
+
+    @Override
+    public void run()
+    {
+        final Optional<Plugin> plugin = XMPPServer.getInstance().getPluginManager().getPluginByName(MonitoringConstants.PLUGIN_NAME);
+        if (!plugin.isPresent()) {
+            Log.error("Unable to execute cluster task! The Monitoring plugin does not appear to be loaded on this machine.");
+            return;
+        }
+        final ConversationManager conversationManager = ((MonitoringPlugin)plugin.get()).getConversationManager();
+        conversationManager.archiveWatermarkUpdated( nodeID, version, pendingSince );
+    }
+
+    @Override
+    public Void getResult()
+    {
+        return null;
+    }
+
+    @Override
+    public void writeExternal( ObjectOutput out ) throws IOException
+    {
+        final ExternalizableUtil externalizableUtil = ExternalizableUtil.getInstance();
+        externalizableUtil.writeByteArray( out, nodeID.toByteArray() );
+        externalizableUtil.writeLong( out, version );
+        externalizableUtil.writeLong( out, pendingSince == null ? -1 : pendingSince.toEpochMilli() );
+    }
+
+    @Override
+    public void readExternal( ObjectInput in ) throws IOException
+    {
+        final ExternalizableUtil externalizableUtil = ExternalizableUtil.getInstance();
+        nodeID = NodeID.getInstance( externalizableUtil.readByteArray( in ) );
+        version = externalizableUtil.readLong( in );
+        final long millis = externalizableUtil.readLong( in );
+        pendingSince = millis == -1 ? null : Instant.ofEpochMilli( millis );
+    }
+}
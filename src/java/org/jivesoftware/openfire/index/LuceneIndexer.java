@@ -18,8 +18,14 @@ package org.jivesoftware.openfire.index;
 import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexOrDocValuesQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.dom4j.DocumentFactory;
@@ -32,6 +38,8 @@ import org.jivesoftware.util.XMLProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -39,6 +47,7 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
@@ -56,10 +65,14 @@ public abstract class LuceneIndexer
     private Path searchDir;
     private XMLProperties indexProperties;
     private Directory directory;
-    private IndexSearcher searcher;
-    private boolean stopped = false;
-    private boolean rebuildInProgress = false;
+    private IndexWriter writer;
+    private volatile SearcherManager searcherManager;
+    private volatile boolean stopped = false;
+    private volatile boolean rebuildInProgress = false;
     private TimerTask indexUpdater;
+    private TimerTask searcherRefresher;
+    private final Object refreshLock = new Object();
+    private volatile XMLProperties rebuildProperties;
 
     private static final SystemProperty<Duration> UPDATE_INTERVAL = SystemProperty.Builder.ofType( Duration.class )
        .setKey("conversation.search.updateInterval" )
@@ -69,6 +82,15 @@ public abstract class LuceneIndexer
        .setPlugin(MonitoringConstants.PLUGIN_NAME)
        .build();
 
+    private static final SystemProperty<Duration> SEARCHER_REFRESH_INTERVAL = SystemProperty.Builder.ofType( Duration.class )
+       .setKey("conversation.search.refresh-interval" )
+       .setDefaultValue( Duration.ofSeconds(1) )
+       .setMinValue( Duration.ofMillis(10) )
+       .setChronoUnit(ChronoUnit.MILLIS)
+       .setDynamic( false )
+       .setPlugin(MonitoringConstants.PLUGIN_NAME)
+       .build();
+
     public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType( Boolean.class )
         .setKey("conversation.search.index-enabled")
         .setDefaultValue(true)
@@ -184,8 +206,22 @@ public abstract class LuceneIndexer
             indexCreated = true;
         }
 
-        if (indexCreated) {
-            taskEngine.submit(this::rebuildIndex);
+        try
+        {
+            openWriter();
+        }
+        catch ( IOException ioe )
+        {
+            Log.error("An exception occurred while opening the Lucene index in: {}", searchDir, ioe);
+            return;
+        }
+
+        // Resume a rebuild that was interrupted, or start a new one if the index needs to be built from scratch.
+        if (isRebuildResumable()) {
+            Log.info("Resuming a rebuild of the Lucene index that was previously interrupted.");
+            taskEngine.submit(() -> rebuildIndex(true));
+        } else if (indexCreated || isRebuildRequired()) {
+            taskEngine.submit(() -> rebuildIndex(false));
         }
 
         indexUpdater = new TimerTask()
@@ -198,6 +234,35 @@ public abstract class LuceneIndexer
         };
         final Duration updateInterval = UPDATE_INTERVAL.getValue();
         taskEngine.schedule(indexUpdater, Duration.ofMinutes(1), updateInterval);
+
+        // Periodically make changes that have not been committed yet visible to searches.
+        searcherRefresher = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    refreshSearcher();
+                } catch ( Exception e ) {
+                    Log.debug("An exception occurred while refreshing the Lucene index searcher.", e);
+                }
+            }
+        };
+        final Duration refreshInterval = SEARCHER_REFRESH_INTERVAL.getValue();
+        taskEngine.schedule(searcherRefresher, refreshInterval, refreshInterval);
+    }
+
+    /**
+     * Opens the writer that is used for all modifications of the index for as long as this instance is running, and
+     * a manager for searchers that reflect the content of that writer, including changes that are not yet committed.
+     */
+    private void openWriter() throws IOException
+    {
+        final Analyzer analyzer = new StandardAnalyzer();
+        final IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        writer = new IndexWriter(directory, iwc);
+        searcherManager = new SearcherManager(writer, null);
     }
 
     private void removeAndRebuildSearchDir() throws IOException {
@@ -239,6 +304,62 @@ public abstract class LuceneIndexer
         indexProperties.setProperty("lastModified", Long.toString(instant.toEpochMilli()));
     }
 
+    /**
+     * Updates the modification date, unless the provided value is older than the current modification date.
+     *
+     * @param instant the date up until the index has been updated (cannot be null).
+     */
+    protected synchronized void advanceLastModified(Instant instant) {
+        if (instant.isAfter(getLastModified())) {
+            setLastModified(instant);
+        }
+    }
+
+    /**
+     * Returns the writer that is used to modify the index. Changes made through this writer are visible to searchers
+     * after {@link #refreshSearcher()} is invoked, and are persisted after {@link IndexWriter#commit()} is invoked.
+     *
+     * @return the writer, or null if this instance has not been started.
+     */
+    protected IndexWriter getWriter()
+    {
+        return writer;
+    }
+
+    /**
+     * Makes changes to the index that have been made after the last invocation of this method visible to searchers.
+     */
+    protected void refreshSearcher() throws IOException
+    {
+        synchronized (refreshLock) {
+            final SearcherManager manager = searcherManager;
+            if (manager != null) {
+                manager.maybeRefresh();
+            }
+        }
+    }
+
+    /**
+     * Checks if the index is to be rebuilt when this instance is started, even though it exists and is valid. This is
+     * consulted only when no interrupted rebuild can be resumed, as resuming takes precedence over starting anew.
+     *
+     * @return true if the index is to be rebuilt.
+     */
+    protected boolean isRebuildRequired()
+    {
+        return false;
+    }
+
+    protected boolean isStopped()
+    {
+        return stopped;
+    }
+
+    protected boolean isRebuildInProgress()
+    {
+        return rebuildInProgress;
+    }
+
     public void stop()
     {
         Log.debug("Stopping...");
@@ -247,17 +368,35 @@ public abstract class LuceneIndexer
             indexUpdater.cancel();
             indexUpdater = null;
         }
-        if ( searcher != null )
+        if (searcherRefresher != null) {
+            searcherRefresher.cancel();
+            searcherRefresher = null;
+        }
+        if ( searcherManager != null )
+        {
+            try
+            {
+                // Searchers that are still acquired remain usable until they are released.
+                searcherManager.close();
+            }
+            catch ( Exception e )
+            {
+                Log.warn("An exception occurred while trying to close the Lucene search index reader.", e);
+            }
+            searcherManager = null;
+        }
+        if ( writer != null )
         {
             try
             {
-                searcher.getIndexReader().close();
+                // Closing the writer commits pending changes.
+                writer.close();
             }
             catch ( Exception e )
             {
-                Log.warn("An exception occurred while trying to close the writer of the Lucene search index reader.", e);
+                Log.warn("An exception occurred while trying to close the writer of the Lucene search index.", e);
             }
-            searcher = null;
+            writer = null;
         }
         try
         {
@@ -321,18 +460,22 @@ public abstract class LuceneIndexer
             return;
         }
 
+        final IndexWriter writer = this.writer;
+        if (writer == null) {
+            Log.debug("Unable to update: the index has not been opened.");
+            return;
+        }
+
         Log.debug("Updating the Lucene index...");
         final Instant start = Instant.now();
 
-        final Analyzer analyzer = new StandardAnalyzer();
-        final IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-
-        try ( final IndexWriter writer = new IndexWriter(directory, iwc) )
+        try
         {
             final Instant since = getLastModified();
             final Instant lastModified = doUpdateIndex( writer, since );
-            setLastModified(lastModified);
+            writer.commit();
+            advanceLastModified(lastModified);
+            refreshSearcher();
 
             final Duration duration = Duration.between( start, Instant.now() );
             Log.debug("Finished updating the Lucene index. Duration: {}. Last message timestamp was: {}, now is: {}", duration, since, lastModified);
@@ -352,7 +495,24 @@ public abstract class LuceneIndexer
      * @return a Future to indicate the status of rebuilding the index or <tt>null</tt> if
      *      rebuilding the index is not possible.
      */
-    public synchronized Future<Integer> rebuildIndex()
+    public Future<Integer> rebuildIndex()
+    {
+        return rebuildIndex(false);
+    }
+
+    /**
+     * Rebuilds the search index in a directory next to the directory of the index that is in use, which continues to
+     * serve searches while the rebuild is in progress. When the rebuild completes, the rebuilt index replaces the
+     * content of the index that is in use in one commit.
+     *
+     * Implementations of {@link #doRebuildIndex(IndexWriter)} can record checkpoints (see
+     * {@link #checkpointRebuild(IndexWriter, Map)}). When a rebuild is interrupted after a checkpoint has been recorded
+     * (for example, because Openfire is restarted), it is resumed the next time that this instance is started.
+     *
+     * @param resume true to continue an interrupted rebuild, false to discard any interrupted rebuild and start anew.
+     * @return a Future to indicate the status of rebuilding the index or <tt>null</tt> if rebuilding the index is not possible.
+     */
+    private synchronized Future<Integer> rebuildIndex(final boolean resume)
     {
         if (!ENABLED.getValue()) {
             Log.debug("Unable to rebuild: indexing is disabled by configuration.");
@@ -369,6 +529,12 @@ public abstract class LuceneIndexer
             return null;
         }
 
+        final IndexWriter writer = this.writer;
+        if (writer == null) {
+            Log.debug("Unable to rebuild: the index has not been opened.");
+            return null;
+        }
+
         rebuildInProgress = true;
 
         // Create a future to track the index rebuild progress.
@@ -379,33 +545,38 @@ public abstract class LuceneIndexer
             Log.debug("Rebuilding the Lucene index...");
             final Instant start = Instant.now();
 
-            Log.debug("Removing old data from directory: {}", searchDir);
-            try {
-                FileUtils.cleanDirectory(searchDir.toFile());
-                Files.write(searchDir.resolve("openfire-schema.version"), String.valueOf(this.schemaVersion).getBytes());
-                indexProperties = loadPropertiesFile(searchDir);
-            } catch ( IOException e ) {
-                Log.warn("An exception occurred while trying to clean directory '{}' as part of a rebuild of the Lucene index that's in it.", searchDir, e);
-            }
+            final Path rebuildDir = getRebuildDir();
+            try
+            {
+                if (!resume) {
+                    Log.debug("Removing data of any previous rebuild from directory: {}", rebuildDir);
+                    FileUtils.deleteDirectory(rebuildDir.toFile());
+                }
+                Files.createDirectories(rebuildDir);
+                rebuildProperties = loadPropertiesFile(rebuildDir);
+                rebuildProperties.setProperty("schemaVersion", String.valueOf(this.schemaVersion));
+
+                final Instant newest;
+                final IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+                iwc.setOpenMode(resume ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+                try ( final Directory rebuildDirectory = FSDirectory.open(rebuildDir);
+                      final IndexWriter rebuildWriter = new IndexWriter(rebuildDirectory, iwc) )
+                {
+                    newest = doRebuildIndex(rebuildWriter);
+                    rebuildWriter.commit();
 
-            final Analyzer analyzer = new StandardAnalyzer();
-            final IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE); // force re-create (as opposed to CREATE_OR_APPEND)
+                    if (stopped) {
+                        Log.info("Interrupted while rebuilding the Lucene index. The rebuild will be resumed from the last checkpoint when it is next started.");
+                        return;
+                    }
 
-            try ( final IndexWriter writer = new IndexWriter(directory, iwc) )
-            {
-                final Instant newest = doRebuildIndex(writer);
-                setLastModified(newest);
+                    replaceWith(rebuildDirectory, newest);
+                }
+                rebuildProperties = null;
+                FileUtils.deleteDirectory(rebuildDir.toFile());
 
                 final Duration duration = Duration.between(start, Instant.now());
                 Log.debug("Finished rebuilding the Lucene index. Duration: {}", duration);
-
-                // Release searcher for it to be re-initialized upon next use (without this, a reference to the old index
-                // will prevent it from being removed, resulting in duplicates and increased disk usage).
-                if ( searcher != null ) {
-                    searcher.getIndexReader().close();
-                    searcher = null;
-                }
             }
             catch (Exception ioe) {
                 Log.error("An exception occurred while rebuilding the Lucene index.", ioe);
@@ -420,6 +591,99 @@ public abstract class LuceneIndexer
         return rebuildFuture;
     }
 
+    /**
+     * Replaces all data in the index that is in use with that of a rebuilt index, in one commit. Searchers are refreshed
+     * only after the commit, so that searches never observe a partially replaced index.
+     *
+     * @param rebuilt The directory that holds the rebuilt index (cannot be null).
+     * @param newest The date up until the rebuilt index has been updated (cannot be null).
+     */
+    private void replaceWith(final Directory rebuilt, final Instant newest) throws IOException
+    {
+        Log.debug("Replacing the data in the Lucene index with the rebuilt index.");
+        synchronized (refreshLock) {
+            writer.deleteAll();
+            writer.addIndexes(rebuilt);
+            writer.commit();
+            Files.write(searchDir.resolve("openfire-schema.version"), String.valueOf(this.schemaVersion).getBytes());
+            setLastModified(newest);
+            refreshSearcher();
+        }
+    }
+
+    /**
+     * Returns the directory in which the index is rebuilt.
+     *
+     * @return a directory (never null).
+     */
+    private Path getRebuildDir()
+    {
+        return searchDir.resolveSibling(searchDir.getFileName() + "-rebuild");
+    }
+
+    /**
+     * Checks if a rebuild was interrupted after it recorded a checkpoint, for the current schema version.
+     *
+     * @return true if the rebuild can be resumed.
+     */
+    private boolean isRebuildResumable()
+    {
+        final Path rebuildDir = getRebuildDir();
+        if (!Files.exists(rebuildDir.resolve("indexprops.xml"))) {
+            return false;
+        }
+        try ( final Directory rebuildDirectory = FSDirectory.open(rebuildDir) )
+        {
+            final XMLProperties properties = loadPropertiesFile(rebuildDir);
+            return String.valueOf(this.schemaVersion).equals(properties.getProperty("schemaVersion"))
+                && "true".equals(properties.getProperty("checkpointed"))
+                && DirectoryReader.indexExists(rebuildDirectory);
+        }
+        catch ( IOException e )
+        {
+            Log.warn("Unable to determine if the rebuild in '{}' can be resumed. It will be discarded.", rebuildDir, e);
+            return false;
+        }
+    }
+
+    /**
+     * Commits the data that has been added to the index that is being rebuilt, and records values from which the
+     * rebuild can be resumed, should it be interrupted. This is to be invoked by implementations of
+     * {@link #doRebuildIndex(IndexWriter)}. The recorded values are available through {@link #getRebuildCheckpoint(String)}
+     * when an interrupted rebuild is resumed.
+     *
+     * All data that has been added before the values were determined must have been added to the writer before this
+     * method is invoked. Data that is added after a checkpoint might already be committed, and can be added again when
+     * the rebuild is resumed: implementations are to add documents in a way that replaces earlier copies.
+     *
+     * @param writer The writer that was provided to {@link #doRebuildIndex(IndexWriter)} (cannot be null).
+     * @param values The values to record (cannot be null). Keys must be valid XML element names.
+     */
+    protected void checkpointRebuild(final IndexWriter writer, final Map<String, String> values) throws IOException
+    {
+        writer.commit();
+        final XMLProperties properties = rebuildProperties;
+        if (properties != null) {
+            for (final Map.Entry<String, String> entry : values.entrySet()) {
+                properties.setProperty("checkpoint." + entry.getKey(), entry.getValue());
+            }
+            properties.setProperty("checkpointed", "true");
+        }
+    }
+
+    /**
+     * Returns a value that was recorded with the most recent checkpoint of the rebuild that is in progress.
+     *
+     * @param key The key of the value (cannot be null).
+     * @return the value, or null when no value was recorded (for example, because the rebuild was not resumed).
+     */
+    @Nullable
+    protected String getRebuildCheckpoint(final String key)
+    {
+        final XMLProperties properties = rebuildProperties;
+        return properties == null ? null : properties.getProperty("checkpoint." + key);
+    }
+
     /**
      * Updates the index with all new conversation data since the last index update.
      *
@@ -452,33 +716,64 @@ public abstract class LuceneIndexer
     }
 
     /**
-     * Returns an IndexSearcher to search the archive index.
+     * Acquires a searcher for the most recently refreshed state of the index. Searchers can be used concurrently by
+     * any number of threads. Every searcher that is acquired must be released through {@link #releaseSearcher}, after
+     * which it must no longer be used.
      *
-     * @return an IndexSearcher.
-     * @throws IOException if an IOException occurs.
+     * @return A searcher, or null if the index is not available.
      */
-    public synchronized IndexSearcher getSearcher() throws IOException
+    @Nullable
+    public IndexSearcher acquireSearcher() throws IOException
     {
         if (!ENABLED.getValue()) {
             Log.debug("Unable to get index: indexing is disabled by configuration.");
             return null;
         }
 
-        // If the searcher hasn't been instantiated, create it.
-        if ( searcher == null )
-        {
-            DirectoryReader reader = DirectoryReader.open(directory);
-            searcher = new IndexSearcher(reader);
+        final SearcherManager manager = searcherManager;
+        if ( manager == null ) {
+            Log.debug("Unable to get index: the index has not been opened.");
+            return null;
         }
-        // See if the searcher needs to be closed due to the index being updated.
-        final DirectoryReader replacement = DirectoryReader.openIfChanged((DirectoryReader) searcher.getIndexReader());
-        if ( replacement != null )
-        {
-            Log.debug("Returning new Index Searcher (as index was updated)");
-            searcher.getIndexReader().close();
-            searcher = new IndexSearcher(replacement);
+
+        try {
+            return manager.acquire();
+        } catch ( AlreadyClosedException e ) {
+            Log.debug("Unable to get index: the index has been closed.");
+            return null;
         }
-        return searcher;
+    }
+
+    /**
+     * Releases a searcher that was obtained through {@link #acquireSearcher()}.
+     *
+     * @param searcher The searcher to release (can be null, in which case this method does nothing).
+     */
+    public void releaseSearcher(@Nullable final IndexSearcher searcher) throws IOException
+    {
+        if ( searcher != null ) {
+            // Equivalent to SearcherManager#release, which cannot be used after the manager has been closed.
+            searcher.getIndexReader().decRef();
+        }
+    }
+
+    /**
+     * Creates a query that matches documents of which a numeric field has a value within a range. The field is
+     * expected to be indexed both as a {@link LongPoint} and as a
+     * {@link NumericDocValuesField} under the same name. Lucene picks the cheapest of both, depending on how selective
+     * the range is compared to the other clauses of the query.
+     *
+     * @param field the name of the field.
+     * @param lowerValue the lower bound of the range (inclusive).
+     * @param upperValue the upper bound of the range (inclusive).
+     * @return a query (never null).
+     */
+    public static Query newLongRangeQuery( final String field, final long lowerValue, final long upperValue )
+    {
+        return new IndexOrDocValuesQuery(
+            LongPoint.newRangeQuery( field, lowerValue, upperValue ),
+            NumericDocValuesField.newSlowRangeQuery( field, lowerValue, upperValue )
+        );
     }
 
     /**
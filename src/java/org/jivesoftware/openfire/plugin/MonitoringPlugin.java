@@ -20,6 +20,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 
 import com.reucon.openfire.plugin.archive.impl.*;
 import com.reucon.openfire.plugin.archive.xep0313.Xep0313Support1;
@@ -48,6 +50,7 @@ import org.jivesoftware.util.SystemProperty;
 
 import com.reucon.openfire.plugin.archive.PersistenceManager;
 import com.reucon.openfire.plugin.archive.xep0136.Xep0136Support;
+import com.reucon.openfire.plugin.archive.xep0313.MamQueryScheduler;
 import com.reucon.openfire.plugin.archive.xep0313.Xep0313Support;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,6 +85,7 @@ public class MonitoringPlugin implements Plugin, PluginListener
     private Xep0313Support xep0313Support;
     private Xep0313Support1 xep0313Support1;
     private Xep0313Support2 xep0313Support2;
+    private MamQueryScheduler mamQueryScheduler;
     private Logger Log;
 
     // Stats and Graphing classes
@@ -136,6 +140,15 @@ public class MonitoringPlugin implements Plugin, PluginListener
         return ConversationManager.METADATA_ARCHIVING_ENABLED.getValue();
     }
 
+    /**
+     * Returns the scheduler that executes XEP-0313 queries.
+     *
+     * @return the query scheduler.
+     */
+    public MamQueryScheduler getMamQueryScheduler() {
+        return mamQueryScheduler;
+    }
+
     public PersistenceManager getPersistenceManager(JID jid) {
         Log.debug("Getting PersistenceManager for {}", jid);
         if (XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(jid) != null) {
@@ -151,9 +164,15 @@ public class MonitoringPlugin implements Plugin, PluginListener
         // Issue #113: Migrate full JIDs in the database
         TaskEngine.getInstance().submit( new DatabaseUpdateSplitJIDsTask() );
 
+        // Record XEP-0359 stanza IDs of messages that were archived before these were recorded when archiving.
+        TaskEngine.getInstance().submit( new DatabaseUpdateStanzaIDsTask() );
+
         persistenceManager = new JdbcPersistenceManager();
         mucPersistenceManager = new MucMamPersistenceManager();
 
+        mamQueryScheduler = new MamQueryScheduler();
+        mamQueryScheduler.start();
+
         xep0136Support = new Xep0136Support(XMPPServer.getInstance());
         xep0136Support.start();
 
@@ -184,6 +203,13 @@ public class MonitoringPlugin implements Plugin, PluginListener
         statsEngine.start();
         statisticsModule.start();
         conversationManager.start();
+
+        // Data that is replayed from the spools of the archivers can be older than data that was indexed before.
+        final Instant replayedSince = conversationManager.getReplayedSince();
+        if (replayedSince != null) {
+            archiveIndexer.catchUp(replayedSince);
+            messageIndexer.catchUp(replayedSince);
+        }
         archiveInterceptor.start();
         groupConversationInterceptor.start();
         archiveIndexer.start();
@@ -262,7 +288,10 @@ public class MonitoringPlugin implements Plugin, PluginListener
         xep0313Support.stop();
         xep0313Support1.stop();
         xep0313Support2.stop();
-        
+
+        // Give queries that are being processed some time to finish.
+        mamQueryScheduler.stop(Duration.ofSeconds(4));
+
         instance = null;
     }
 
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.impl;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Verifies the implementation of {@link MessageDocumentBuilder.Cache}
+ */
+public class MessageDocumentBuilderTest {
+
+    /**
+     * Verifies that a bare JID is parsed once, and that the same instance is returned for subsequent lookups.
+     */
+    @Test
+    public void testBareJIDIsMemoized() throws Exception {
+        // Setup test fixture.
+        final MessageDocumentBuilder.Cache cache = new MessageDocumentBuilder.Cache();
+        final JID first = cache.getJID("john@example.org", null);
+
+        // Execute system under test.
+        final JID result = cache.getJID("john@example.org", "");
+
+        // Verify result.
+        assertSame(first, result);
+    }
+
+    /**
+     * Verifies that a resource is combined with a memoized bare JID into a full JID.
+     */
+    @Test
+    public void testFullJIDIsComposed() throws Exception {
+        // Setup test fixture.
+        final MessageDocumentBuilder.Cache cache = new MessageDocumentBuilder.Cache();
+
+        // Execute system under test.
+        final JID result = cache.getJID("john@example.org", "phone");
+
+        // Verify result.
+        assertEquals(new JID("john@example.org/phone"), result);
+    }
+
+    /**
+     * Verifies that an invalid value (here: a domain that exceeds the maximum length) does not yield a JID.
+     */
+    @Test
+    public void testInvalidJIDIsNull() throws Exception {
+        // Setup test fixture.
+        final MessageDocumentBuilder.Cache cache = new MessageDocumentBuilder.Cache();
+
+        // Execute system under test.
+        final JID result = cache.getJID("john@" + "a".repeat(1100) + ".org", "phone");
+
+        // Verify result.
+        assertNull(result);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.impl;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies the implementation of {@link PersonalIndexShards}
+ */
+public class PersonalIndexShardsTest {
+
+    /**
+     * Verifies that documents of a personal archive are stored in the shard of their owner, and that other documents
+     * are stored in the main index.
+     */
+    @Test
+    public void testDocumentsAreRoutedByOwner() throws Exception {
+        // Setup test fixture.
+        final IndexWriter main = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig(new StandardAnalyzer()));
+        final IndexWriter[] shards = new IndexWriter[4];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig(new StandardAnalyzer()));
+        }
+        final Document room = new Document();
+        room.add(new StringField("room", "lobby@conference.example.org", Field.Store.NO));
+        final Document personal = new Document();
+        personal.add(new StringField("owner", "john@example.org", Field.Store.NO));
+
+        // Execute system under test.
+        PersonalIndexShards.updateDocuments(main, shards, new Term("messageID", "1"), Arrays.asList(room, personal));
+
+        // Verify result.
+        assertEquals(1, main.getDocStats().numDocs);
+        final int expected = PersonalIndexShards.shardOf("john@example.org", shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            assertEquals(i == expected ? 1 : 0, shards[i].getDocStats().numDocs);
+        }
+    }
+
+    /**
+     * Verifies that all documents are stored in the main index when there are no shards.
+     */
+    @Test
+    public void testDocumentsAreNotRoutedWithoutShards() throws Exception {
+        // Setup test fixture.
+        final IndexWriter main = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig(new StandardAnalyzer()));
+        final Document personal = new Document();
+        personal.add(new StringField("owner", "john@example.org", Field.Store.NO));
+
+        // Execute system under test.
+        PersonalIndexShards.updateDocuments(main, null, new Term("messageID", "1"), Arrays.asList(personal));
+
+        // Verify result.
+        assertEquals(1, main.getDocStats().numDocs);
+    }
+}
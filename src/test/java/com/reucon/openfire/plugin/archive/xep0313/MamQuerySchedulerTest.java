@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.reucon.openfire.plugin.archive.xep0313;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the implementation of {@link MamQueryScheduler}
+ */
+public class MamQuerySchedulerTest {
+
+    private static final JID ALICE = new JID("alice@example.org/phone");
+    private static final JID BOB = new JID("bob@example.org/laptop");
+    private static final JID CAROL = new JID("carol@example.org/tablet");
+
+    /**
+     * Verifies that no more queries than the configured maximum are processed concurrently.
+     */
+    @Test
+    public void testConcurrentQueriesAreLimited() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 2, () -> 2, () -> 10, () -> 10);
+        scheduler.start(executor);
+
+        // Execute system under test.
+        scheduler.submit(ALICE, () -> {}, () -> {});
+        scheduler.submit(BOB, () -> {}, () -> {});
+        scheduler.submit(CAROL, () -> {}, () -> {});
+
+        // Verify result.
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueuedCount());
+        assertEquals(2, executor.pending());
+    }
+
+    /**
+     * Verifies that no more queries of one entity than the configured maximum are processed concurrently, while
+     * queries of other entities are started.
+     */
+    @Test
+    public void testConcurrentQueriesPerUserAreLimited() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 10, () -> 1, () -> 10, () -> 10);
+        scheduler.start(executor);
+
+        // Execute system under test.
+        scheduler.submit(ALICE, () -> {}, () -> {});
+        scheduler.submit(new JID("alice@example.org/laptop"), () -> {}, () -> {});
+        scheduler.submit(BOB, () -> {}, () -> {});
+
+        // Verify result.
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueuedCount());
+    }
+
+    /**
+     * Verifies that a queued query is started when a query finishes.
+     */
+    @Test
+    public void testQueuedQueryIsStartedWhenQueryFinishes() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 1, () -> 1, () -> 10, () -> 10);
+        scheduler.start(executor);
+        final List<String> executed = new ArrayList<>();
+        scheduler.submit(ALICE, () -> executed.add("first"), () -> {});
+        scheduler.submit(BOB, () -> executed.add("second"), () -> {});
+
+        // Execute system under test.
+        executor.runNext();
+
+        // Verify result.
+        assertEquals(Collections.singletonList("first"), executed);
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueuedCount());
+        executor.runNext();
+        assertEquals(Arrays.asList("first", "second"), executed);
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    /**
+     * Verifies that a query is rejected when the queue is full, which causes a resource-constraint error to be returned
+     * to the requestor.
+     */
+    @Test
+    public void testQueryIsRejectedWhenQueueIsFull() throws Exception {
+        // Setup test fixture.
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 1, () -> 1, () -> 2, () -> 10);
+        scheduler.start(new ManualExecutor());
+        assertTrue(scheduler.submit(ALICE, () -> {}, () -> {}));
+        assertTrue(scheduler.submit(BOB, () -> {}, () -> {}));
+        assertTrue(scheduler.submit(CAROL, () -> {}, () -> {}));
+
+        // Execute system under test.
+        final boolean result = scheduler.submit(CAROL, () -> {}, () -> {});
+
+        // Verify result.
+        assertFalse(result);
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(2, scheduler.getQueuedCount());
+    }
+
+    /**
+     * Verifies that a query is rejected when the part of the queue that is used by the requestor is full, while the
+     * queries of other entities are still accepted.
+     */
+    @Test
+    public void testQueryIsRejectedWhenUserQueueIsFull() throws Exception {
+        // Setup test fixture.
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 10, () -> 1, () -> 10, () -> 1);
+        scheduler.start(new ManualExecutor());
+        assertTrue(scheduler.submit(ALICE, () -> {}, () -> {}));
+        assertTrue(scheduler.submit(ALICE, () -> {}, () -> {}));
+
+        // Execute system under test.
+        final boolean result = scheduler.submit(ALICE, () -> {}, () -> {});
+
+        // Verify result.
+        assertFalse(result);
+        assertTrue(scheduler.submit(BOB, () -> {}, () -> {}));
+    }
+
+    /**
+     * Verifies that queries are rejected when the scheduler has not been started.
+     */
+    @Test
+    public void testQueryIsRejectedWhenNotStarted() throws Exception {
+        // Setup test fixture.
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 10, () -> 10, () -> 10, () -> 10);
+
+        // Execute system under test.
+        final boolean result = scheduler.submit(ALICE, () -> {}, () -> {});
+
+        // Verify result.
+        assertFalse(result);
+    }
+
+    /**
+     * Verifies that queued queries are started in round-robin order of the entities that issued them, so that an entity
+     * that queued many queries does not delay the queries of others.
+     */
+    @Test
+    public void testQueuedQueriesAreStartedRoundRobin() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 1, () -> 1, () -> 10, () -> 10);
+        scheduler.start(executor);
+        final List<String> executed = new ArrayList<>();
+        scheduler.submit(CAROL, () -> executed.add("carol"), () -> {});
+        scheduler.submit(ALICE, () -> executed.add("alice-1"), () -> {});
+        scheduler.submit(ALICE, () -> executed.add("alice-2"), () -> {});
+        scheduler.submit(ALICE, () -> executed.add("alice-3"), () -> {});
+        scheduler.submit(BOB, () -> executed.add("bob-1"), () -> {});
+        scheduler.submit(BOB, () -> executed.add("bob-2"), () -> {});
+
+        // Execute system under test.
+        while (executor.pending() > 0) {
+            executor.runNext();
+        }
+
+        // Verify result.
+        assertEquals(Arrays.asList("carol", "alice-1", "bob-1", "alice-2", "bob-2", "alice-3"), executed);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    /**
+     * Verifies that an entity that reached its limit of concurrent queries does not prevent queued queries of other
+     * entities from being started.
+     */
+    @Test
+    public void testUserAtLimitIsSkipped() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 2, () -> 1, () -> 10, () -> 10);
+        scheduler.start(executor);
+        final List<String> executed = new ArrayList<>();
+        scheduler.submit(BOB, () -> executed.add("bob"), () -> {});
+        scheduler.submit(ALICE, () -> executed.add("alice-1"), () -> {});
+        scheduler.submit(ALICE, () -> executed.add("alice-2"), () -> {});
+        scheduler.submit(CAROL, () -> executed.add("carol"), () -> {});
+
+        // Execute system under test.
+        executor.runNext(); // The query of Bob finishes, while the first query of Alice is still being processed.
+
+        // Verify result.
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueuedCount());
+        while (executor.pending() > 0) {
+            executor.runNext();
+        }
+        assertEquals(Arrays.asList("bob", "alice-1", "carol", "alice-2"), executed);
+    }
+
+    /**
+     * Verifies that a query that was accepted, but that the executor refuses to start, is reported as rejected, and
+     * that queued queries are still dispatched afterwards.
+     */
+    @Test
+    public void testQueryRefusedByExecutorIsReported() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 1, () -> 1, () -> 10, () -> 10);
+        scheduler.start(executor);
+        final List<String> rejected = new ArrayList<>();
+        scheduler.submit(ALICE, () -> {}, () -> rejected.add("alice"));
+        scheduler.submit(BOB, () -> {}, () -> rejected.add("bob"));
+        scheduler.submit(CAROL, () -> {}, () -> rejected.add("carol"));
+        executor.refuse = true;
+
+        // Execute system under test.
+        executor.runNext();
+
+        // Verify result.
+        assertEquals(Arrays.asList("bob", "carol"), rejected);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    /**
+     * Verifies that queries that are queued when the scheduler is stopped are reported as rejected, while queries that
+     * were already started are not.
+     */
+    @Test
+    public void testQueuedQueriesAreReportedWhenStopped() throws Exception {
+        // Setup test fixture.
+        final ManualExecutor executor = new ManualExecutor();
+        final MamQueryScheduler scheduler = new MamQueryScheduler(() -> 1, () -> 1, () -> 10, () -> 10);
+        scheduler.start(executor);
+        final List<String> rejected = new ArrayList<>();
+        scheduler.submit(ALICE, () -> {}, () -> rejected.add("alice"));
+        scheduler.submit(BOB, () -> {}, () -> rejected.add("bob"));
+
+        // Execute system under test.
+        scheduler.stop(Duration.ZERO);
+
+        // Verify result.
+        assertEquals(Collections.singletonList("bob"), rejected);
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    /**
+     * An executor that runs tasks only when instructed to, on the thread that instructs it.
+     */
+    private static final class ManualExecutor extends AbstractExecutorService {
+
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        private boolean shutdown;
+        private boolean refuse;
+
+        int pending() {
+            return tasks.size();
+        }
+
+        void runNext() {
+            tasks.poll().run();
+        }
+
+        @Override
+        public void execute(@Nonnull final Runnable command) {
+            if (refuse) {
+                throw new RejectedExecutionException();
+            }
+            tasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Nonnull
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            final List<Runnable> result = new ArrayList<>(tasks);
+            tasks.clear();
+            return result;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && tasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, @Nonnull final TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
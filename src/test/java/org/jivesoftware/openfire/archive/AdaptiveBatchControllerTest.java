@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the implementation of {@link AdaptiveBatchController}
+ */
+public class AdaptiveBatchControllerTest {
+
+    private static final Duration TARGET = Duration.ofMillis(250);
+
+    private static AdaptiveBatchController createController() {
+        final AdaptiveBatchController.Bounds bounds = new AdaptiveBatchController.Bounds(50, 5000, Duration.ofMillis(10), Duration.ofMillis(250), Duration.ofMillis(250), Duration.ofSeconds(5));
+        return new AdaptiveBatchController(bounds, 500, Duration.ofMillis(50), Duration.ofSeconds(1));
+    }
+
+    /**
+     * Verifies that the batch size grows up to its upper bound while full batches are stored quickly.
+     */
+    @Test
+    public void testBatchSizeGrowsWithBacklog() throws Exception {
+        // Setup test fixture.
+        final AdaptiveBatchController controller = createController();
+
+        // Execute system under test.
+        for (int i = 0; i < 50; i++) {
+            controller.observe(controller.getBatchSize(), Duration.ofMillis(20), 10000, TARGET);
+        }
+
+        // Verify result.
+        assertEquals(5000, controller.getBatchSize());
+        assertEquals(Duration.ofMillis(10), controller.getGracePeriod());
+    }
+
+    /**
+     * Verifies that the batch size shrinks, and the purge interval grows, when storing batches takes too long.
+     */
+    @Test
+    public void testBatchSizeShrinksWhenSlow() throws Exception {
+        // Setup test fixture.
+        final AdaptiveBatchController controller = createController();
+
+        // Execute system under test.
+        controller.observe(500, Duration.ofSeconds(2), 0, TARGET);
+
+        // Verify result.
+        assertTrue(controller.getBatchSize() < 500);
+        assertTrue(controller.getPurgeInterval().compareTo(Duration.ofSeconds(1)) > 0);
+    }
+
+    /**
+     * Verifies that the grace period grows up to its upper bound when only tiny batches are stored.
+     */
+    @Test
+    public void testGracePeriodGrowsWithSmallBatches() throws Exception {
+        // Setup test fixture.
+        final AdaptiveBatchController controller = createController();
+
+        // Execute system under test.
+        for (int i = 0; i < 10; i++) {
+            controller.observe(2, Duration.ofMillis(5), 0, TARGET);
+        }
+
+        // Verify result.
+        assertEquals(Duration.ofMillis(250), controller.getGracePeriod());
+        assertEquals(500, controller.getBatchSize());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies the implementation of {@link ArchiveSpool}
+ */
+public class ArchiveSpoolTest {
+
+    private static final ArchiveSpool.Codec<String> CODEC = new ArchiveSpool.Codec<String>() {
+        @Override
+        public void encode(@Nonnull final String element, @Nonnull final DataOutput out) throws IOException {
+            ArchiveSpool.writeString(out, element);
+        }
+
+        @Nonnull
+        @Override
+        public String decode(@Nonnull final DataInput in) throws IOException {
+            return ArchiveSpool.readString(in);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Verifies that elements that were not acknowledged before the spool was closed are returned after it is reopened.
+     */
+    @Test
+    public void testUnacknowledgedElementsAreReplayed() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final ArchiveSpool<String> spool = new ArchiveSpool<>(directory, CODEC, 64 * 1024);
+        spool.append("a");
+        spool.append("b");
+        spool.append("c");
+        spool.poll(2, 0);
+        spool.acknowledge(1);
+        spool.close();
+
+        // Execute system under test.
+        final ArchiveSpool<String> result = new ArchiveSpool<>(directory, CODEC, 64 * 1024);
+
+        // Verify result.
+        assertEquals(Arrays.asList("b", "c"), result.poll(10, 0));
+        result.close();
+    }
+
+    /**
+     * Verifies that elements are returned in order when they span several segments, and that segments are removed
+     * after all of their elements have been acknowledged.
+     */
+    @Test
+    public void testSegmentsAreRolledAndRemoved() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final ArchiveSpool<String> spool = new ArchiveSpool<>(directory, CODEC, 1024);
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add("element " + i);
+            spool.append("element " + i);
+        }
+
+        // Execute system under test.
+        final List<String> result = spool.poll(1000, 0);
+        spool.acknowledge(result.size());
+
+        // Verify result.
+        assertEquals(expected, result);
+        try (final Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+        spool.close();
+    }
+
+    /**
+     * Verifies that a record that was not completely written (here: simulated by corrupting its data) is discarded,
+     * while the records before it are retained.
+     */
+    @Test
+    public void testCorruptRecordIsDiscarded() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final ArchiveSpool<String> spool = new ArchiveSpool<>(directory, CODEC, 64 * 1024);
+        spool.append("intact");
+        spool.append("corrupt");
+        spool.close();
+        try (final RandomAccessFile file = new RandomAccessFile(directory.resolve("0.spool").toFile(), "rw")) {
+            // Header (8) + first record (16 + 4 + 6) + second record header (16) + string length (4).
+            file.seek(8 + 26 + 16 + 4);
+            file.write('X');
+        }
+
+        // Execute system under test.
+        final ArchiveSpool<String> result = new ArchiveSpool<>(directory, CODEC, 64 * 1024);
+
+        // Verify result.
+        assertEquals(Arrays.asList("intact"), result.poll(10, 0));
+        result.close();
+    }
+}
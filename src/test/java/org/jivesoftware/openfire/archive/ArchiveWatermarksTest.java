@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the implementation of {@link ArchiveWatermarks}
+ */
+public class ArchiveWatermarksTest {
+
+    private static final byte[] NODE_A = { 1 };
+    private static final byte[] NODE_B = { 2 };
+
+    private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+    /**
+     * Verifies that no wait is needed when no other node has pending data.
+     */
+    @Test
+    public void testNoPendingData() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+
+        // Execute system under test.
+        final CompletableFuture<Void> result = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Verify result.
+        assertTrue(result.isDone());
+        assertEquals(0, watermarks.getWaiterCount());
+    }
+
+    /**
+     * Verifies that data that became pending on another node after the provided instant does not cause a wait.
+     */
+    @Test
+    public void testDataPendingAfterInstant() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.plusSeconds(1));
+
+        // Execute system under test.
+        final CompletableFuture<Void> result = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Verify result.
+        assertTrue(result.isDone());
+    }
+
+    /**
+     * Verifies that a waiter is released when the other node reports that its data has been stored.
+     */
+    @Test
+    public void testRemoteUpdateReleasesWaiter() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(1));
+        final CompletableFuture<Void> waiter = watermarks.whenStoredOnOtherNodes(T0);
+        assertFalse(waiter.isDone());
+
+        // Execute system under test.
+        watermarks.update(NodeID.getInstance(NODE_A), 2, null);
+
+        // Verify result.
+        assertTrue(waiter.isDone());
+        assertEquals(0, watermarks.getWaiterCount());
+    }
+
+    /**
+     * Verifies that a waiter is released only when data that was pending before the instant has been stored, even if
+     * the other node has newer data pending.
+     */
+    @Test
+    public void testRemoteUpdateWithNewerPendingDataReleasesWaiter() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(1));
+        final CompletableFuture<Void> waiter = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Execute system under test.
+        watermarks.update(NodeID.getInstance(NODE_A), 2, T0.plusSeconds(1));
+
+        // Verify result.
+        assertTrue(waiter.isDone());
+    }
+
+    /**
+     * Verifies that a state that is delivered after a newer state of the same node is disregarded.
+     */
+    @Test
+    public void testOutdatedUpdateIsIgnored() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 2, null);
+
+        // Execute system under test.
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(1));
+
+        // Verify result.
+        assertTrue(watermarks.whenStoredOnOtherNodes(T0).isDone());
+    }
+
+    /**
+     * Verifies that a waiter is released only after all nodes with data pending before the instant have stored it.
+     */
+    @Test
+    public void testWaiterWaitsForAllNodes() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(2));
+        watermarks.update(NodeID.getInstance(NODE_B), 1, T0.minusSeconds(1));
+        final CompletableFuture<Void> waiter = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Execute system under test.
+        watermarks.update(NodeID.getInstance(NODE_A), 2, null);
+
+        // Verify result.
+        assertFalse(waiter.isDone());
+        watermarks.update(NodeID.getInstance(NODE_B), 2, null);
+        assertTrue(waiter.isDone());
+    }
+
+    /**
+     * Verifies that a waiter is released when the node that had pending data leaves the cluster, and that the node is
+     * then forgotten (so that a later state with a low version is not disregarded).
+     */
+    @Test
+    public void testLeavingNodeReleasesWaiter() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 5, T0.minusSeconds(1));
+        final CompletableFuture<Void> waiter = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Execute system under test.
+        watermarks.leftCluster(NODE_A);
+
+        // Verify result.
+        assertTrue(waiter.isDone());
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(1));
+        assertFalse(watermarks.whenStoredOnOtherNodes(T0).isDone());
+    }
+
+    /**
+     * Verifies that all waiters are released when the local node leaves the cluster.
+     */
+    @Test
+    public void testLeavingClusterReleasesWaiters() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(1));
+        watermarks.update(NodeID.getInstance(NODE_B), 1, T0.minusSeconds(1));
+        final CompletableFuture<Void> waiter = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Execute system under test.
+        watermarks.leftCluster();
+
+        // Verify result.
+        assertTrue(waiter.isDone());
+        assertEquals(0, watermarks.getWaiterCount());
+    }
+
+    /**
+     * Verifies that a waiter that is cancelled is no longer registered.
+     */
+    @Test
+    public void testCancelledWaiterIsRemoved() throws Exception {
+        // Setup test fixture.
+        final ArchiveWatermarks watermarks = new ArchiveWatermarks(() -> null);
+        watermarks.update(NodeID.getInstance(NODE_A), 1, T0.minusSeconds(1));
+        final CompletableFuture<Void> waiter = watermarks.whenStoredOnOtherNodes(T0);
+
+        // Execute system under test.
+        waiter.cancel(false);
+
+        // Verify result.
+        assertEquals(0, watermarks.getWaiterCount());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies that {@link ArchivedMessageWriter} writes the same rows using multi-row statements as it does when writing
+ * every row using its own statement, using in-memory HSQLDB databases.
+ */
+public class ArchivedMessageWriterTest {
+
+    private static final String CREATE_TABLE = "CREATE TABLE ofMessageArchive ("
+        + "messageID BIGINT NULL, conversationID BIGINT NOT NULL, fromJID VARCHAR(1024) NOT NULL, fromJIDResource VARCHAR(255) NULL, "
+        + "toJID VARCHAR(1024) NOT NULL, toJIDResource VARCHAR(255) NULL, sentDate BIGINT NOT NULL, stanza LONGVARCHAR NULL, "
+        + "body LONGVARCHAR NULL, isPMforJID VARCHAR(1024) NULL)";
+
+    private Connection perRow;
+    private Connection multiRow;
+
+    @Before
+    public void setUp() throws Exception {
+        perRow = DriverManager.getConnection("jdbc:hsqldb:mem:perRow", "SA", "");
+        multiRow = DriverManager.getConnection("jdbc:hsqldb:mem:multiRow", "SA", "");
+        for (final Connection con : Arrays.asList(perRow, multiRow)) {
+            try (final Statement stmt = con.createStatement()) {
+                stmt.execute(CREATE_TABLE);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final Connection con : Arrays.asList(perRow, multiRow)) {
+            try (final Statement stmt = con.createStatement()) {
+                stmt.execute("SHUTDOWN");
+            }
+            con.close();
+        }
+    }
+
+    /**
+     * Verifies that rows that are spread over several multi-row statements (because of their size, as well as the
+     * maximum amount of rows per statement) are identical to rows written one by one.
+     */
+    @Test
+    public void testMultiRowEqualsPerRow() throws Exception {
+        // Setup test fixture.
+        final List<ArchivedMessage> messages = createMessages(ArchivedMessageWriter.MAX_ROWS_PER_STATEMENT * 2 + 17);
+        ArchivedMessageWriter.writePerRow(perRow, messages);
+
+        // Execute system under test.
+        ArchivedMessageWriter.writeMultiRow(multiRow, messages, 4096);
+
+        // Verify result.
+        assertEquals(readAll(perRow), readAll(multiRow));
+    }
+
+    /**
+     * Verifies that a row that by itself is larger than the maximum statement size is written nonetheless.
+     */
+    @Test
+    public void testOversizedRowIsWritten() throws Exception {
+        // Setup test fixture.
+        final List<ArchivedMessage> messages = createMessages(3);
+        final char[] body = new char[10000];
+        Arrays.fill(body, 'x');
+        messages.add(1, new ArchivedMessage(1000, 2, new JID("john@example.org/phone"), new JID("jane@example.org"), new Date(1000), new String(body), null, false, null));
+        ArchivedMessageWriter.writePerRow(perRow, messages);
+
+        // Execute system under test.
+        ArchivedMessageWriter.writeMultiRow(multiRow, messages, 1024);
+
+        // Verify result.
+        assertEquals(readAll(perRow), readAll(multiRow));
+    }
+
+    private static List<ArchivedMessage> createMessages(final int count) {
+        final List<ArchivedMessage> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final JID from = new JID("user" + (i % 7), "example.org", i % 3 == 0 ? null : "resource" + i);
+            final JID to = new JID("room" + (i % 5), "conference.example.org", i % 2 == 0 ? null : "nick" + i);
+            final JID isPMforJID = i % 4 == 0 ? new JID("user" + (i % 11) + "@example.org") : null;
+            final String body = i % 9 == 0 ? null : "Message number " + i + " with some ünicode text: é中";
+            final String stanza = body == null ? null : "<message from=\"" + from + "\" to=\"" + to + "\"><body>" + body + "</body></message>";
+            result.add(new ArchivedMessage(i, i / 10, from, to, new Date(1_600_000_000_000L + i), body, stanza, false, isPMforJID));
+        }
+        return result;
+    }
+
+    private static List<List<Object>> readAll(final Connection con) throws SQLException {
+        final List<List<Object>> result = new ArrayList<>();
+        try (final Statement stmt = con.createStatement();
+             final ResultSet rs = stmt.executeQuery("SELECT * FROM ofMessageArchive ORDER BY messageID")) {
+            final int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                final List<Object> row = new ArrayList<>(columns);
+                for (int i = 1; i <= columns; i++) {
+                    row.add(rs.getObject(i));
+                }
+                result.add(row);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the implementation of {@link ConversationExpiryQueue}
+ */
+public class ConversationExpiryQueueTest {
+
+    /**
+     * Verifies that only the conversations of which the deadline has passed are returned, in deadline order.
+     */
+    @Test
+    public void testPollReturnsOnlyDueKeysInOrder() throws Exception {
+        // Setup test fixture.
+        final ConversationExpiryQueue queue = new ConversationExpiryQueue();
+        queue.schedule("c", 300);
+        queue.schedule("a", 100);
+        queue.schedule("b", 200);
+
+        // Execute system under test.
+        final List<String> result = queue.pollDue(250);
+
+        // Verify result.
+        assertEquals(Arrays.asList("a", "b"), result);
+        assertEquals(1, queue.size());
+    }
+
+    /**
+     * Verifies that when a conversation is scheduled more than once, only the earliest deadline is retained.
+     */
+    @Test
+    public void testEarliestDeadlineIsRetained() throws Exception {
+        // Setup test fixture.
+        final ConversationExpiryQueue queue = new ConversationExpiryQueue();
+        queue.schedule("a", 200);
+        queue.schedule("a", 300);
+        queue.schedule("a", 100);
+
+        // Execute system under test.
+        final List<String> result = queue.pollDue(150);
+
+        // Verify result.
+        assertEquals(Collections.singletonList("a"), result);
+        assertTrue(queue.pollDue(Long.MAX_VALUE).isEmpty());
+    }
+
+    /**
+     * Verifies that a cancelled conversation is not returned.
+     */
+    @Test
+    public void testCancelledKeyIsNotPolled() throws Exception {
+        // Setup test fixture.
+        final ConversationExpiryQueue queue = new ConversationExpiryQueue();
+        queue.schedule("a", 100);
+        queue.schedule("b", 100);
+
+        // Execute system under test.
+        queue.cancel("a");
+        final List<String> result = queue.pollDue(100);
+
+        // Verify result.
+        assertEquals(Collections.singletonList("b"), result);
+        assertEquals(0, queue.size());
+    }
+}
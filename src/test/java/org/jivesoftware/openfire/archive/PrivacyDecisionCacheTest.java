@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the implementation of {@link PrivacyDecisionCache}
+ */
+public class PrivacyDecisionCacheTest {
+
+    /**
+     * Verifies that a decision is evaluated only once for the same recipient and sender.
+     */
+    @Test
+    public void testDecisionIsReused() throws Exception {
+        // Setup test fixture.
+        final PrivacyDecisionCache cache = new PrivacyDecisionCache(Duration.ofMinutes(5), 100, 100);
+        final JID peer = new JID("jane@example.org/phone");
+        final AtomicInteger evaluations = new AtomicInteger();
+
+        // Execute system under test.
+        cache.isBlocked("john", peer, () -> evaluations.incrementAndGet() > 0);
+        final boolean result = cache.isBlocked("john", peer, () -> evaluations.incrementAndGet() < 0);
+
+        // Verify result.
+        assertTrue(result);
+        assertEquals(1, evaluations.get());
+    }
+
+    /**
+     * Verifies that a decision is evaluated again after the decisions of the recipient have been invalidated.
+     */
+    @Test
+    public void testDecisionIsEvaluatedAfterInvalidation() throws Exception {
+        // Setup test fixture.
+        final PrivacyDecisionCache cache = new PrivacyDecisionCache(Duration.ofMinutes(5), 100, 100);
+        final JID peer = new JID("jane@example.org/phone");
+        cache.isBlocked("john", peer, () -> true);
+        cache.invalidate("john");
+
+        // Execute system under test.
+        final boolean result = cache.isBlocked("john", peer, () -> false);
+
+        // Verify result.
+        assertEquals(false, result);
+    }
+
+    /**
+     * Verifies that a decision that was evaluated while the decisions of the recipient were invalidated is not cached,
+     * as it may be based on a privacy list that has since been replaced.
+     */
+    @Test
+    public void testDecisionEvaluatedDuringInvalidationIsNotCached() throws Exception {
+        // Setup test fixture.
+        final PrivacyDecisionCache cache = new PrivacyDecisionCache(Duration.ofMinutes(5), 100, 100);
+        final JID peer = new JID("jane@example.org/phone");
+        cache.isBlocked("john", peer, () -> false);
+        cache.invalidate("john");
+
+        // Execute system under test.
+        cache.isBlocked("john", peer, () -> {
+            cache.invalidate("john");
+            return true;
+        });
+        final boolean result = cache.isBlocked("john", peer, () -> false);
+
+        // Verify result.
+        assertFalse(result);
+    }
+
+    /**
+     * Verifies that a decision that was evaluated while all decisions were discarded is not cached.
+     */
+    @Test
+    public void testDecisionEvaluatedDuringClearIsNotCached() throws Exception {
+        // Setup test fixture.
+        final PrivacyDecisionCache cache = new PrivacyDecisionCache(Duration.ofMinutes(5), 100, 100);
+        final JID peer = new JID("jane@example.org/phone");
+
+        // Execute system under test.
+        cache.isBlocked("john", peer, () -> {
+            cache.clear();
+            return true;
+        });
+        final boolean result = cache.isBlocked("john", peer, () -> false);
+
+        // Verify result.
+        assertFalse(result);
+    }
+
+    /**
+     * Verifies that the least recently used decision of a recipient is evicted when the maximum amount of senders is
+     * exceeded.
+     */
+    @Test
+    public void testLeastRecentlyUsedPeerIsEvicted() throws Exception {
+        // Setup test fixture.
+        final PrivacyDecisionCache cache = new PrivacyDecisionCache(Duration.ofMinutes(5), 100, 2);
+        final JID jane = new JID("jane@example.org/phone");
+        final JID mary = new JID("mary@example.org/phone");
+        final JID suzy = new JID("suzy@example.org/phone");
+        final AtomicInteger evaluations = new AtomicInteger();
+        cache.isBlocked("john", jane, () -> evaluations.incrementAndGet() < 0);
+        cache.isBlocked("john", mary, () -> evaluations.incrementAndGet() < 0);
+        cache.isBlocked("john", jane, () -> evaluations.incrementAndGet() < 0);
+
+        // Execute system under test.
+        cache.isBlocked("john", suzy, () -> evaluations.incrementAndGet() < 0);
+
+        // Verify result.
+        assertEquals(3, evaluations.get());
+        cache.isBlocked("john", jane, () -> evaluations.incrementAndGet() < 0);
+        assertEquals(3, evaluations.get());
+        cache.isBlocked("john", mary, () -> evaluations.incrementAndGet() < 0);
+        assertEquals(4, evaluations.get());
+    }
+
+    /**
+     * Verifies that the decisions of the least recently used recipient are evicted when the maximum amount of
+     * recipients is exceeded, while those of other recipients are retained.
+     */
+    @Test
+    public void testLeastRecentlyUsedOwnerIsEvicted() throws Exception {
+        // Setup test fixture.
+        final PrivacyDecisionCache cache = new PrivacyDecisionCache(Duration.ofMinutes(5), 2, 100);
+        final JID peer = new JID("jane@example.org/phone");
+        final AtomicInteger evaluations = new AtomicInteger();
+        cache.isBlocked("john", peer, () -> evaluations.incrementAndGet() < 0);
+        cache.isBlocked("paul", peer, () -> evaluations.incrementAndGet() < 0);
+        cache.isBlocked("john", peer, () -> evaluations.incrementAndGet() < 0);
+
+        // Execute system under test.
+        cache.isBlocked("ringo", peer, () -> evaluations.incrementAndGet() < 0);
+
+        // Verify result.
+        assertEquals(3, evaluations.get());
+        cache.isBlocked("john", peer, () -> evaluations.incrementAndGet() < 0);
+        assertEquals(3, evaluations.get());
+        cache.isBlocked("paul", peer, () -> evaluations.incrementAndGet() < 0);
+        assertEquals(4, evaluations.get());
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Verifies that {@link RecentMessageCache.Buffers} returns the same pages as the database query that it replaces (for
+ * personal archives, without a 'with' filter, paging backwards), using an in-memory HSQLDB database.
+ */
+public class RecentMessageCacheTest {
+
+    private static final String CREATE_MESSAGES = "CREATE TABLE ofMessageArchive ("
+        + "messageID BIGINT NULL, conversationID BIGINT NOT NULL, fromJID VARCHAR(1024) NOT NULL, fromJIDResource VARCHAR(255) NULL, "
+        + "toJID VARCHAR(1024) NOT NULL, toJIDResource VARCHAR(255) NULL, sentDate BIGINT NOT NULL, stanza LONGVARCHAR NULL, "
+        + "body LONGVARCHAR NULL, isPMforJID VARCHAR(1024) NULL)";
+
+    private static final String CREATE_CONVERSATIONS = "CREATE TABLE ofConversation (conversationID BIGINT NOT NULL, roomID BIGINT NULL)";
+
+    /**
+     * The query of PaginatedMessageDatabaseQuery, for queries without a 'with' filter that page backwards.
+     */
+    private static final String QUERY = "SELECT a.messageID FROM ofMessageArchive a "
+        + "LEFT JOIN ofConversation c ON a.conversationID = c.conversationID "
+        + "WHERE (a.stanza IS NOT NULL OR a.body IS NOT NULL) AND a.messageID IS NOT NULL "
+        + "AND a.sentDate >= ? AND a.sentDate <= ? "
+        + "AND ( (a.isPMforJID IS NULL AND c.roomID IS NULL AND (a.fromJID = ? OR a.toJID = ?)) "
+        + "OR (a.isPMforJID IS NOT NULL AND c.roomID IS NOT NULL AND (a.isPMforJID = ? OR a.fromJID = ?)) ) ";
+
+    private static final String OWNER = "john@example.org";
+
+    /**
+     * Considers users of 'example.org' to be local.
+     */
+    private static final Function<ArchivedMessage, Set<String>> LOCAL_OWNERS = message -> {
+        final Set<String> owners = new LinkedHashSet<>(2);
+        for (final JID jid : new JID[] { message.getFromJID(), message.getToJID() }) {
+            if ("example.org".equals(jid.getDomain())) {
+                owners.add(jid.toBareJID());
+            }
+        }
+        return owners;
+    };
+
+    private Connection con;
+    private long nextID = 1;
+
+    /**
+     * A sent date that is after the creation of the cache.
+     */
+    private long now;
+
+    /**
+     * The sent date of the first message that is created by a test, which is after the floor of new owners.
+     */
+    private long first;
+
+    @Before
+    public void setUp() throws Exception {
+        con = DriverManager.getConnection("jdbc:hsqldb:mem:recentMessageCache", "SA", "");
+        try (final Statement stmt = con.createStatement()) {
+            stmt.execute(CREATE_MESSAGES);
+            stmt.execute(CREATE_CONVERSATIONS);
+            stmt.execute("INSERT INTO ofConversation (conversationID, roomID) VALUES (1, NULL)");
+        }
+        now = System.currentTimeMillis() + 60_000;
+        first = now;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (final Statement stmt = con.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        con.close();
+    }
+
+    /**
+     * Verifies that latest pages of every size that is not larger than the amount of cached messages are equal to
+     * those of the database.
+     */
+    @Test
+    public void testLatestPageEqualsDatabase() throws Exception {
+        // Setup test fixture.
+        final RecentMessageCache.Buffers buffers = new RecentMessageCache.Buffers(() -> 100);
+        archive(buffers, createMessages(20, "jane@example.org"), 50);
+
+        for (int maxResults = 1; maxResults <= 20; maxResults++) {
+            // Execute system under test.
+            final List<ArchivedMessage> result = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, null, maxResults);
+
+            // Verify result.
+            assertNotNull(result);
+            assertEquals(queryDatabase(0, Long.MAX_VALUE, null, null, maxResults), ids(result));
+        }
+    }
+
+    /**
+     * Verifies that pages that are limited by 'before' and 'after' message identifiers are equal to those of the
+     * database, including pages that hold fewer messages than requested.
+     */
+    @Test
+    public void testBeforeAndAfterEqualDatabase() throws Exception {
+        // Setup test fixture.
+        final RecentMessageCache.Buffers buffers = new RecentMessageCache.Buffers(() -> 100);
+        final List<ArchivedMessage> messages = createMessages(20, "jane@example.org");
+        archive(buffers, messages, 50);
+        final long lowest = messages.get(0).getID();
+        final long highest = messages.get(messages.size() - 1).getID();
+
+        for (long after = lowest - 1; after <= highest; after += 3) {
+            for (long before = after + 1; before <= highest + 1; before += 4) {
+                for (final int maxResults : new int[] { 1, 5, 25 }) {
+                    // Execute system under test.
+                    final List<ArchivedMessage> result = buffers.getLatest(OWNER, new Date(first), new Date(Long.MAX_VALUE), after, before, maxResults);
+
+                    // Verify result.
+                    assertNotNull(result);
+                    assertEquals(queryDatabase(first, Long.MAX_VALUE, after, before, maxResults), ids(result));
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies that, when older messages are no longer cached, pages that can be answered completely from the cache are
+     * equal to those of the database, and that no result is returned for pages that need messages below the floor.
+     */
+    @Test
+    public void testFloorIsRespected() throws Exception {
+        // Setup test fixture.
+        final RecentMessageCache.Buffers buffers = new RecentMessageCache.Buffers(() -> 100);
+        final List<ArchivedMessage> messages = createMessages(30, "jane@example.org");
+        archive(buffers, messages, 10);
+        final long highest = messages.get(messages.size() - 1).getID();
+
+        for (long before = highest + 1; before > highest - 15; before--) {
+            for (int maxResults = 1; maxResults <= 15; maxResults++) {
+                // Execute system under test.
+                final List<ArchivedMessage> result = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, before, maxResults);
+
+                // Verify result.
+                final long cachedAvailable = Math.max(0, 10 - (highest + 1 - before));
+                if (maxResults <= cachedAvailable) {
+                    assertNotNull(result);
+                    assertEquals(queryDatabase(0, Long.MAX_VALUE, null, before, maxResults), ids(result));
+                } else {
+                    assertNull(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies that a page is returned when fewer messages than requested exist, if the requested period starts after
+     * the floor.
+     */
+    @Test
+    public void testPeriodAfterFloorEqualsDatabase() throws Exception {
+        // Setup test fixture.
+        final RecentMessageCache.Buffers buffers = new RecentMessageCache.Buffers(() -> 100);
+        final List<ArchivedMessage> messages = createMessages(30, "jane@example.org");
+        archive(buffers, messages, 10);
+        final long start = messages.get(25).getSentDate().getTime();
+
+        // Execute system under test.
+        final List<ArchivedMessage> result = buffers.getLatest(OWNER, new Date(start), new Date(Long.MAX_VALUE), null, null, 20);
+
+        // Verify result.
+        assertNotNull(result);
+        assertEquals(queryDatabase(start, Long.MAX_VALUE, null, null, 20), ids(result));
+    }
+
+    /**
+     * Verifies that messages from before the cache was created (that are in the database only) prevent results that
+     * would need them.
+     */
+    @Test
+    public void testMessagesBeforeCacheAreNotMissed() throws Exception {
+        // Setup test fixture.
+        final RecentMessageCache.Buffers buffers = new RecentMessageCache.Buffers(() -> 100);
+        final List<ArchivedMessage> history = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            history.add(new ArchivedMessage(nextID++, 1, new JID(OWNER + "/phone"), new JID("jane@example.org"), new Date(now - 3_600_000 + i), "Old " + i, null, false, null));
+        }
+        ArchivedMessageWriter.writePerRow(con, history);
+        final List<ArchivedMessage> messages = createMessages(5, "jane@example.org");
+        archive(buffers, messages, 50);
+
+        // Execute system under test.
+        final List<ArchivedMessage> partial = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, null, 5);
+        final List<ArchivedMessage> beyond = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, null, 6);
+
+        // Verify result.
+        assertNotNull(partial);
+        assertEquals(queryDatabase(0, Long.MAX_VALUE, null, null, 5), ids(partial));
+        assertNull(beyond);
+    }
+
+    /**
+     * Verifies that an owner that was evicted is no longer served, and that messages that are added after the eviction
+     * are served only for pages that do not need messages from before the eviction.
+     */
+    @Test
+    public void testEvictedOwnerRestartsAboveFloor() throws Exception {
+        // Setup test fixture.
+        final RecentMessageCache.Buffers buffers = new RecentMessageCache.Buffers(() -> 1);
+        archive(buffers, createMessages(5, "jane@elsewhere.org"), 50);
+        archive(buffers, Collections.singletonList(new ArchivedMessage(nextID++, 1, new JID("bob@example.org/phone"), new JID("jane@elsewhere.org"), new Date(now++), "Evicts john", null, false, null)), 50);
+        final List<ArchivedMessage> afterEviction = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, null, 1);
+
+        // Execute system under test.
+        archive(buffers, createMessages(3, "jane@elsewhere.org"), 50);
+        final List<ArchivedMessage> recent = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, null, 3);
+        final List<ArchivedMessage> beyond = buffers.getLatest(OWNER, new Date(0), new Date(Long.MAX_VALUE), null, null, 4);
+
+        // Verify result.
+        assertNull(afterEviction);
+        assertNotNull(recent);
+        assertEquals(queryDatabase(0, Long.MAX_VALUE, null, null, 3), ids(recent));
+        assertNull(beyond);
+    }
+
+    private List<ArchivedMessage> createMessages(final int count, final String peer) {
+        final List<ArchivedMessage> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final boolean outgoing = i % 3 != 0;
+            final JID from = outgoing ? new JID(OWNER + "/phone") : new JID(peer + "/laptop");
+            final JID to = outgoing ? new JID(peer) : new JID(OWNER);
+            result.add(new ArchivedMessage(nextID++, 1, from, to, new Date(now), "Message " + i, "<message><body>Message " + i + "</body></message>", false, null));
+            now += 1000;
+        }
+        return result;
+    }
+
+    /**
+     * Writes messages to the database, after which they are added to the cache (as the archiver does).
+     */
+    private void archive(final RecentMessageCache.Buffers buffers, final List<ArchivedMessage> messages, final int capacity) throws SQLException {
+        ArchivedMessageWriter.writePerRow(con, messages);
+        buffers.add(messages, capacity, LOCAL_OWNERS);
+    }
+
+    private List<Long> queryDatabase(final long start, final long end, final Long after, final Long before, final int maxResults) throws SQLException {
+        String sql = QUERY;
+        if (after != null) {
+            sql += "AND a.messageID > ? ";
+        }
+        if (before != null) {
+            sql += "AND a.messageID < ? ";
+        }
+        sql += "ORDER BY a.sentDate DESC LIMIT " + maxResults;
+
+        final List<Long> result = new ArrayList<>();
+        try (final PreparedStatement pstmt = con.prepareStatement(sql)) {
+            int pos = 0;
+            pstmt.setLong(++pos, start);
+            pstmt.setLong(++pos, end);
+            for (int i = 0; i < 4; i++) {
+                pstmt.setString(++pos, OWNER);
+            }
+            if (after != null) {
+                pstmt.setLong(++pos, after);
+            }
+            if (before != null) {
+                pstmt.setLong(++pos, before);
+            }
+            try (final ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    result.add(rs.getLong(1));
+                }
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static List<Long> ids(final List<ArchivedMessage> messages) {
+        final List<Long> result = new ArrayList<>(messages.size());
+        for (final ArchivedMessage message : messages) {
+            result.add(message.getID());
+        }
+        return result;
+    }
+}
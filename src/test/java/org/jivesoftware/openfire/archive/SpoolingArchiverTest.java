@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2026 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.archive;
+
+import org.jivesoftware.openfire.reporting.util.TaskEngine;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the implementation of {@link SpoolingArchiver}
+ */
+public class SpoolingArchiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<TestArchiver> running = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        running.forEach(Archiver::stop);
+    }
+
+    /**
+     * Verifies that a future that waits for an element is completed after the element has been stored.
+     */
+    @Test
+    public void testWaiterIsCompletedWhenStored() throws Exception {
+        // Setup test fixture.
+        final TestArchiver archiver = start(new TestArchiver());
+        archiver.archive("a");
+
+        // Execute system under test.
+        final CompletableFuture<Void> result = archiver.whenStored(archiver.getSubmitted());
+
+        // Verify result.
+        result.get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("a"), archiver.getStored());
+        assertNull(archiver.getPendingSince());
+        assertEquals(0, archiver.getWaiterCount());
+    }
+
+    /**
+     * Verifies that a future that is cancelled is no longer registered, without affecting other callers that wait for
+     * the same element.
+     */
+    @Test
+    public void testCancelledWaiterIsRemoved() throws Exception {
+        // Setup test fixture.
+        final TestArchiver archiver = new TestArchiver();
+        archiver.archive("a");
+        final CompletableFuture<Void> cancelled = archiver.whenStored(archiver.getSubmitted());
+        final CompletableFuture<Void> other = archiver.whenStored(archiver.getSubmitted());
+
+        // Execute system under test.
+        cancelled.cancel(false);
+
+        // Verify result.
+        assertEquals(1, archiver.getWaiterCount());
+        assertFalse(other.isDone());
+        other.cancel(false);
+        assertEquals(0, archiver.getWaiterCount());
+    }
+
+    /**
+     * Verifies that elements that were spooled, but not stored, before the spool was stopped, are stored after the
+     * spool is started again.
+     */
+    @Test
+    public void testSpooledElementsAreReplayed() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final TestArchiver stopped = new TestArchiver(); // Never stores anything.
+        stopped.startSpool(directory, TaskEngine.getInstance());
+        stopped.archive("a");
+        stopped.archive("b");
+        stopped.archive("c");
+        stopped.stopSpool(Duration.ofMillis(200));
+
+        // Execute system under test.
+        final TestArchiver replaying = start(new TestArchiver());
+        replaying.startSpool(directory, TaskEngine.getInstance());
+
+        // Verify result.
+        try {
+            assertEquals(3, replaying.getSubmitted());
+            replaying.whenStored(replaying.getSubmitted()).get(5, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("a", "b", "c"), replaying.getStored());
+            assertNull(replaying.getPendingSince());
+        } finally {
+            replaying.stopSpool(Duration.ofSeconds(1));
+        }
+    }
+
+    /**
+     * Verifies that stopping the spool releases everyone that waits for elements that remain in the spool.
+     */
+    @Test
+    public void testStoppingSpoolReleasesWaiters() throws Exception {
+        // Setup test fixture.
+        final TestArchiver archiver = new TestArchiver(); // Never stores anything.
+        archiver.startSpool(folder.newFolder().toPath(), TaskEngine.getInstance());
+        archiver.archive("a");
+        archiver.archive("b");
+        final CompletableFuture<Void> waiter = archiver.whenStored(archiver.getSubmitted());
+
+        // Execute system under test.
+        archiver.stopSpool(Duration.ofMillis(200));
+
+        // Verify result.
+        assertTrue(waiter.isDone());
+        assertNull(archiver.getPendingSince());
+        assertEquals(0, archiver.getWaiterCount());
+    }
+
+    /**
+     * Verifies that elements that were abandoned when the spool was stopped, but that are stored afterwards, are not
+     * accounted for twice (which would complete futures that wait for elements that were not yet stored).
+     */
+    @Test
+    public void testAbandonedElementsAreAccountedForOnce() throws Exception {
+        // Setup test fixture.
+        final TestArchiver archiver = new TestArchiver();
+        archiver.startSpool(folder.newFolder().toPath(), TaskEngine.getInstance());
+        archiver.archive("a");
+        archiver.archive("b");
+        archiver.stopSpool(Duration.ofMillis(200));
+        archiver.archive("c");
+        final CompletableFuture<Void> all = archiver.whenStored(archiver.getSubmitted());
+        final CompletableFuture<Void> next = archiver.whenStored(archiver.getSubmitted() + 1);
+
+        // Execute system under test.
+        start(archiver);
+
+        // Verify result.
+        all.get(5, TimeUnit.SECONDS);
+        assertTrue(archiver.getStored().contains("c"));
+        assertFalse(next.isDone());
+        assertNull(archiver.getPendingSince());
+    }
+
+    /**
+     * Verifies that elements that were read from the spool, but that could not be stored at first, are stored exactly
+     * once: these are retried, and not replayed when the spool is next started.
+     */
+    @Test
+    public void testFailedElementsAreStoredOnce() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final List<String> database = Collections.synchronizedList(new ArrayList<>());
+        final TestArchiver failing = start(new TestArchiver(database));
+        failing.failures.set(1);
+        failing.startSpool(directory, TaskEngine.getInstance());
+        failing.archive("a");
+        failing.archive("b");
+        failing.archive("c");
+
+        // Execute system under test.
+        failing.whenStored(failing.getSubmitted()).get(5, TimeUnit.SECONDS);
+        failing.stopSpool(Duration.ofSeconds(1));
+        final TestArchiver replaying = start(new TestArchiver(database));
+        replaying.startSpool(directory, TaskEngine.getInstance());
+
+        // Verify result.
+        try {
+            assertEquals(0, replaying.getSubmitted());
+            assertEquals(Arrays.asList("a", "b", "c"), copy(database));
+        } finally {
+            replaying.stopSpool(Duration.ofSeconds(1));
+        }
+    }
+
+    /**
+     * Verifies that elements that were stored, but that were not acknowledged before the spool was stopped, are not
+     * stored again when these are replayed.
+     */
+    @Test
+    public void testStoredElementsAreNotStoredAgainWhenReplayed() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final List<String> database = Collections.synchronizedList(new ArrayList<>());
+        final TestArchiver stalling = start(new TestArchiver(database));
+        stalling.stalling = new CountDownLatch(1);
+        stalling.startSpool(directory, TaskEngine.getInstance());
+        stalling.archive("a");
+        assertTrue(stalling.stalled.await(5, TimeUnit.SECONDS));
+        stalling.stopSpool(Duration.ofMillis(200));
+
+        // Execute system under test.
+        final TestArchiver replaying = start(new TestArchiver(database));
+        replaying.startSpool(directory, TaskEngine.getInstance());
+
+        // Verify result.
+        try {
+            assertEquals(1, replaying.getSubmitted());
+            replaying.whenStored(replaying.getSubmitted()).get(5, TimeUnit.SECONDS);
+            assertEquals(Collections.singletonList("a"), copy(database));
+        } finally {
+            stalling.stalling.countDown();
+            replaying.stopSpool(Duration.ofSeconds(1));
+        }
+    }
+
+    /**
+     * Verifies that an element that cannot be stored, while others can, is moved to the quarantine, which allows the
+     * elements after it to be stored and acknowledged.
+     */
+    @Test
+    public void testElementThatCannotBeStoredIsQuarantined() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final TestArchiver stopped = new TestArchiver(); // Never stores anything.
+        stopped.startSpool(directory, TaskEngine.getInstance());
+        stopped.archive("a");
+        stopped.archive("poison");
+        stopped.archive("c");
+        stopped.stopSpool(Duration.ofMillis(200));
+        final TestArchiver replaying = start(new TestArchiver());
+
+        // Execute system under test.
+        replaying.startSpool(directory, TaskEngine.getInstance());
+
+        // Verify result.
+        replaying.whenStored(replaying.getSubmitted()).get(5, TimeUnit.SECONDS);
+        replaying.stopSpool(Duration.ofSeconds(1));
+        assertEquals(Arrays.asList("a", "c"), replaying.getStored());
+        assertTrue(Files.size(directory.resolve("quarantine.dat")) > 0);
+        final TestArchiver next = new TestArchiver();
+        next.startSpool(directory, TaskEngine.getInstance());
+        assertEquals(0, next.getSubmitted());
+        next.stopSpool(Duration.ofMillis(200));
+    }
+
+    /**
+     * Verifies that a record in the spool that cannot be decoded is accounted for, so that everyone that waits for
+     * the elements around it is released.
+     */
+    @Test
+    public void testUndecodableElementIsAccountedFor() throws Exception {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final TestArchiver stopped = new TestArchiver(); // Never stores anything.
+        stopped.startSpool(directory, TaskEngine.getInstance());
+        stopped.archive("a");
+        stopped.archive("undecodable");
+        stopped.archive("c");
+        stopped.stopSpool(Duration.ofMillis(200));
+        final TestArchiver replaying = start(new TestArchiver());
+
+        // Execute system under test.
+        replaying.startSpool(directory, TaskEngine.getInstance());
+
+        // Verify result.
+        try {
+            assertEquals(3, replaying.getSubmitted());
+            replaying.whenStored(replaying.getSubmitted()).get(5, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("a", "c"), replaying.getStored());
+            assertNull(replaying.getPendingSince());
+            assertTrue(Files.size(directory.resolve("quarantine.dat")) > 0);
+        } finally {
+            replaying.stopSpool(Duration.ofSeconds(1));
+        }
+    }
+
+    private static List<String> copy(final List<String> list) {
+        synchronized (list) {
+            return new ArrayList<>(list);
+        }
+    }
+
+    private TestArchiver start(final TestArchiver archiver) {
+        running.add(archiver);
+        final Thread thread = new Thread(archiver, "test-archiver");
+        thread.setDaemon(true);
+        thread.start();
+        return archiver;
+    }
+
+    /**
+     * An archiver of strings, that records the elements that it stores. Elements named "poison" cannot be stored, and
+     * elements named "undecodable" cannot be read back from the spool.
+     */
+    private static final class TestArchiver extends SpoolingArchiver<String> {
+
+        private final List<String> stored;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final CountDownLatch stalled = new CountDownLatch(1);
+        private volatile CountDownLatch stalling;
+
+        private TestArchiver() {
+            this(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        private TestArchiver(final List<String> stored) {
+            super("test", 10, Duration.ofMillis(50), Duration.ofMillis(10));
+            this.stored = stored;
+        }
+
+        @Nonnull
+        @Override
+        protected ArchiveSpool.Codec<String> getCodec() {
+            return new ArchiveSpool.Codec<String>() {
+                @Override
+                public void encode(@Nonnull final String element, @Nonnull final DataOutput out) throws IOException {
+                    ArchiveSpool.writeString(out, element);
+                }
+
+                @Nonnull
+                @Override
+                public String decode(@Nonnull final DataInput in) throws IOException {
+                    final String result = ArchiveSpool.readString(in);
+                    if ("undecodable".equals(result)) {
+                        throw new IOException("Unable to decode " + result);
+                    }
+                    return result;
+                }
+            };
+        }
+
+        @Override
+        protected boolean doStore(final List<String> workQueue, final boolean mayExist) {
+            if (workQueue.contains("poison") || failures.getAndUpdate(value -> Math.max(0, value - 1)) > 0) {
+                return false;
+            }
+            synchronized (stored) {
+                for (final String element : workQueue) {
+                    if (!mayExist || !stored.contains(element)) {
+                        stored.add(element);
+                    }
+                }
+            }
+
+            // Simulates the JVM stopping after the elements have been stored, but before these are acknowledged.
+            final CountDownLatch stalling = this.stalling;
+            if (stalling != null) {
+                stalled.countDown();
+                try {
+                    stalling.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return true;
+        }
+
+        private List<String> getStored() {
+            return copy(stored);
+        }
+    }
+}